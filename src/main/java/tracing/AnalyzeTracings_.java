@@ -107,6 +107,26 @@ class PointInPath {
 
 public class AnalyzeTracings_ implements PlugIn {
 
+	/* Points with each coordinate in [0,2^21) packed into a long,
+	   for a LongHashIndex: */
+	static long packPoint( int x, int y, int z ) {
+		if( x < 0 || y < 0 || z < 0 || x >= (1 << 21) || y >= (1 << 21) || z >= (1 << 21) )
+			throw new IllegalArgumentException( "The point ("+x+","+y+","+z+") is outside the image" );
+		return ((long)z << 42) | ((long)y << 21) | x;
+	}
+
+	static int unpackX( long packed ) {
+		return (int)(packed & 0x1FFFFF);
+	}
+
+	static int unpackY( long packed ) {
+		return (int)((packed >>> 21) & 0x1FFFFF);
+	}
+
+	static int unpackZ( long packed ) {
+		return (int)(packed >>> 42);
+	}
+
 	static public Connectivity buildGraph( String imageFileName, ArrayList< Path > allPaths ) {
 
 		Connectivity result = new Connectivity();
@@ -173,27 +193,56 @@ public class AnalyzeTracings_ implements PlugIn {
 
 		int paths = allPaths.size();
 		// System.out.println("Paths to draw: "+paths);
+
+		/* Paths often share points (e.g. where they join), so
+		   transform each distinct point, and look up its label,
+		   only once.  The matcher may not be safe to use from
+		   several threads, so this is done on this one: */
+		LongHashIndex domainPoints = new LongHashIndex();
+		int [][] pointNumbers = new int[paths][];
 		for( int i = 0; i < paths; ++i ) {
 			Path path = (Path)allPaths.get(i);
+			pointNumbers[i] = new int[path.size()];
+			for( int k = 0; k < path.size(); ++k )
+				pointNumbers[i][k] = domainPoints.add( packPoint( path.getXUnscaled(k),
+										  path.getYUnscaled(k),
+										  path.getZUnscaled(k) ) );
+		}
+		int distinctPoints = domainPoints.size();
+		int [] templateX = new int[distinctPoints];
+		int [] templateY = new int[distinctPoints];
+		int [] templateZ = new int[distinctPoints];
+		int [] labelValues = new int[distinctPoints];
+		for( int d = 0; d < distinctPoints; ++d ) {
+			long packed = domainPoints.get(d);
+			matcher.transformDomainToTemplate( unpackX( packed ), unpackY( packed ), unpackZ( packed ), imagePoint );
+
+			templateX[d] = imagePoint.x;
+			templateY[d] = imagePoint.y;
+			templateZ[d] = imagePoint.z;
+
+			int label_value=label_data[imagePoint.z][imagePoint.y*templateWidth+imagePoint.x]&0xFF;
+
+			if( label_value >= materials ) {
+				IJ.error( "A label value of " + label_value + " was found, which is not a valid material (max " + (materials - 1) + ")" );
+				return null;
+			}
 
-			for( int k = 0; k < path.size(); ++k ) {
+			labelValues[d] = label_value;
+		}
 
-				int x_in_domain = path.getXUnscaled(k);
-				int y_in_domain = path.getYUnscaled(k);
-				int z_in_domain = path.getZUnscaled(k);
+		for( int i = 0; i < paths; ++i ) {
+			Path path = (Path)allPaths.get(i);
 
-				matcher.transformDomainToTemplate( x_in_domain, y_in_domain, z_in_domain, imagePoint );
+			for( int k = 0; k < path.size(); ++k ) {
 
-				int x_in_template=imagePoint.x;
-				int y_in_template=imagePoint.y;
-				int z_in_template=imagePoint.z;
+				int d = pointNumbers[i][k];
 
-				int label_value=label_data[z_in_template][y_in_template*templateWidth+x_in_template]&0xFF;
+				int x_in_template=templateX[d];
+				int y_in_template=templateY[d];
+				int z_in_template=templateZ[d];
 
-				if( label_value >= materials ) {
-					IJ.error( "A label value of " + label_value + " was found, which is not a valid material (max " + (materials - 1) + ")" );
-					return null;
-				}
+				int label_value=labelValues[d];
 
 				PointInPath p = new PointInPath();
 
@@ -99,7 +99,7 @@ public class AutoSearchThread extends SearchThread {
 		if( tubeValues[n.z][n.y*width+n.x] > tubenessThreshold ) {
 			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
 			destinations.add(p);
-		} else if( null != previousPathGraph.get(n.x,n.y,n.z) ) {
+		} else if( previousPathGraph.contains(n.x,n.y,n.z) ) {
 			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
 			destinations.add(p);
 		}
@@ -0,0 +1,390 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/* The points that Auto_Tracer starts searches from: every voxel
+   whose tubeness is above the threshold, most tube-like first, and
+   a mask of the voxels that have been reached by a search already,
+   so shouldn't be started from.
+
+   The tubeness values never change, so rather than a PriorityQueue
+   of AutoPoint objects this is just an array sorted once, where
+   each element is the voxel's tubeness (flipped so that larger
+   values sort first) in the top 32 bits and the voxel's index in
+   the bottom 32.  Equally tube-like voxels come out in the order of
+   their indices.  The mask is a bitset with a bit for each voxel,
+   so neither needs an object for each point.
+
+   When searches are run in parallel, the image is divided into
+   cubic regions, and pollUnclaimed() only returns seeds in regions
+   that aren't next to one where a search is still running.  So
+   that the seeds in claimed regions needn't be scanned past on
+   every call, the seeds are also listed by region, and a priority
+   queue holds the first seed of each unclaimed region; the seeds
+   it returns are marked as taken rather than removed.
+
+   For checkpoints, a second mask records the seeds that searches
+   have been started from, and, once startLog() has been called,
+   the indices newly marked in either mask are logged until they're
+   taken with takeNewlyDone() and takeNewlySearched(). */
+
+class AutoSeedQueue {
+
+	protected int width, height, depth;
+
+	/* The seeds still to be considered are seeds[next] up to,
+	   but not including, seeds[size]: */
+	protected long [] seeds;
+	protected int next;
+	protected int size;
+
+	protected long [] done;
+	protected int doneCount;
+
+	/* null until the first seed is marked as searched: */
+	protected long [] searched;
+
+	protected boolean logging;
+	protected int [] newlyDone;
+	protected int newlyDoneCount;
+	protected int [] newlySearched;
+	protected int newlySearchedCount;
+
+	/* For each region, the number of running searches that
+	   started in it or one of its neighbours: */
+	protected int regionSize;
+	protected int regionsX, regionsY, regionsZ;
+	protected int [] claims;
+
+	/* The positions in seeds of the seeds in region r are
+	   regionSeeds[regionStart[r]] up to, but not including,
+	   regionSeeds[regionStart[r+1]], in order; those before
+	   regionHead[r] are done or taken.  heads has an entry for
+	   every unclaimed region with seeds left (and maybe others,
+	   which are skipped), which is no later than that region's
+	   first seed that isn't done or taken, and regionQueued[r] is
+	   whether there's an entry for region r: */
+	protected int [] regionSeeds;
+	protected int [] regionStart;
+	protected int [] regionHead;
+	protected boolean [] regionQueued;
+	protected PriorityQueue<Long> heads;
+
+	/* The seeds returned by pollUnclaimed(): */
+	protected long [] taken;
+
+	AutoSeedQueue( float [][] tubeValues, int width, int height, int depth, float tubenessThreshold ) {
+		if( (long)width * height * depth >= Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "The image has too many points for automatic tracing" );
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		int pointsInSlice = width * height;
+		int aboveThreshold = 0;
+		for( int z = 0; z < depth; ++z ) {
+			float [] slice = tubeValues[z];
+			for( int i = 0; i < pointsInSlice; ++i )
+				if( slice[i] > tubenessThreshold )
+					++ aboveThreshold;
+		}
+		seeds = new long[aboveThreshold];
+		for( int z = 0; z < depth; ++z ) {
+			float [] slice = tubeValues[z];
+			int offset = z * pointsInSlice;
+			for( int i = 0; i < pointsInSlice; ++i ) {
+				float t = slice[i];
+				if( t > tubenessThreshold )
+					seeds[size++] = ((long)~sortableBits( t ) << 32) | (offset + i);
+			}
+		}
+		Arrays.sort( seeds );
+
+		done = new long[(width * height * depth + 63) >>> 6];
+	}
+
+	/* An int that sorts in the same order as the float (which
+	   can't be NaN here, since NaN isn't above the threshold): */
+	static int sortableBits( float f ) {
+		int bits = Float.floatToIntBits( f );
+		return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+	}
+
+	int index( int x, int y, int z ) {
+		return (z * height + y) * width + x;
+	}
+
+	AutoPoint pointAt( int index ) {
+		int pointsInSlice = width * height;
+		int z = index / pointsInSlice;
+		int inSlice = index - z * pointsInSlice;
+		return new AutoPoint( inSlice % width, inSlice / width, z );
+	}
+
+	boolean isDone( int index ) {
+		return (done[index >>> 6] & (1L << index)) != 0;
+	}
+
+	boolean isDone( int x, int y, int z ) {
+		return isDone( index( x, y, z ) );
+	}
+
+	void markDone( int x, int y, int z ) {
+		markDone( index( x, y, z ) );
+	}
+
+	void markDone( int index ) {
+		long bit = 1L << index;
+		if( (done[index >>> 6] & bit) == 0 ) {
+			done[index >>> 6] |= bit;
+			++ doneCount;
+			if( logging ) {
+				newlyDone = append( newlyDone, newlyDoneCount, index );
+				++ newlyDoneCount;
+			}
+		}
+	}
+
+	boolean isTaken( int index ) {
+		return taken != null && (taken[index >>> 6] & (1L << index)) != 0;
+	}
+
+	boolean isSearched( int index ) {
+		return searched != null && (searched[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/* Records that a search has been started from p; this only
+	   matters after a checkpoint is resumed, when compact() drops
+	   the seeds that were searched from before: */
+	void markSearched( AutoPoint p ) {
+		markSearched( index( p.x, p.y, p.z ) );
+	}
+
+	void markSearched( int index ) {
+		if( searched == null )
+			searched = new long[done.length];
+		long bit = 1L << index;
+		if( (searched[index >>> 6] & bit) == 0 ) {
+			searched[index >>> 6] |= bit;
+			if( logging ) {
+				newlySearched = append( newlySearched, newlySearchedCount, index );
+				++ newlySearchedCount;
+			}
+		}
+	}
+
+	static int [] append( int [] values, int count, int value ) {
+		if( count == values.length )
+			values = Arrays.copyOf( values, Math.max( 16, values.length * 2 ) );
+		values[count] = value;
+		return values;
+	}
+
+	void startLog( ) {
+		logging = true;
+		newlyDone = new int[1024];
+		newlyDoneCount = 0;
+		newlySearched = new int[64];
+		newlySearchedCount = 0;
+	}
+
+	/* The indices marked as done since the last call: */
+	int [] takeNewlyDone( ) {
+		if( ! logging )
+			throw new RuntimeException( "BUG: takeNewlyDone() called before startLog()" );
+		int [] result = Arrays.copyOf( newlyDone, newlyDoneCount );
+		newlyDoneCount = 0;
+		return result;
+	}
+
+	/* The indices marked as searched since the last call: */
+	int [] takeNewlySearched( ) {
+		if( ! logging )
+			throw new RuntimeException( "BUG: takeNewlySearched() called before startLog()" );
+		int [] result = Arrays.copyOf( newlySearched, newlySearchedCount );
+		newlySearchedCount = 0;
+		return result;
+	}
+
+	int getDoneCount( ) {
+		return doneCount;
+	}
+
+	/* The most tube-like seed that isn't done, or null if there
+	   are none left: */
+	AutoPoint poll( ) {
+		while( next < size ) {
+			int index = (int)seeds[next++];
+			if( ! isDone( index ) && ! isTaken( index ) )
+				return pointAt( index );
+		}
+		return null;
+	}
+
+	boolean isEmpty( ) {
+		skipUnavailable();
+		return next == size;
+	}
+
+	void skipUnavailable( ) {
+		while( next < size && (isDone( (int)seeds[next] ) || isTaken( (int)seeds[next] )) )
+			++ next;
+	}
+
+	/* The number of seeds left, including any that have been
+	   marked as done, or taken by pollUnclaimed(), since the last
+	   compact(): */
+	int remaining( ) {
+		return size - next;
+	}
+
+	void setRegionSize( int regionSize ) {
+		if( regionSize < 1 )
+			throw new IllegalArgumentException( "The region size must be at least 1" );
+		this.regionSize = regionSize;
+		regionsX = (width + regionSize - 1) / regionSize;
+		regionsY = (height + regionSize - 1) / regionSize;
+		regionsZ = (depth + regionSize - 1) / regionSize;
+		claims = new int[regionsX * regionsY * regionsZ];
+		if( taken == null )
+			taken = new long[done.length];
+		listByRegion();
+	}
+
+	int regionOf( int index ) {
+		int pointsInSlice = width * height;
+		int z = index / pointsInSlice;
+		int inSlice = index - z * pointsInSlice;
+		return region( (inSlice % width) / regionSize, (inSlice / width) / regionSize, z / regionSize );
+	}
+
+	/* Lists the seeds still to be considered by region, and
+	   queues the first seed of each unclaimed region: */
+	void listByRegion( ) {
+		int regions = claims.length;
+		regionStart = new int[regions + 1];
+		for( int i = next; i < size; ++i )
+			++ regionStart[regionOf( (int)seeds[i] ) + 1];
+		for( int r = 0; r < regions; ++r )
+			regionStart[r + 1] += regionStart[r];
+		regionSeeds = new int[size - next];
+		regionHead = Arrays.copyOf( regionStart, regions );
+		for( int i = next; i < size; ++i )
+			regionSeeds[regionHead[regionOf( (int)seeds[i] )]++] = i;
+		regionHead = Arrays.copyOf( regionStart, regions );
+		regionQueued = new boolean[regions];
+		heads = new PriorityQueue<Long>();
+		for( int r = 0; r < regions; ++r )
+			queueRegion( r );
+	}
+
+	/* Adds an entry to heads for region r if it's unclaimed, has
+	   seeds left and doesn't have one already: */
+	void queueRegion( int r ) {
+		if( claims[r] > 0 || regionQueued[r] || regionHead[r] == regionStart[r + 1] )
+			return;
+		heads.add( seeds[regionSeeds[regionHead[r]]] );
+		regionQueued[r] = true;
+	}
+
+	/* The most tube-like seed that isn't done, and isn't in a
+	   region claimed by a running search, or null if there are
+	   none.  The seed's region and its neighbours are claimed
+	   until release() is called with it.  The seeds skipped over
+	   stay in order. */
+	AutoPoint pollUnclaimed( ) {
+		if( claims == null )
+			throw new RuntimeException( "BUG: pollUnclaimed() called before setRegionSize()" );
+		Long entry;
+		while( (entry = heads.poll()) != null ) {
+			long seed = entry;
+			int r = regionOf( (int)seed );
+			regionQueued[r] = false;
+			if( claims[r] > 0 )
+				continue; // It's queued again when released
+			int h = regionHead[r], end = regionStart[r + 1];
+			while( h < end && (isDone( (int)seeds[regionSeeds[h]] ) || isTaken( (int)seeds[regionSeeds[h]] )) )
+				++ h;
+			regionHead[r] = h;
+			if( h == end )
+				continue;
+			if( seeds[regionSeeds[h]] != seed ) {
+				// The entry was for a seed that's now done:
+				queueRegion( r );
+				continue;
+			}
+			regionHead[r] = h + 1;
+			int index = (int)seed;
+			taken[index >>> 6] |= 1L << index;
+			skipUnavailable();
+			AutoPoint p = pointAt( index );
+			changeClaims( p, 1 );
+			return p;
+		}
+		return null;
+	}
+
+	void release( AutoPoint p ) {
+		changeClaims( p, -1 );
+		int rx = p.x / regionSize, ry = p.y / regionSize, rz = p.z / regionSize;
+		for( int z = Math.max( 0, rz - 1 ); z <= Math.min( regionsZ - 1, rz + 1 ); ++z )
+			for( int y = Math.max( 0, ry - 1 ); y <= Math.min( regionsY - 1, ry + 1 ); ++y )
+				for( int x = Math.max( 0, rx - 1 ); x <= Math.min( regionsX - 1, rx + 1 ); ++x )
+					queueRegion( region( x, y, z ) );
+	}
+
+	int region( int rx, int ry, int rz ) {
+		return (rz * regionsY + ry) * regionsX + rx;
+	}
+
+	void changeClaims( AutoPoint p, int change ) {
+		int rx = p.x / regionSize, ry = p.y / regionSize, rz = p.z / regionSize;
+		for( int z = Math.max( 0, rz - 1 ); z <= Math.min( regionsZ - 1, rz + 1 ); ++z )
+			for( int y = Math.max( 0, ry - 1 ); y <= Math.min( regionsY - 1, ry + 1 ); ++y )
+				for( int x = Math.max( 0, rx - 1 ); x <= Math.min( regionsX - 1, rx + 1 ); ++x )
+					claims[region( x, y, z )] += change;
+	}
+
+	/* Drops the seeds that have been marked as done or searched,
+	   or taken by pollUnclaimed(), in place: */
+	void compact( ) {
+		int kept = 0;
+		for( int i = next; i < size; ++i ) {
+			int index = (int)seeds[i];
+			if( ! isDone( index ) && ! isSearched( index ) && ! isTaken( index ) )
+				seeds[kept++] = seeds[i];
+		}
+		next = 0;
+		size = kept;
+		if( claims != null )
+			listByRegion();
+	}
+}
@@ -0,0 +1,346 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/* A file that Auto_Tracer appends its progress to every so often,
+   so that a long run can be stopped (e.g. when its time limit is
+   reached) and carried on later from where it got to.
+
+   The graph's vertices and links are only ever added to, and
+   AutoSeedQueue logs the voxels newly marked as done or searched
+   from, so each checkpoint is just what's changed since the one
+   before.  All numbers are little-endian.  The file is:
+
+     - a header of HEADER_SIZE bytes: the magic bytes, the format
+       version, the image size, and the parameters that must be the
+       same when resuming
+
+     - a record for each checkpoint: RECORD_MARKER, the total number
+       of loops done, and the number of new vertices, new links, and
+       voxels newly marked as done and as searched from; then the
+       new vertices' voxel indices (as longs), the new links (as
+       pairs of vertex numbers), and the indices marked as done and
+       searched (as ints); then a CRC32 of all that, as a long
+
+   A record is built on the thread that merges paths into the graph,
+   while nothing else is changing it, and then written and forced to
+   disk on a background thread, so the tracing only waits if the
+   previous record hasn't been written yet.  If the run is killed
+   while a record is being written, that record is incomplete or
+   fails its CRC check, so resume() ignores it and starts appending
+   from the end of the last complete one. */
+
+class AutoTracerCheckpoint {
+
+	static final byte [] MAGIC = { 'S', 'N', 'T', 'C', 'H', 'K', 'P', 'T' };
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 48;
+
+	static final int RECORD_MARKER = 0x52454344;
+	static final int RECORD_HEADER_SIZE = 24;
+	static final int CRC_SIZE = 8;
+
+	protected File file;
+	protected RandomAccessFile raf;
+	protected FileChannel channel;
+
+	/* How much of the graph is in the records so far: */
+	protected int verticesWritten;
+	protected int linksWritten;
+
+	protected int loopsDone;
+
+	protected long intervalMillis;
+	protected long lastCheckpoint;
+
+	protected ExecutorService writer = Executors.newSingleThreadExecutor();
+	protected Future<Object> lastWrite;
+
+	protected AutoTracerCheckpoint( File file, long intervalSeconds ) throws IOException {
+		this.file = file;
+		this.intervalMillis = intervalSeconds * 1000;
+		this.lastCheckpoint = System.currentTimeMillis();
+		raf = new RandomAccessFile( file, "rw" );
+		channel = raf.getChannel();
+	}
+
+	static ByteBuffer header( Auto_Tracer tracer, int initialSeeds ) {
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		header.put( MAGIC );
+		header.putInt( VERSION );
+		header.putInt( tracer.width );
+		header.putInt( tracer.height );
+		header.putInt( tracer.depth );
+		header.putFloat( tracer.tubenessThreshold );
+		header.putFloat( tracer.minimumRollingMean );
+		header.putInt( tracer.rollingLength );
+		header.putInt( tracer.minimumPointsOnPath );
+		header.putInt( initialSeeds );
+		header.rewind();
+		return header;
+	}
+
+	/* Starts a new checkpoint file, replacing any that's there.
+	   The seeds should just have been found from scratch: */
+	static AutoTracerCheckpoint create( File file, Auto_Tracer tracer, AutoSeedQueue seeds, long intervalSeconds ) throws IOException {
+		AutoTracerCheckpoint checkpoint = new AutoTracerCheckpoint( file, intervalSeconds );
+		try {
+			checkpoint.channel.truncate( 0 );
+			writeFully( checkpoint.channel, header( tracer, seeds.remaining() ), 0 );
+			checkpoint.channel.position( HEADER_SIZE );
+			checkpoint.channel.force( true );
+		} catch( IOException e ) {
+			checkpoint.raf.close();
+			throw e;
+		}
+		seeds.startLog();
+		return checkpoint;
+	}
+
+	/* Reads every complete record in an existing checkpoint file
+	   into the (empty) graph and the seeds, which should just have
+	   been found from scratch with the same parameters, and then
+	   carries on appending to it: */
+	static AutoTracerCheckpoint resume( File file, Auto_Tracer tracer, SinglePathsGraph graph, AutoSeedQueue seeds, long intervalSeconds ) throws IOException {
+		if( graph.getVertexCount() != 0 )
+			throw new RuntimeException( "BUG: resuming a checkpoint into a graph that isn't empty" );
+		AutoTracerCheckpoint checkpoint = new AutoTracerCheckpoint( file, intervalSeconds );
+		try {
+			checkpoint.load( header( tracer, seeds.remaining() ), graph, seeds );
+		} catch( IOException e ) {
+			checkpoint.raf.close();
+			throw e;
+		}
+		seeds.compact();
+		seeds.startLog();
+		return checkpoint;
+	}
+
+	protected void load( ByteBuffer expectedHeader, SinglePathsGraph graph, AutoSeedQueue seeds ) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		if( fileSize < HEADER_SIZE || readFully( channel, header, 0 ) < HEADER_SIZE )
+			throw new IOException( "The checkpoint file '"+file+"' is too short" );
+		header.rewind();
+		for( int i = 0; i < MAGIC.length; ++i )
+			if( header.get( i ) != MAGIC[i] )
+				throw new IOException( "'"+file+"' isn't an automatic tracing checkpoint file" );
+		if( header.getInt( MAGIC.length ) != VERSION )
+			throw new IOException( "The checkpoint file '"+file+"' is version "+header.getInt( MAGIC.length )+", not "+VERSION );
+		if( ! header.equals( expectedHeader ) )
+			throw new IOException( "The checkpoint file '"+file+"' was written for a different image size, tubeness image or parameters" );
+
+		ByteBuffer recordHeader = ByteBuffer.allocate( RECORD_HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		long position = HEADER_SIZE;
+		while( position + RECORD_HEADER_SIZE <= fileSize ) {
+			recordHeader.clear();
+			if( readFully( channel, recordHeader, position ) < RECORD_HEADER_SIZE )
+				break;
+			recordHeader.rewind();
+			if( recordHeader.getInt() != RECORD_MARKER )
+				break;
+			int loops = recordHeader.getInt();
+			int newVertices = recordHeader.getInt();
+			int newLinks = recordHeader.getInt();
+			int newlyDone = recordHeader.getInt();
+			int newlySearched = recordHeader.getInt();
+			if( loops < 0 || newVertices < 0 || newLinks < 0 || newlyDone < 0 || newlySearched < 0 )
+				break;
+			long recordSize = RECORD_HEADER_SIZE + 8L * newVertices + 8L * newLinks +
+				4L * newlyDone + 4L * newlySearched + CRC_SIZE;
+			if( position + recordSize > fileSize || recordSize > Integer.MAX_VALUE )
+				break;
+			ByteBuffer record = ByteBuffer.allocate( (int)recordSize ).order( ByteOrder.LITTLE_ENDIAN );
+			if( readFully( channel, record, position ) < recordSize )
+				break;
+			CRC32 crc = new CRC32();
+			crc.update( record.array(), 0, (int)recordSize - CRC_SIZE );
+			if( record.getLong( (int)recordSize - CRC_SIZE ) != crc.getValue() )
+				break;
+
+			record.position( RECORD_HEADER_SIZE );
+			long pointsInSlice = (long)graph.width * graph.height;
+			for( int i = 0; i < newVertices; ++i ) {
+				long voxelIndex = record.getLong();
+				if( voxelIndex < 0 || voxelIndex >= pointsInSlice * graph.depth )
+					throw new IOException( "The checkpoint file '"+file+"' has a vertex outside the image" );
+				int z = (int)(voxelIndex / pointsInSlice);
+				int inSlice = (int)(voxelIndex - z * pointsInSlice);
+				int vertex = graph.addVertex( inSlice % graph.width, inSlice / graph.width, z );
+				if( vertex != verticesWritten + i )
+					throw new IOException( "The checkpoint file '"+file+"' has the vertex "+voxelIndex+" twice" );
+			}
+			verticesWritten += newVertices;
+			for( int i = 0; i < newLinks; ++i ) {
+				int from = record.getInt();
+				int to = record.getInt();
+				if( from < 0 || from >= verticesWritten || to < 0 || to >= verticesWritten )
+					throw new IOException( "The checkpoint file '"+file+"' has a link to a vertex that isn't there" );
+				graph.addLink( from, to );
+			}
+			linksWritten += newLinks;
+			int points = seeds.width * seeds.height * seeds.depth;
+			for( int i = 0; i < newlyDone + newlySearched; ++i ) {
+				int index = record.getInt();
+				if( index < 0 || index >= points )
+					throw new IOException( "The checkpoint file '"+file+"' has a point outside the image" );
+				if( i < newlyDone )
+					seeds.markDone( index );
+				else
+					seeds.markSearched( index );
+			}
+			loopsDone = loops;
+			position += recordSize;
+		}
+		if( position < fileSize ) {
+			System.out.println("Ignoring an incomplete checkpoint at the end of "+file);
+			channel.truncate( position );
+		}
+		channel.position( position );
+	}
+
+	static int readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		int read = 0;
+		while( buffer.hasRemaining() ) {
+			int n = channel.read( buffer, position + read );
+			if( n < 0 )
+				break;
+			read += n;
+		}
+		return read;
+	}
+
+	static void writeFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		while( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+	}
+
+	/* The total number of loops done in the records read by
+	   resume(): */
+	int getLoopsDone( ) {
+		return loopsDone;
+	}
+
+	boolean isDue( ) {
+		return System.currentTimeMillis() - lastCheckpoint >= intervalMillis;
+	}
+
+	/* Appends what's changed since the last checkpoint.  This must
+	   be called from the thread that merges paths, and only when
+	   no merge is in progress: */
+	void checkpoint( SinglePathsGraph graph, AutoSeedQueue seeds, int loopsDone ) throws IOException {
+		waitForLastWrite();
+
+		int vertices = graph.getVertexCount();
+		int links = graph.getLinkCount();
+		int [] newlyDone = seeds.takeNewlyDone();
+		int [] newlySearched = seeds.takeNewlySearched();
+		int newVertices = vertices - verticesWritten;
+		int newLinks = links - linksWritten;
+
+		long recordSize = RECORD_HEADER_SIZE + 8L * newVertices + 8L * newLinks +
+			4L * newlyDone.length + 4L * newlySearched.length + CRC_SIZE;
+		if( recordSize > Integer.MAX_VALUE )
+			throw new IOException( "Too much has changed since the last checkpoint to write it" );
+		final ByteBuffer record = ByteBuffer.allocate( (int)recordSize ).order( ByteOrder.LITTLE_ENDIAN );
+		record.putInt( RECORD_MARKER );
+		record.putInt( loopsDone );
+		record.putInt( newVertices );
+		record.putInt( newLinks );
+		record.putInt( newlyDone.length );
+		record.putInt( newlySearched.length );
+		for( int v = verticesWritten; v < vertices; ++v )
+			record.putLong( graph.getVertexVoxelIndex( v ) );
+		for( int l = linksWritten; l < links; ++l ) {
+			record.putInt( graph.getLinkFrom( l ) );
+			record.putInt( graph.getLinkTo( l ) );
+		}
+		for( int index : newlyDone )
+			record.putInt( index );
+		for( int index : newlySearched )
+			record.putInt( index );
+		CRC32 crc = new CRC32();
+		crc.update( record.array(), 0, record.position() );
+		record.putLong( crc.getValue() );
+		record.flip();
+
+		verticesWritten = vertices;
+		linksWritten = links;
+		lastCheckpoint = System.currentTimeMillis();
+
+		lastWrite = writer.submit( new Callable<Object>() {
+			public Object call() throws IOException {
+				long position = channel.position();
+				writeFully( channel, record, position );
+				channel.position( position + record.limit() );
+				channel.force( false );
+				return null;
+			}
+		} );
+	}
+
+	protected void waitForLastWrite( ) throws IOException {
+		if( lastWrite == null )
+			return;
+		try {
+			lastWrite.get();
+		} catch( InterruptedException e ) {
+			throw new IOException( "Interrupted while writing a checkpoint to '"+file+"'", e );
+		} catch( ExecutionException e ) {
+			throw new IOException( "Writing a checkpoint to '"+file+"' failed: "+e.getCause(), e.getCause() );
+		} finally {
+			lastWrite = null;
+		}
+	}
+
+	/* Writes a last checkpoint, waits for it to be written and
+	   closes the file: */
+	void close( SinglePathsGraph graph, AutoSeedQueue seeds, int loopsDone ) throws IOException {
+		try {
+			checkpoint( graph, seeds, loopsDone );
+			waitForLastWrite();
+		} finally {
+			writer.shutdown();
+			raf.close();
+		}
+	}
+}
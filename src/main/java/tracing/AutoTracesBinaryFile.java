@@ -0,0 +1,366 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* A binary version of the graphs that Auto_Tracer writes as
+   .traces.obj files, which can be read much more quickly.  All
+   numbers are little-endian, and each section starts at a multiple
+   of 8 bytes.  The file is:
+
+     - a header of HEADER_SIZE bytes: the magic bytes, the format
+       version, the image size and spacing, the number of vertices
+       and links, and the offset of each section
+
+     - the vertices: the voxel index of each vertex (x + y * width +
+       z * width * height) as a long
+
+     - the links: the numbers of the two vertices (from 0) that each
+       joins, as a pair of ints
+
+   The vertices are numbered in the same order as in the .traces.obj
+   file, so loadWithListener() reports exactly what
+   SinglePathsGraph.loadWithListener() would for the equivalent
+   .traces.obj file, but reads the file through memory-mapped
+   windows of up to WINDOW_SIZE bytes rather than parsing text.
+   main() converts a .traces.obj file to this format. */
+
+public class AutoTracesBinaryFile {
+
+	static final byte [] MAGIC = { 'S', 'N', 'T', 'G', 'R', 'A', 'P', 'H' };
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+
+	/* Offsets of the fields in the header: */
+	static final int HEADER_VERSION = 8;
+	static final int HEADER_WIDTH = 12;
+	static final int HEADER_HEIGHT = 16;
+	static final int HEADER_DEPTH = 20;
+	static final int HEADER_SPACING_X = 24;
+	static final int HEADER_SPACING_Y = 28;
+	static final int HEADER_SPACING_Z = 32;
+	static final int HEADER_VERTICES = 40;
+	static final int HEADER_LINKS = 48;
+	static final int HEADER_VERTICES_OFFSET = 56;
+
+	static final int VERTEX_SIZE = 8;
+	static final int LINK_SIZE = 8;
+
+	/* The most that's mapped at once, which is a multiple of
+	   both record sizes: */
+	static final int WINDOW_SIZE = 1 << 26;
+
+	public static boolean hasMagic( byte [] start ) {
+		if( start.length < MAGIC.length )
+			return false;
+		for( int i = 0; i < MAGIC.length; ++i )
+			if( start[i] != MAGIC[i] )
+				return false;
+		return true;
+	}
+
+	public static boolean hasMagic( String fileName ) throws IOException {
+		byte [] start = new byte[MAGIC.length];
+		InputStream is = new FileInputStream( fileName );
+		try {
+			int read = 0, n;
+			while( read < start.length && (n = is.read( start, read, start.length - read )) > 0 )
+				read += n;
+			return read == start.length && hasMagic( start );
+		} finally {
+			is.close();
+		}
+	}
+
+	static long align( long offset ) {
+		return (offset + 7) & ~7L;
+	}
+
+	static long linksOffset( long verticesOffset, long vertices ) {
+		return align( verticesOffset + vertices * VERTEX_SIZE );
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Writing: */
+
+	/* The vertices are written in order, as voxel indices; each
+	   link is the numbers of the two vertices (from 0) it joins,
+	   in linkFrom and linkTo: */
+	public static void write( String fileName,
+				  int width, int height, int depth,
+				  float spacing_x, float spacing_y, float spacing_z,
+				  long [] vertices, int vertexCount,
+				  int [] linkFrom, int [] linkTo, int linkCount ) throws IOException {
+
+		FileOutputStream fos = new FileOutputStream( fileName );
+		try {
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect( 1 << 20 ).order( ByteOrder.LITTLE_ENDIAN );
+
+			buffer.put( MAGIC );
+			buffer.putInt( VERSION );
+			buffer.putInt( width );
+			buffer.putInt( height );
+			buffer.putInt( depth );
+			buffer.putFloat( spacing_x );
+			buffer.putFloat( spacing_y );
+			buffer.putFloat( spacing_z );
+			buffer.putInt( 0 );
+			buffer.putLong( vertexCount );
+			buffer.putLong( linkCount );
+			buffer.putLong( HEADER_SIZE );
+			if( buffer.position() != HEADER_SIZE )
+				throw new RuntimeException( "BUG: the binary graph header is "+buffer.position()+" bytes, not "+HEADER_SIZE );
+
+			for( int v = 0; v < vertexCount; ++v ) {
+				if( buffer.remaining() < VERTEX_SIZE )
+					flush( channel, buffer );
+				buffer.putLong( vertices[v] );
+			}
+			long padding = linksOffset( HEADER_SIZE, vertexCount ) - (HEADER_SIZE + (long)vertexCount * VERTEX_SIZE);
+			for( int i = 0; i < padding; ++i )
+				buffer.put( (byte)0 );
+			for( int l = 0; l < linkCount; ++l ) {
+				if( buffer.remaining() < LINK_SIZE )
+					flush( channel, buffer );
+				buffer.putInt( linkFrom[l] );
+				buffer.putInt( linkTo[l] );
+			}
+			flush( channel, buffer );
+		} finally {
+			fos.close();
+		}
+	}
+
+	static void flush( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() )
+			channel.write( buffer );
+		buffer.clear();
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Reading: */
+
+	/* Reports the metadata, then every vertex (numbered from 1,
+	   as in a .traces.obj file) and then every link to the
+	   listener, as SinglePathsGraph.loadWithListener() does: */
+	public static void loadWithListener( String fileName, TraceLoaderListener listener ) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile( fileName, "r" );
+		try {
+			FileChannel channel = file.getChannel();
+			long fileLength = channel.size();
+			if( fileLength < HEADER_SIZE )
+				throw new IOException( "The file is too short to be a binary graph file" );
+
+			ByteBuffer header = map( channel, 0, HEADER_SIZE );
+			byte [] magic = new byte[MAGIC.length];
+			header.get( magic );
+			if( ! hasMagic( magic ) )
+				throw new IOException( "This is not a binary graph file" );
+			int version = header.getInt( HEADER_VERSION );
+			if( version != VERSION )
+				throw new IOException( "Unsupported binary graph file version: "+version );
+
+			int width = header.getInt( HEADER_WIDTH );
+			int height = header.getInt( HEADER_HEIGHT );
+			int depth = header.getInt( HEADER_DEPTH );
+			float spacing_x = header.getFloat( HEADER_SPACING_X );
+			float spacing_y = header.getFloat( HEADER_SPACING_Y );
+			float spacing_z = header.getFloat( HEADER_SPACING_Z );
+			long vertices = header.getLong( HEADER_VERTICES );
+			long links = header.getLong( HEADER_LINKS );
+			long verticesOffset = header.getLong( HEADER_VERTICES_OFFSET );
+
+			if( width <= 0 || height <= 0 || depth <= 0 )
+				throw new IOException( "Malformed binary graph file: the image size is "+width+"x"+height+"x"+depth );
+			if( vertices < 0 || vertices >= Integer.MAX_VALUE || links < 0 )
+				throw new IOException( "Malformed binary graph file: bad counts in the header" );
+			if( verticesOffset < HEADER_SIZE || verticesOffset % 8 != 0 )
+				throw new IOException( "Malformed binary graph file: bad vertex section offset "+verticesOffset );
+			long linksOffset = linksOffset( verticesOffset, vertices );
+			if( linksOffset > fileLength || links > (fileLength - linksOffset) / LINK_SIZE )
+				throw new IOException( "Malformed binary graph file: it's shorter than the header says" );
+
+			listener.gotWidth( width );
+			listener.gotHeight( height );
+			listener.gotDepth( depth );
+			listener.gotSpacingX( spacing_x );
+			listener.gotSpacingY( spacing_y );
+			listener.gotSpacingZ( spacing_z );
+
+			long pointsInSlice = (long)width * height;
+			long voxels = pointsInSlice * depth;
+
+			long vertex = 0;
+			while( vertex < vertices ) {
+				int inWindow = (int)Math.min( vertices - vertex, WINDOW_SIZE / VERTEX_SIZE );
+				ByteBuffer window = map( channel, verticesOffset + vertex * VERTEX_SIZE, (long)inWindow * VERTEX_SIZE );
+				for( int i = 0; i < inWindow; ++i ) {
+					long k = window.getLong( i * VERTEX_SIZE );
+					if( k < 0 || k >= voxels )
+						throw new IOException( "Malformed binary graph file: vertex "+(vertex + i)+" is outside the image" );
+					int x = (int)(k % width);
+					int y = (int)((k / width) % height);
+					int z = (int)(k / pointsInSlice);
+					// The same calculation as in writeWavefrontObj():
+					listener.gotVertex( (int)(vertex + i + 1),
+							    x * spacing_x, y * spacing_y, z * spacing_z,
+							    x, y, z );
+				}
+				vertex += inWindow;
+			}
+
+			long link = 0;
+			while( link < links ) {
+				int inWindow = (int)Math.min( links - link, WINDOW_SIZE / LINK_SIZE );
+				ByteBuffer window = map( channel, linksOffset + link * LINK_SIZE, (long)inWindow * LINK_SIZE );
+				for( int i = 0; i < inWindow; ++i ) {
+					int from = window.getInt( i * LINK_SIZE );
+					int to = window.getInt( i * LINK_SIZE + 4 );
+					if( from < 0 || from >= vertices || to < 0 || to >= vertices )
+						throw new IOException( "Malformed binary graph file: link "+(link + i)+" refers to a vertex that doesn't exist" );
+					listener.gotLine( from + 1, to + 1 );
+				}
+				link += inWindow;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	static ByteBuffer map( FileChannel channel, long offset, long length ) throws IOException {
+		return channel.map( FileChannel.MapMode.READ_ONLY, offset, length ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Converting from .traces.obj files: */
+
+	/* Collects what SinglePathsGraph.loadWithListener() reads, in
+	   the same order, without an object for each vertex: */
+	static class Collector implements TraceLoaderListener {
+
+		int width = -1, height = -1, depth = -1;
+		float spacing_x = Float.MIN_VALUE;
+		float spacing_y = Float.MIN_VALUE;
+		float spacing_z = Float.MIN_VALUE;
+
+		long [] vertices = new long[1024];
+		int vertexCount = 0;
+		int [] linkFrom = new int[1024];
+		int [] linkTo = new int[1024];
+		int linkCount = 0;
+
+		public void gotVertex( int vertexIndex,
+				       float x_scaled, float y_scaled, float z_scaled,
+				       int x_image, int y_image, int z_image ) {
+			if( width < 0 || height < 0 || depth < 0 )
+				throw new IllegalArgumentException( "The image size must come before the first vertex" );
+			if( vertexIndex != vertexCount + 1 )
+				throw new IllegalArgumentException( "Vertex "+vertexIndex+" is out of order" );
+			if( x_image < 0 || x_image >= width || y_image < 0 || y_image >= height || z_image < 0 || z_image >= depth )
+				throw new IllegalArgumentException( "Vertex "+vertexIndex+" is outside the image" );
+			if( vertexCount == vertices.length )
+				vertices = Arrays.copyOf( vertices, vertices.length * 2 );
+			vertices[vertexCount++] = x_image + y_image * (long)width + z_image * (long)width * height;
+		}
+
+		public void gotLine( int fromVertexIndex, int toVertexIndex ) {
+			if( fromVertexIndex < 1 || fromVertexIndex > vertexCount || toVertexIndex < 1 || toVertexIndex > vertexCount )
+				throw new IllegalArgumentException( "A line refers to a vertex that doesn't exist" );
+			if( linkCount == linkFrom.length ) {
+				linkFrom = Arrays.copyOf( linkFrom, linkFrom.length * 2 );
+				linkTo = Arrays.copyOf( linkTo, linkTo.length * 2 );
+			}
+			linkFrom[linkCount] = fromVertexIndex - 1;
+			linkTo[linkCount] = toVertexIndex - 1;
+			++ linkCount;
+		}
+
+		public void gotWidth( int width ) {
+			this.width = width;
+		}
+
+		public void gotHeight( int height ) {
+			this.height = height;
+		}
+
+		public void gotDepth( int depth ) {
+			this.depth = depth;
+		}
+
+		public void gotSpacingX( float spacing_x ) {
+			this.spacing_x = spacing_x;
+		}
+
+		public void gotSpacingY( float spacing_y ) {
+			this.spacing_y = spacing_y;
+		}
+
+		public void gotSpacingZ( float spacing_z ) {
+			this.spacing_z = spacing_z;
+		}
+	}
+
+	public static void convertFromWavefrontObj( String objFileName, String binaryFileName ) throws IOException {
+		Collector c = new Collector();
+		try {
+			if( ! SinglePathsGraph.loadWithListener( objFileName, c ) )
+				throw new IOException( "Couldn't read "+objFileName );
+		} catch( IllegalArgumentException e ) {
+			throw new IOException( "Malformed .traces.obj file "+objFileName+": "+e.getMessage() );
+		}
+		if( c.width < 0 || c.height < 0 || c.depth < 0 ||
+		    c.spacing_x == Float.MIN_VALUE || c.spacing_y == Float.MIN_VALUE || c.spacing_z == Float.MIN_VALUE )
+			throw new IOException( "Some metadata was missing from the comments in "+objFileName );
+		write( binaryFileName,
+		       c.width, c.height, c.depth,
+		       c.spacing_x, c.spacing_y, c.spacing_z,
+		       c.vertices, c.vertexCount,
+		       c.linkFrom, c.linkTo, c.linkCount );
+	}
+
+	public static void main( String [] args ) throws IOException {
+		if( args.length != 2 ) {
+			System.err.println( "Usage: tracing.AutoTracesBinaryFile <input.traces.obj> <output.traces.graph>" );
+			System.exit( 2 );
+		}
+		convertFromWavefrontObj( args[0], args[1] );
+	}
+}
@@ -0,0 +1,380 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tracing;
+
+import java.io.File;
+import java.util.Arrays;
+
+/* An auto-traced graph (from a .traces.obj or .traces.graph file)
+   in compressed sparse row form, for searching: the vertices are
+   numbered from 0 in the order they're in the file, with their
+   positions in x, y and z, and the vertices linked to vertex v are
+   linkedTo[firstLink[v]] up to, but not including,
+   linkedTo[firstLink[v+1]], with the length of each link (in
+   calibrated units) at the same index of linkLength.  Each line in
+   the file links its two vertices both ways, and a vertex is only
+   linked to another once, in the order of the first line that
+   links them.  This is built straight from the
+   TraceLoaderListener calls, without an object for each vertex or
+   link, and can't be changed once finish() has been called, so it
+   can be searched from several threads at once. */
+
+class AutoTracesGraph implements TraceLoaderListener {
+
+	int width = -1, height = -1, depth = -1;
+	float spacing_x = Float.MIN_VALUE;
+	float spacing_y = Float.MIN_VALUE;
+	float spacing_z = Float.MIN_VALUE;
+
+	int vertexCount;
+	int [] x = new int[1024];
+	int [] y = new int[1024];
+	int [] z = new int[1024];
+
+	int [] firstLink;
+	int [] linkedTo;
+	float [] linkLength;
+
+	/* The lines as they're loaded; null after finish(): */
+	protected int [] lineFrom = new int[1024];
+	protected int [] lineTo = new int[1024];
+	protected int lineCount;
+
+	/* Loads a .traces.obj or .traces.graph file, or returns null
+	   if that fails: */
+	static AutoTracesGraph load( File file ) {
+		AutoTracesGraph graph = new AutoTracesGraph();
+		if( ! SinglePathsGraph.loadWithListener( file.getAbsolutePath(), graph ) )
+			return null;
+		graph.finish();
+		return graph;
+	}
+
+	public void gotVertex( int vertexIndex,
+			       float x_scaled, float y_scaled, float z_scaled,
+			       int x_image, int y_image, int z_image ) {
+		if( width < 0 || height < 0 || depth < 0 ||
+		    spacing_x == Float.MIN_VALUE ||
+		    spacing_y == Float.MIN_VALUE ||
+		    spacing_z == Float.MIN_VALUE )
+			throw new RuntimeException( "Some metadata was missing from the comments before the first vertex." );
+		if( lineFrom == null )
+			throw new RuntimeException( "BUG: gotVertex() called after finish()" );
+		if( vertexIndex != vertexCount + 1 )
+			throw new IllegalArgumentException( "Vertex "+vertexIndex+" is out of order" );
+		if( x_image < 0 || x_image >= width || y_image < 0 || y_image >= height || z_image < 0 || z_image >= depth )
+			throw new IllegalArgumentException( "Vertex "+vertexIndex+" ("+x_image+","+y_image+","+z_image+") is outside the image" );
+		if( vertexCount == x.length ) {
+			x = Arrays.copyOf( x, x.length * 2 );
+			y = Arrays.copyOf( y, y.length * 2 );
+			z = Arrays.copyOf( z, z.length * 2 );
+		}
+		x[vertexCount] = x_image;
+		y[vertexCount] = y_image;
+		z[vertexCount] = z_image;
+		++ vertexCount;
+	}
+
+	/* The vertex indices are from 1, as in the file: */
+	public void gotLine( int fromVertexIndex, int toVertexIndex ) {
+		if( lineFrom == null )
+			throw new RuntimeException( "BUG: gotLine() called after finish()" );
+		if( fromVertexIndex < 1 || fromVertexIndex > vertexCount || toVertexIndex < 1 || toVertexIndex > vertexCount )
+			throw new IllegalArgumentException( "A line refers to a vertex that doesn't exist" );
+		if( lineCount == lineFrom.length ) {
+			lineFrom = Arrays.copyOf( lineFrom, lineFrom.length * 2 );
+			lineTo = Arrays.copyOf( lineTo, lineTo.length * 2 );
+		}
+		lineFrom[lineCount] = fromVertexIndex - 1;
+		lineTo[lineCount] = toVertexIndex - 1;
+		++ lineCount;
+	}
+
+	public void gotWidth( int width ) {
+		this.width = width;
+	}
+
+	public void gotHeight( int height ) {
+		this.height = height;
+	}
+
+	public void gotDepth( int depth ) {
+		this.depth = depth;
+	}
+
+	public void gotSpacingX( float spacing_x ) {
+		this.spacing_x = spacing_x;
+	}
+
+	public void gotSpacingY( float spacing_y ) {
+		this.spacing_y = spacing_y;
+	}
+
+	public void gotSpacingZ( float spacing_z ) {
+		this.spacing_z = spacing_z;
+	}
+
+	/* Builds the rows from the lines loaded: */
+	void finish( ) {
+		if( lineFrom == null )
+			return;
+		x = Arrays.copyOf( x, vertexCount );
+		y = Arrays.copyOf( y, vertexCount );
+		z = Arrays.copyOf( z, vertexCount );
+
+		int [] degree = new int[vertexCount + 1];
+		for( int l = 0; l < lineCount; ++l ) {
+			++ degree[lineFrom[l]];
+			++ degree[lineTo[l]];
+		}
+		int [] start = new int[vertexCount + 1];
+		for( int v = 0; v < vertexCount; ++v )
+			start[v + 1] = start[v] + degree[v];
+		int [] links = new int[start[vertexCount]];
+		int [] filled = Arrays.copyOf( start, vertexCount );
+		for( int l = 0; l < lineCount; ++l ) {
+			int from = lineFrom[l], to = lineTo[l];
+			links[filled[from]++] = to;
+			links[filled[to]++] = from;
+		}
+		lineFrom = lineTo = null;
+
+		/* Drop repeated links, in place, keeping the rest in
+		   the order of the lines; there are only a few links
+		   from each vertex, so just check the ones kept: */
+		firstLink = new int[vertexCount + 1];
+		int kept = 0;
+		for( int v = 0; v < vertexCount; ++v ) {
+			firstLink[v] = kept;
+			for( int i = start[v]; i < start[v + 1]; ++i ) {
+				int o = links[i];
+				boolean repeated = false;
+				for( int j = firstLink[v]; j < kept && ! repeated; ++j )
+					repeated = links[j] == o;
+				if( ! repeated )
+					links[kept++] = o;
+			}
+		}
+		firstLink[vertexCount] = kept;
+		linkedTo = Arrays.copyOf( links, kept );
+
+		linkLength = new float[kept];
+		for( int v = 0; v < vertexCount; ++v )
+			for( int i = firstLink[v]; i < firstLink[v + 1]; ++i ) {
+				int o = linkedTo[i];
+				float xdiff = (x[v] - x[o]) * spacing_x;
+				float ydiff = (y[v] - y[o]) * spacing_y;
+				float zdiff = (z[v] - z[o]) * spacing_z;
+				linkLength[i] = (float)Math.sqrt( xdiff*xdiff + ydiff*ydiff + zdiff*zdiff );
+			}
+	}
+
+	int getLinkCount( ) {
+		return linkedTo.length;
+	}
+
+	/* The vertices sorted by position, z first, then y, then x
+	   (and then by vertex number): */
+	int [] verticesInPositionOrder( ) {
+		long [] keys = new long[vertexCount];
+		for( int v = 0; v < vertexCount; ++v )
+			keys[v] = (((long)z[v] * height + y[v]) * width + x[v]) << 32 | v;
+		Arrays.sort( keys );
+		int [] result = new int[vertexCount];
+		for( int i = 0; i < vertexCount; ++i )
+			result[i] = (int)keys[i];
+		return result;
+	}
+
+	/* The shortest paths from one vertex, through vertices with
+	   material 0 (i.e. outside every region), to the nearest
+	   vertex of each of a set of materials.  Each thread should
+	   have its own; the arrays are reset after each search, only
+	   where they were changed, so a search that finds its targets
+	   nearby is quick even in a very large graph. */
+	class Search {
+
+		float [] distance;
+		int [] previous;
+		int [] touched = new int[1024];
+		int touchedCount;
+
+		/* A binary min-heap of the distance's bits (which sort
+		   in the same order as the distance, since it's never
+		   negative) in the top 32 bits and the vertex in the
+		   bottom 32; a vertex may be in it more than once, and
+		   only the entry with its current distance counts: */
+		long [] heap = new long[1024];
+		int heapSize;
+
+		Search( ) {
+			distance = new float[vertexCount];
+			Arrays.fill( distance, Float.POSITIVE_INFINITY );
+			previous = new int[vertexCount];
+		}
+
+		void push( int v, float d ) {
+			if( heapSize == heap.length )
+				heap = Arrays.copyOf( heap, heap.length * 2 );
+			long entry = ((long)Float.floatToIntBits( d ) << 32) | v;
+			int i = heapSize++;
+			while( i > 0 ) {
+				int parent = (i - 1) >>> 1;
+				if( heap[parent] <= entry )
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = entry;
+		}
+
+		long pop( ) {
+			long result = heap[0];
+			long last = heap[--heapSize];
+			int i = 0;
+			while( true ) {
+				int child = 2 * i + 1;
+				if( child >= heapSize )
+					break;
+				if( child + 1 < heapSize && heap[child + 1] < heap[child] )
+					++ child;
+				if( heap[child] >= last )
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = last;
+			return result;
+		}
+
+		void touch( int v ) {
+			if( touchedCount == touched.length )
+				touched = Arrays.copyOf( touched, touched.length * 2 );
+			touched[touchedCount++] = v;
+		}
+
+		/* material[v] is the material of vertex v, and wanted[m]
+		   says whether to find a path to material m.  The result
+		   has the path (as vertex numbers, from start) to the
+		   nearest vertex of each wanted material at the
+		   material's index, or null if there's none, and the
+		   length of each path in lengths: */
+		int [][] search( int start, byte [] material, boolean [] wanted, float [] lengths ) {
+			int materials = wanted.length;
+			int [][] result = new int[materials][];
+			float [] best = new float[materials];
+			Arrays.fill( best, Float.POSITIVE_INFINITY );
+			int [] bestFrom = new int[materials];
+			int [] bestVertex = new int[materials];
+			int left = 0;
+			for( int m = 0; m < materials; ++m )
+				if( wanted[m] )
+					++ left;
+
+			int startMaterial = material[start] & 0xFF;
+			if( startMaterial < materials && wanted[startMaterial] ) {
+				best[startMaterial] = 0;
+				bestFrom[startMaterial] = -1;
+				bestVertex[startMaterial] = start;
+			}
+
+			distance[start] = 0;
+			previous[start] = -1;
+			touch( start );
+			push( start, 0 );
+			/* The materials whose best path so far can't be
+			   beaten, since nothing closer is left to search,
+			   and the shortest best path of those that aren't: */
+			boolean [] settled = new boolean[materials];
+			float nearest = (startMaterial < materials && wanted[startMaterial]) ? 0 : Float.POSITIVE_INFINITY;
+			while( heapSize > 0 && left > 0 ) {
+				long entry = pop();
+				int u = (int)entry;
+				float d = Float.intBitsToFloat( (int)(entry >>> 32) );
+				if( nearest <= d ) {
+					nearest = Float.POSITIVE_INFINITY;
+					for( int m = 0; m < materials; ++m ) {
+						if( ! wanted[m] || settled[m] )
+							continue;
+						if( best[m] <= d ) {
+							settled[m] = true;
+							-- left;
+						} else if( best[m] < nearest )
+							nearest = best[m];
+					}
+					if( left == 0 )
+						break;
+				}
+				if( d > distance[u] )
+					continue;
+				for( int i = firstLink[u]; i < firstLink[u + 1]; ++i ) {
+					int v = linkedTo[i];
+					float dv = d + linkLength[i];
+					int m = material[v] & 0xFF;
+					if( m != 0 ) {
+						// Only a possible end point:
+						if( m < materials && wanted[m] && ! settled[m] && dv < best[m] ) {
+							best[m] = dv;
+							bestFrom[m] = u;
+							bestVertex[m] = v;
+							if( dv < nearest )
+								nearest = dv;
+						}
+						continue;
+					}
+					if( dv < distance[v] ) {
+						if( distance[v] == Float.POSITIVE_INFINITY )
+							touch( v );
+						distance[v] = dv;
+						previous[v] = u;
+						push( v, dv );
+					}
+				}
+			}
+
+			for( int m = 0; m < materials; ++m ) {
+				if( ! wanted[m] || best[m] == Float.POSITIVE_INFINITY )
+					continue;
+				int steps = 1;
+				for( int p = bestFrom[m]; p >= 0; p = previous[p] )
+					++ steps;
+				int [] path = new int[steps];
+				path[--steps] = bestVertex[m];
+				for( int p = bestFrom[m]; p >= 0; p = previous[p] )
+					path[--steps] = p;
+				result[m] = path;
+				lengths[m] = best[m];
+			}
+
+			for( int i = 0; i < touchedCount; ++i )
+				distance[touched[i]] = Float.POSITIVE_INFINITY;
+			touchedCount = 0;
+			heapSize = 0;
+			return result;
+		}
+	}
+}
@@ -42,9 +42,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import stacks.PaneOwner;
 import stacks.ThreePanes;
@@ -56,8 +58,9 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 	int height;
 	int depth;
 
-	HashSet<AutoPoint> done;
-	PriorityQueue<AutoPoint> mostTubelikePoints;
+	/* The points to start searches from, and which have
+	   been reached already: */
+	AutoSeedQueue seeds;
 	float [][] tubeValues;
 
 	public boolean dimensionsIdentical(ImagePlus a, ImagePlus b) {
@@ -122,44 +125,15 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		return p;
 	}
 
-	public class TubenessComparator implements Comparator<AutoPoint> {
-
-		int width, height, depth;
-		float [][] tubeValues;
-
-		public TubenessComparator( int width, int height, int depth, float [][] tubeValues ) {
-			this.width = width;
-			this.height = height;
-			this.depth = depth;
-			this.tubeValues = tubeValues;
-		}
-
-		public int compare( AutoPoint a, AutoPoint b ) {
-			return -Float.compare(tubeValues[a.z][a.y*width+a.x],tubeValues[b.z][b.y*width+b.x]);
-		}
-
-	}
-
+	/* If checkDone is false, this finds the seed points from
+	   scratch; otherwise it just drops those that are done: */
 	public void recreatePriorityQueue( boolean checkDone ) {
 
 		System.out.println("  [Recreating Priority Queue]");
-		mostTubelikePoints=new PriorityQueue<AutoPoint>(512,new TubenessComparator(width,height,depth,tubeValues));
-		System.gc();
-
-		for(int z=0;z<depth;++z) {
-			for(int y=0;y<height;++y) {
-				for(int x=0;x<width;++x) {
-					if( tubeValues[z][y*width+x] > tubenessThreshold ) {
-						AutoPoint p=new AutoPoint(x,y,z);
-						if (checkDone) {
-							if( ! done.contains(p) )
-								mostTubelikePoints.add(p);
-						} else
-							mostTubelikePoints.add(p);
-					}
-				}
-			}
-		}
+		if( checkDone && seeds != null )
+			seeds.compact();
+		else
+			seeds = new AutoSeedQueue(tubeValues,width,height,depth,tubenessThreshold);
 		System.out.println("  [Done]");
 	}
 
@@ -179,6 +153,8 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		String tubesFileName=beforeExtension+".tubes.tif";
 		String thresholdsFileName=beforeExtension+".thresholds";
 		String outputFileName=beforeExtension+".traces.obj";
+		String binaryOutputFileName=beforeExtension+".traces.graph";
+		String checkpointFileName=beforeExtension+".autotrace-checkpoint";
 		ImagePlus tubenessImage = null;
 		File tubesFile=new File(originalFileInfo.directory,tubesFileName);
 		if( tubesFile.exists() ) {
@@ -260,11 +236,9 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			tubeValues[z]=(float[])tubeStack.getPixels(z+1);
 		}
 
-		done = new HashSet<AutoPoint>();
-
 		recreatePriorityQueue(false);
 
-		System.out.println("Initial points: "+mostTubelikePoints.size());
+		System.out.println("Initial points: "+seeds.remaining());
 
 		if( false )
 			return;
@@ -277,9 +251,87 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 								      Math.abs(calibration.pixelDepth));
 
 		int maxLoops = -1;
-		int loopsDone = 0;
 
-		while( mostTubelikePoints.size() > 0 ) {
+		loopsAlreadyDone = 0;
+		checkpoint = null;
+		if( resume || checkpointSeconds > 0 ) {
+			File checkpointFile=new File(originalFileInfo.directory,checkpointFileName);
+			long interval = (checkpointSeconds > 0) ? checkpointSeconds : defaultCheckpointSeconds;
+			try {
+				if( resume && checkpointFile.exists() ) {
+					IJ.showStatus("Resuming from the checkpoint file...");
+					checkpoint = AutoTracerCheckpoint.resume(checkpointFile, this, completePaths, seeds, interval);
+					loopsAlreadyDone = checkpoint.getLoopsDone();
+					System.out.println("Resumed after "+loopsAlreadyDone+" loops, with "+completePaths.getVertexCount()+" vertices and "+seeds.remaining()+" points left");
+				} else
+					checkpoint = AutoTracerCheckpoint.create(checkpointFile, this, seeds, interval);
+			} catch( IOException e ) {
+				IJ.error("Using the checkpoint file '"+checkpointFile.getAbsolutePath()+"' failed: "+e.getMessage());
+				return;
+			}
+		}
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int searches = (threads > 0) ? threads : processors;
+		int loopsDone;
+		if( searches > 1 )
+			loopsDone = traceInParallel( image, completePaths, maxLoops, searches );
+		else
+			loopsDone = traceOneAtATime( image, completePaths, maxLoops );
+
+		if( checkpoint != null ) {
+			try {
+				checkpoint.close(completePaths, seeds, loopsDone);
+			} catch( IOException e ) {
+				IJ.error("Writing the last checkpoint failed: "+e.getMessage());
+			}
+			checkpoint = null;
+		}
+
+		File outputFile=new File(originalFileInfo.directory,outputFileName);
+
+		try {
+			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
+		} catch( IOException e ) {
+			IJ.error("Writing the Wavefront OBJ file '"+outputFile.getAbsolutePath()+"' failed");
+			return;
+		}
+
+		// The same graph, but much quicker to load:
+		File binaryOutputFile=new File(originalFileInfo.directory,binaryOutputFileName);
+
+		try {
+			completePaths.writeBinary(binaryOutputFile.getAbsolutePath());
+		} catch( IOException e ) {
+			IJ.error("Writing the binary graph file '"+binaryOutputFile.getAbsolutePath()+"' failed");
+			return;
+		}
+	}
+
+	/* Appends to the checkpoint file if it's time to; if that
+	   fails, the tracing carries on without checkpoints: */
+	void checkpointIfDue( SinglePathsGraph completePaths, int loopsDone ) {
+		if( checkpoint == null || ! checkpoint.isDue() )
+			return;
+		try {
+			checkpoint.checkpoint( completePaths, seeds, loopsDone );
+		} catch( IOException e ) {
+			IJ.error("Writing a checkpoint failed, so no more will be written: "+e.getMessage());
+			try {
+				checkpoint.close( completePaths, seeds, loopsDone );
+			} catch( IOException e2 ) { }
+			checkpoint = null;
+		}
+	}
+
+	/* Runs a search from each seed in turn, merging its paths
+	   before picking the next seed.  Returns the total number of
+	   loops done, including any before a resumed checkpoint: */
+	int traceOneAtATime( ImagePlus image, SinglePathsGraph completePaths, int maxLoops ) {
+
+		int loopsDone = loopsAlreadyDone;
+
+		while( ! seeds.isEmpty() ) {
 
 			long currentTime = System.currentTimeMillis();
 			long secondsSinceStart = (currentTime - totalTimeStarted) / 1000;
@@ -289,15 +341,11 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			if( maxLoops >= 0 && loopsDone >= maxLoops )
 				break;
 
-			// Now get the most tubelike point:
-			AutoPoint startPoint=mostTubelikePoints.poll();
-
-			if( done.contains(startPoint) ) {
-				continue;
-			}
+			// Now get the most tubelike point that isn't done:
+			AutoPoint startPoint=seeds.poll();
 
-			System.out.println("=== Done size is: "+done.size());
-			System.out.println("=== Priority queue now has: "+mostTubelikePoints.size());
+			System.out.println("=== Done size is: "+seeds.getDoneCount());
+			System.out.println("=== Priority queue now has: "+seeds.remaining());
 			System.out.println("=== Loops done: "+loopsDone);
 
 			System.out.println("  Got point "+startPoint+" with tubeness: "+tubeValues[startPoint.z][startPoint.y*width+startPoint.x]);
@@ -333,141 +381,257 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 			// Now start the pruning:
 
-			ArrayList<AutoPoint> destinations = ast.getDestinations();
-			System.out.println("  === Destinations: "+destinations.size());
-			if ( verbose ) System.out.print("  === Destinations: "+destinations.size()+" ");
-			if ( verbose ) System.out.flush();
+			seeds.markSearched( startPoint );
+			mergePaths( prunePaths( ast ), completePaths );
 
-			for( AutoPoint d : destinations ) {
+			ast = null;
 
-				if ( verbose ) System.out.print("    ");
+			/* The seeds take 8 bytes each and the done
+			 * mask a bit per voxel, so there's no need to
+			 * watch the memory usage; every 50 loops just
+			 * drop the seeds that are done so that
+			 * remaining() is accurate. */
 
-				Path path = ast.getPathBack(d.x,d.y,d.z);
+			if( (loopsDone % 50) == 49 )
+				recreatePriorityQueue(true);
 
-				float [] rollingTubeness = new float[rollingLength];
-				int nextRollingAt = 0;
-				int slotsFilled = 0;
+			++loopsDone;
 
-				int lastIndex = path.size() - 1;
+			checkpointIfDue( completePaths, loopsDone );
+		}
 
-				if( minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath ) {
+		return loopsDone;
+	}
 
-					lastIndex = -1;
+	/* The part of the path back from each destination that's kept
+	   after pruning, as (x,y,z) triples.  This only reads the
+	   search and the tubeness values, so it can be called from
+	   any thread: */
+	ArrayList<int[]> prunePaths( AutoSearchThread ast ) {
 
-				} else {
+		ArrayList<AutoPoint> destinations = ast.getDestinations();
+		System.out.println("  === Destinations: "+destinations.size());
+		if ( verbose ) System.out.print("  === Destinations: "+destinations.size()+" ");
+		if ( verbose ) System.out.flush();
 
-					for( int i = 0; i < path.size(); ++i  ) {
+		ArrayList<int[]> result = new ArrayList<int[]>(destinations.size());
 
-						if ( verbose ) System.out.print(".");
-						if ( verbose ) System.out.flush();
+		for( AutoPoint d : destinations ) {
 
-						int pax = path.getXUnscaled(i);
-						int pay = path.getYUnscaled(i);
-						int paz = path.getZUnscaled(i);
+			if ( verbose ) System.out.print("    ");
 
-						float tubenessThere = tubeValues[paz][pay*width+pax];
+			Path path = ast.getPathBack(d.x,d.y,d.z);
 
-						rollingTubeness[nextRollingAt] = tubenessThere;
+			float [] rollingTubeness = new float[rollingLength];
+			int nextRollingAt = 0;
+			int slotsFilled = 0;
 
-						if( slotsFilled < nextRollingAt + 1 )
-							slotsFilled = nextRollingAt + 1;
+			int lastIndex = path.size() - 1;
 
-						// Now calculate the mean...
+			if( minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath ) {
 
-						float mean = 0;
-						for( int s = 0; s < slotsFilled; ++s ) {
-							mean += rollingTubeness[s];
-						}
-						mean /= slotsFilled;
+				lastIndex = -1;
 
-						if( mean < minimumRollingMean ) {
-							lastIndex = (i + 1) - slotsFilled;
-							break;
-						}
+			} else {
 
-						if( nextRollingAt == rollingLength - 1 )
-							nextRollingAt = 0;
-						else
-							++ nextRollingAt;
-					}
-				}
+				for( int i = 0; i < path.size(); ++i  ) {
 
-				AutoPoint current = null;
-				AutoPoint last = null;
-
-				HashSet<AutoPoint> destinationsToPrune = new HashSet<AutoPoint>();
-
-				for( int i = 0; i <= lastIndex; ++i ) {
-
-					if ( verbose ) System.out.print("#");
+					if ( verbose ) System.out.print(".");
 					if ( verbose ) System.out.flush();
 
-					// If the tubeness is above threshold, add this to the list to prune:
-
 					int pax = path.getXUnscaled(i);
 					int pay = path.getYUnscaled(i);
 					int paz = path.getZUnscaled(i);
 
 					float tubenessThere = tubeValues[paz][pay*width+pax];
 
-					current = new AutoPoint(pax,pay,paz);
+					rollingTubeness[nextRollingAt] = tubenessThere;
 
-					if( tubenessThere > tubenessThreshold ) {
-						destinationsToPrune.add(current);
-					}
+					if( slotsFilled < nextRollingAt + 1 )
+						slotsFilled = nextRollingAt + 1;
+
+					// Now calculate the mean...
 
-					// And add it to the full graph:
+					float mean = 0;
+					for( int s = 0; s < slotsFilled; ++s ) {
+						mean += rollingTubeness[s];
+					}
+					mean /= slotsFilled;
 
-					completePaths.addPoint( current, last );
+					if( mean < minimumRollingMean ) {
+						lastIndex = (i + 1) - slotsFilled;
+						break;
+					}
 
-					last = current;
+					if( nextRollingAt == rollingLength - 1 )
+						nextRollingAt = 0;
+					else
+						++ nextRollingAt;
 				}
+			}
 
-				// Now remove all the destinations
-				// genuinely found in this search:
+			if( lastIndex < 0 )
+				continue;
 
-				for( AutoPoint toRemove : destinationsToPrune ) {
+			int [] points = new int[3*(lastIndex+1)];
+			for( int i = 0; i <= lastIndex; ++i ) {
+				points[3*i] = path.getXUnscaled(i);
+				points[3*i+1] = path.getYUnscaled(i);
+				points[3*i+2] = path.getZUnscaled(i);
+			}
+			result.add(points);
 
-					if ( verbose ) System.out.flush();
+			if (verbose) System.out.println("");
+		}
 
-					done.add( toRemove );
-				}
+		return result;
+	}
 
-				if (verbose) System.out.println("");
-			}
+	/* Adds the pruned paths from prunePaths() to the graph, and
+	   marks the destinations on them as done.  Adding a point or
+	   link that's already in the graph does nothing, so paths
+	   from searches that overlap are joined where they meet.
+	   This must only be called from one thread at a time: */
+	void mergePaths( ArrayList<int[]> paths, SinglePathsGraph completePaths ) {
 
-			ast = null;
+		for( int [] points : paths ) {
 
-			System.gc();
+			int last = -1;
 
-			/* Check the memory usage, and recreate the
-			 * PriorityQueue if it's going too high (and
-			 * every 50 loops in any case).  It's not
-			 * clear how trustworthy these memory
-			 * statistics are, unfortunately. */
+			for( int i = 0; i < points.length; i += 3 ) {
 
-			long freeMem = Runtime.getRuntime().freeMemory();
-			long totMem = Runtime.getRuntime().totalMemory();
-			int percentUsed = (int)(((totMem-freeMem)*100) / totMem);
+				if ( verbose ) System.out.print("#");
+				if ( verbose ) System.out.flush();
 
-			System.out.println("=== Memory usage: "+percentUsed+"%");
-			if( (percentUsed > 95) || ((loopsDone % 50) == 49) ) {
-				recreatePriorityQueue(true);
-				if( mostTubelikePoints.size() == 0 )
-					break;
+				int pax = points[i];
+				int pay = points[i+1];
+				int paz = points[i+2];
+
+				float tubenessThere = tubeValues[paz][pay*width+pax];
+
+				// If the tubeness is above threshold, this
+				// destination was genuinely found in this
+				// search, so don't start from it again:
+
+				if( tubenessThere > tubenessThreshold ) {
+					seeds.markDone(pax,pay,paz);
+				}
+
+				// And add it to the full graph:
+
+				int current = completePaths.addVertex( pax, pay, paz );
+				if( last >= 0 )
+					completePaths.addLink( last, current );
+
+				last = current;
 			}
+		}
+	}
 
-			++loopsDone;
+	/* Stops a search that's gone on for too long; each search run
+	   in parallel has its own: */
+	class SearchLimiter implements SearchProgressCallback {
+
+		long started = System.currentTimeMillis();
+
+		public void pointsInSearch( SearchInterface source, int inOpen, int inClosed ) {
+			long timeSinceStarted = System.currentTimeMillis() - started;
+			if( (inOpen + inClosed) > maxNodes || (timeSinceStarted / 1000) > maxSeconds )
+				((SearchThread)source).requestStop();
 		}
 
-		File outputFile=new File(originalFileInfo.directory,outputFileName);
+		public void finished( SearchInterface source, boolean success ) { }
+
+		public void threadStatus( SearchInterface source, int currentStatus ) { }
+	}
+
+	static class SearchResult {
+		AutoPoint startPoint;
+		ArrayList<int[]> paths;
+	}
 
+	/* Runs up to searches searches at once.  Each starts from the
+	   most tube-like seed that isn't near any other running
+	   search (see AutoSeedQueue.pollUnclaimed()) so that the
+	   searches are in separate parts of the image and rarely
+	   duplicate each other's work.  The searches only read the
+	   graph; as each one finishes, this thread merges its pruned
+	   paths into the graph and marks its destinations as done
+	   before starting the next.  The searches aren't drawn, even
+	   with the live display.  Returns the total number of loops
+	   done, including any before a resumed checkpoint. */
+	int traceInParallel( final ImagePlus image, final SinglePathsGraph completePaths, int maxLoops, int searches ) {
+
+		System.out.println("Running "+searches+" searches in parallel, in regions of "+regionSize+" voxels");
+		seeds.setRegionSize( regionSize );
+
+		ExecutorService es = Executors.newFixedThreadPool( searches );
+		ExecutorCompletionService<SearchResult> ecs = new ExecutorCompletionService<SearchResult>( es );
+		int running = 0;
+		int loopsDone = loopsAlreadyDone;
 		try {
-			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
-		} catch( IOException e ) {
-			IJ.error("Writing the Wavefront OBJ file '"+outputFile.getAbsolutePath()+"' failed");
-			return;
+			while( true ) {
+
+				long secondsSinceStart = (System.currentTimeMillis() - totalTimeStarted) / 1000;
+				boolean stopping = secondsSinceStart > totalTimeLimitSeconds ||
+					(maxLoops >= 0 && loopsDone + running >= maxLoops);
+
+				while( ! stopping && running < searches ) {
+					final AutoPoint startPoint = seeds.pollUnclaimed();
+					if( startPoint == null )
+						break;
+					System.out.println("  Got point "+startPoint+" with tubeness: "+tubeValues[startPoint.z][startPoint.y*width+startPoint.x]);
+					ecs.submit( new Callable<SearchResult>() {
+						public SearchResult call() {
+							AutoSearchThread search = new AutoSearchThread( image,
+													tubeValues,
+													startPoint,
+													tubenessThreshold,
+													completePaths );
+							search.addProgressListener( new SearchLimiter() );
+							search.run();
+							SearchResult result = new SearchResult();
+							result.startPoint = startPoint;
+							result.paths = prunePaths( search );
+							return result;
+						}
+					} );
+					++ running;
+					if( maxLoops >= 0 && loopsDone + running >= maxLoops )
+						break;
+				}
+
+				if( running == 0 )
+					break;
+
+				SearchResult result = ecs.take().get();
+				-- running;
+				seeds.release( result.startPoint );
+				seeds.markSearched( result.startPoint );
+				mergePaths( result.paths, completePaths );
+
+				System.out.println("=== Done size is: "+seeds.getDoneCount());
+				System.out.println("=== Priority queue now has: "+seeds.remaining());
+				System.out.println("=== Loops done: "+loopsDone);
+
+				if( (loopsDone % 50) == 49 )
+					recreatePriorityQueue(true);
+
+				++loopsDone;
+
+				/* Any searches still running only read
+				   the graph, so it's safe to checkpoint: */
+				checkpointIfDue( completePaths, loopsDone );
+			}
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "The automatic tracing was interrupted", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "A search in the automatic tracing failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdownNow();
 		}
+
+		return loopsDone;
 	}
 
 	AutoSearchThread ast;
@@ -561,6 +725,28 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 	boolean liveDisplay = true;
 
+	/* The number of searches to run at once, or 0 for one for
+	   each processor: */
+	int threads = 1;
+
+	/* The width of the cubes the image is divided into when
+	   searches are run in parallel; no two searches start in
+	   the same or neighbouring cubes: */
+	int regionSize = 32;
+
+	/* If checkpointSeconds is more than 0, the progress is
+	   appended to a checkpoint file (see AutoTracerCheckpoint)
+	   that often, and at the end.  If resume is true, the tracing
+	   carries on from the checkpoint file if there is one, so a
+	   long tracing can be split into several runs, each stopped
+	   by totalTimeLimitSeconds: */
+	int checkpointSeconds = 0;
+	boolean resume = false;
+	static final int defaultCheckpointSeconds = 5 * 60;
+
+	AutoTracerCheckpoint checkpoint;
+	int loopsAlreadyDone;
+
 	public void run(String arg0) {
 
 		ImagePlus image = IJ.getImage();
@@ -585,6 +771,25 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			String lower = liveValue.toLowerCase();
 			if( lower.length() > 0 && (lower.equals("no") || lower.equals("f") || lower.equals("false") || lower.equals("n")) )
 				liveDisplay = false;
+			String threadsValue=Macro.getValue(macroOptions,"threads","1");
+			try {
+				threads = Integer.parseInt(threadsValue.trim());
+			} catch( NumberFormatException e ) {
+				IJ.error("The number of threads must be a whole number, not '"+threadsValue+"'");
+				return;
+			}
+			String checkpointValue=Macro.getValue(macroOptions,"checkpoint","0");
+			String timeValue=Macro.getValue(macroOptions,"time",""+totalTimeLimitSeconds);
+			try {
+				checkpointSeconds = Integer.parseInt(checkpointValue.trim());
+				totalTimeLimitSeconds = Long.parseLong(timeValue.trim());
+			} catch( NumberFormatException e ) {
+				IJ.error("The checkpoint interval and time limit must be whole numbers of seconds");
+				return;
+			}
+			String resumeValue=Macro.getValue(macroOptions,"resume","").toLowerCase();
+			if( resumeValue.equals("yes") || resumeValue.equals("y") || resumeValue.equals("t") || resumeValue.equals("true") )
+				resume = true;
 		}
 
 		single_pane = true;
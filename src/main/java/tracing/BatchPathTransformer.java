@@ -0,0 +1,44 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tracing;
+
+/** A PathTransformer that can transform many points in one call,
+    which implementations may do in parallel.  The points are
+    (xs[i], ys[i], zs[i]) for i from 0 to n - 1, in world
+    coordinates, and each result is written to the same index of
+    txs, tys and tzs, which may be the same arrays as the input.  As
+    for transformPoint(), a point that can't be transformed gives
+    Double.NaN.  ParallelPathTransformer.transformPoints() does this
+    for any PathTransformer. */
+
+public interface BatchPathTransformer extends PathTransformer {
+
+	public void transformPoints( double [] xs, double [] ys, double [] zs,
+				     double [] txs, double [] tys, double [] tzs,
+				     int n );
+
+}
@@ -0,0 +1,884 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/* Runs a list of jobs without any user interface, so that fitting,
+   filling, Sholl analysis and CSV export can be done for many
+   tracings at once, e.g. overnight on a headless server:
+
+     java -Djava.awt.headless=true -cp ... tracing.BatchRunner \
+         [-threads N] [-memory MiB] [-job-memory MiB] \
+         jobs.txt output-directory report.csv
+
+   Each line of the job file is a job, made up of tab-separated
+   fields: the image file ("-" if there isn't one), the traces file
+   (in any format that PathAndFillManager.loadGuessingType()
+   understands) and then the operations to carry out, in order.  An
+   operation is a name followed by optional space-separated
+   key=value parameters:
+
+     fit                      fit a volume to every path that doesn't
+                              have one yet, and use the fitted versions
+     fill threshold=0.03 reciprocal=true image=false
+                              fill out from all the paths to that
+                              threshold, adding the fill to the traces
+                              and optionally writing it as an image
+     sholl centre=x,y,z separation=0 axes=normal normalization=none
+                              Sholl analysis, by default centred on
+                              the start of the first primary path
+     csv                      PathAndFillManager.exportToCSV()
+     save format=compressed   write the traces out again (also "xml"
+                              or "binary")
+
+   A field name=... or memory=MiB instead sets the job's name (used
+   for its output files, and otherwise taken from the traces file)
+   or its memory limit.  Blank lines and lines starting with
+   '#' are ignored.
+
+   The jobs are run on a pool of threads, one per processor by
+   default.  The JVM can't limit the memory that one thread uses, so
+   each job instead reserves its memory limit from the total budget
+   before it starts, which stops too many large jobs running at once,
+   and fails if its image, or its image plus an estimate of the fill
+   in progress, goes over that limit.  A job that fails doesn't stop
+   the others; the report is a CSV file with a row for each job. */
+
+public class BatchRunner {
+
+	public static interface Listener {
+		/* Called from the worker threads, but never
+		   concurrently: */
+		public void jobFinished( JobResult result, int jobsDone, int jobsTotal );
+	}
+
+	static class JobFailedException extends Exception {
+		JobFailedException( String message ) {
+			super( message );
+		}
+	}
+
+	public static final String [] OPERATIONS = { "fit", "fill", "sholl", "csv", "save" };
+
+	/* A rough figure for the memory that each point of a fill
+	   costs while it is being found and turned into a Fill: the
+	   SearchNode, its slots in the queue and the per-slice arrays,
+	   and the Fill.Node and lookup table entry in getFill(). */
+	static final long FILL_BYTES_PER_POINT = 200;
+
+	static final long MiB = 1024 * 1024;
+
+	public static class Operation {
+
+		protected String name;
+		protected HashMap< String, String > parameters = new HashMap< String, String >();
+		protected String description;
+
+		public String getName( ) {
+			return name;
+		}
+
+		public String getParameter( String key ) {
+			return parameters.get( key );
+		}
+
+		double getDouble( String key, double defaultValue ) throws JobFailedException {
+			String value = parameters.get( key );
+			if( value == null )
+				return defaultValue;
+			try {
+				return Double.parseDouble( value );
+			} catch( NumberFormatException e ) {
+				throw new JobFailedException( "Malformed number for "+key+" in '"+description+"': "+value );
+			}
+		}
+
+		boolean getBoolean( String key, boolean defaultValue ) throws JobFailedException {
+			String value = parameters.get( key );
+			if( value == null )
+				return defaultValue;
+			if( value.equals( "true" ) )
+				return true;
+			if( value.equals( "false" ) )
+				return false;
+			throw new JobFailedException( key+" must be true or false in '"+description+"'" );
+		}
+
+		@Override
+		public String toString( ) {
+			return description;
+		}
+	}
+
+	public static class Job {
+
+		protected String name;
+		protected int lineNumber;
+		protected File image;
+		protected File traces;
+		/* In bytes, or 0 for the runner's default: */
+		protected long memoryLimit;
+		protected ArrayList< Operation > operations = new ArrayList< Operation >();
+
+		public String getName( ) {
+			return name;
+		}
+
+		public int getLineNumber( ) {
+			return lineNumber;
+		}
+
+		/* null if the job has no image: */
+		public File getImage( ) {
+			return image;
+		}
+
+		public File getTraces( ) {
+			return traces;
+		}
+
+		public List< Operation > getOperations( ) {
+			return operations;
+		}
+
+		public String getOperationsString( ) {
+			StringBuilder sb = new StringBuilder();
+			for( Operation o : operations ) {
+				if( sb.length() > 0 )
+					sb.append( "; " );
+				sb.append( o.description );
+			}
+			return sb.toString();
+		}
+	}
+
+	public static class JobResult {
+
+		protected Job job;
+		protected String error;
+		protected double seconds;
+		protected long memoryLimit;
+		protected long imageBytes;
+		protected int paths;
+		protected int pathsFitted;
+		protected int fittingFailures;
+		protected int fills;
+		protected double shollCriticalValue = Double.NaN;
+		protected int shollDendriteMaximum = -1;
+
+		public Job getJob( ) {
+			return job;
+		}
+
+		public boolean succeeded( ) {
+			return error == null;
+		}
+
+		/* Why the job failed, or null if it didn't: */
+		public String getError( ) {
+			return error;
+		}
+
+		public double getSeconds( ) {
+			return seconds;
+		}
+
+		public int getPaths( ) {
+			return paths;
+		}
+
+		public int getPathsFitted( ) {
+			return pathsFitted;
+		}
+
+		public int getFittingFailures( ) {
+			return fittingFailures;
+		}
+
+		public int getFills( ) {
+			return fills;
+		}
+
+		@Override
+		public String toString( ) {
+			if( error != null )
+				return job.name+": failed after "+seconds+"s: "+error;
+			return job.name+": "+paths+" paths, "+pathsFitted+" fitted, "+fills+" fills in "+seconds+"s";
+		}
+	}
+
+	protected File outputDirectory;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected long memoryBudget = (Runtime.getRuntime().maxMemory() / 4) * 3;
+	/* If this is 0, each job gets an equal share of the budget: */
+	protected long defaultJobMemory = 0;
+	protected Listener listener;
+
+	protected ArrayList< Job > jobs = new ArrayList< Job >();
+	protected ArrayList< JobResult > results;
+
+	protected int jobsDone;
+	protected int jobsFailed;
+
+	public BatchRunner( File outputDirectory ) {
+		this.outputDirectory = outputDirectory;
+	}
+
+	public void setThreads( int threads ) {
+		if( threads < 1 )
+			throw new IllegalArgumentException( "There must be at least one thread" );
+		this.threads = threads;
+	}
+
+	public void setMemoryBudget( long bytes ) {
+		this.memoryBudget = bytes;
+	}
+
+	public void setDefaultJobMemory( long bytes ) {
+		this.defaultJobMemory = bytes;
+	}
+
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	public List< Job > getJobs( ) {
+		return jobs;
+	}
+
+	public void addJob( Job job ) {
+		jobs.add( job );
+	}
+
+	/* Adds the jobs listed in a job file, in the format described
+	   at the top of this file: */
+	public void readJobs( File jobFile ) throws IOException {
+		HashSet< String > names = new HashSet< String >();
+		for( Job j : jobs )
+			names.add( j.name );
+		BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( jobFile ), "UTF-8" ) );
+		try {
+			String line;
+			int lineNumber = 0;
+			while( (line = br.readLine()) != null ) {
+				++ lineNumber;
+				if( line.trim().length() == 0 || line.trim().startsWith( "#" ) )
+					continue;
+				Job job = parseJob( line, lineNumber, jobFile.getParentFile() );
+				if( ! names.add( job.name ) ) {
+					job.name += "-line" + lineNumber;
+					names.add( job.name );
+				}
+				jobs.add( job );
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	static File resolve( String fileName, File relativeTo ) {
+		File f = new File( fileName );
+		if( f.isAbsolute() || relativeTo == null )
+			return f;
+		return new File( relativeTo, fileName );
+	}
+
+	static Job parseJob( String line, int lineNumber, File relativeTo ) throws IOException {
+		String where = "Line "+lineNumber+" of the job file";
+		String [] fields = line.split( "\t" );
+		if( fields.length < 2 )
+			throw new IOException( where+" must have an image and a traces file, separated by a tab" );
+		Job job = new Job();
+		job.lineNumber = lineNumber;
+		String imageField = fields[0].trim();
+		if( ! imageField.equals( "-" ) )
+			job.image = resolve( imageField, relativeTo );
+		job.traces = resolve( fields[1].trim(), relativeTo );
+		for( int i = 2; i < fields.length; ++i ) {
+			String field = fields[i].trim();
+			if( field.length() == 0 )
+				continue;
+			if( field.startsWith( "name=" ) ) {
+				job.name = field.substring( 5 );
+				continue;
+			} else if( field.startsWith( "memory=" ) ) {
+				try {
+					job.memoryLimit = Long.parseLong( field.substring( 7 ) ) * MiB;
+				} catch( NumberFormatException e ) {
+					throw new IOException( where+" has a malformed memory limit: "+field );
+				}
+				continue;
+			}
+			String [] words = field.split( "\\s+" );
+			Operation o = new Operation();
+			o.name = words[0];
+			o.description = field;
+			boolean known = false;
+			for( String s : OPERATIONS )
+				if( s.equals( o.name ) )
+					known = true;
+			if( ! known )
+				throw new IOException( where+" has an unknown operation: "+o.name );
+			for( int w = 1; w < words.length; ++w ) {
+				int equals = words[w].indexOf( '=' );
+				if( equals <= 0 )
+					throw new IOException( where+" has a parameter that isn't key=value: "+words[w] );
+				o.parameters.put( words[w].substring( 0, equals ), words[w].substring( equals + 1 ) );
+			}
+			job.operations.add( o );
+		}
+		if( job.name == null ) {
+			job.name = job.traces.getName();
+			int dot = job.name.lastIndexOf( '.' );
+			if( dot > 0 )
+				job.name = job.name.substring( 0, dot );
+		}
+		return job;
+	}
+
+	long memoryLimitFor( Job job ) {
+		long limit = job.memoryLimit;
+		if( limit <= 0 )
+			limit = (defaultJobMemory > 0) ? defaultJobMemory : memoryBudget / threads;
+		return Math.min( limit, memoryBudget );
+	}
+
+	/* The figures in ImagePlus.getBitDepth() are 8, 16, 24 and 32,
+	   but RGB pixels take 4 bytes: */
+	static long imageBytes( ImagePlus imp ) {
+		int bitDepth = imp.getBitDepth();
+		long bytesPerPixel = (bitDepth == 24) ? 4 : bitDepth / 8;
+		return (long)imp.getWidth() * imp.getHeight() * imp.getStackSize() * bytesPerPixel;
+	}
+
+	/* The same range that Simple_Neurite_Tracer finds for the
+	   search cost functions: */
+	static float [] findStackMinMax( ImagePlus imp ) {
+		float stackMin = Float.MAX_VALUE;
+		float stackMax = Float.MIN_VALUE;
+		ImageStack s = imp.getStack();
+		int depth = imp.getStackSize();
+		int pixels = imp.getWidth() * imp.getHeight();
+		switch( imp.getType() ) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			return new float[] { 0, 255 };
+		case ImagePlus.GRAY16:
+			for( int z = 0; z < depth; ++z ) {
+				short [] slice = (short []) s.getPixels( z + 1 );
+				for( int i = 0; i < pixels; ++i ) {
+					short v = slice[i];
+					if( v < stackMin )
+						stackMin = v;
+					if( v > stackMax )
+						stackMax = v;
+				}
+			}
+			break;
+		case ImagePlus.GRAY32:
+			for( int z = 0; z < depth; ++z ) {
+				float [] slice = (float []) s.getPixels( z + 1 );
+				for( int i = 0; i < pixels; ++i ) {
+					float v = slice[i];
+					if( v < stackMin )
+						stackMin = v;
+					if( v > stackMax )
+						stackMax = v;
+				}
+			}
+			break;
+		default:
+			throw new RuntimeException( "BUG: findStackMinMax called on an unsupported image type" );
+		}
+		return new float[] { stackMin, stackMax };
+	}
+
+	/* The state of one job while it's being run: */
+	class JobRun {
+
+		Job job;
+		JobResult result;
+		PathAndFillManager pafm;
+		ImagePlus image;
+		float [] stackMinMax;
+
+		JobRun( Job job, JobResult result ) {
+			this.job = job;
+			this.result = result;
+		}
+
+		File output( String suffix ) {
+			return new File( outputDirectory, job.name + suffix );
+		}
+
+		void load( ) throws JobFailedException {
+			if( job.image != null ) {
+				if( ! job.image.isFile() )
+					throw new JobFailedException( "The image file doesn't exist: "+job.image );
+				image = IJ.openImage( job.image.getAbsolutePath() );
+				if( image == null )
+					throw new JobFailedException( "Couldn't open the image: "+job.image );
+				result.imageBytes = imageBytes( image );
+				checkMemory( result.imageBytes, "The image" );
+			}
+			if( ! job.traces.isFile() )
+				throw new JobFailedException( "The traces file doesn't exist: "+job.traces );
+			pafm = (image == null) ? new PathAndFillManager() : new PathAndFillManager( image );
+			if( ! pafm.loadGuessingType( job.traces.getAbsolutePath() ) )
+				throw new JobFailedException( "Couldn't load the traces file: "+job.traces );
+			if( image != null && (pafm.width != image.getWidth() ||
+					      pafm.height != image.getHeight() ||
+					      pafm.depth != image.getStackSize()) )
+				throw new JobFailedException( "The traces file is for a "+pafm.width+"x"+pafm.height+"x"+pafm.depth+
+							      " image, but the image is "+image.getWidth()+"x"+image.getHeight()+"x"+image.getStackSize() );
+		}
+
+		void checkMemory( long bytes, String what ) throws JobFailedException {
+			if( bytes > result.memoryLimit )
+				throw new JobFailedException( what+" needs about "+bytes+" bytes, more than the job's limit of "+
+							      (result.memoryLimit / MiB)+" MiB" );
+		}
+
+		ImagePlus requireImage( Operation o ) throws JobFailedException {
+			if( image == null )
+				throw new JobFailedException( "The "+o.name+" operation needs an image" );
+			if( image.getType() == ImagePlus.COLOR_RGB )
+				throw new JobFailedException( "RGB images can't be used for the "+o.name+
+							      " operation; convert them to 8 bit first" );
+			if( stackMinMax == null )
+				stackMinMax = findStackMinMax( image );
+			return image;
+		}
+
+		void fit( Operation o ) throws Exception {
+			ImagePlus imp = requireImage( o );
+			/* Paths that have changed since they were fitted are
+			   refitted, reusing the fits of unchanged points: */
+			ArrayList< Path > stale = new ArrayList< Path >();
+			for( Path p : pafm.allPaths )
+				if( ! p.isFittedVersionOfAnotherPath() && p.fittedVersionIsStale() )
+					stale.add( p );
+			for( Path p : stale )
+				pafm.deleteFittedVersion( p, true );
+			ArrayList< Path > toFit = new ArrayList< Path >();
+			for( Path p : pafm.allPaths ) {
+				if( p.isFittedVersionOfAnotherPath() || p.getUseFitted() )
+					continue;
+				if( p.fitted != null )
+					p.setUseFitted( true, null );
+				else
+					toFit.add( p );
+			}
+			/* The jobs are already run in parallel, so each one
+			   fits its paths in turn: */
+			for( Path p : toFit ) {
+				PathFitter fitter = new PathFitter( imp, p );
+				Path fitted = fitter.call();
+				if( fitted == null ) {
+					++ result.fittingFailures;
+				} else {
+					pafm.addPath( fitted );
+					++ result.pathsFitted;
+				}
+			}
+		}
+
+		void fill( Operation o ) throws Exception {
+			ImagePlus imp = requireImage( o );
+			final double threshold = o.getDouble( "threshold", 0.03 );
+			boolean reciprocal = o.getBoolean( "reciprocal", true );
+			boolean writeImage = o.getBoolean( "image", false );
+
+			Set< Path > sourcePaths = new HashSet< Path >();
+			for( Path p : pafm.allPaths )
+				if( ! p.isFittedVersionOfAnotherPath() )
+					sourcePaths.add( p );
+			if( sourcePaths.isEmpty() )
+				throw new JobFailedException( "There are no paths to fill from" );
+
+			final FillerThread filler = new FillerThread( imp,
+								      stackMinMax[0],
+								      stackMinMax[1],
+								      false, // startPaused
+								      reciprocal,
+								      threshold,
+								      1 ); // reportEveryMilliseconds
+			filler.setSourcePaths( sourcePaths );
+
+			final long fillBudget = result.memoryLimit - result.imageBytes;
+			final boolean [] overBudget = new boolean[1];
+			filler.addProgressListener( new FillerProgressCallback() {
+				public void maximumDistanceCompletelyExplored( SearchThread source, float f ) {
+					if( f > threshold )
+						source.requestStop();
+				}
+				public void pointsInSearch( SearchInterface source, int inOpen, int inClosed ) {
+					if( ((long)inOpen + inClosed) * FILL_BYTES_PER_POINT > fillBudget ) {
+						overBudget[0] = true;
+						filler.requestStop();
+					}
+				}
+				public void finished( SearchInterface source, boolean success ) { }
+				public void threadStatus( SearchInterface source, int currentStatus ) { }
+			} );
+
+			/* Run the search in this thread: */
+			filler.run();
+
+			if( overBudget[0] )
+				checkMemory( result.imageBytes + (long)filler.pointsConsideredInSearch() * FILL_BYTES_PER_POINT,
+					     "The fill" );
+
+			pafm.addFill( filler.getFill() );
+			++ result.fills;
+
+			if( writeImage ) {
+				ImagePlus fillImage = filler.fillAsImagePlus( false );
+				File f = output( "_fill" + result.fills + ".tif" );
+				if( ! new FileSaver( fillImage ).saveAsTiffStack( f.getAbsolutePath() ) )
+					throw new JobFailedException( "Couldn't write the fill image to "+f );
+			}
+		}
+
+		void sholl( Operation o ) throws Exception {
+			double [] centre = new double[3];
+			String centreParameter = o.getParameter( "centre" );
+			if( centreParameter != null ) {
+				String [] coordinates = centreParameter.split( "," );
+				if( coordinates.length != 3 )
+					throw new JobFailedException( "centre must be x,y,z in '"+o+"'" );
+				try {
+					for( int i = 0; i < 3; ++i )
+						centre[i] = Double.parseDouble( coordinates[i] );
+				} catch( NumberFormatException e ) {
+					throw new JobFailedException( "Malformed centre in '"+o+"'" );
+				}
+			} else {
+				centre = ShollBatch.findCentre( pafm, ShollBatch.CENTRE_PRIMARY );
+				if( centre == null )
+					throw new JobFailedException( "There's no primary path to centre the Sholl analysis on" );
+			}
+
+			double separation = o.getDouble( "separation", 0 );
+
+			String axesParameter = o.getParameter( "axes" );
+			int axes = ShollAnalysisDialog.AXES_NORMAL;
+			if( axesParameter != null ) {
+				axes = -1;
+				for( int i = 1; i < ShollAnalysisDialog.axesParameters.length; ++i )
+					if( ShollAnalysisDialog.axesParameters[i].equals( axesParameter ) )
+						axes = i;
+				if( axes < 0 )
+					throw new JobFailedException( "Unknown axes in '"+o+"'" );
+			}
+
+			String normalizationParameter = o.getParameter( "normalization" );
+			int normalization = ShollAnalysisDialog.NOT_NORMALIZED;
+			if( normalizationParameter == null || normalizationParameter.equals( "none" ) )
+				normalization = ShollAnalysisDialog.NOT_NORMALIZED;
+			else if( normalizationParameter.equals( "volume" ) )
+				normalization = ShollAnalysisDialog.NORMALIZED_FOR_SPHERE_VOLUME;
+			else
+				throw new JobFailedException( "normalization must be none or volume in '"+o+"'" );
+
+			ShollEvents shollPoints = new ShollEvents();
+			int pathsUsed = ShollBatch.addAllPaths( shollPoints, pafm, centre[0], centre[1], centre[2] );
+			if( shollPoints.size() == 0 )
+				throw new JobFailedException( "There are no path segments for Sholl analysis" );
+
+			ShollAnalysisDialog.ShollResults sholl = new ShollAnalysisDialog.ShollResults(
+				shollPoints,
+				image,
+				true,
+				pathsUsed,
+				centre[0],
+				centre[1],
+				centre[2],
+				"Sholl analysis of all paths for "+job.name,
+				axes,
+				normalization,
+				separation,
+				pafm.depth == 1 );
+
+			sholl.exportSummaryToCSV( output( "_sholl_summary.csv" ) );
+			sholl.exportDetailToCSV( output( "_sholl_detail.csv" ) );
+			result.shollCriticalValue = sholl.getCriticalValue();
+			result.shollDendriteMaximum = sholl.getDendriteMaximum();
+		}
+
+		void save( Operation o ) throws Exception {
+			String format = o.getParameter( "format" );
+			if( format == null || format.equals( "compressed" ) )
+				pafm.writeXML( output( ".traces" ).getAbsolutePath(), true );
+			else if( format.equals( "xml" ) )
+				pafm.writeXML( output( ".traces.xml" ).getAbsolutePath(), false );
+			else if( format.equals( "binary" ) )
+				pafm.writeBinary( output( ".traces.bin" ).getAbsolutePath() );
+			else
+				throw new JobFailedException( "format must be compressed, xml or binary in '"+o+"'" );
+		}
+
+		void run( ) throws Exception {
+			load();
+			for( Operation o : job.operations ) {
+				if( o.name.equals( "fit" ) )
+					fit( o );
+				else if( o.name.equals( "fill" ) )
+					fill( o );
+				else if( o.name.equals( "sholl" ) )
+					sholl( o );
+				else if( o.name.equals( "csv" ) )
+					pafm.exportToCSV( output( ".csv" ) );
+				else if( o.name.equals( "save" ) )
+					save( o );
+				else
+					throw new RuntimeException( "BUG: unknown operation "+o.name );
+			}
+			for( Path p : pafm.allPaths )
+				if( ! p.isFittedVersionOfAnotherPath() )
+					++ result.paths;
+		}
+	}
+
+	/* Never throws: whatever goes wrong is recorded in the
+	   result. */
+	JobResult runJob( Job job ) {
+		JobResult result = new JobResult();
+		result.job = job;
+		result.memoryLimit = memoryLimitFor( job );
+		long started = System.currentTimeMillis();
+		try {
+			new JobRun( job, result ).run();
+		} catch( JobFailedException e ) {
+			result.error = e.getMessage();
+		} catch( OutOfMemoryError e ) {
+			result.error = "Ran out of memory; try a lower memory budget or fewer threads";
+		} catch( Exception e ) {
+			result.error = e.toString();
+		}
+		result.seconds = (System.currentTimeMillis() - started) / 1000.0;
+		return result;
+	}
+
+	synchronized void finished( JobResult result ) {
+		++ jobsDone;
+		if( ! result.succeeded() )
+			++ jobsFailed;
+		if( listener != null )
+			listener.jobFinished( result, jobsDone, jobs.size() );
+	}
+
+	public void run( ) throws IOException, InterruptedException {
+
+		if( ! outputDirectory.isDirectory() && ! outputDirectory.mkdirs() )
+			throw new IOException( "Couldn't create the output directory "+outputDirectory );
+
+		synchronized( this ) {
+			results = new ArrayList< JobResult >();
+			jobsDone = jobsFailed = 0;
+		}
+
+		/* The budget is shared out in MiB, since that's small
+		   enough for the permits to fit in an int: */
+		final int budgetMiB = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, memoryBudget / MiB ) );
+		final Semaphore memory = new Semaphore( budgetMiB, true );
+
+		ArrayList< Callable< JobResult > > tasks = new ArrayList< Callable< JobResult > >();
+		for( final Job job : jobs )
+			tasks.add( new Callable< JobResult >() {
+				public JobResult call() throws InterruptedException {
+					int permits = (int)Math.min( budgetMiB, Math.max( 1, memoryLimitFor( job ) / MiB ) );
+					memory.acquire( permits );
+					JobResult result;
+					try {
+						result = runJob( job );
+					} finally {
+						memory.release( permits );
+					}
+					finished( result );
+					return result;
+				}
+			} );
+
+		ExecutorService es = Executors.newFixedThreadPool( threads );
+		try {
+			List< Future< JobResult > > futures = es.invokeAll( tasks );
+			for( Future< JobResult > future : futures )
+				results.add( future.get() );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Running the batch jobs failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+	}
+
+	/* The result for each job, in the order of getJobs(): */
+	public ArrayList< JobResult > getResults( ) {
+		return results;
+	}
+
+	public synchronized int getJobsDone( ) {
+		return jobsDone;
+	}
+
+	public synchronized int getJobsFailed( ) {
+		return jobsFailed;
+	}
+
+	static void printCSVRow( PrintWriter pw, Object [] values ) {
+		for( int i = 0; i < values.length; ++i ) {
+			if( i > 0 )
+				pw.print( "," );
+			String s = (values[i] == null) ? "" : ""+values[i];
+			pw.print( PathAndFillManager.stringForCSV( s.replace( '\n', ' ' ).replace( '\r', ' ' ) ) );
+		}
+		pw.print( "\r\n" );
+	}
+
+	/* Writes a row for each job, in the same CSV style as
+	   PathAndFillManager.exportToCSV(): */
+	public void writeReport( File reportFile ) throws IOException {
+		PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( reportFile ), "UTF-8" ) );
+		try {
+			printCSVRow( pw, new Object[] { "Job",
+							"Line",
+							"Image",
+							"Traces",
+							"Operations",
+							"Succeeded",
+							"Seconds",
+							"ImageBytes",
+							"MemoryLimitMiB",
+							"Paths",
+							"PathsFitted",
+							"FittingFailures",
+							"Fills",
+							"ShollCriticalValue",
+							"ShollDendriteMaximum",
+							"Error" } );
+			for( JobResult r : results ) {
+				Job j = r.job;
+				printCSVRow( pw, new Object[] { j.name,
+								j.lineNumber,
+								j.image,
+								j.traces,
+								j.getOperationsString(),
+								r.succeeded(),
+								r.seconds,
+								r.imageBytes,
+								r.memoryLimit / MiB,
+								r.paths,
+								r.pathsFitted,
+								r.fittingFailures,
+								r.fills,
+								Double.isNaN( r.shollCriticalValue ) ? null : r.shollCriticalValue,
+								r.shollDendriteMaximum < 0 ? null : r.shollDendriteMaximum,
+								r.error } );
+			}
+		} finally {
+			pw.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString( ) {
+		return "Ran "+jobsDone+" of "+jobs.size()+" jobs ("+jobsFailed+" failed) with "+threads+
+			" threads and a memory budget of "+(memoryBudget / MiB)+" MiB";
+	}
+
+	static void usage( ) {
+		System.err.println( "Usage: tracing.BatchRunner [-threads N] [-memory MiB] [-job-memory MiB] <job-file> <output-directory> <report.csv>" );
+		System.exit( 2 );
+	}
+
+	public static void main( String [] args ) throws Exception {
+		int threads = 0;
+		long memory = 0, jobMemory = 0;
+		ArrayList< String > positional = new ArrayList< String >();
+		try {
+			for( int i = 0; i < args.length; ++i ) {
+				if( args[i].equals( "-threads" ) && i + 1 < args.length )
+					threads = Integer.parseInt( args[++i] );
+				else if( args[i].equals( "-memory" ) && i + 1 < args.length )
+					memory = Long.parseLong( args[++i] ) * MiB;
+				else if( args[i].equals( "-job-memory" ) && i + 1 < args.length )
+					jobMemory = Long.parseLong( args[++i] ) * MiB;
+				else if( args[i].startsWith( "-" ) )
+					usage();
+				else
+					positional.add( args[i] );
+			}
+		} catch( NumberFormatException e ) {
+			usage();
+		}
+		if( positional.size() != 3 )
+			usage();
+
+		BatchRunner runner = new BatchRunner( new File( positional.get( 1 ) ) );
+		if( threads > 0 )
+			runner.setThreads( threads );
+		if( memory > 0 )
+			runner.setMemoryBudget( memory );
+		if( jobMemory > 0 )
+			runner.setDefaultJobMemory( jobMemory );
+		runner.readJobs( new File( positional.get( 0 ) ) );
+		runner.setListener( new Listener() {
+			public void jobFinished( JobResult result, int jobsDone, int jobsTotal ) {
+				System.out.println( "["+jobsDone+"/"+jobsTotal+"] "+result );
+			}
+		} );
+		runner.run();
+		runner.writeReport( new File( positional.get( 2 ) ) );
+		System.out.println( runner );
+		System.exit( runner.getJobsFailed() > 0 ? 1 : 0 );
+	}
+}
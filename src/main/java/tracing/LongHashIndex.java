@@ -0,0 +1,142 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.Arrays;
+
+/* A set of long keys, each of which is given a number (0, 1, 2, ...)
+   in the order they're added, without an object for each key.  The
+   keys are kept in that order in one array, and an open addressing
+   hash table (with linear probing) of the numbers plus one, so that
+   0 means an empty slot, finds the number for a key.  Keys can't be
+   removed.
+
+   This isn't thread-safe. */
+
+class LongHashIndex {
+
+	protected long [] keys;
+	protected int size;
+
+	/* The length is always a power of two, and at most 3/4 full: */
+	protected int [] table;
+	protected int mask;
+
+	LongHashIndex( ) {
+		this( 16 );
+	}
+
+	LongHashIndex( int expectedSize ) {
+		keys = new long[Math.max( 4, expectedSize )];
+		int capacity = 16;
+		while( capacity * 3L / 4 < expectedSize )
+			capacity <<= 1;
+		table = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	int size( ) {
+		return size;
+	}
+
+	/* The key numbered i: */
+	long get( int i ) {
+		if( i < 0 || i >= size )
+			throw new IndexOutOfBoundsException( "Index "+i+" is out of range (size "+size+")" );
+		return keys[i];
+	}
+
+	/* A mix of all the bits of the key, from MurmurHash3's
+	   finalizer, so that keys that differ only in their high
+	   bits (e.g. voxel indices in different slices) spread out: */
+	static int hash( long key ) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	/* The number of the key, or -1 if it hasn't been added: */
+	int indexOf( long key ) {
+		int slot = hash( key ) & mask;
+		int entry;
+		while( (entry = table[slot]) != 0 ) {
+			if( keys[entry - 1] == key )
+				return entry - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	boolean contains( long key ) {
+		return indexOf( key ) >= 0;
+	}
+
+	/* Adds the key if it isn't already there, and returns its
+	   number either way: */
+	int add( long key ) {
+		int slot = hash( key ) & mask;
+		int entry;
+		while( (entry = table[slot]) != 0 ) {
+			if( keys[entry - 1] == key )
+				return entry - 1;
+			slot = (slot + 1) & mask;
+		}
+		if( size == Integer.MAX_VALUE - 1 )
+			throw new RuntimeException( "There are too many keys for a LongHashIndex" );
+		if( size == keys.length )
+			keys = Arrays.copyOf( keys, (int)Math.min( Integer.MAX_VALUE - 1, keys.length * 2L ) );
+		int index = size++;
+		keys[index] = key;
+		table[slot] = index + 1;
+		if( size > table.length / 4 * 3 ) {
+			if( table.length >= (1 << 30) )
+				throw new RuntimeException( "There are too many keys for a LongHashIndex" );
+			rehash( table.length * 2 );
+		}
+		return index;
+	}
+
+	void rehash( int capacity ) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for( int i = 0; i < size; ++i ) {
+			int slot = hash( keys[i] ) & mask;
+			while( table[slot] != 0 )
+				slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+	}
+
+	/* The approximate number of bytes used by the arrays: */
+	long bytesUsed( ) {
+		return 8L * keys.length + 4L * table.length;
+	}
+}
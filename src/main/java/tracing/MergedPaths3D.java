@@ -0,0 +1,337 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import customnode.CustomLineMesh;
+import customnode.CustomMesh;
+import customnode.CustomTriangleMesh;
+import ij.ImagePlus;
+import ij3d.Content;
+import ij3d.Image3DUniverse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+/* All the paths in the 3D viewer as just two contents, rather than
+   one or two for each path: a line mesh with every path's lines,
+   and a triangle mesh with every path's tube or discs, each with a
+   colour for each vertex.
+
+   Each path has a range of vertices in each mesh, in the same
+   order in both.  When a path changes, or is to be shown
+   differently, its ranges are removed from the meshes and its new
+   vertices are added at the end, in place, and when only its
+   colour changes, only the colours of its ranges are set again.  With
+   thousands of paths this is much quicker to update and to render
+   than a content for each path, which update() would otherwise
+   remove and add again one at a time. */
+
+class MergedPaths3D {
+
+	/* How one path is shown in the meshes: */
+	static class Shown {
+		Path path; // The version shown, which may be the fitted one
+		int modificationCount;
+		int paths3DDisplay;
+		ImagePlus colorImage;
+		Color3f color;
+
+		int lineVertices;
+		List<Color3f> triangleColors;
+
+		// The vertices to add, until they've been added:
+		List<Point3f> newLines;
+		List<Point3f> newTriangles;
+
+		// Set until the colours have been set in the meshes:
+		boolean colorsChanged = true;
+
+		/* The colour of the lines is always flat, but the
+		   colours of the triangles come from the colour image
+		   if there is one: */
+		void setColor( Color3f color ) {
+			this.color = color;
+			colorsChanged = true;
+			if( colorImage == null )
+				for( int i = 0; i < triangleColors.size(); ++i )
+					triangleColors.set( i, color );
+		}
+	}
+
+	protected Image3DUniverse univ;
+
+	protected CustomLineMesh lineMesh;
+	protected String lineMeshName;
+	protected CustomTriangleMesh triangleMesh;
+	protected String triangleMeshName;
+
+	/* The paths shown, by the path (never a fitted version) they
+	   represent, and in the order of their vertices: */
+	protected HashMap<Path,Shown> shownPaths = new HashMap<Path,Shown>();
+	protected List<Shown> order = new ArrayList<Shown>();
+
+	MergedPaths3D( Image3DUniverse univ ) {
+		this.univ = univ;
+	}
+
+	/* Makes the meshes show allPaths as update3DViewerContents()
+	   in PathAndFillManager describes, changing only the vertices
+	   of paths that are shown differently to before: */
+	synchronized void update( List<Path> allPaths,
+				  boolean showOnlySelectedPaths,
+				  int paths3DDisplay,
+				  Color3f selectedColor,
+				  Color3f deselectedColor,
+				  ImagePlus colorImage ) {
+
+		HashSet<Shown> toRemove = new HashSet<Shown>();
+		List<Shown> toAdd = new ArrayList<Shown>();
+		boolean recolored = false;
+
+		HashSet<Path> current = new HashSet<Path>();
+		for( Path p : allPaths ) {
+
+			if( p.fittedVersionOf != null )
+				continue;
+			current.add( p );
+
+			boolean selected = p.getSelected();
+			Path pathToUse = p.getUseFitted() ? p.fitted : p;
+			boolean visible = (selected || ! showOnlySelectedPaths) && pathToUse.size() > 1;
+			Color3f color = selected ? selectedColor : deselectedColor;
+
+			Shown shown = shownPaths.get( p );
+			if( shown != null &&
+			    ( ! visible ||
+			      shown.path != pathToUse ||
+			      shown.modificationCount != pathToUse.getModificationCount() ||
+			      pathToUse.is3DViewInvalid() ||
+			      shown.paths3DDisplay != paths3DDisplay ||
+			      shown.colorImage != colorImage ) ) {
+				toRemove.add( shown );
+				shownPaths.remove( p );
+				shown = null;
+			}
+
+			if( ! visible )
+				continue;
+
+			if( shown == null ) {
+				shown = build( pathToUse, paths3DDisplay, color, colorImage );
+				toAdd.add( shown );
+				shownPaths.put( p, shown );
+			} else if( ! shown.color.equals( color ) ) {
+				shown.setColor( color );
+				recolored = true;
+			}
+		}
+
+		// Paths that have been deleted:
+		Iterator<Map.Entry<Path,Shown>> i = shownPaths.entrySet().iterator();
+		while( i.hasNext() ) {
+			Map.Entry<Path,Shown> entry = i.next();
+			if( ! current.contains( entry.getKey() ) ) {
+				toRemove.add( entry.getValue() );
+				i.remove();
+			}
+		}
+
+		if( toRemove.isEmpty() && toAdd.isEmpty() && ! recolored )
+			return;
+
+		/* Find the vertices to remove from each mesh, which
+		   are in ranges in the same order as the paths: */
+		List<Shown> newOrder = new ArrayList<Shown>( order.size() + toAdd.size() );
+		int [] lineIndices = new int[16];
+		int linesRemoved = 0;
+		int [] triangleIndices = new int[16];
+		int trianglesRemoved = 0;
+		int lineStart = 0, triangleStart = 0;
+		for( Shown shown : order ) {
+			int lineVertices = shown.lineVertices;
+			int triangleVertices = shown.triangleColors.size();
+			if( toRemove.contains( shown ) ) {
+				lineIndices = addRange( lineIndices, linesRemoved, lineStart, lineVertices );
+				linesRemoved += lineVertices;
+				triangleIndices = addRange( triangleIndices, trianglesRemoved, triangleStart, triangleVertices );
+				trianglesRemoved += triangleVertices;
+			} else {
+				newOrder.add( shown );
+			}
+			lineStart += lineVertices;
+			triangleStart += triangleVertices;
+		}
+		newOrder.addAll( toAdd );
+		order = newOrder;
+
+		List<Point3f> newLines = new ArrayList<Point3f>();
+		List<Point3f> newTriangles = new ArrayList<Point3f>();
+		for( Shown shown : toAdd ) {
+			newLines.addAll( shown.newLines );
+			newTriangles.addAll( shown.newTriangles );
+			shown.newLines = null;
+			shown.newTriangles = null;
+		}
+
+		// Now change the meshes:
+		int linesLeft = lineStart - linesRemoved;
+		if( linesLeft == 0 ) {
+			removeLineMesh();
+			if( ! newLines.isEmpty() ) {
+				lineMesh = new CustomLineMesh( newLines, CustomLineMesh.PAIRWISE, deselectedColor, 0 );
+				lineMeshName = addMesh( lineMesh, "Paths as lines" );
+			}
+		} else {
+			if( linesRemoved > 0 )
+				lineMesh.removeVertices( Arrays.copyOf( lineIndices, linesRemoved ) );
+			if( ! newLines.isEmpty() )
+				lineMesh.addVertices( newLines.toArray( new Point3f[newLines.size()] ) );
+		}
+
+		int trianglesLeft = triangleStart - trianglesRemoved;
+		if( trianglesLeft == 0 ) {
+			removeTriangleMesh();
+			if( ! newTriangles.isEmpty() ) {
+				triangleMesh = new CustomTriangleMesh( newTriangles, deselectedColor, 0 );
+				triangleMeshName = addMesh( triangleMesh, "Paths as surfaces" );
+			}
+		} else {
+			if( trianglesRemoved > 0 )
+				triangleMesh.removeVertices( Arrays.copyOf( triangleIndices, trianglesRemoved ) );
+			if( ! newTriangles.isEmpty() )
+				triangleMesh.addVertices( newTriangles.toArray( new Point3f[newTriangles.size()] ) );
+		}
+
+		/* ... and set the colours of just the vertices that
+		   have been added, or whose path's colour has changed,
+		   since removing vertices keeps the colours of the
+		   rest.  A new mesh has every vertex added, so all its
+		   colours are set: */
+		int lineVertex = 0, triangleVertex = 0;
+		for( Shown shown : order ) {
+			if( shown.colorsChanged ) {
+				for( int v = 0; v < shown.lineVertices; ++v )
+					lineMesh.setColor( lineVertex + v, shown.color );
+				for( int v = 0; v < shown.triangleColors.size(); ++v )
+					triangleMesh.setColor( triangleVertex + v, shown.triangleColors.get( v ) );
+				shown.colorsChanged = false;
+			}
+			lineVertex += shown.lineVertices;
+			triangleVertex += shown.triangleColors.size();
+		}
+	}
+
+	/* Adds the indices start up to, but not including,
+	   start + length to indices, which has count elements: */
+	static int [] addRange( int [] indices, int count, int start, int length ) {
+		if( count + length > indices.length )
+			indices = Arrays.copyOf( indices, Math.max( count + length, indices.length * 2 ) );
+		for( int i = 0; i < length; ++i )
+			indices[count + i] = start + i;
+		return indices;
+	}
+
+	Shown build( Path path, int paths3DDisplay, Color3f color, ImagePlus colorImage ) {
+		Shown shown = new Shown();
+		shown.path = path;
+		shown.modificationCount = path.getModificationCount();
+		shown.paths3DDisplay = paths3DDisplay;
+		shown.colorImage = colorImage;
+		shown.color = color;
+		shown.triangleColors = new ArrayList<Color3f>();
+		shown.newLines = new ArrayList<Point3f>();
+		shown.newTriangles = new ArrayList<Point3f>();
+
+		if( paths3DDisplay == SimpleNeuriteTracer.DISPLAY_PATHS_LINES ||
+		    paths3DDisplay == SimpleNeuriteTracer.DISPLAY_PATHS_LINES_AND_DISCS ) {
+			shown.newLines = path.getLineSegments();
+			if( paths3DDisplay == SimpleNeuriteTracer.DISPLAY_PATHS_LINES_AND_DISCS ) {
+				List<Point3f> discs = path.getDiscTriangles( color, colorImage, shown.triangleColors );
+				if( discs != null )
+					shown.newTriangles = discs;
+			}
+		} else {
+			List<Point3f> tube = path.getTubeTriangles( color, colorImage, shown.triangleColors );
+			if( tube != null )
+				shown.newTriangles = tube;
+			else
+				shown.triangleColors.clear();
+		}
+		shown.lineVertices = shown.newLines.size();
+		if( shown.triangleColors.size() != shown.newTriangles.size() )
+			throw new RuntimeException( "BUG: "+shown.triangleColors.size()+" colours for "+
+						    shown.newTriangles.size()+" vertices of path "+path );
+		path.invalid3DMesh = false;
+		return shown;
+	}
+
+	String addMesh( CustomMesh mesh, String name ) {
+		String safeName = univ.getSafeContentName( name );
+		Content content = univ.addCustomMesh( mesh, safeName );
+		content.setLocked( true );
+		return safeName;
+	}
+
+	void removeMesh( String name ) {
+		univ.removeContent( name );
+	}
+
+	void removeLineMesh( ) {
+		if( lineMesh != null ) {
+			removeMesh( lineMeshName );
+			lineMesh = null;
+			lineMeshName = null;
+		}
+	}
+
+	void removeTriangleMesh( ) {
+		if( triangleMesh != null ) {
+			removeMesh( triangleMeshName );
+			triangleMesh = null;
+			triangleMeshName = null;
+		}
+	}
+
+	/* Removes the meshes from the viewer, e.g. when switching back
+	   to a content for each path: */
+	synchronized void removeFromViewer( ) {
+		removeLineMesh();
+		removeTriangleMesh();
+		shownPaths.clear();
+		order.clear();
+	}
+}
@@ -59,6 +59,8 @@ import java.awt.event.WindowListener;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -106,6 +108,9 @@ public class NeuriteTracerResultsDialog
 	protected JCheckBoxMenuItem mipOverlayMenuItem;
 	protected JCheckBoxMenuItem drawDiametersXYMenuItem;
 
+	// Writes out saved traces files, one at a time:
+	protected ExecutorService saver = Executors.newSingleThreadExecutor();
+
 	// These are the states that the UI can be in:
 
 	static final int WAITING_TO_START_PATH    = 0;
@@ -170,6 +175,7 @@ public class NeuriteTracerResultsDialog
 	protected JCheckBox justShowSelected;
 
 	protected JComboBox paths3DChoice;
+	protected JCheckBox mergePaths3D;
 	protected String [] paths3DChoicesStrings = {
 		"BUG",
 		"as surface reconstructions",
@@ -452,6 +458,8 @@ public class NeuriteTracerResultsDialog
 		pw.dispose();
 		fw.dispose();
 		dispose();
+		// Any saves that are still queued are finished first:
+		saver.shutdown();
 		plugin.closeAndReset();
 	}
 
@@ -882,6 +890,11 @@ public class NeuriteTracerResultsDialog
 				viewOptionsPanel.add(new JLabel("View paths (3D): "),cv);
 				cv.gridx = 1;
 				viewOptionsPanel.add(paths3DChoice,cv);
+
+				mergePaths3D = new JCheckBox( "Merge paths in 3D (faster with many paths)" );
+				mergePaths3D.addItemListener( this );
+				++ cv.gridy;
+				viewOptionsPanel.add(mergePaths3D,cv);
 			}
 			paths3DChoice.addItemListener(this);
 
@@ -1099,20 +1112,34 @@ public class NeuriteTracerResultsDialog
 
 			IJ.showStatus("Saving traces to "+savePath);
 
+			/* Only copying the paths and fills has to be
+			   done before tracing can continue; they're
+			   written out from that copy in the
+			   background, one save at a time, so a later
+			   save can't be overwritten by an earlier
+			   one.  The paths are only marked as saved
+			   once the file's written, and only if they
+			   haven't been changed since the copy. */
 			int preSavingState = currentState;
 			changeState( SAVING );
-			try {
-				pathAndFillManager.writeXML( savePath, true );
-			} catch( IOException ioe ) {
-				IJ.showStatus("Saving failed.");
-				IJ.error("Writing traces to '"+savePath+"' failed: "+ioe);
-				changeState( preSavingState );
-				return;
-			}
+			final TracesWriter writer = new TracesWriter( pathAndFillManager );
+			final int changesWhenCopied = plugin.getPathChanges();
 			changeState( preSavingState );
-			IJ.showStatus("Saving completed.");
 
-			plugin.unsavedPaths = false;
+			final String finalSavePath = savePath;
+			saver.execute( new Runnable() {
+					public void run() {
+						try {
+							writer.write( finalSavePath, true );
+						} catch( Throwable t ) {
+							IJ.showStatus("Saving failed.");
+							IJ.error("Writing traces to '"+finalSavePath+"' failed: "+t);
+							return;
+						}
+						plugin.pathsSaved( changesWhenCopied );
+						IJ.showStatus("Saving completed.");
+					}
+				} );
 
 		} else if( source == loadMenuItem ) {
 
@@ -1468,6 +1495,10 @@ public class NeuriteTracerResultsDialog
 			int selectedIndex = paths3DChoice.getSelectedIndex();
 			plugin.setPaths3DDisplay( selectedIndex + 1 );
 
+		} else if( source == mergePaths3D ) {
+
+			plugin.setMergePaths3D( mergePaths3D.isSelected() );
+
 		} else if( source == mipOverlayMenuItem ) {
 
 			plugin.showMIPOverlays(e.getStateChange() == ItemEvent.SELECTED);
@@ -15,10 +15,16 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import landmarks.Bookstein_From_Landmarks;
 import util.BatchOpener;
@@ -32,7 +38,7 @@ class ImagesFromLine {
 
 }
 
-public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
+public class NewAnalyzeTracings_ implements PlugIn {
 
 	int [] labelIndices =  { 7,     // mushroom_body_r
 				 8,     // mushroom_body_l
@@ -43,339 +49,39 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 				 15,    // antennal_lobe_r
 				 16 };  // antennal_lobe_l
 
-	class NewGraphNode implements Comparable {
-		public NewGraphNode() { }
-		public NewGraphNode(int x, int y, int z) {
-			this.x = x;
-			this.y = y;
-			this.z = z;
-		}
-		int x = -1;
-		int y = -1;
-		int z = -1;
-		NewGraphNode linkedTo [] = null;
-		@Override
-		public boolean equals(Object other) {
-			NewGraphNode o=(NewGraphNode)other;
-			return x == o.x && y == o.y && z == o.z;
-		}
-		@Override
-		public int hashCode( ) {
-			return x + y * (1 << 11) + z * (1 << 22);
-		}
-		@Override
-		public String toString( ) {
-			return "("+x+","+y+","+z+")";
-		}
-		// These members are only used for the search:
-		float g = Float.MIN_VALUE;
-		float h = Float.MIN_VALUE;
-		NewGraphNode previous = null;
-		public float distanceTo( NewGraphNode o ) {
-			float xdiff = (x - o.x) * spacing_x;
-			float ydiff = (y - o.y) * spacing_y;
-			float zdiff = (z - o.z) * spacing_y;
-			float distSq = xdiff*xdiff + ydiff*ydiff + zdiff*zdiff;
-			return (float) Math.sqrt( distSq );
-		}
-		public void setFrom( NewGraphNode o ) {
-			this.x = o.x;
-			this.y = o.y;
-			this.z = o.z;
-			this.linkedTo = o.linkedTo;
-		}
-		double f() {
-			return g + h;
-		}
-		//@Override
-		public int compareTo( Object other ) {
-			NewGraphNode n = (NewGraphNode)other;
-			return Double.compare( f(), n.f() );
-		}
-	}
-
-	ArrayList< NewGraphNode > makePath( NewGraphNode lastNode ) {
-
-		// System.out.println( "Trying to return result" );
-
-		ArrayList< NewGraphNode > resultReversed = new ArrayList< NewGraphNode >();
-		NewGraphNode p = lastNode;
-		do {
-			resultReversed.add(p);
-			// System.out.println(  "adding "+p.toDotName());
-		} while( null != (p = p.previous) );
-
-		ArrayList< NewGraphNode > realResult = new ArrayList< NewGraphNode >();
-
-		for( int i = resultReversed.size() - 1; i >= 0; --i )
-			realResult.add( resultReversed.get(i) );
-
-		return realResult;
-	}
-
+	/* A route from the edge of one region to another, as vertex
+	   numbers in graph: */
 	class PathWithLength {
 
 		int startNeuropilRegion;
 		int endNeuropilRegion;
 
 		public double length;
-		public ArrayList< NewGraphNode > path;
+		public int [] path;
 
 		public Path toPath() {
-			Path p = new Path( spacing_x, spacing_y, spacing_z, "" /* FIXME: get the real spacing_units */, path.size() );
-			for( int i = 0; i < path.size(); ++i ) {
-				NewGraphNode n = path.get(i);
-				p.addPointDouble( n.x * spacing_x,
-						  n.y * spacing_y,
-						  n.z * spacing_z );
+			Path p = new Path( spacing_x, spacing_y, spacing_z, "" /* FIXME: get the real spacing_units */, path.length );
+			for( int i = 0; i < path.length; ++i ) {
+				int v = path[i];
+				p.addPointDouble( graph.x[v] * spacing_x,
+						  graph.y[v] * spacing_y,
+						  graph.z[v] * spacing_z );
 			}
 			return p;
 		}
 	}
 
-	PathWithLength findPath( NewGraphNode start, int endMaterial ) {
-
-		// System.out.println("Starting path finding:");
-
-		// First reset all the search parameters:
-		{
-			Collection<NewGraphNode> c = positionToNode.values();
-			for( NewGraphNode n : c ) {
-				n.g = 0;
-				n.h = 0;
-				n.previous = null;
-			}
-		}
-
-		PriorityQueue< NewGraphNode > closed_from_start = new PriorityQueue< NewGraphNode >();
-		PriorityQueue< NewGraphNode > open_from_start = new PriorityQueue< NewGraphNode >();
-
-		Hashtable< NewGraphNode, NewGraphNode > open_from_start_hash = new Hashtable< NewGraphNode, NewGraphNode >();
-		Hashtable< NewGraphNode, NewGraphNode > closed_from_start_hash = new Hashtable< NewGraphNode, NewGraphNode >();
-
-		start.g = 0;
-		start.h = 0;
-		start.previous = null;
-
-		// add_node( open_from_start, open_from_start_hash, start );
-		open_from_start.add( start );
-		open_from_start_hash.put( start, start );
-
-		while( open_from_start.size() > 0 ) {
-
-			// NewGraphNode p = get_highest_priority( open_from_start, open_from_start_hash );
-
-			// System.out.println("Before poll: "+open_from_start_hash.size()+"/"+open_from_start.size());
-			NewGraphNode p = open_from_start.poll();
-			open_from_start_hash.remove( p );
-			// System.out.println("After poll: "+open_from_start_hash.size()+"/"+open_from_start.size());
-
-			// System.out.println( " Got node "+p.toDotName()+" from the queue" );
-
-			int pointMaterial = label_data[p.z][p.y*width+p.x];
-
-			// Has the route from the start found the goal?
-
-			if( pointMaterial == endMaterial ) {
-				// System.out.println( "Found the goal! (from start to end)" );
-				ArrayList< NewGraphNode > path = makePath(p);
-				if( path == null )
-					return null;
-				else {
-					PathWithLength result = new PathWithLength();
-					result.path = path;
-					result.length = p.g;
-					return result;
-				}
-			}
-
-			// add_node( closed_from_start, closed_from_start_hash, p );
-			closed_from_start.add( p );
-			closed_from_start_hash.put( p, p );
-
-			// Now look at all the neighbours...
-
-			// System.out.println("linkedTo "+p.linkedTo.length+" neigbours");
-			for( int i = 0; i < p.linkedTo.length; ++i ) {
-
-				NewGraphNode neighbour = p.linkedTo[i];
-				float distance = p.distanceTo(neighbour);
-				if( neighbour.z == 118 || (neighbour.y*width + neighbour.x) == 118 )
-					System.out.println("neighbour is: ("+neighbour.x+","+neighbour.y+","+neighbour.z+" and width "+width+" height "+height+" depth "+depth);
-				int neighbourMaterial = label_data[neighbour.z][neighbour.y*width+neighbour.x];
-
-				// Ignore this neighbour if it's it's not of the exterior or end material
-
-				if( ! (neighbourMaterial == 0 || neighbourMaterial == endMaterial) )
-					continue;
-
-				NewGraphNode newNode = new NewGraphNode();
-				newNode.setFrom( neighbour );
-				newNode.g = p.g + distance;
-				newNode.h = 0;
-				newNode.previous = p;
-
-				NewGraphNode foundInClosed = closed_from_start_hash.get(neighbour);
-
-				NewGraphNode foundInOpen = open_from_start_hash.get(neighbour);
-
-				// Is there an exisiting route which is
-				// better?  If so, discard this new candidate...
-
-				if( (foundInClosed != null) && (foundInClosed.f() <= newNode.f()) ) {
-					// System.out.println( "  Found in closed, but no better.");
-					continue;
-				}
-
-				if( (foundInOpen != null) && (foundInOpen.f() <= newNode.f()) ) {
-					// System.out.println( "  Found in open, but no better.");
-					continue;
-				}
-
-				if( foundInClosed != null ) {
-
-					// System.out.println("Found in closed and better");
-
-					// remove( closed_from_start, closed_from_start_hash, foundInClosed );
-					closed_from_start.remove( foundInClosed );
-					closed_from_start_hash.remove( foundInClosed );
-
-					foundInClosed.setFrom( newNode );
-
-					// add_node( open_from_start, open_from_start_hash, foundInClosed );
-					open_from_start.add( foundInClosed );
-					open_from_start_hash.put( foundInClosed, foundInClosed );
-
-					continue;
-				}
-
-				if( foundInOpen != null ) {
-
-					// System.out.println("Found in open and better");
-
-					// remove( open_from_start, open_from_start_hash, foundInOpen );
-					open_from_start.remove( foundInOpen );
-					open_from_start_hash.remove( foundInOpen );
-
-					foundInOpen.setFrom( newNode );
-
-					// add_node( open_from_start, open_from_start_hash, foundInOpen );
-					open_from_start.add( foundInOpen );
-					open_from_start_hash.put( foundInOpen, foundInOpen );
-
-					continue;
-				}
-
-				// Otherwise we add a new node:
-
-				// System.out.println("  Adding new node to open " + newNode.toDotName() );
-
-				// add_node( open_from_start, open_from_start_hash, newNode );
-				open_from_start.add( newNode );
-				open_from_start_hash.put( newNode, newNode );
-			}
-		}
-
-		/* If we get to here then we haven't found a route to the
-		   end point. */
-
-		return null;
-	}
-
-	public int positionToKey( int x, int y, int z ) {
-		return x + y * width + z * width * height;
-	}
-
 	int width = -1, height = -1, depth = -1;
 	float spacing_x = Float.MIN_VALUE;
 	float spacing_y = Float.MIN_VALUE;
 	float spacing_z = Float.MIN_VALUE;
 	String spacing_units = "";
 
-	ArrayList<NewGraphNode> verticesInObjOrder;
-	Hashtable<Integer,NewGraphNode> positionToNode;
-	int numberOfVertices = -1;
-	ArrayList<ArrayList<NewGraphNode>> links;
-
-	public void gotVertex( int vertexIndex,
-			       float x_scaled, float y_scaled, float z_scaled,
-			       int x_image, int y_image, int z_image ) {
-
-		if( width < 0 ||
-		    height < 0 ||
-		    depth < 0 ||
-		    spacing_x == Float.MIN_VALUE ||
-		    spacing_y == Float.MIN_VALUE ||
-		    spacing_z == Float.MIN_VALUE ) {
-
-			throw new RuntimeException("Some metadata was missing from the comments before the first vertex.");
-		}
-
-		if( z_image >= depth ) {
-			System.out.println("z is too deep:");
-			System.out.println("x_scaled: "+x_scaled);
-			System.out.println("y_scaled: "+y_scaled);
-			System.out.println("z_scaled: "+z_scaled);
-			System.out.println("x_image: "+x_image);
-			System.out.println("y_image: "+y_image);
-			System.out.println("z_image: "+z_image);
-			System.out.println("spacing_x: "+spacing_x);
-			System.out.println("spacing_y: "+spacing_y);
-			System.out.println("spacing_z: "+spacing_z);
-		}
-
-		verticesInObjOrder.add( new NewGraphNode( x_image, y_image, z_image ) );
-	}
-
-	public void gotLine( int fromVertexIndex, int toVertexIndex ) {
-		if( links == null ) {
-			numberOfVertices = verticesInObjOrder.size() - 1;
-			links = new ArrayList<ArrayList<NewGraphNode>>(numberOfVertices);
-			for( int i = 0; i <= numberOfVertices; ++i )
-				links.add(new ArrayList<NewGraphNode>());
-		}
-
-		ArrayList<NewGraphNode> fromLinks = links.get(fromVertexIndex);
-		ArrayList<NewGraphNode> toLinks = links.get(toVertexIndex);
-
-		NewGraphNode toVertex=verticesInObjOrder.get(toVertexIndex);
-		NewGraphNode fromVertex=verticesInObjOrder.get(fromVertexIndex);
+	AutoTracesGraph graph;
 
-		if( ! fromLinks.contains( toVertex ) )
-			fromLinks.add( toVertex );
-
-		if( ! toLinks.contains( fromVertex ) )
-			toLinks.add( fromVertex );
-	}
-
-	public void gotWidth( int width ) {
-		this.width = width;
-	}
-
-	public void gotHeight( int height ) {
-		this.height = height;
-	}
-
-	public void gotDepth( int depth ) {
-		this.depth = depth;
-	}
-
-	public void gotSpacingX( float spacing_x ) {
-		this.spacing_x = spacing_x;
-	}
-
-	public void gotSpacingY( float spacing_y ) {
-		this.spacing_y = spacing_y;
-	}
-
-	public void gotSpacingZ( float spacing_z ) {
-		this.spacing_z = spacing_z;
-	}
-
-	// FIXME: call from somewhere to set:
-	public void gotSpacingUnits( String spacing_units ) {
-		this.spacing_units = spacing_units;
-	}
+	/* The number of searches to run at once, or 0 for one for
+	   each processor: */
+	int threads = 0;
 
 	byte[][] label_data;
 	byte[][] registered_label_data;
@@ -509,6 +215,55 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 		return transformed_label_data;
 	}
 
+	/* A search from one vertex for routes to the regions in
+	   wanted; the results are the paths and lengths that
+	   AutoTracesGraph.Search.search() finds: */
+	static class SearchJob {
+		int start;
+		boolean [] wanted;
+		int [][] paths;
+		float [] lengths;
+	}
+
+	/* Runs the jobs on a thread for each processor (or threads
+	   threads), each with its own AutoTracesGraph.Search, taking
+	   the next job that hasn't been started: */
+	void runSearches( final ArrayList<SearchJob> jobs, final byte [] material ) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int workers = Math.max( 1, Math.min( jobs.size(), (threads > 0) ? threads : processors ) );
+		final AtomicInteger nextJob = new AtomicInteger();
+		final AtomicInteger jobsDone = new AtomicInteger();
+		ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for( int w = 0; w < workers; ++w )
+			tasks.add( new Callable< Object >() {
+				public Object call() {
+					AutoTracesGraph.Search search = graph.new Search();
+					int j;
+					while( (j = nextJob.getAndIncrement()) < jobs.size() ) {
+						SearchJob job = jobs.get(j);
+						job.lengths = new float[job.wanted.length];
+						job.paths = search.search( job.start, material, job.wanted, job.lengths );
+						int done = jobsDone.incrementAndGet();
+						if( (done % 100) == 0 )
+							System.out.println("  Finished "+done+" of "+jobs.size()+" searches");
+					}
+					return null;
+				}
+			} );
+		ExecutorService es = Executors.newFixedThreadPool( workers );
+		try {
+			List< Future< Object > > futures = es.invokeAll( tasks );
+			for( Future< Object > future : futures )
+				future.get();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "The searches between regions were interrupted", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "A search between regions failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+	}
+
       	public ArrayList<PathWithLength> buildGraph( File tracesObjFile, File labelsFile, File writePathsTo, File writeDotTo ) {
 
 		boolean usePointRegisteredLabels = true;
@@ -518,53 +273,28 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 
 		/* First load the traces file: */
 
-		// The indices in the .obj begin at 1, so put in a dummy node at 0:
-
-		verticesInObjOrder = new ArrayList<NewGraphNode>();
-		verticesInObjOrder.add( new NewGraphNode() );
-
 		System.out.println("Loading traces file: "+tracesObjFileName);
 
-		boolean success = SinglePathsGraph.loadWithListener( tracesObjFileName, this );
+		graph = AutoTracesGraph.load( tracesObjFile );
 
-		if( ! success ) {
+		if( graph == null ) {
 			throw new RuntimeException("Failed to load traces");
 		}
 
-		System.out.println("Finished loading: "+(verticesInObjOrder.size()-1)+" vertices found");
+		width = graph.width;
+		height = graph.height;
+		depth = graph.depth;
+		spacing_x = graph.spacing_x;
+		spacing_y = graph.spacing_y;
+		spacing_z = graph.spacing_z;
+
+		System.out.println("Finished loading: "+graph.vertexCount+" vertices found");
 
 		System.out.println("  traces width:"+width);
 		System.out.println("  traces height:"+height);
 		System.out.println("  traces depth:"+depth);
 
-
-		long linksBothWays = 0;
-		for( int i = 1; i < verticesInObjOrder.size(); ++i ) {
-			NewGraphNode v = verticesInObjOrder.get(i);
-			ArrayList<NewGraphNode> linkedTo = links.get(i);
-			int l = linkedTo.size();
-			linksBothWays += l;
-			NewGraphNode [] a=new NewGraphNode[l];
-			v.linkedTo = linkedTo.toArray(a);
-		}
-
-		links = null;
-
-		System.out.println("And set the links in the NewGraphNodes: "+linksBothWays);
-
-		positionToNode = new Hashtable<Integer,NewGraphNode>();
-
-		// Now we want to index by position rather than vertex index:
-		boolean first = true;
-		for( NewGraphNode n : verticesInObjOrder ) {
-			if( first ) { first = false; continue; }
-			int k = positionToKey( n.x, n.y, n.z );
-			positionToNode.put( k, n );
-		}
-
-		verticesInObjOrder = null;
-
-		System.out.println("Added vertices to the hash, now has: "+positionToNode.size()+" entries");
+		System.out.println("And found the links both ways: "+graph.getLinkCount());
 
 		/* And now the real labels file: */
 
@@ -632,49 +362,53 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 
 		}
 
-		ArrayList<ArrayList<NewGraphNode>> allEdges = new ArrayList<ArrayList<NewGraphNode>>();
+		ArrayList<int[]> allEdges = new ArrayList<int[]>();
 
 		for( int i=0; i < materials; i++ ) {
-			allEdges.add(new ArrayList<NewGraphNode>());
+			allEdges.add(new int[0]);
 			double[] c = parameters.getMaterialColor(i);
 			redValues[i] = (int)(255*c[0]);
 			greenValues[i] = (int)(255*c[1]);
 			blueValues[i] = (int)(255*c[2]);
 		}
 
+		byte [] vertexMaterial = new byte[graph.vertexCount];
+		for( int v = 0; v < graph.vertexCount; ++v )
+			vertexMaterial[v] = label_data[graph.z[v]][graph.y[v]*width+graph.x[v]];
+
 /* Find all the points on the edge of a neuropil regions: */
 
+		int [] verticesInPositionOrder = graph.verticesInPositionOrder();
+
 		for( int a = 0; a < labelIndices.length; ++a ) {
 			int labelIndex = labelIndices[a];
 			String labelName = materialNames[labelIndex];
 
 			System.out.println("   Dealing with label index "+labelIndex+", name: "+labelName);
 
-			ArrayList<NewGraphNode> neuropilEdgePoints = allEdges.get(labelIndex);
+			int [] neuropilEdgePoints = new int[16];
+			int edgePoints = 0;
 
-			for( int z = 0; z < depth; ++z )
-				for( int y = 0; y < height; ++y )
-					for( int x = 0; x < width; ++x ) {
-						if( label_data[z][y*width+x] != labelIndex )
-							continue;
-						int k = positionToKey(x,y,z);
-						NewGraphNode n = positionToNode.get(k);
-						if( n == null )
-							continue;
-						/* So now we have a traced point in the right neuropil region.
-						   We only care about edge points, though, so check that it has
-						   a neighbour that's in the exterior. */
-						NewGraphNode [] linkedNodes = n.linkedTo;
-						for( int i = 0; i < linkedNodes.length; ++i ) {
-							NewGraphNode l = linkedNodes[i];
-							if( label_data[l.z][l.y*width+l.x] == 0 ) {
-								neuropilEdgePoints.add(l);
-								break;
-							}
-						}
+			for( int n : verticesInPositionOrder ) {
+				if( vertexMaterial[n] != labelIndex )
+					continue;
+				/* So now we have a traced point in the right neuropil region.
+				   We only care about edge points, though, so check that it has
+				   a neighbour that's in the exterior. */
+				for( int i = graph.firstLink[n]; i < graph.firstLink[n+1]; ++i ) {
+					int l = graph.linkedTo[i];
+					if( vertexMaterial[l] == 0 ) {
+						if( edgePoints == neuropilEdgePoints.length )
+							neuropilEdgePoints = Arrays.copyOf( neuropilEdgePoints, edgePoints * 2 );
+						neuropilEdgePoints[edgePoints++] = l;
+						break;
 					}
+				}
+			}
+
+			allEdges.set( labelIndex, Arrays.copyOf( neuropilEdgePoints, edgePoints ) );
 
-			System.out.println("   Found "+neuropilEdgePoints.size()+" points on the edge of the "+labelName);
+			System.out.println("   Found "+edgePoints+" points on the edge of the "+labelName);
 		}
 
 		// We'll store copies of these in a PathAndFillManager
@@ -685,49 +419,86 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 
 		ArrayList<PathWithLength> paths=new ArrayList<PathWithLength>();
 
-		// Now start a search from each of these points trying
-		// to find an end point at one of the edge points from
-		// the other neuropil regions:
+		/* Now search from each of these points for the nearest
+		   edge point of each of the other neuropil regions.
+		   A route can only pass through the exterior, so one
+		   search from each distinct start point finds the
+		   routes to every region at once; those searches are
+		   run in parallel: */
+
+		final byte [] material = vertexMaterial;
+		final ArrayList<SearchJob> jobs = new ArrayList<SearchJob>();
+		SearchJob [][] jobForEdgePoint = new SearchJob[labelIndices.length][];
+
+		for( int a = 0; a < labelIndices.length; ++a ) {
+
+			int labelIndex = labelIndices[a];
+			int [] startPoints = allEdges.get(labelIndex);
+
+			boolean [] wanted = new boolean[materials];
+			boolean anyWanted = false;
+			for( int endM = labelIndex + 1; endM < materials; ++endM )
+				if( allEdges.get(endM).length > 0 ) {
+					wanted[endM] = true;
+					anyWanted = true;
+				}
+
+			jobForEdgePoint[a] = new SearchJob[startPoints.length];
+			if( ! anyWanted )
+				continue;
+
+			Hashtable<Integer,SearchJob> jobForStart = new Hashtable<Integer,SearchJob>();
+			for( int i = 0; i < startPoints.length; ++i ) {
+				SearchJob job = jobForStart.get(startPoints[i]);
+				if( job == null ) {
+					job = new SearchJob();
+					job.start = startPoints[i];
+					job.wanted = wanted;
+					jobForStart.put(startPoints[i], job);
+					jobs.add(job);
+				}
+				jobForEdgePoint[a][i] = job;
+			}
+		}
+
+		runSearches( jobs, material );
 
 		for( int a = 0; a < labelIndices.length; ++a ) {
 
 			int labelIndex = labelIndices[a];
 			String labelName = materialNames[labelIndex];
-			System.out.println("Starting searches from "+labelIndex+", name: "+labelName);
+			System.out.println("Routes from "+labelIndex+", name: "+labelName);
 
-			ArrayList<NewGraphNode> startPoints = allEdges.get(labelIndex);
+			int [] startPoints = allEdges.get(labelIndex);
 
 			for( int endM = labelIndex + 1; endM < materials; ++endM ) {
 
-				ArrayList<NewGraphNode> potentialEndPoints = allEdges.get(endM);
-				if( potentialEndPoints.size() == 0 )
+				if( allEdges.get(endM).length == 0 )
 					continue;
 
-				for( NewGraphNode startPoint : startPoints ) {
+				for( int i = 0; i < startPoints.length; ++i ) {
 
-					System.out.println("  Starting from point "+startPoint+" ("+labelName+" looking for material: "+materialNames[endM]);
-
-					PathWithLength route = findPath( startPoint, endM );
-					if( route == null ) {
-						// System.out.println("No route found.");
+					SearchJob job = jobForEdgePoint[a][i];
+					int [] route = job.paths[endM];
+					if( route == null )
 						continue;
-					}
 
-					route.startNeuropilRegion = labelIndex;
-					route.endNeuropilRegion = endM;
+					PathWithLength result = new PathWithLength();
+					result.path = route;
+					result.length = job.lengths[endM];
+					result.startNeuropilRegion = labelIndex;
+					result.endNeuropilRegion = endM;
 
-					paths.add(route);
-					Path newPath=route.toPath();
+					paths.add(result);
+					Path newPath=result.toPath();
 					newPath.setName(materialNames[labelIndex]+" to " +materialNames[endM]);
 					manager.addPath(newPath);
-
-					// Add that path to the fill manager as well:
-
-					System.out.println("  Found a route!");
 				}
 			}
 		}
 
+		System.out.println("Found "+paths.size()+" routes from "+jobs.size()+" searches");
+
 		if( writePathsTo != null ) {
 			try {
 				manager.writeXML( writePathsTo.getAbsolutePath(),
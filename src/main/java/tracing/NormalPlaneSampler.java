@@ -0,0 +1,343 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/* Samples an image on a square grid in the plane normal to a
+   vector, as Path.fitCircles() does at each point of a path.
+
+   The slices' pixel arrays are looked up once, when the sampler is
+   created, rather than being copied to floats for every point.
+   Sampling is done in two passes: the first works out, for each
+   sample, the voxel below it and the interpolation weights, and
+   the second, which has a separate loop for each image type, reads
+   the eight voxels around each sample and interpolates.  The
+   arrays for the first pass belong to the thread, so nothing is
+   allocated for each point once a thread has sampled a plane of
+   that size.
+
+   The sampler doesn't change after it's created, so it can be used
+   by several threads at once, so long as each passes its own
+   result array (such as the one from threadPlane()). */
+
+class NormalPlaneSampler {
+
+	protected int width, height, depth;
+	protected double x_spacing, y_spacing, z_spacing;
+
+	protected int imageType;
+	protected byte [][] bytePixels;
+	protected short [][] shortPixels;
+	protected float [][] floatPixels;
+
+	NormalPlaneSampler( ImagePlus image, double x_spacing, double y_spacing, double z_spacing ) {
+		this.x_spacing = x_spacing;
+		this.y_spacing = y_spacing;
+		this.z_spacing = z_spacing;
+		width = image.getWidth();
+		height = image.getHeight();
+		depth = image.getStackSize();
+		imageType = image.getType();
+		ImageStack s = image.getStack();
+		switch( imageType ) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			bytePixels = new byte[depth][];
+			for( int z = 0; z < depth; ++z )
+				bytePixels[z] = (byte[])s.getPixels( z + 1 );
+			break;
+		case ImagePlus.GRAY16:
+			shortPixels = new short[depth][];
+			for( int z = 0; z < depth; ++z )
+				shortPixels[z] = (short[])s.getPixels( z + 1 );
+			break;
+		case ImagePlus.GRAY32:
+			floatPixels = new float[depth][];
+			for( int z = 0; z < depth; ++z )
+				floatPixels[z] = (float[])s.getPixels( z + 1 );
+			break;
+		default:
+			throw new RuntimeException( "Unknown image type: "+imageType );
+		}
+	}
+
+	/* The arrays that one thread uses for the first pass: */
+	static class Scratch {
+		float [] plane;
+		int [] slices;   // -1 where the sample is off the edge of the image
+		int [] offsets;  // within the slice
+		double [] xds, yds, zds;
+
+		void ensureSize( int n ) {
+			if( slices != null && slices.length == n )
+				return;
+			plane = new float[n];
+			slices = new int[n];
+			offsets = new int[n];
+			xds = new double[n];
+			yds = new double[n];
+			zds = new double[n];
+		}
+	}
+
+	static ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	static Scratch scratch( int side ) {
+		Scratch result = scratch.get();
+		result.ensureSize( side * side );
+		return result;
+	}
+
+	/* An array of side * side floats that belongs to the current
+	   thread, for samples that are only needed until the thread
+	   samples another plane: */
+	static float [] threadPlane( int side ) {
+		return scratch( side ).plane;
+	}
+
+	/* Fills result with side * side values sampled from the image,
+	   on a grid centred on (ox,oy,oz), with step between samples,
+	   in the plane normal to (nx,ny,nz).  The co-ordinates and step
+	   are scaled by the spacing.  The basis vectors of the grid
+	   (which are scaled by step) are returned in x_basis_vector and
+	   y_basis_vector.  A sample that isn't surrounded by voxels of
+	   the image is zero. */
+	void sample( int side,
+		     double step,
+		     double ox,
+		     double oy,
+		     double oz,
+		     double nx,
+		     double ny,
+		     double nz,
+		     double [] x_basis_vector,
+		     double [] y_basis_vector,
+		     float [] result ) {
+
+		double epsilon = 0.000001;
+
+		/* To find an arbitrary vector in the normal plane, do
+		   the cross product with (0,0,1), unless the normal
+		   is parallel to that, in which case we cross it with
+		   (0,1,0) instead... */
+
+		double ax, ay, az;
+
+		if( Math.abs(nx) < epsilon && Math.abs(ny) < epsilon ) {
+			// Cross with (0,1,0):
+			ax = nz;
+			ay = 0;
+			az = -nx;
+		} else {
+			// Cross with (0,0,1):
+			ax = -ny;
+			ay = nx;
+			az = 0;
+		}
+
+		/* Now to find the other vector in that plane, do the
+		 * cross product of (ax,ay,az) with (nx,ny,nz) */
+
+		double bx = ay * nz - az * ny;
+		double by = az * nx - ax * nz;
+		double bz = ax * ny - ay * nx;
+
+		/* Normalize a and b, and scale them by step: */
+
+		double a_size = Math.sqrt( ax*ax + ay*ay + az*az );
+		ax = ax / a_size; ay = ay / a_size; az = az / a_size;
+
+		double b_size = Math.sqrt( bx*bx + by*by + bz*bz );
+		bx = bx / b_size; by = by / b_size; bz = bz / b_size;
+
+		double ax_s = ax * step;
+		double ay_s = ay * step;
+		double az_s = az * step;
+
+		double bx_s = bx * step;
+		double by_s = by * step;
+		double bz_s = bz * step;
+
+		x_basis_vector[0] = ax_s;
+		x_basis_vector[1] = ay_s;
+		x_basis_vector[2] = az_s;
+
+		y_basis_vector[0] = bx_s;
+		y_basis_vector[1] = by_s;
+		y_basis_vector[2] = bz_s;
+
+		Scratch s = scratch( side );
+		int [] slices = s.slices;
+		int [] offsets = s.offsets;
+		double [] xds = s.xds, yds = s.yds, zds = s.zds;
+
+		/* The first pass: find the voxel below each sample,
+		   and how far past it the sample is: */
+
+		double midside_grid = ((side - 1) / 2.0f);
+
+		for( int grid_i = 0; grid_i < side; ++grid_i ) {
+			double gi = midside_grid - grid_i;
+			for( int grid_j = 0; grid_j < side; ++grid_j ) {
+				double gj = midside_grid - grid_j;
+
+				// So now denormalize to pixel co-ordinates:
+
+				double image_x = (ox + gi * ax_s + gj * bx_s) / x_spacing;
+				double image_y = (oy + gi * ay_s + gj * by_s) / y_spacing;
+				double image_z = (oz + gi * az_s + gj * bz_s) / z_spacing;
+
+				int k = grid_j * side + grid_i;
+
+				/* If any of the voxels around the sample
+				   is off the edge of the image, the
+				   sample is zero: */
+
+				if( ! (image_x >= 0 && image_y >= 0 && image_z >= 0) ) {
+					slices[k] = -1;
+					continue;
+				}
+
+				int x_f = (int)image_x;
+				int y_f = (int)image_y;
+				int z_f = (int)image_z;
+
+				double x_d = image_x - x_f;
+				double y_d = image_y - y_f;
+				double z_d = image_z - z_f;
+
+				if( (x_d > 0 ? x_f + 1 : x_f) >= width ||
+				    (y_d > 0 ? y_f + 1 : y_f) >= height ||
+				    (z_d > 0 ? z_f + 1 : z_f) >= depth ) {
+					slices[k] = -1;
+					continue;
+				}
+
+				slices[k] = z_f;
+				offsets[k] = y_f * width + x_f;
+				xds[k] = x_d;
+				yds[k] = y_d;
+				zds[k] = z_d;
+			}
+		}
+
+		/* The second pass: interpolate between the voxels
+		   around each sample.  Where a sample is exactly on a
+		   voxel in some dimension, the "next" voxel in that
+		   dimension is the same one (with a weight of zero): */
+
+		int n = side * side;
+		int w = width;
+
+		if( bytePixels != null ) {
+			for( int k = 0; k < n; ++k ) {
+				int z = slices[k];
+				if( z < 0 ) {
+					result[k] = 0;
+					continue;
+				}
+				double x_d = xds[k], y_d = yds[k], z_d = zds[k];
+				int o = offsets[k];
+				int oX = x_d > 0 ? o + 1 : o;
+				int oY = y_d > 0 ? o + w : o;
+				int oXY = y_d > 0 ? oX + w : oX;
+				byte [] f = bytePixels[z];
+				byte [] c = z_d > 0 ? bytePixels[z + 1] : f;
+				result[k] = interpolate(
+					f[o] & 0xFF, c[o] & 0xFF, f[oY] & 0xFF, c[oY] & 0xFF,
+					f[oX] & 0xFF, c[oX] & 0xFF, f[oXY] & 0xFF, c[oXY] & 0xFF,
+					x_d, y_d, z_d );
+			}
+		} else if( shortPixels != null ) {
+			for( int k = 0; k < n; ++k ) {
+				int z = slices[k];
+				if( z < 0 ) {
+					result[k] = 0;
+					continue;
+				}
+				double x_d = xds[k], y_d = yds[k], z_d = zds[k];
+				int o = offsets[k];
+				int oX = x_d > 0 ? o + 1 : o;
+				int oY = y_d > 0 ? o + w : o;
+				int oXY = y_d > 0 ? oX + w : oX;
+				short [] f = shortPixels[z];
+				short [] c = z_d > 0 ? shortPixels[z + 1] : f;
+				result[k] = interpolate(
+					f[o], c[o], f[oY], c[oY],
+					f[oX], c[oX], f[oXY], c[oXY],
+					x_d, y_d, z_d );
+			}
+		} else {
+			for( int k = 0; k < n; ++k ) {
+				int z = slices[k];
+				if( z < 0 ) {
+					result[k] = 0;
+					continue;
+				}
+				double x_d = xds[k], y_d = yds[k], z_d = zds[k];
+				int o = offsets[k];
+				int oX = x_d > 0 ? o + 1 : o;
+				int oY = y_d > 0 ? o + w : o;
+				int oXY = y_d > 0 ? oX + w : oX;
+				float [] f = floatPixels[z];
+				float [] c = z_d > 0 ? floatPixels[z + 1] : f;
+				result[k] = interpolate(
+					f[o], c[o], f[oY], c[oY],
+					f[oX], c[oX], f[oXY], c[oXY],
+					x_d, y_d, z_d );
+			}
+		}
+	}
+
+	/* Trilinear interpolation, where the first letter of each
+	   value's name is for z, the second y and the third x, and 'f'
+	   is the voxel below the sample and 'c' the one above: */
+	static float interpolate( double fff, double cff, double fcf, double ccf,
+				  double ffc, double cfc, double fcc, double ccc,
+				  double x_d, double y_d, double z_d ) {
+
+		double i1 = (1 - z_d) * (fff) + (cff) * z_d;
+		double i2 = (1 - z_d) * (fcf) + (ccf) * z_d;
+
+		double j1 = (1 - z_d) * (ffc) + (cfc) * z_d;
+		double j2 = (1 - z_d) * (fcc) + (ccc) * z_d;
+
+		double w1 = i1 * (1 - y_d) + i2 * y_d;
+		double w2 = j1 * (1 - y_d) + j2 * y_d;
+
+		return (float)( w1 * (1 - x_d) + w2 * x_d );
+	}
+}
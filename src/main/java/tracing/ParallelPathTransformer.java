@@ -0,0 +1,151 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Transforms batches of points with any PathTransformer, by
+    splitting them into chunks of CHUNK_SIZE points and transforming
+    the chunks on several threads at once.  The PathTransformer's
+    transformPoint() methods must be safe to call from several
+    threads at once; if they might not be, use the static
+    transformPoints() instead, which only uses one thread for
+    transformers that aren't a BatchPathTransformer. */
+
+public class ParallelPathTransformer implements BatchPathTransformer {
+
+	static final int CHUNK_SIZE = 4096;
+
+	protected PathTransformer transformer;
+	protected int threads;
+
+	/* If threads is 0, there's a thread for each processor: */
+	public ParallelPathTransformer( PathTransformer transformer, int threads ) {
+		this.transformer = transformer;
+		this.threads = threads;
+	}
+
+	public void transformPoint( double x, double y, double z, double [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	public void transformPoint( double x, double y, double z, int [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	public void transformPoint( int x, int y, int z, int [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	public void transformPoint( int x, int y, int z, double [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	public void transformPoints( final double [] xs, final double [] ys, final double [] zs,
+				     final double [] txs, final double [] tys, final double [] tzs,
+				     int n ) {
+		forEachChunk( n, threads, new Chunk() {
+			public void run( int from, int to ) {
+				transformRange( transformer, xs, ys, zs, txs, tys, tzs, from, to );
+			}
+		} );
+	}
+
+	/** Transforms the points with the transformer's own
+	    transformPoints() if it's a BatchPathTransformer, or
+	    otherwise one at a time on this thread. */
+	public static void transformPoints( PathTransformer transformer,
+					    double [] xs, double [] ys, double [] zs,
+					    double [] txs, double [] tys, double [] tzs,
+					    int n ) {
+		if( transformer instanceof BatchPathTransformer )
+			((BatchPathTransformer)transformer).transformPoints( xs, ys, zs, txs, tys, tzs, n );
+		else
+			transformRange( transformer, xs, ys, zs, txs, tys, tzs, 0, n );
+	}
+
+	static void transformRange( PathTransformer transformer,
+				    double [] xs, double [] ys, double [] zs,
+				    double [] txs, double [] tys, double [] tzs,
+				    int from, int to ) {
+		double [] transformed = new double[3];
+		for( int i = from; i < to; ++i ) {
+			transformer.transformPoint( xs[i], ys[i], zs[i], transformed );
+			txs[i] = transformed[0];
+			tys[i] = transformed[1];
+			tzs[i] = transformed[2];
+		}
+	}
+
+	interface Chunk {
+		/* Deals with the indices from, up to but not
+		   including to: */
+		void run( int from, int to );
+	}
+
+	/* Runs chunk for each CHUNK_SIZE indices from 0 up to n, on
+	   up to threads threads (or one for each processor if threads
+	   is 0), and waits for them all to finish: */
+	static void forEachChunk( int n, int threads, final Chunk chunk ) {
+		if( threads <= 0 )
+			threads = Runtime.getRuntime().availableProcessors();
+		int chunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if( threads == 1 || chunks <= 1 ) {
+			chunk.run( 0, n );
+			return;
+		}
+		ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for( int from = 0; from < n; from += CHUNK_SIZE ) {
+			final int chunkFrom = from;
+			final int chunkTo = Math.min( n, from + CHUNK_SIZE );
+			tasks.add( new Callable< Object >() {
+				public Object call() {
+					chunk.run( chunkFrom, chunkTo );
+					return null;
+				}
+			} );
+		}
+		ExecutorService es = Executors.newFixedThreadPool( Math.min( threads, chunks ) );
+		try {
+			List< Future< Object > > futures = es.invokeAll( tasks );
+			for( Future< Object > future : futures )
+				future.get();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Transforming the points was interrupted", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Transforming the points failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+	}
+}
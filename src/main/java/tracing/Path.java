@@ -42,9 +42,14 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
@@ -178,18 +183,111 @@ public class Path implements Comparable<Path> {
 	}
 */
 
-	public double getRealLength( ) {
+	/* The number of times that the points of this path have been
+	   changed.  Anything that changes precise_[xyz]_positions or
+	   the number of points must call pointsChanged(), so that
+	   values derived from the points can be cached. */
+	private volatile int modificationCount = 0;
+
+	public int getModificationCount( ) {
+		return modificationCount;
+	}
+
+	void pointsChanged( ) {
+		++ modificationCount;
+	}
+
+	/* The values derived from the points are held in one
+	   immutable object so that a thread never sees a mixture of
+	   old and new values: */
+	static class DerivedGeometry {
+		int modificationCount;
+		double [] cumulativeLength;
+		double [] boundingBox;
+	}
+
+	private volatile DerivedGeometry derivedGeometry;
+
+	DerivedGeometry getDerivedGeometry( ) {
+		DerivedGeometry g = derivedGeometry;
+		int currentModificationCount = modificationCount;
+		if( g != null && g.modificationCount == currentModificationCount )
+			return g;
+		g = new DerivedGeometry();
+		g.modificationCount = currentModificationCount;
+		g.cumulativeLength = new double[points];
+		g.boundingBox = new double[6];
+		if( points > 0 ) {
+			g.boundingBox[0] = g.boundingBox[3] = getPreciseX( 0 );
+			g.boundingBox[1] = g.boundingBox[4] = getPreciseY( 0 );
+			g.boundingBox[2] = g.boundingBox[5] = getPreciseZ( 0 );
+		}
 		double totalLength = 0;
 		for( int i = 1; i < points; ++i  ) {
-			double xdiff = precise_x_positions[i] - precise_x_positions[i-1];
-			double ydiff = precise_y_positions[i] - precise_y_positions[i-1];
-			double zdiff = precise_z_positions[i] - precise_z_positions[i-1];
+			double x = getPreciseX( i );
+			double y = getPreciseY( i );
+			double z = getPreciseZ( i );
+			double xdiff = x - getPreciseX( i-1 );
+			double ydiff = y - getPreciseY( i-1 );
+			double zdiff = z - getPreciseZ( i-1 );
 			totalLength += Math.sqrt(
 				xdiff * xdiff +
 				ydiff * ydiff +
 				zdiff * zdiff );
+			g.cumulativeLength[i] = totalLength;
+			if( x < g.boundingBox[0] ) g.boundingBox[0] = x;
+			if( y < g.boundingBox[1] ) g.boundingBox[1] = y;
+			if( z < g.boundingBox[2] ) g.boundingBox[2] = z;
+			if( x > g.boundingBox[3] ) g.boundingBox[3] = x;
+			if( y > g.boundingBox[4] ) g.boundingBox[4] = y;
+			if( z > g.boundingBox[5] ) g.boundingBox[5] = z;
 		}
-		return totalLength;
+		derivedGeometry = g;
+		return g;
+	}
+
+	public double getRealLength( ) {
+		if( points < 2 )
+			return 0;
+		return getDerivedGeometry().cumulativeLength[points-1];
+	}
+
+	/* The length along the path from the first point to point i: */
+	public double getRealLengthTo( int i ) {
+		if( (i < 0) || i >= size() )
+			throw new RuntimeException("BUG: getRealLengthTo was asked for an out-of-range point: "+i);
+		return getDerivedGeometry().cumulativeLength[i];
+	}
+
+	/* Returns the index of the last point whose distance along
+	   the path from the start is no more than realLength, found
+	   by a binary search of the cumulative lengths: */
+	public int indexAtRealLength( double realLength ) {
+		if( size() < 1 )
+			throw new RuntimeException("indexAtRealLength called on a Path of size() = 0");
+		double [] cumulativeLength = getDerivedGeometry().cumulativeLength;
+		int i = Arrays.binarySearch( cumulativeLength, 0, points, realLength );
+		if( i < 0 )
+			i = -i - 2;
+		else
+			// There may be several points at the same distance:
+			while( i < points - 1 && cumulativeLength[i+1] == realLength )
+				++ i;
+		return Math.max( 0, Math.min( points - 1, i ) );
+	}
+
+	/* Sets min and max to the corners of the bounding box of
+	   the points in this path, in world co-ordinates: */
+	public void getBoundingBox( double [] min, double [] max ) {
+		if( size() < 1 )
+			throw new RuntimeException("getBoundingBox called on a Path of size() = 0");
+		double [] boundingBox = getDerivedGeometry().boundingBox;
+		min[0] = boundingBox[0];
+		min[1] = boundingBox[1];
+		min[2] = boundingBox[2];
+		max[0] = boundingBox[3];
+		max[1] = boundingBox[4];
+		max[2] = boundingBox[5];
 	}
 
 	public String getRealLengthString( ) {
@@ -383,9 +481,9 @@ public class Path implements Comparable<Path> {
 			throw new RuntimeException("BUG: getPointDouble was asked for an out-of-range point: "+i);
 		}
 
-		p[0] = precise_x_positions[i];
-		p[1] = precise_y_positions[i];
-		p[2] = precise_z_positions[i];
+		p[0] = getPreciseX( i );
+		p[1] = getPreciseY( i );
+		p[2] = getPreciseZ( i );
 	}
 
 	public PointInImage getPointInImage( int i ) {
@@ -394,9 +492,9 @@ public class Path implements Comparable<Path> {
 			throw new RuntimeException("BUG: getPointInImage was asked for an out-of-range point: "+i);
 		}
 
-		PointInImage result = new PointInImage( precise_x_positions[i],
-							precise_y_positions[i],
-							precise_z_positions[i] );
+		PointInImage result = new PointInImage( getPreciseX( i ),
+							getPreciseY( i ),
+							getPreciseZ( i ) );
 		result.onPath = this;
 		return result;
 	}
@@ -404,50 +502,159 @@ public class Path implements Comparable<Path> {
 	public int getXUnscaled( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getXUnscaled was asked for an out-of-range point: "+i);
-		return (int)Math.round( precise_x_positions[i] / x_spacing );
+		return (int)Math.round( getPreciseX( i ) / x_spacing );
 	}
 
 	public int getYUnscaled( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getYUnscaled was asked for an out-of-range point: "+i);
-		return (int)Math.round( precise_y_positions[i] / y_spacing );
+		return (int)Math.round( getPreciseY( i ) / y_spacing );
 	}
 
 	public int getZUnscaled( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getZUnscaled was asked for an out-of-range point: "+i);
-		return (int)Math.round( precise_z_positions[i] / z_spacing );
+		return (int)Math.round( getPreciseZ( i ) / z_spacing );
 	}
 
 	public double getXUnscaledDouble( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getXUnscaled was asked for an out-of-range point: "+i);
-		return precise_x_positions[i] / x_spacing;
+		return getPreciseX( i ) / x_spacing;
 	}
 
 	public double getYUnscaledDouble( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getYUnscaled was asked for an out-of-range point: "+i);
-		return precise_y_positions[i] / y_spacing;
+		return getPreciseY( i ) / y_spacing;
 	}
 
 	public double getZUnscaledDouble( int i ) {
 		if( (i < 0) || i >= size() )
 			throw new RuntimeException("BUG: getZUnscaled was asked for an out-of-range point: "+i);
-		return precise_z_positions[i] / z_spacing;
+		return getPreciseZ( i ) / z_spacing;
 	}
 
 	/** Returns an array [3][npoints] of unscaled coordinates (that is, in pixels). */
 	public double[][] getXYZUnscaled() {
 		final double[][] p = new double[3][size()];
 		for (int i=p[0].length-1; i>-1; i--) {
-			p[0][i] = precise_x_positions[i] / x_spacing;
-			p[1][i] = precise_y_positions[i] / y_spacing;
-			p[2][i] = precise_z_positions[i] / z_spacing;
+			p[0][i] = getPreciseX( i ) / x_spacing;
+			p[1][i] = getPreciseY( i ) / y_spacing;
+			p[2][i] = getPreciseZ( i ) / z_spacing;
 		}
 		return p;
 	}
 
+	/* The world co-ordinates of point i, however they're stored;
+	   unlike getPointDouble(), these don't check i: */
+
+	public double getPreciseX( int i ) {
+		double [] positions = precise_x_positions;
+		return positions != null ? positions[i] : compact_x_origin + compact_x_positions[i];
+	}
+
+	public double getPreciseY( int i ) {
+		double [] positions = precise_y_positions;
+		return positions != null ? positions[i] : compact_y_origin + compact_y_positions[i];
+	}
+
+	public double getPreciseZ( int i ) {
+		double [] positions = precise_z_positions;
+		return positions != null ? positions[i] : compact_z_origin + compact_z_positions[i];
+	}
+
+	/* Copies count points from point from onwards into xs, ys and
+	   zs, starting at index offset: */
+	public void getPrecisePositions( int from, int count, double [] xs, double [] ys, double [] zs, int offset ) {
+		if( precise_x_positions != null ) {
+			System.arraycopy( precise_x_positions, from, xs, offset, count );
+			System.arraycopy( precise_y_positions, from, ys, offset, count );
+			System.arraycopy( precise_z_positions, from, zs, offset, count );
+		} else {
+			for( int i = 0; i < count; ++i ) {
+				xs[offset + i] = compact_x_origin + compact_x_positions[from + i];
+				ys[offset + i] = compact_y_origin + compact_y_positions[from + i];
+				zs[offset + i] = compact_z_origin + compact_z_positions[from + i];
+			}
+		}
+	}
+
+	/* Copies of the co-ordinates of all the points, in arrays of
+	   exactly size() elements: */
+
+	public double [] getPreciseXs( ) {
+		double [] result = new double[points];
+		for( int i = 0; i < points; ++i )
+			result[i] = getPreciseX( i );
+		return result;
+	}
+
+	public double [] getPreciseYs( ) {
+		double [] result = new double[points];
+		for( int i = 0; i < points; ++i )
+			result[i] = getPreciseY( i );
+		return result;
+	}
+
+	public double [] getPreciseZs( ) {
+		double [] result = new double[points];
+		for( int i = 0; i < points; ++i )
+			result[i] = getPreciseZ( i );
+		return result;
+	}
+
+	/* Whether the points are in compact storage: */
+	public boolean isCompact( ) {
+		return precise_x_positions == null;
+	}
+
+	/* Stores the points (which microscope data doesn't need to
+	   double precision) as floats relative to the first point,
+	   and trims all the arrays to size, which roughly halves the
+	   memory that a finished path takes.  The co-ordinates are
+	   then only as precise as a float's 24 bits allow over the
+	   extent of the path, e.g. to within about 0.0001 units for a
+	   path 1000 units across.  Anything that changes the points
+	   puts them back in double arrays first (see uncompact()).
+	   The fitted version of a path isn't marked as stale, since
+	   the points haven't been changed, only rounded. */
+	public synchronized void compact( ) {
+		trimToSize();
+		if( isCompact() )
+			return;
+		double x0 = points > 0 ? precise_x_positions[0] : 0;
+		double y0 = points > 0 ? precise_y_positions[0] : 0;
+		double z0 = points > 0 ? precise_z_positions[0] : 0;
+		float [] xs = new float[points];
+		float [] ys = new float[points];
+		float [] zs = new float[points];
+		for( int i = 0; i < points; ++i ) {
+			xs[i] = (float)(precise_x_positions[i] - x0);
+			ys[i] = (float)(precise_y_positions[i] - y0);
+			zs[i] = (float)(precise_z_positions[i] - z0);
+		}
+		compact_x_origin = x0;
+		compact_y_origin = y0;
+		compact_z_origin = z0;
+		compact_x_positions = xs;
+		compact_y_positions = ys;
+		compact_z_positions = zs;
+		precise_x_positions = null;
+		precise_y_positions = null;
+		precise_z_positions = null;
+		// The lengths and tangents are found again from the rounded points:
+		derivedGeometry = null;
+		guessedTangents = null;
+	}
+
+	/* Puts the points back in double arrays, if they're in
+	   compact storage: */
+	void uncompact( ) {
+		if( isCompact() )
+			expandTo( maxPoints );
+	}
+
 
 /* FIXME:
 	@Override
@@ -489,34 +696,28 @@ public class Path implements Comparable<Path> {
 		if( points < 1 )
 			return null;
 		else
-			return new PointInImage( precise_x_positions[points-1],
-						 precise_y_positions[points-1],
-						 precise_z_positions[points-1] );
+			return new PointInImage( getPreciseX( points-1 ),
+						 getPreciseY( points-1 ),
+						 getPreciseZ( points-1 ) );
 	}
 
+	/* This also takes the points out of compact storage: */
 	void expandTo( int newMaxPoints  ) {
 
 		double [] new_precise_x_positions = new double[newMaxPoints];
 		double [] new_precise_y_positions = new double[newMaxPoints];
 		double [] new_precise_z_positions = new double[newMaxPoints];
-		System.arraycopy( precise_x_positions,
-				  0,
-				  new_precise_x_positions,
-				  0,
-				  points );
-		System.arraycopy( precise_y_positions,
-				  0,
-				  new_precise_y_positions,
-				  0,
-				  points );
-		System.arraycopy( precise_z_positions,
-				  0,
-				  new_precise_z_positions,
-				  0,
-				  points );
+		getPrecisePositions( 0, points,
+				     new_precise_x_positions,
+				     new_precise_y_positions,
+				     new_precise_z_positions,
+				     0 );
 		precise_x_positions = new_precise_x_positions;
 		precise_y_positions = new_precise_y_positions;
 		precise_z_positions = new_precise_z_positions;
+		compact_x_positions = null;
+		compact_y_positions = null;
+		compact_z_positions = null;
 		if( hasCircles() ) {
 			double [] new_tangents_x = new double[newMaxPoints];
 			double [] new_tangents_y = new double[newMaxPoints];
@@ -550,6 +751,18 @@ public class Path implements Comparable<Path> {
 		maxPoints = newMaxPoints;
 	}
 
+	/* Paths grow by 20% each time they run out of space, and
+	   start with room for 128 points, so a finished path
+	   (particularly a short one) may have a lot of unused
+	   capacity in each of its arrays.  This shrinks them to fit
+	   the points that are actually there; if more points are
+	   added later, the arrays just grow again as usual. */
+
+	void trimToSize( ) {
+		if( maxPoints > points )
+			expandTo( points );
+	}
+
 	void add( Path other ) {
 
 		if( other == null ) {
@@ -570,6 +783,8 @@ public class Path implements Comparable<Path> {
 
 		if( maxPoints < (points + other.points) ) {
 			expandTo( points + other.points );
+		} else {
+			uncompact();
 		}
 
 		int toSkip = 0;
@@ -579,33 +794,22 @@ public class Path implements Comparable<Path> {
 		   on this path: */
 
 		if( points > 0 ) {
-			double last_x = precise_x_positions[points-1];
-			double last_y = precise_y_positions[points-1];
-			double last_z = precise_z_positions[points-1];
-			while((other.precise_x_positions[toSkip] == last_x) &&
-			      (other.precise_y_positions[toSkip] == last_y) &&
-			      (other.precise_z_positions[toSkip] == last_z)) {
+			double last_x = getPreciseX( points-1 );
+			double last_y = getPreciseY( points-1 );
+			double last_z = getPreciseZ( points-1 );
+			while((other.getPreciseX( toSkip ) == last_x) &&
+			      (other.getPreciseY( toSkip ) == last_y) &&
+			      (other.getPreciseZ( toSkip ) == last_z)) {
 				++toSkip;
 			}
 		}
 
-		System.arraycopy( other.precise_x_positions,
-				  toSkip,
-				  precise_x_positions,
-				  points,
-				  other.points - toSkip );
-
-		System.arraycopy( other.precise_y_positions,
-				  toSkip,
-				  precise_y_positions,
-				  points,
-				  other.points - toSkip );
-
-		System.arraycopy( other.precise_z_positions,
-				  toSkip,
-				  precise_z_positions,
-				  points,
-				  other.points - toSkip );
+		other.getPrecisePositions( toSkip,
+					   other.points - toSkip,
+					   precise_x_positions,
+					   precise_y_positions,
+					   precise_z_positions,
+					   points );
 
 		if( hasCircles() ) {
 
@@ -626,6 +830,7 @@ public class Path implements Comparable<Path> {
 		}
 
 		points = points + (other.points - toSkip);
+		pointsChanged();
 
 		if( hasCircles() ) {
 			setGuessedTangents(2);
@@ -646,10 +851,11 @@ public class Path implements Comparable<Path> {
 		Path c = new Path( x_spacing, y_spacing, z_spacing, spacing_units, points );
 		c.points = points;
 		for( int i = 0; i < points; ++i ) {
-			c.precise_x_positions[i] = precise_x_positions[ (points-1) - i ];
-			c.precise_y_positions[i] = precise_y_positions[ (points-1) - i ];
-			c.precise_z_positions[i] = precise_z_positions[ (points-1) - i ];
+			c.precise_x_positions[i] = getPreciseX( (points-1) - i );
+			c.precise_y_positions[i] = getPreciseY( (points-1) - i );
+			c.precise_z_positions[i] = getPreciseZ( (points-1) - i );
 		}
+		c.pointsChanged();
 		return c;
 	}
 
@@ -657,10 +863,13 @@ public class Path implements Comparable<Path> {
 		if( points >= maxPoints ) {
 			int newReserved = (int)( maxPoints * 1.2 + 1 );
 			expandTo( newReserved );
+		} else {
+			uncompact();
 		}
 		precise_x_positions[points] = x;
 		precise_y_positions[points] = y;
 		precise_z_positions[points++] = z;
+		pointsChanged();
 	}
 
 	public void drawPathAsPoints( TracerCanvas canvas, Graphics g, java.awt.Color c, int plane, boolean drawDiameter ) {
@@ -708,12 +917,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getXUnscaledDouble(i));
 				y = canvas.myScreenYD(getYUnscaledDouble(i));
 				if( notFirstPoint ) {
-					previous_x_on_screen = canvas.myScreenXD( precise_x_positions[i-1]/x_spacing );
-					previous_y_on_screen = canvas.myScreenYD( precise_y_positions[i-1]/y_spacing );
+					previous_x_on_screen = canvas.myScreenXD( getPreciseX( i-1 )/x_spacing );
+					previous_y_on_screen = canvas.myScreenYD( getPreciseY( i-1 )/y_spacing );
 				}
 				if( notLastPoint ) {
-					next_x_on_screen = canvas.myScreenXD( precise_x_positions[i+1]/x_spacing );
-					next_y_on_screen = canvas.myScreenYD( precise_y_positions[i+1]/y_spacing );
+					next_x_on_screen = canvas.myScreenXD( getPreciseX( i+1 )/x_spacing );
+					next_y_on_screen = canvas.myScreenYD( getPreciseY( i+1 )/y_spacing );
 				}
 				slice_of_point = getZUnscaled(i);
 				break;
@@ -721,12 +930,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getXUnscaledDouble(i));
 				y = canvas.myScreenYD(getZUnscaledDouble(i));
 				if( notFirstPoint ) {
-					previous_x_on_screen = canvas.myScreenXD( precise_x_positions[i-1]/x_spacing );
-					previous_y_on_screen = canvas.myScreenYD( precise_z_positions[i-1]/z_spacing );
+					previous_x_on_screen = canvas.myScreenXD( getPreciseX( i-1 )/x_spacing );
+					previous_y_on_screen = canvas.myScreenYD( getPreciseZ( i-1 )/z_spacing );
 				}
 				if( notLastPoint ) {
-					next_x_on_screen = canvas.myScreenXD( precise_x_positions[i+1]/x_spacing );
-					next_y_on_screen = canvas.myScreenYD( precise_z_positions[i+1]/z_spacing );
+					next_x_on_screen = canvas.myScreenXD( getPreciseX( i+1 )/x_spacing );
+					next_y_on_screen = canvas.myScreenYD( getPreciseZ( i+1 )/z_spacing );
 				}
 				slice_of_point = getYUnscaled(i);
 				break;
@@ -734,12 +943,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getZUnscaledDouble(i));
 				y = canvas.myScreenYD(getYUnscaledDouble(i));
 				if( notFirstPoint ) {
-					previous_x_on_screen = canvas.myScreenXD( precise_z_positions[i-1]/z_spacing );
-					previous_y_on_screen = canvas.myScreenYD( precise_y_positions[i-1]/y_spacing );
+					previous_x_on_screen = canvas.myScreenXD( getPreciseZ( i-1 )/z_spacing );
+					previous_y_on_screen = canvas.myScreenYD( getPreciseY( i-1 )/y_spacing );
 				}
 				if( notLastPoint ) {
-					next_x_on_screen = canvas.myScreenXD( precise_z_positions[i+1]/z_spacing );
-					next_y_on_screen = canvas.myScreenYD( precise_y_positions[i+1]/y_spacing );
+					next_x_on_screen = canvas.myScreenXD( getPreciseZ( i+1 )/z_spacing );
+					next_y_on_screen = canvas.myScreenYD( getPreciseY( i+1 )/y_spacing );
 				}
 				slice_of_point = getXUnscaled(i);
 				break;
@@ -780,11 +989,11 @@ public class Path implements Comparable<Path> {
 					else
 						effective_radius = Math.sqrt(realRadius*realRadius - zdiff*zdiff);
 
-					double left_x = precise_x_positions[i] + normalized_cross_x * effective_radius;
-					double left_y = precise_y_positions[i] + normalized_cross_y * effective_radius;
+					double left_x = getPreciseX( i ) + normalized_cross_x * effective_radius;
+					double left_y = getPreciseY( i ) + normalized_cross_y * effective_radius;
 
-					double right_x = precise_x_positions[i] - normalized_cross_x * effective_radius;
-					double right_y = precise_y_positions[i] - normalized_cross_y * effective_radius;
+					double right_x = getPreciseX( i ) - normalized_cross_x * effective_radius;
+					double right_y = getPreciseY( i ) - normalized_cross_y * effective_radius;
 
 					int left_x_on_screen = canvas.myScreenXD(left_x/x_spacing);
 					int left_y_on_screen = canvas.myScreenYD(left_y/y_spacing);
@@ -792,8 +1001,8 @@ public class Path implements Comparable<Path> {
 					int right_x_on_screen = canvas.myScreenXD(right_x/x_spacing);
 					int right_y_on_screen = canvas.myScreenYD(right_y/y_spacing);
 
-					int x_on_screen = canvas.myScreenXD( precise_x_positions[i]/x_spacing );
-					int y_on_screen = canvas.myScreenYD( precise_y_positions[i]/y_spacing );
+					int x_on_screen = canvas.myScreenXD( getPreciseX( i )/x_spacing );
+					int y_on_screen = canvas.myScreenYD( getPreciseY( i )/y_spacing );
 
 					g.drawLine( x_on_screen, y_on_screen, left_x_on_screen, left_y_on_screen );
 					g.drawLine( x_on_screen, y_on_screen, right_x_on_screen, right_y_on_screen );
@@ -844,9 +1053,9 @@ public class Path implements Comparable<Path> {
 
 		for( int i = 0; i < size(); ++i ) {
 
-			double diff_x = x - precise_x_positions[i];
-			double diff_y = y - precise_y_positions[i];
-			double diff_z = z - precise_z_positions[i];
+			double diff_x = x - getPreciseX( i );
+			double diff_y = y - getPreciseY( i );
+			double diff_z = z - getPreciseZ( i );
 
 			double thisDistanceSquared = diff_x * diff_x + diff_y * diff_y + diff_z * diff_z;
 
@@ -954,12 +1163,47 @@ public class Path implements Comparable<Path> {
 	boolean useFitted = false; // Use the fitted version in preference to this path
 	Path fittedVersionOf; // If this path is a fitted version of another one, this is the original
 
+	/* The modification count of this path when its fitted version
+	   was set, so that it can be refitted if it's changed since: */
+	int fittedModificationCount;
+
+	/* The fit at each point from the last time this path was
+	   fitted, which are reused where the path hasn't changed: */
+	CircleFits previousCircleFits;
+
 	public void setFitted( Path p ) {
 		if( fitted != null ) {
 			throw new RuntimeException("BUG: Trying to set a fitted path when there already is one...");
 		}
 		fitted = p;
 		p.fittedVersionOf = this;
+		fittedModificationCount = modificationCount;
+	}
+
+	/* Forgets the fitted version of this path, and the fits that
+	   it was made from: */
+	public void unsetFitted( ) {
+		unsetFitted( false );
+	}
+
+	/* Forgets the fitted version of this path, e.g. so that it can
+	   be refitted.  If keepCircleFits is set, the fits at each
+	   point are kept so that a refitting can reuse them;
+	   otherwise they're released. */
+	public void unsetFitted( boolean keepCircleFits ) {
+		if( ! keepCircleFits )
+			previousCircleFits = null;
+		if( fitted == null )
+			return;
+		fitted.fittedVersionOf = null;
+		fitted = null;
+		useFitted = false;
+	}
+
+	/* Whether the points of this path have changed since its
+	   fitted version was made: */
+	public boolean fittedVersionIsStale( ) {
+		return fitted != null && fittedModificationCount != modificationCount;
 	}
 
 	public void setUseFitted( boolean useFitted ) {
@@ -994,20 +1238,54 @@ public class Path implements Comparable<Path> {
 		}
 	}
 
-	public void getTangent( int i, int pointsEitherSide, double [] result ) {
-		int min_index = i - pointsEitherSide;
-		if( min_index < 0 )
-			min_index = 0;
+	/* The tangents for the last value of pointsEitherSide used,
+	   which are cached in the same way as DerivedGeometry: */
+	static class GuessedTangents {
+		int modificationCount;
+		int pointsEitherSide;
+		double [] tangents;
+	}
 
-		int max_index = i + pointsEitherSide;
-		if( max_index >= points )
-			max_index = points - 1;
+	private volatile GuessedTangents guessedTangents;
 
-		result[0] = precise_x_positions[max_index] - precise_x_positions[min_index];
-		result[1] = precise_y_positions[max_index] - precise_y_positions[min_index];
-		result[2] = precise_z_positions[max_index] - precise_z_positions[min_index];
+	GuessedTangents getGuessedTangents( int pointsEitherSide ) {
+		GuessedTangents t = guessedTangents;
+		int currentModificationCount = modificationCount;
+		if( t != null && t.modificationCount == currentModificationCount && t.pointsEitherSide == pointsEitherSide )
+			return t;
+		t = new GuessedTangents();
+		t.modificationCount = currentModificationCount;
+		t.pointsEitherSide = pointsEitherSide;
+		t.tangents = new double[3*points];
+		for( int i = 0; i < points; ++i ) {
+			int min_index = i - pointsEitherSide;
+			if( min_index < 0 )
+				min_index = 0;
+
+			int max_index = i + pointsEitherSide;
+			if( max_index >= points )
+				max_index = points - 1;
+
+			t.tangents[3*i]   = getPreciseX( max_index ) - getPreciseX( min_index );
+			t.tangents[3*i+1] = getPreciseY( max_index ) - getPreciseY( min_index );
+			t.tangents[3*i+2] = getPreciseZ( max_index ) - getPreciseZ( min_index );
+		}
+		guessedTangents = t;
+		return t;
+	}
+
+	public void getTangent( int i, int pointsEitherSide, double [] result ) {
+		double [] tangents = getGuessedTangents( pointsEitherSide ).tangents;
+		result[0] = tangents[3*i];
+		result[1] = tangents[3*i+1];
+		result[2] = tangents[3*i+2];
 	}
 
+	/* Samples one plane; this creates a NormalPlaneSampler, which
+	   looks up every slice of the image, each time it's called, so
+	   anything that samples the planes at many points (as
+	   fitCircles() does) should create one sampler and call its
+	   sample() method instead. */
 	public float [] squareNormalToVector( int side,        // The number of samples in x and y in the plane, separated by step
 					      double step,     // step is in the same units as the _spacing, etc. variables.
 					      double ox,      /* These are scaled now */
@@ -1022,272 +1300,275 @@ public class Path implements Comparable<Path> {
 
 		float [] result = new float[side*side];
 
-		double epsilon = 0.000001;
-
-		/* To find an arbitrary vector in the normal plane, do
-		   the cross product with (0,0,1), unless the normal
-		   is parallel to that, in which case we cross it with
-		   (0,1,0) instead... */
+		NormalPlaneSampler sampler = new NormalPlaneSampler( image, x_spacing, y_spacing, z_spacing );
+		sampler.sample( side, step, ox, oy, oz, nx, ny, nz, x_basis_vector, y_basis_vector, result );
 
-		double ax, ay, az;
-
-		if( Math.abs(nx) < epsilon && Math.abs(ny) < epsilon ) {
-			// Cross with (0,1,0):
-			ax = nz;
-			ay = 0;
-			az = -nx;
-		} else {
-			// Cross with (0,0,1):
-			ax = -ny;
-			ay = nx;
-			az = 0;
-		}
-
-		/* Now to find the other vector in that plane, do the
-		 * cross product of (ax,ay,az) with (nx,ny,nz) */
-
-		double bx = ay * nz - az * ny;
-		double by = az * nx - ax * nz;
-		double bz = ax * ny - ay * nx;
-
-		/* Normalize a and b */
-
-		double a_size = Math.sqrt( ax*ax + ay*ay + az*az );
-		ax = ax / a_size; ay = ay / a_size; az = az / a_size;
-
-		double b_size = Math.sqrt( bx*bx + by*by + bz*bz );
-		bx = bx / b_size; by = by / b_size; bz = bz / b_size;
-
-		/* Scale them with spacing... */
-
-		double ax_s = ax * step;
-		double ay_s = ay * step;
-		double az_s = az * step;
-
-		double bx_s = bx * step;
-		double by_s = by * step;
-		double bz_s = bz * step;
-
-		if( verbose ) {
-			System.out.println( "a (in normal plane) is "+ax+","+ay+","+az);
-			System.out.println( "b (in normal plane) is "+bx+","+by+","+bz);
-		}
-
-		if( true  ) {
-
-			// a and b must be perpendicular:
-			double a_dot_b = ax * bx + ay * by + az * bz;
-
-			// ... and each must be perpendicular to the normal
-			double a_dot_n = ax * nx + ay * ny + az * nz;
-			double b_dot_n = bx * nx + by * ny + bz * nz;
-
-			if( verbose ) {
-				System.out.println("a_dot_b: "+a_dot_b);
-				System.out.println("a_dot_n: "+a_dot_n);
-				System.out.println("b_dot_n: "+b_dot_n);
-			}
+		return result;
+	}
 
-		}
+	/* The circle fitted in the normal plane at each point of the
+	   path, which fitCircles() finds for every point
+	   independently, in parallel: */
+	class CircleFits {
 
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int depth = image.getStackSize();
-		float [][] v = new float[depth][];
-		ImageStack s = image.getStack();
-		int imageType = image.getType();
-		final int arraySize = width * height;
-		if( imageType == ImagePlus.GRAY8 || imageType == ImagePlus.COLOR_256 ) {
-			for( int z = 0; z < depth; ++z ) {
-				byte [] bytePixels = (byte[])s.getPixels(z+1);
-				float [] fa = new float[arraySize];
-				for( int i = 0; i < arraySize; ++i  )
-					fa[i] = bytePixels[i] & 0xFF;
-				v[z] = fa;
-			}
-		} else if( imageType == ImagePlus.GRAY16 ) {
-			for( int z = 0; z < depth; ++z ) {
-				short [] shortPixels = (short[])s.getPixels(z+1);
-				float [] fa = new float[arraySize];
-				for( int i = 0; i < arraySize; ++i  )
-					fa[i] = shortPixels[i];
-				v[z] = fa;
+		int side;
+		NormalPlaneSampler sampler;
+		double scaleInNormalPlane;
+		int pointsEitherSide;
+		int width, height, depth;
+
+		/* What the fits depend on, other than each point's
+		   position and tangent, so that they can be reused by
+		   a later fitting with the same values: */
+		int imageID, imageType;
+		double fit_x_spacing, fit_y_spacing, fit_z_spacing;
+
+		int totalPoints;
+		int progressIndex;
+		MultiTaskProgress progress;
+		AtomicInteger pointsDone = new AtomicInteger();
+
+		/* Set if the optimizer fails at any point, in which
+		   case the fitting fails and the other points are
+		   skipped: */
+		volatile boolean failed;
+
+		double [] centre_x_positionsUnscaled;
+		double [] centre_y_positionsUnscaled;
+		double [] rs;
+		double [] rsUnscaled;
+
+		double [] ts_x;
+		double [] ts_y;
+		double [] ts_z;
+
+		double [] optimized_x;
+		double [] optimized_y;
+		double [] optimized_z;
+
+		double [] scores;
+
+		double [] moved;
+
+		int [] xs_in_image;
+		int [] ys_in_image;
+		int [] zs_in_image;
+
+		// The position of each point when it was fitted:
+		double [] world_x;
+		double [] world_y;
+		double [] world_z;
+
+		/* The points that need to be fitted, which is every
+		   point unless some fits were reused: */
+		int [] toFit;
+		int toFitCount;
+
+		/* The plane sampled at each point is only kept (so
+		   that a new array is needed for each) if they're to be
+		   displayed; otherwise each thread reuses one array: */
+		boolean keepPlanes;
+		float [][] normalPlanes;
+
+		/* A hash of the plane sampled at each point, so that a
+		   fit is only reused if the pixels it was fitted to are
+		   unchanged: */
+		long [] planeHashes;
+
+		CircleFits( int totalPoints, int side, ImagePlus image, double scaleInNormalPlane, int pointsEitherSide, boolean keepPlanes, int progressIndex, MultiTaskProgress progress ) {
+			this.totalPoints = totalPoints;
+			this.side = side;
+			this.sampler = new NormalPlaneSampler( image, x_spacing, y_spacing, z_spacing );
+			this.scaleInNormalPlane = scaleInNormalPlane;
+			this.pointsEitherSide = pointsEitherSide;
+			this.progressIndex = progressIndex;
+			this.progress = progress;
+			width = image.getWidth();
+			height = image.getHeight();
+			depth = image.getStackSize();
+			imageID = image.getID();
+			imageType = image.getType();
+			fit_x_spacing = x_spacing;
+			fit_y_spacing = y_spacing;
+			fit_z_spacing = z_spacing;
+
+			centre_x_positionsUnscaled = new double[totalPoints];
+			centre_y_positionsUnscaled = new double[totalPoints];
+			rs = new double[totalPoints];
+			rsUnscaled = new double[totalPoints];
+
+			ts_x = new double[totalPoints];
+			ts_y = new double[totalPoints];
+			ts_z = new double[totalPoints];
+
+			optimized_x = new double[totalPoints];
+			optimized_y = new double[totalPoints];
+			optimized_z = new double[totalPoints];
+
+			scores = new double[totalPoints];
+
+			moved = new double[totalPoints];
+
+			xs_in_image = new int[totalPoints];
+			ys_in_image = new int[totalPoints];
+			zs_in_image = new int[totalPoints];
+
+			world_x = new double[totalPoints];
+			world_y = new double[totalPoints];
+			world_z = new double[totalPoints];
+
+			planeHashes = new long[totalPoints];
+
+			toFit = new int[totalPoints];
+			for( int i = 0; i < totalPoints; ++i )
+				toFit[i] = i;
+			toFitCount = totalPoints;
+
+			this.keepPlanes = keepPlanes;
+			if( keepPlanes )
+				normalPlanes = new float[totalPoints][];
+		}
+
+		/* Whether fits from previous are of the same image, in
+		   the same way, so could be reused: */
+		boolean compatibleWith( CircleFits previous ) {
+			return previous.side == side &&
+				previous.scaleInNormalPlane == scaleInNormalPlane &&
+				previous.pointsEitherSide == pointsEitherSide &&
+				previous.width == width &&
+				previous.height == height &&
+				previous.depth == depth &&
+				previous.imageID == imageID &&
+				previous.imageType == imageType &&
+				previous.fit_x_spacing == fit_x_spacing &&
+				previous.fit_y_spacing == fit_y_spacing &&
+				previous.fit_z_spacing == fit_z_spacing;
+		}
+
+		/* A hash of the position and tangent of a point, which
+		   are all that its fit depends on: */
+		long fitKey( double x, double y, double z, double tx, double ty, double tz ) {
+			long key = Double.doubleToLongBits( x );
+			key = key * 31 + Double.doubleToLongBits( y );
+			key = key * 31 + Double.doubleToLongBits( z );
+			key = key * 31 + Double.doubleToLongBits( tx );
+			key = key * 31 + Double.doubleToLongBits( ty );
+			return key * 31 + Double.doubleToLongBits( tz );
+		}
+
+		/* A hash of the first side * side values of plane: */
+		long planeHash( float [] plane ) {
+			long hash = 0;
+			for( int k = 0; k < side * side; ++k ) {
+				hash = (hash + Float.floatToIntBits( plane[k] )) * 0x9E3779B97F4A7C15L;
+				hash ^= hash >>> 29;
 			}
-		} else if( imageType == ImagePlus.GRAY32 ) {
-			for( int z = 0; z < depth; ++z ) {
-				v[z] = (float[])s.getPixels(z+1);
+			return hash;
+		}
+
+		/* Samples the plane at point i of the path, which has
+		   been fitted at world_x[i] etc., into plane: */
+		void samplePlane( int i, float [] plane ) {
+			sampler.sample( side, scaleInNormalPlane,
+					world_x[i], world_y[i], world_z[i],
+					ts_x[i], ts_y[i], ts_z[i],
+					new double[3], new double[3],
+					plane );
+		}
+
+		/* Copies the fit of each point from previous where the
+		   point was fitted at the same position with the same
+		   tangent, which (since each tangent depends on the
+		   points pointsEitherSide either side) is every point
+		   that isn't within that distance of a point that's
+		   been changed, added or removed.  The plane at each
+		   such point is sampled again, and the fit is only
+		   copied if the plane is the same, in case the pixels
+		   have been changed in place.  Only the other points are
+		   left in toFit.  Returns the number of fits reused. */
+		int reuseFits( CircleFits previous, double [] tangents ) {
+			if( ! compatibleWith( previous ) )
+				return 0;
+			int previousPoints = previous.totalPoints;
+			LongHashIndex keys = new LongHashIndex( previousPoints );
+			int [] firstWithKey = new int[previousPoints];
+			for( int j = 0; j < previousPoints; ++j ) {
+				int k = keys.add( fitKey( previous.world_x[j], previous.world_y[j], previous.world_z[j],
+							  previous.ts_x[j], previous.ts_y[j], previous.ts_z[j] ) );
+				if( k == keys.size() - 1 )
+					firstWithKey[k] = j;
 			}
-		}
-
-		for( int grid_i = 0; grid_i < side; ++grid_i ) {
-			for( int grid_j = 0; grid_j < side; ++grid_j ) {
-
-				double midside_grid = ((side - 1) / 2.0f);
-
-				double gi = midside_grid - grid_i;
-				double gj = midside_grid - grid_j;
-
-				double vx = ox + gi * ax_s + gj * bx_s;
-				double vy = oy + gi * ay_s + gj * by_s;
-				double vz = oz + gi * az_s + gj * bz_s;
-
-				// So now denormalize to pixel co-ordinates:
-
-				double image_x = vx / x_spacing;
-				double image_y = vy / y_spacing;
-				double image_z = vz / z_spacing;
-
-				/* And do a trilinear interpolation to
-				   find the value there: */
-
-				double x_d = image_x - Math.floor(image_x);
-				double y_d = image_y - Math.floor(image_y);
-				double z_d = image_z - Math.floor(image_z);
-
-				int x_f = (int)Math.floor(image_x); int x_c = (int)Math.ceil(image_x);
-				int y_f = (int)Math.floor(image_y); int y_c = (int)Math.ceil(image_y);
-				int z_f = (int)Math.floor(image_z); int z_c = (int)Math.ceil(image_z);
-
-				/* Check that these values aren't
-				   poking off the edge of the screen -
-				   if so then make them zero. */
-
-				double fff;
-				double cff;
-				double fcf;
-				double ccf;
-
-				double ffc;
-				double cfc;
-				double fcc;
-				double ccc;
-
-				if( (x_f < 0) || (x_c < 0) || (y_f < 0) || (y_c < 0) || (z_f < 0) || (z_c < 0) ||
-				    (x_f >= width) || (x_c >= width) || (y_f >= height) || (y_c >= height) || (z_f >= depth) || (z_c >= depth) ) {
-
-					fff = 0;
-					cff = 0;
-					fcf = 0;
-					ccf = 0;
-					ffc = 0;
-					cfc = 0;
-					fcc = 0;
-					ccc = 0;
-
-				} else {
-
-					fff = v[z_f][width*y_f+x_f];
-					cff = v[z_c][width*y_f+x_f];
-
-					fcf = v[z_f][width*y_c+x_f];
-					ccf = v[z_c][width*y_c+x_f];
-
-					ffc = v[z_f][width*y_f+x_c];
-					cfc = v[z_c][width*y_f+x_c];
-
-					fcc = v[z_f][width*y_c+x_c];
-					ccc = v[z_c][width*y_c+x_c];
-
+			int reused = 0;
+			toFitCount = 0;
+			for( int i = 0; i < totalPoints; ++i ) {
+				double x = getPreciseX( i );
+				double y = getPreciseY( i );
+				double z = getPreciseZ( i );
+				double tx = tangents[3*i], ty = tangents[3*i+1], tz = tangents[3*i+2];
+				int k = keys.indexOf( fitKey( x, y, z, tx, ty, tz ) );
+				int j = k < 0 ? -1 : firstWithKey[k];
+				if( j >= 0 &&
+				    previous.world_x[j] == x && previous.world_y[j] == y && previous.world_z[j] == z &&
+				    previous.ts_x[j] == tx && previous.ts_y[j] == ty && previous.ts_z[j] == tz ) {
+					copyFit( previous, j, i );
+					float [] plane = keepPlanes ? new float[side*side] : NormalPlaneSampler.threadPlane( side );
+					samplePlane( i, plane );
+					if( planeHash( plane ) == previous.planeHashes[j] ) {
+						if( keepPlanes )
+							normalPlanes[i] = plane;
+						++ reused;
+						continue;
+					}
 				}
-
-				// Now we should be OK to do the interpolation for real:
-
-				double i1 = (1 - z_d) * (fff) + (cff) * z_d;
-				double i2 = (1 - z_d) * (fcf) + (ccf) * z_d;
-
-				double j1 = (1 - z_d) * (ffc) + (cfc) * z_d;
-				double j2 = (1 - z_d) * (fcc) + (ccc) * z_d;
-
-				double w1 = i1 * (1 - y_d) + i2 * y_d;
-				double w2 = j1 * (1 - y_d) + j2 * y_d;
-
-				double value_f = w1 * (1 - x_d) + w2 * x_d;
-
-				result[grid_j*side+grid_i] = (float)value_f;
+				toFit[toFitCount++] = i;
 			}
-		}
-
-		x_basis_vector[0] = ax_s;
-		x_basis_vector[1] = ay_s;
-		x_basis_vector[2] = az_s;
-
-		y_basis_vector[0] = bx_s;
-		y_basis_vector[1] = by_s;
-		y_basis_vector[2] = bz_s;
-
-		return result;
-	}
-
-	public Path fitCircles( int side, ImagePlus image, boolean display ) {
-		return fitCircles( side, image, display, null, -1, null );
-	}
-
-	public Path fitCircles( int side, ImagePlus image, boolean display, SimpleNeuriteTracer plugin, int progressIndex, MultiTaskProgress progress ) {
-
-		Path fitted = new Path( x_spacing, y_spacing, z_spacing, spacing_units );
-
-		// if (verbose) System.out.println("Generating normal planes stack.");
-
-		int totalPoints = size();
-
-		if( verbose )
-			System.out.println("There are: "+totalPoints+ " in the stack.");
-
-		int pointsEitherSide = 4;
-
-		if( verbose )
-			System.out.println("Using spacing: "+x_spacing+","+y_spacing+","+z_spacing);
-
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int depth = image.getStackSize();
-
-		ImageStack stack = new ImageStack( side, side );
-
-		// We assume that the first and the last in the stack are fine;
-
-		double [] centre_x_positionsUnscaled = new double[totalPoints];
-		double [] centre_y_positionsUnscaled = new double[totalPoints];
-		double [] rs = new double[totalPoints];
-		double [] rsUnscaled = new double[totalPoints];
-
-		double [] ts_x = new double[totalPoints];
-		double [] ts_y = new double[totalPoints];
-		double [] ts_z = new double[totalPoints];
-
-		double [] optimized_x = new double[totalPoints];
-		double [] optimized_y = new double[totalPoints];
-		double [] optimized_z = new double[totalPoints];
-
-		double [] scores = new double[totalPoints];
-
-		double [] moved = new double[totalPoints];
-
-		boolean [] valid = new boolean[totalPoints];
-
-		int [] xs_in_image = new int[totalPoints];
-		int [] ys_in_image = new int[totalPoints];
-		int [] zs_in_image = new int[totalPoints];
-
-		double scaleInNormalPlane = getMinimumSeparation();
-
-		double [] tangent = new double[3];
-
-		if( progress != null )
-			progress.updateProgress(progressIndex,0);
-
-		for( int i = 0; i < totalPoints; ++i ) {
+			return reused;
+		}
+
+		void copyFit( CircleFits previous, int j, int i ) {
+			centre_x_positionsUnscaled[i] = previous.centre_x_positionsUnscaled[j];
+			centre_y_positionsUnscaled[i] = previous.centre_y_positionsUnscaled[j];
+			rs[i] = previous.rs[j];
+			rsUnscaled[i] = previous.rsUnscaled[j];
+			ts_x[i] = previous.ts_x[j];
+			ts_y[i] = previous.ts_y[j];
+			ts_z[i] = previous.ts_z[j];
+			optimized_x[i] = previous.optimized_x[j];
+			optimized_y[i] = previous.optimized_y[j];
+			optimized_z[i] = previous.optimized_z[j];
+			scores[i] = previous.scores[j];
+			moved[i] = previous.moved[j];
+			xs_in_image[i] = previous.xs_in_image[j];
+			ys_in_image[i] = previous.ys_in_image[j];
+			zs_in_image[i] = previous.zs_in_image[j];
+			world_x[i] = previous.world_x[j];
+			world_y[i] = previous.world_y[j];
+			world_z[i] = previous.world_z[j];
+			planeHashes[i] = previous.planeHashes[j];
+		}
+
+		/* Only writes to the elements of the arrays for point
+		   i, so can be called for different points at once: */
+		void fitPoint( int i ) {
+
+			double [] tangent = new double[3];
 
 			getTangent( i, pointsEitherSide, tangent );
 
-			double x_world = precise_x_positions[i];
-			double y_world = precise_y_positions[i];
-			double z_world = precise_z_positions[i];
+			double x_world = getPreciseX( i );
+			double y_world = getPreciseY( i );
+			double z_world = getPreciseZ( i );
+
+			world_x[i] = x_world;
+			world_y[i] = y_world;
+			world_z[i] = z_world;
 
 			double [] x_basis_in_plane = new double[3];
 			double [] y_basis_in_plane = new double[3];
 
-			float [] normalPlane = squareNormalToVector(
+			float [] normalPlane = keepPlanes ? new float[side*side] : NormalPlaneSampler.threadPlane( side );
+
+			sampler.sample(
 				side,
 				scaleInNormalPlane,   // This is in the same units as the _spacing, etc. variables.
 				x_world,      // These are scaled now
@@ -1298,7 +1579,9 @@ public class Path implements Comparable<Path> {
 				tangent[2],
 				x_basis_in_plane,
 				y_basis_in_plane,
-				image );
+				normalPlane );
+
+			planeHashes[i] = planeHash( normalPlane );
 
 			/* Now at this stage, try to optimize
 			   a circle in there... */
@@ -1338,7 +1621,8 @@ public class Path implements Comparable<Path> {
 			try {
 				optimizer.optimize( attempt, startValues, 2, 2 );
 			} catch( ConjugateDirectionSearch.OptimizationError e ) {
-				return null;
+				failed = true;
+				return;
 			}
 
 			if( verbose )
@@ -1404,13 +1688,499 @@ public class Path implements Comparable<Path> {
 			if( verbose )
 				System.out.println("Adding a real slice.");
 
-			FloatProcessor bp = new FloatProcessor( side, side );
-			bp.setPixels(normalPlane);
-			stack.addSlice(null,bp);
+			if( keepPlanes )
+				normalPlanes[i] = normalPlane;
 
 			if( progress != null )
-				progress.updateProgress(((double)i+1)/totalPoints,progressIndex);
+				progress.updateProgress(((double)pointsDone.incrementAndGet())/totalPoints,progressIndex);
+		}
+	}
+
+	/* Fits the points fits.toFit[from], up to but not including
+	   fits.toFit[to], splitting the range in half until there's one
+	   point in each task, so that idle threads can steal the other
+	   half: */
+	class FitPointsTask extends RecursiveAction {
+
+		CircleFits fits;
+		int from, to;
+
+		FitPointsTask( CircleFits fits, int from, int to ) {
+			this.fits = fits;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if( fits.failed )
+				return;
+			if( to - from <= 1 ) {
+				if( to > from )
+					fits.fitPoint( fits.toFit[from] );
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll( new FitPointsTask( fits, from, middle ),
+				   new FitPointsTask( fits, middle, to ) );
+		}
+	}
+
+	/* The pool that every path's circle fitting shares, so that
+	   fitting several paths at once (as PathWindow.fitPaths()
+	   does) doesn't use more threads than there are processors: */
+	static ForkJoinPool fittingPool;
+
+	static synchronized ForkJoinPool getFittingPool() {
+		if( fittingPool == null )
+			fittingPool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+		return fittingPool;
+	}
+
+	/* Repeatedly finds the valid circles that overlap with the most
+	   other valid circles, and marks one of them as invalid, until
+	   none overlap.  Of those, the first is removed, unless the next
+	   valid circle after it is one of them too and has a larger
+	   radius, in which case that one is removed instead.
+
+	   Rather than recounting the overlaps between every pair of
+	   circles on each round, the pairs that overlap are found once,
+	   and each removal just decrements the counts of the circles
+	   that overlapped with the removed one.  Circles can only
+	   overlap if their centres are no further apart than the sum of
+	   their radii, so the circles are sorted along the axis in
+	   which their centres are most spread out, and each is only
+	   compared with those within a window of it on that axis (with
+	   plenty of margin for rounding errors).  The exception is
+	   circles whose normals are (nearly) parallel, which
+	   circlesOverlap() may say overlap however far apart they are;
+	   those pairs are found by looking the normals up in grids (see
+	   findNearlyParallel()) and always compared.  The circles with
+	   the most overlaps are taken from a priority queue, in which a
+	   circle is added again whenever its count changes and stale
+	   entries are skipped. */
+	void removeOverlappingCircles( boolean [] valid,
+				       double [] ts_x, double [] ts_y, double [] ts_z,
+				       double [] optimized_x, double [] optimized_y, double [] optimized_z,
+				       double [] rs ) {
+
+		int totalPoints = valid.length;
+
+		int validCount = 0;
+		for( int i = 0; i < totalPoints; ++i )
+			if( valid[i] )
+				++ validCount;
+		if( validCount < 2 )
+			return;
+
+		Integer [] byPosition = new Integer[validCount];
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		double minZ = Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		double maxReach = 0;
+		int c = 0;
+		for( int i = 0; i < totalPoints; ++i ) {
+			if( ! valid[i] )
+				continue;
+			byPosition[c++] = i;
+			minX = Math.min( minX, optimized_x[i] ); maxX = Math.max( maxX, optimized_x[i] );
+			minY = Math.min( minY, optimized_y[i] ); maxY = Math.max( maxY, optimized_y[i] );
+			minZ = Math.min( minZ, optimized_z[i] ); maxZ = Math.max( maxZ, optimized_z[i] );
+			maxReach = Math.max( maxReach, 2 * Math.abs( rs[i] ) );
+		}
+
+		final double [] position;
+		if( maxX - minX >= maxY - minY && maxX - minX >= maxZ - minZ )
+			position = optimized_x;
+		else if( maxY - minY >= maxZ - minZ )
+			position = optimized_y;
+		else
+			position = optimized_z;
+
+		Arrays.sort( byPosition, new Comparator<Integer>() {
+				public int compare( Integer a, Integer b ) {
+					return Double.compare( position[a], position[b] );
+				}
+			} );
+
+		/* The pairs of circles to compare, as consecutive
+		   elements: */
+		int [] candidates = new int[32];
+		int candidatesCount = 0;
+
+		for( int a = 0; a < validCount; ++a ) {
+			int i = byPosition[a];
+			double reachI = 2 * Math.abs( rs[i] );
+			for( int b = a + 1; b < validCount; ++b ) {
+				int j = byPosition[b];
+				if( position[j] - position[i] > reachI + maxReach )
+					break;
+				// These are found by findNearlyParallel():
+				if( normalsCrossSquared( ts_x, ts_y, ts_z, i, j ) < NEARLY_PARALLEL )
+					continue;
+				double reach = reachI + 2 * Math.abs( rs[j] );
+				double xdiff = optimized_x[j] - optimized_x[i];
+				double ydiff = optimized_y[j] - optimized_y[i];
+				double zdiff = optimized_z[j] - optimized_z[i];
+				if( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff > reach * reach )
+					continue;
+				candidates = appendPair( candidates, candidatesCount++, i, j );
+			}
+		}
+
+		int [] nearlyParallel = findNearlyParallel( valid, ts_x, ts_y, ts_z );
+		candidates = Arrays.copyOf( candidates, 2 * candidatesCount + nearlyParallel.length );
+		System.arraycopy( nearlyParallel, 0, candidates, 2 * candidatesCount, nearlyParallel.length );
+		candidatesCount += nearlyParallel.length / 2;
+
+		/* Each pair of circles that overlap, as the circle
+		   that overlaps followed by the one it overlaps with
+		   (circlesOverlap() needn't give the same answer both
+		   ways round): */
+		int [] pairs = new int[32];
+		int pairsCount = 0;
+
+		for( int k = 0; k < candidatesCount; ++k ) {
+			int i = candidates[2 * k];
+			int j = candidates[2 * k + 1];
+			if( circlesOverlap(
+				    ts_x[i], ts_y[i], ts_z[i],
+				    optimized_x[i], optimized_y[i], optimized_z[i],
+				    rs[i],
+				    ts_x[j], ts_y[j], ts_z[j],
+				    optimized_x[j], optimized_y[j], optimized_z[j],
+				    rs[j] ) )
+				pairs = appendPair( pairs, pairsCount++, i, j );
+			if( circlesOverlap(
+				    ts_x[j], ts_y[j], ts_z[j],
+				    optimized_x[j], optimized_y[j], optimized_z[j],
+				    rs[j],
+				    ts_x[i], ts_y[i], ts_z[i],
+				    optimized_x[i], optimized_y[i], optimized_z[i],
+				    rs[i] ) )
+				pairs = appendPair( pairs, pairsCount++, j, i );
+		}
+
+		/* The number of circles each overlaps with, and the
+		   circles that overlap with circle i, which are
+		   overlappedBy[firstOverlappedBy[i]] up to, but not
+		   including, overlappedBy[firstOverlappedBy[i+1]]: */
+		int [] overlapsWith = new int[totalPoints];
+		int [] firstOverlappedBy = new int[totalPoints + 1];
+		for( int p = 0; p < pairsCount; ++p ) {
+			++ overlapsWith[pairs[2 * p]];
+			++ firstOverlappedBy[pairs[2 * p + 1] + 1];
+		}
+		for( int i = 0; i < totalPoints; ++i )
+			firstOverlappedBy[i + 1] += firstOverlappedBy[i];
+		int [] overlappedBy = new int[pairsCount];
+		int [] filled = Arrays.copyOf( firstOverlappedBy, totalPoints );
+		for( int p = 0; p < pairsCount; ++p )
+			overlappedBy[filled[pairs[2 * p + 1]]++] = pairs[2 * p];
+
+		/* The valid circles as a linked list in order, so that the
+		   next valid one after any circle can be found: */
+		int [] nextValid = new int[totalPoints];
+		int [] previousValid = new int[totalPoints];
+		int last = -1;
+		for( int i = 0; i < totalPoints; ++i ) {
+			if( ! valid[i] )
+				continue;
+			previousValid[i] = last;
+			if( last >= 0 )
+				nextValid[last] = i;
+			last = i;
+		}
+		nextValid[last] = totalPoints;
+
+		/* The entries are the count in the top 32 bits (flipped
+		   so that the most overlaps come first) and the index in
+		   the bottom 32, so the first circle with the most
+		   overlaps comes out first: */
+		PriorityQueue<Long> offenders = new PriorityQueue<Long>();
+		for( int i = 0; i < totalPoints; ++i )
+			if( valid[i] && overlapsWith[i] > 0 )
+				offenders.add( offenderEntry( overlapsWith[i], i ) );
+
+		while( ! offenders.isEmpty() ) {
+			long entry = offenders.poll();
+			int i = (int)entry;
+			int count = Integer.MAX_VALUE - (int)(entry >>> 32);
+			if( ! valid[i] || overlapsWith[i] != count )
+				continue;
+			int n = nextValid[i];
+			int removed = i;
+			if( n < totalPoints && overlapsWith[n] == count && rs[n] > rs[i] )
+				removed = n;
+			valid[removed] = false;
+			if( removed != i )
+				offenders.add( entry );
+			if( previousValid[removed] >= 0 )
+				nextValid[previousValid[removed]] = nextValid[removed];
+			if( nextValid[removed] < totalPoints )
+				previousValid[nextValid[removed]] = previousValid[removed];
+			for( int k = firstOverlappedBy[removed]; k < firstOverlappedBy[removed + 1]; ++k ) {
+				int j = overlappedBy[k];
+				if( ! valid[j] )
+					continue;
+				-- overlapsWith[j];
+				if( overlapsWith[j] > 0 )
+					offenders.add( offenderEntry( overlapsWith[j], j ) );
+			}
 		}
+	}
+
+	static long offenderEntry( int overlaps, int index ) {
+		return ((long)(Integer.MAX_VALUE - overlaps) << 32) | index;
+	}
+
+	/* Adds the pair i, j to array, which has count pairs as
+	   consecutive elements already: */
+	static int [] appendPair( int [] array, int count, int i, int j ) {
+		if( 2 * count + 2 > array.length )
+			array = Arrays.copyOf( array, Math.max( 32, array.length * 2 ) );
+		array[2 * count] = i;
+		array[2 * count + 1] = j;
+		return array;
+	}
+
+	/* circlesOverlap() says that two circles overlap without
+	   considering how far apart they are if the squared length of
+	   the cross product of their normals (which is the determinant
+	   it calculates) is less than 1e-6; this is a little more, to
+	   allow for rounding errors: */
+	static final double NEARLY_PARALLEL = 2e-6;
+
+	static double normalsCrossSquared( double [] ts_x, double [] ts_y, double [] ts_z, int i, int j ) {
+		double crossx = ts_y[i] * ts_z[j] - ts_z[i] * ts_y[j];
+		double crossy = ts_z[i] * ts_x[j] - ts_x[i] * ts_z[j];
+		double crossz = ts_x[i] * ts_y[j] - ts_y[i] * ts_x[j];
+		return crossx * crossx + crossy * crossy + crossz * crossz;
+	}
+
+	/* Finds every pair of valid circles for which
+	   normalsCrossSquared() is less than NEARLY_PARALLEL, and
+	   returns them as consecutive elements, lower index first.
+
+	   The normals aren't normalized, and the longer they are the
+	   smaller the angle between them must be, so each circle is put
+	   in a grid of unit normals for the power of two that its
+	   normal's length is in, where the cells are as large as the
+	   distance between two nearly parallel unit normals in that
+	   grid can be.  Each circle's unit normal, and its negation,
+	   is then looked up in the grids for normals no longer than its
+	   own, in which any nearly parallel normals must be in the
+	   neighbouring cells.  A zero normal is nearly parallel to
+	   every other. */
+	static int [] findNearlyParallel( boolean [] valid, double [] ts_x, double [] ts_y, double [] ts_z ) {
+
+		int totalPoints = valid.length;
+
+		int [] result = new int[32];
+		int resultCount = 0;
+
+		double [] ux = new double[totalPoints];
+		double [] uy = new double[totalPoints];
+		double [] uz = new double[totalPoints];
+		int [] lengthClass = new int[totalPoints];
+		final long [] cells = new long[totalPoints];
+		boolean [] zeroNormal = new boolean[totalPoints];
+		int [] classes = new int[totalPoints];
+		int classesCount = 0;
+		List<Integer> inGrids = new ArrayList<Integer>();
+		List<Integer> zeroNormals = new ArrayList<Integer>();
+
+		for( int i = 0; i < totalPoints; ++i ) {
+			if( ! valid[i] )
+				continue;
+			double length = Math.sqrt( ts_x[i] * ts_x[i] + ts_y[i] * ts_y[i] + ts_z[i] * ts_z[i] );
+			if( length == 0 ) {
+				zeroNormal[i] = true;
+				zeroNormals.add( i );
+				continue;
+			}
+			ux[i] = ts_x[i] / length;
+			uy[i] = ts_y[i] / length;
+			uz[i] = ts_z[i] / length;
+			int c = Math.getExponent( length );
+			lengthClass[i] = c;
+			classes[classesCount++] = c;
+			double cellSize = nearlyParallelDistance( c, c );
+			cells[i] = gridCell( c,
+					     (int)Math.floor( ux[i] / cellSize ),
+					     (int)Math.floor( uy[i] / cellSize ),
+					     (int)Math.floor( uz[i] / cellSize ) );
+			inGrids.add( i );
+		}
+
+		for( int z : zeroNormals )
+			for( int j = 0; j < totalPoints; ++j )
+				if( valid[j] && j != z && ! (zeroNormal[j] && j < z) )
+					result = appendPair( result, resultCount++, Math.min( z, j ), Math.max( z, j ) );
+
+		Arrays.sort( classes, 0, classesCount );
+		int distinctClasses = 0;
+		for( int k = 0; k < classesCount; ++k )
+			if( k == 0 || classes[k] != classes[k - 1] )
+				classes[distinctClasses++] = classes[k];
+
+		Integer [] byCell = inGrids.toArray( new Integer[inGrids.size()] );
+		Arrays.sort( byCell, new Comparator<Integer>() {
+				public int compare( Integer a, Integer b ) {
+					return Long.compare( cells[a], cells[b] );
+				}
+			} );
+		long [] sortedCells = new long[byCell.length];
+		for( int k = 0; k < byCell.length; ++k )
+			sortedCells[k] = cells[byCell[k]];
+
+		int [] lastSeen = new int[totalPoints];
+		Arrays.fill( lastSeen, -1 );
+
+		for( int i : inGrids ) {
+			int b = lengthClass[i];
+			for( int k = 0; k < distinctClasses && classes[k] <= b; ++k ) {
+				int a = classes[k];
+				double cellSize = nearlyParallelDistance( a, a );
+				for( int sign = -1; sign <= 1; sign += 2 ) {
+					int cx = (int)Math.floor( sign * ux[i] / cellSize );
+					int cy = (int)Math.floor( sign * uy[i] / cellSize );
+					int cz = (int)Math.floor( sign * uz[i] / cellSize );
+					for( int dz = -1; dz <= 1; ++dz )
+						for( int dy = -1; dy <= 1; ++dy )
+							for( int dx = -1; dx <= 1; ++dx ) {
+								long key = gridCell( a, cx + dx, cy + dy, cz + dz );
+								for( int f = firstAtLeast( sortedCells, key ); f < sortedCells.length && sortedCells[f] == key; ++f ) {
+									int j = byCell[f];
+									if( (a == b && j <= i) || lastSeen[j] == i )
+										continue;
+									lastSeen[j] = i;
+									if( normalsCrossSquared( ts_x, ts_y, ts_z, i, j ) < NEARLY_PARALLEL )
+										result = appendPair( result, resultCount++, Math.min( i, j ), Math.max( i, j ) );
+								}
+							}
+				}
+			}
+		}
+
+		return Arrays.copyOf( result, 2 * resultCount );
+	}
+
+	/* The furthest apart that the unit normals of two nearly
+	   parallel circles can be (after negating one, if that makes
+	   them closer), if their normals are at least 2^a and 2^b
+	   long: the length of the cross product of the normals is the
+	   product of their lengths and the sine of the angle between
+	   them, and with that angle at most 90 degrees the distance is
+	   at most root 2 times the sine.  This is never less than 1e-4,
+	   so that gridCell()'s coordinates stay small. */
+	static double nearlyParallelDistance( int a, int b ) {
+		double sine = 1.01 * Math.sqrt( NEARLY_PARALLEL ) / Math.scalb( 1.0, a + b );
+		return Math.max( 1e-4, Math.sqrt( 2 ) * Math.min( 1, sine ) );
+	}
+
+	static long gridCell( int lengthClass, int x, int y, int z ) {
+		return ((long)(lengthClass + 1100) << 48) |
+			((long)(x + 32768) << 32) |
+			((long)(y + 32768) << 16) |
+			(z + 32768);
+	}
+
+	/* The index of the first element of sorted that is at least
+	   value, or sorted.length if there is none: */
+	static int firstAtLeast( long [] sorted, long value ) {
+		int low = 0, high = sorted.length;
+		while( low < high ) {
+			int middle = (low + high) >>> 1;
+			if( sorted[middle] < value )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	public Path fitCircles( int side, ImagePlus image, boolean display ) {
+		return fitCircles( side, image, display, null, -1, null );
+	}
+
+	public Path fitCircles( int side, ImagePlus image, boolean display, SimpleNeuriteTracer plugin, int progressIndex, MultiTaskProgress progress ) {
+
+		Path fitted = new Path( x_spacing, y_spacing, z_spacing, spacing_units );
+
+		// if (verbose) System.out.println("Generating normal planes stack.");
+
+		int totalPoints = size();
+
+		if( verbose )
+			System.out.println("There are: "+totalPoints+ " in the stack.");
+
+		int pointsEitherSide = 4;
+
+		if( verbose )
+			System.out.println("Using spacing: "+x_spacing+","+y_spacing+","+z_spacing);
+
+		// We assume that the first and the last in the stack are fine;
+
+		double scaleInNormalPlane = getMinimumSeparation();
+
+		/* Fit a circle at each point, on the shared pool so
+		   that the points of a long path are fitted on every
+		   processor: */
+
+		CircleFits fits = new CircleFits( totalPoints, side, image, scaleInNormalPlane, pointsEitherSide, display, progressIndex, progress );
+
+		// Work out the tangents once, before the tasks use them:
+		double [] tangents = getGuessedTangents( pointsEitherSide ).tangents;
+
+		/* If this path has been fitted before, only the points
+		   near the ones that have changed since need to be
+		   fitted again: */
+		CircleFits previous = previousCircleFits;
+		if( previous != null )
+			fits.pointsDone.set( fits.reuseFits( previous, tangents ) );
+
+		if( progress != null )
+			progress.updateProgress(((double)fits.pointsDone.get())/totalPoints,progressIndex);
+
+		getFittingPool().invoke( new FitPointsTask( fits, 0, fits.toFitCount ) );
+
+		if( fits.failed )
+			return null;
+
+		float [][] normalPlanes = fits.normalPlanes;
+
+		/* Keep the fits for next time, without the sampler and
+		   planes, which refer to the image's pixels: */
+		fits.sampler = null;
+		fits.normalPlanes = null;
+		previousCircleFits = fits;
+
+		/* The arrays that are changed below are copies, so that
+		   the fits that are kept aren't changed: */
+
+		double [] centre_x_positionsUnscaled = fits.centre_x_positionsUnscaled.clone();
+		double [] centre_y_positionsUnscaled = fits.centre_y_positionsUnscaled.clone();
+		double [] rs = fits.rs.clone();
+		double [] rsUnscaled = fits.rsUnscaled.clone();
+
+		double [] ts_x = fits.ts_x;
+		double [] ts_y = fits.ts_y;
+		double [] ts_z = fits.ts_z;
+
+		double [] optimized_x = fits.optimized_x.clone();
+		double [] optimized_y = fits.optimized_y.clone();
+		double [] optimized_z = fits.optimized_z.clone();
+
+		double [] scores = fits.scores;
+
+		double [] moved = fits.moved;
+
+		boolean [] valid = new boolean[totalPoints];
+
+		int [] xs_in_image = fits.xs_in_image.clone();
+		int [] ys_in_image = fits.ys_in_image.clone();
+		int [] zs_in_image = fits.zs_in_image.clone();
 
 		/* Now at each point along the path we calculate the
 		   mode of the radiuses in the nearby region: */
@@ -1448,19 +2218,22 @@ public class Path implements Comparable<Path> {
 		double [] angles = new double[totalPoints];
 		// Set the end points to 180 degrees:
 		angles[0] = angles[totalPoints-1] = Math.PI;
+		/* The first valid point after each one, or, if there's
+		   no next valid one, the last point.  Only earlier
+		   points are made invalid in the loop below, so this
+		   can be found before it: */
+		int [] nextValidAfter = new int[totalPoints];
+		int nextValidIndex = totalPoints - 1;
+		for( int i = totalPoints - 1; i >= 0; --i ) {
+			nextValidAfter[i] = nextValidIndex;
+			if( valid[i] )
+				nextValidIndex = i;
+		}
+		// If there's no previously valid one then just use the
+		// first:
+		int previousValid = 0;
 		for( int i = 1; i < totalPoints-1; ++i ) {
-			// If there's no previously valid one then
-			// just use the first:
-			int previousValid = 0;
-			for( int j = 0; j < i; ++j )
-				if( valid[j] )
-					previousValid = j;
-			// If there's no next valid one then just use
-			// the first:
-			int nextValid = totalPoints - 1;
-			for( int j = totalPoints - 1; j > i; --j )
-				if( valid[j] )
-					nextValid = j;
+			int nextValid = nextValidAfter[i];
 			double adiffx = optimized_x[previousValid] - optimized_x[i];
 			double adiffy = optimized_y[previousValid] - optimized_y[i];
 			double adiffz = optimized_z[previousValid] - optimized_z[i];
@@ -1473,70 +2246,14 @@ public class Path implements Comparable<Path> {
 			angles[i] = Math.acos( adotb / (asize * bsize) );
 			if( angles[i] < (Math.PI / 2) )
 				valid[i] = false;
+			if( valid[i] )
+				previousValid = i;
 		}
 
-		/* Repeatedly build an array indicating how many other
-		   valid circles each one overlaps with, and remove
-		   the worst culprits on each run until they're all
-		   gone...  This is horrendously inefficient (O(n^3)
-		   in the worst case) but I'm more sure of its
-		   correctness than other things I've tried, and there
-		   should be few overlapping circles.
-		 */
-		int [] overlapsWith = new int[totalPoints];
-		boolean someStillOverlap = true;
-		while( someStillOverlap ) {
-			someStillOverlap = false;
-			int maximumNumberOfOverlaps = -1;
-			for( int i = 0; i < totalPoints; ++i ) {
-				overlapsWith[i] = 0;
-				if( ! valid[i] )
-					continue;
-				for( int j = 0; j < totalPoints; ++j ) {
-					if( ! valid[j] )
-						continue;
-					if( i == j )
-						continue;
-					if( circlesOverlap(
-						    ts_x[i], ts_y[i], ts_z[i],
-						    optimized_x[i], optimized_y[i], optimized_z[i],
-						    rs[i],
-						    ts_x[j], ts_y[j], ts_z[j],
-						    optimized_x[j], optimized_y[j], optimized_z[j],
-						    rs[j] ) ) {
-						++ overlapsWith[i];
-						someStillOverlap = true;
-					}
-				}
-				if( overlapsWith[i] > maximumNumberOfOverlaps )
-					maximumNumberOfOverlaps = overlapsWith[i];
-			}
-			if( maximumNumberOfOverlaps <= 0 ) {
-				break;
-			}
-			// Now we've built the array, go through and
-			// remove the worst offenders:
-			for( int i = 0; i < totalPoints; ++i ) {
-				if( ! valid[i] )
-					continue;
-				int n = totalPoints;
-				for( int j = totalPoints - 1; j > i; --j )
-					if( valid[j] )
-						n = j;
-				if( overlapsWith[i] == maximumNumberOfOverlaps ) {
-					// If the next valid one has
-					// the same number, and that
-					// has a larger radius, remove
-					// that one instead...
-					if( n < totalPoints && overlapsWith[n] == maximumNumberOfOverlaps && rs[n] > rs[i] ) {
-						valid[n] = false;
-					} else {
-						valid[i] = false;
-					}
-					break;
-				}
-			}
-		}
+		/* Remove circles that overlap with other valid
+		   circles, the worst culprits first, until there are
+		   none: */
+		removeOverlappingCircles( valid, ts_x, ts_y, ts_z, optimized_x, optimized_y, optimized_z, rs );
 
 		int lastValidIndex = 0;
 
@@ -1559,9 +2276,9 @@ public class Path implements Comparable<Path> {
 					xs_in_image[i] = getXUnscaled(i);
 					ys_in_image[i] = getYUnscaled(i);
 					zs_in_image[i] = getZUnscaled(i);
-					optimized_x[i] = precise_x_positions[i];
-					optimized_y[i] = precise_y_positions[i];
-					optimized_z[i] = precise_z_positions[i];
+					optimized_x[i] = getPreciseX( i );
+					optimized_y[i] = getPreciseY( i );
+					optimized_z[i] = getPreciseZ( i );
 					rsUnscaled[i] = 1;
 					rs[i] = scaleInNormalPlane;
 					modeRadiusesUnscaled[i] = 1;
@@ -1619,6 +2336,13 @@ public class Path implements Comparable<Path> {
 
 		if( display ) {
 
+			ImageStack stack = new ImageStack( side, side );
+			for( int i = 0; i < totalPoints; ++i ) {
+				FloatProcessor bp = new FloatProcessor( side, side );
+				bp.setPixels(normalPlanes[i]);
+				stack.addSlice(null,bp);
+			}
+
 			ImagePlus imp = new ImagePlus( "normal stack", stack );
 
 			NormalPlaneCanvas normalCanvas = new NormalPlaneCanvas(
@@ -1654,6 +2378,14 @@ public class Path implements Comparable<Path> {
 	double [] precise_y_positions;
         double [] precise_z_positions;
 
+	/* In compact storage (see compact()) the points are kept as
+	   floats relative to the first point instead, and the arrays
+	   above are null: */
+	float [] compact_x_positions;
+	float [] compact_y_positions;
+	float [] compact_z_positions;
+	double compact_x_origin, compact_y_origin, compact_z_origin;
+
 	// Going by the meanings of the types given in:
 	//   http://www.soton.ac.uk/~dales/morpho/morpho_doc/
 
@@ -1848,6 +2580,10 @@ public class Path implements Comparable<Path> {
 		this.precise_x_positions = optimized_x.clone();
 		this.precise_y_positions = optimized_y.clone();
 		this.precise_z_positions = optimized_z.clone();
+		compact_x_positions = null;
+		compact_y_positions = null;
+		compact_z_positions = null;
+		pointsChanged();
 	}
 
 	public String realToString() {
@@ -2081,9 +2817,9 @@ public class Path implements Comparable<Path> {
 	public java.util.List<Point3f> getPoint3fList() {
 		ArrayList<Point3f> linePoints = new ArrayList<Point3f>();
 		for( int i = 0; i < points; ++i ) {
-			linePoints.add( new Point3f( (float)precise_x_positions[i],
-						     (float)precise_y_positions[i],
-						     (float)precise_z_positions[i] ) );
+			linePoints.add( new Point3f( (float)getPreciseX( i ),
+						     (float)getPreciseY( i ),
+						     (float)getPreciseZ( i ) ) );
 		}
 		return linePoints;
 	}
@@ -2110,24 +2846,35 @@ public class Path implements Comparable<Path> {
 	}
 
 	public Content addDiscsTo3DViewer(Image3DUniverse  univ, Color3f c, ImagePlus colorImage ) {
+		List<Color3f> meshColors = new ArrayList<Color3f>();
+		List<Point3f> allTriangles = getDiscTriangles( c, colorImage, meshColors );
+		if( allTriangles == null )
+			return null;
+		return univ.addTriangleMesh( allTriangles,
+					     meshColors,
+					     univ.getSafeContentName("Discs for path "+getName()) );
+	}
+
+	/* The triangles of a disc at each point, or null if this path
+	   has no circles; the colour of each vertex is added to
+	   meshColors: */
+	List<Point3f> getDiscTriangles( Color3f c, ImagePlus colorImage, List<Color3f> meshColors ) {
 		if( ! hasCircles() )
 			return null;
 
-		Color3f [] originalColors = Pipe.getPointColors( precise_x_positions,
-								 precise_y_positions,
-								 precise_z_positions,
+		Color3f [] originalColors = Pipe.getPointColors( getPreciseXs(),
+								 getPreciseYs(),
+								 getPreciseZs(),
 								 c,
 								 colorImage );
 
-		List<Color3f> meshColors = new ArrayList<Color3f>();
-
 		int edges = 8;
 		List<Point3f> allTriangles = new ArrayList<Point3f>(edges*points);
 		for( int i = 0; i < points; ++i ) {
 			List<Point3f> discMesh =
-				MeshMaker.createDisc( precise_x_positions[i],
-						      precise_y_positions[i],
-						      precise_z_positions[i],
+				MeshMaker.createDisc( getPreciseX( i ),
+						      getPreciseY( i ),
+						      getPreciseZ( i ),
 						      tangents_x[i],
 						      tangents_y[i],
 						      tangents_z[i],
@@ -2138,9 +2885,21 @@ public class Path implements Comparable<Path> {
 				meshColors.add( originalColors[i] );
 			allTriangles.addAll(discMesh);
 		}
-		return univ.addTriangleMesh( allTriangles,
-					     meshColors,
-					     univ.getSafeContentName("Discs for path "+getName()) );
+		return allTriangles;
+	}
+
+	/* The line from each point to the next, as pairs of points: */
+	List<Point3f> getLineSegments( ) {
+		List<Point3f> segments = new ArrayList<Point3f>( Math.max( 0, 2 * (points - 1) ) );
+		for( int i = 1; i < points; ++i ) {
+			segments.add( new Point3f( (float)getPreciseX( i-1 ),
+						   (float)getPreciseY( i-1 ),
+						   (float)getPreciseZ( i-1 ) ) );
+			segments.add( new Point3f( (float)getPreciseX( i ),
+						   (float)getPreciseY( i ),
+						   (float)getPreciseZ( i ) ) );
+		}
+		return segments;
 	}
 
 	synchronized public void addTo3DViewer(Image3DUniverse univ, Color c, ImagePlus colorImage) {
@@ -2182,6 +2941,38 @@ public class Path implements Comparable<Path> {
 			return;
 		}
 
+		List<Color3f> vertexColorList = new ArrayList<Color3f>();
+		List<Point3f> triangles = getTubeTriangles( realColor, colorImage, vertexColorList );
+
+		if( triangles == null ) {
+			content3D = null;
+			content3DExtra = null;
+			return;
+		}
+
+		nameWhenAddedToViewer = univ.getSafeContentName( getName() );
+		// univ.resetView();
+		content3D = univ.addTriangleMesh(triangles,
+						 vertexColorList,
+						 nameWhenAddedToViewer);
+		content3D.setLocked(true);
+		content3DMultiColored = colorImage;
+
+		content3DExtra = null;
+		nameWhenAddedToViewerExtra = null;
+
+		// univ.resetView();
+		return;
+	}
+
+	/* The triangles of a tube around this path, or null if one
+	   can't be made; the colour of each vertex is added to
+	   vertexColorList: */
+	List<Point3f> getTubeTriangles( Color3f c, ImagePlus colorImage, List<Color3f> vertexColorList ) {
+
+		if( points <= 1 )
+			return null;
+
 		int pointsToUse = -1;
 
 		double [] x_points_d = new double[points];
@@ -2194,9 +2985,9 @@ public class Path implements Comparable<Path> {
 			int lastIndexAdded = - noMoreThanOneEvery;
 			for( int i = 0; i < points; ++i ) {
 				if( (points <= noMoreThanOneEvery) || (i - lastIndexAdded >= noMoreThanOneEvery) ) {
-					x_points_d[added] = precise_x_positions[i];
-					y_points_d[added] = precise_y_positions[i];
-					z_points_d[added] = precise_z_positions[i];
+					x_points_d[added] = getPreciseX( i );
+					y_points_d[added] = getPreciseY( i );
+					z_points_d[added] = getPreciseZ( i );
 					radiuses_d[added] = radiuses[i];
 					lastIndexAdded = i;
 					++ added;
@@ -2205,9 +2996,9 @@ public class Path implements Comparable<Path> {
 			pointsToUse = added;
 		} else {
 			for(int i=0; i<points; ++i) {
-				x_points_d[i] = precise_x_positions[i];
-				y_points_d[i] = precise_y_positions[i];
-				z_points_d[i] = precise_z_positions[i];
+				x_points_d[i] = getPreciseX( i );
+				y_points_d[i] = getPreciseY( i );
+				z_points_d[i] = getPreciseZ( i );
 				radiuses_d[i] = getMinimumSeparation() * 2;
 			}
 			pointsToUse = points;
@@ -2292,37 +3083,19 @@ public class Path implements Comparable<Path> {
 							resample ? 2 : 1,       // resample - 1 means just "use mean distance between points", 3 is three times that, etc.
 							12,         // "parallels" (12 means cross-sections are dodecagons)
 							resample,   // do_resample
-							realColor,
+							c,
 							colorImage,
 							tubeColors);
 
-		if( allPoints == null ) {
-			content3D = null;
-			content3DExtra = null;
-			return;
-		}
+		if( allPoints == null )
+			return null;
 
 		// Make tube adds an extra point at the beginning and end:
 
-		List<Color3f> vertexColorList = new ArrayList<Color3f>();
-		List<Point3f> triangles = Pipe.generateTriangles(allPoints,
-								  1, // scale
-								  tubeColors,
-								  vertexColorList);
-
-		nameWhenAddedToViewer = univ.getSafeContentName( getName() );
-		// univ.resetView();
-		content3D = univ.addTriangleMesh(triangles,
-						 vertexColorList,
-						 nameWhenAddedToViewer);
-		content3D.setLocked(true);
-		content3DMultiColored = colorImage;
-
-		content3DExtra = null;
-		nameWhenAddedToViewerExtra = null;
-
-		// univ.resetView();
-		return;
+		return Pipe.generateTriangles(allPoints,
+					      1, // scale
+					      tubeColors,
+					      vertexColorList);
 	}
 
 	public void setSelected(boolean newSelectedStatus) {
@@ -2366,9 +3139,9 @@ public class Path implements Comparable<Path> {
 
 		for( int i = 0; i < points - 1; ++i ) {
 
-			double xdiff = precise_x_positions[i+1] - precise_x_positions[i];
-			double ydiff = precise_y_positions[i+1] - precise_y_positions[i];
-			double zdiff = precise_z_positions[i+1] - precise_z_positions[i];
+			double xdiff = getPreciseX( i+1 ) - getPreciseX( i );
+			double ydiff = getPreciseY( i+1 ) - getPreciseY( i );
+			double zdiff = getPreciseZ( i+1 ) - getPreciseZ( i );
 			double h = Math.sqrt(
 				xdiff * xdiff +
 				ydiff * ydiff +
@@ -2388,6 +3161,21 @@ public class Path implements Comparable<Path> {
 	   also transformed by the caller. */
 
 	public Path transform( PathTransformer transformation, ImagePlus template, ImagePlus model ) {
+		double [] transformedX = getPreciseXs();
+		double [] transformedY = getPreciseYs();
+		double [] transformedZ = getPreciseZs();
+		ParallelPathTransformer.transformPoints( transformation,
+							 transformedX, transformedY, transformedZ,
+							 transformedX, transformedY, transformedZ,
+							 points );
+		return transformed( transformedX, transformedY, transformedZ, 0, template );
+	}
+
+	/* The copy of this path in template, given that point i was
+	   transformed to (transformedX[start+i], transformedY[start+i],
+	   transformedZ[start+i]) - so that the caller can transform
+	   the points of many paths in one batch: */
+	Path transformed( double [] transformedX, double [] transformedY, double [] transformedZ, int start, ImagePlus template ) {
 
 		double templatePixelWidth = 1;
 		double templatePixelHeight = 1;
@@ -2403,19 +3191,14 @@ public class Path implements Comparable<Path> {
 		}
 
 		Path result = new Path( templatePixelWidth, templatePixelHeight, templatePixelDepth, templateUnits, size() );
-		double [] transformed = new double[3];
 
 		// Actually, just say you'll have to refit all the
 		// previously fitted paths...
 
 		for( int i = 0; i < points; ++i ) {
-			double original_x = precise_x_positions[i];
-			double original_y = precise_y_positions[i];
-			double original_z = precise_z_positions[i];
-			transformation.transformPoint( original_x, original_y, original_z, transformed );
-			double new_x = transformed[0];
-			double new_y = transformed[1];
-			double new_z = transformed[2];
+			double new_x = transformedX[start+i];
+			double new_y = transformedY[start+i];
+			double new_z = transformedZ[start+i];
 			if( Double.isNaN(new_x) ||
 			    Double.isNaN(new_y) ||
 			    Double.isNaN(new_z) )
@@ -2474,6 +3257,7 @@ public class Path implements Comparable<Path> {
 	}
 
 	synchronized public void downsample(double maximumAllowedDeviation) {
+		uncompact();
 		// We should only downsample between the fixed points, i.e.
 		// where this neuron joins others
 		Set<Integer> fixedPointSet = findJoinedPointIndices();
@@ -2492,9 +3276,9 @@ public class Path implements Comparable<Path> {
 				ArrayList<SimplePoint> forDownsampling = new ArrayList<SimplePoint>();
 				for (int i = start; i <= end; ++i) {
 					forDownsampling.add(new SimplePoint(
-							precise_x_positions[i],
-							precise_y_positions[i],
-							precise_z_positions[i],
+							getPreciseX( i ),
+							getPreciseY( i ),
+							getPreciseZ( i ),
 							i));
 				}
 				ArrayList<SimplePoint> downsampled =
@@ -2564,6 +3348,7 @@ public class Path implements Comparable<Path> {
 				precise_y_positions = new_y_points;
 				precise_z_positions = new_z_points;
 				radiuses = new_radiuses;
+				pointsChanged();
 				if (hasCircles()) {
 					setGuessedTangents(2);
 				}
@@ -41,7 +41,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
@@ -52,16 +51,17 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.scijava.java3d.View;
 import javax.xml.parsers.SAXParser;
@@ -70,6 +70,7 @@ import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import util.Bresenham3D;
@@ -89,6 +90,13 @@ class SWCExportException extends Exception {
 	}
 }
 
+@SuppressWarnings("serial")
+class SWCImportException extends Exception {
+	public SWCImportException(String message) {
+		super(message);
+	}
+}
+
 public class PathAndFillManager extends DefaultHandler implements UniverseListener {
 
 	static final boolean verbose = SimpleNeuriteTracer.verbose;
@@ -155,6 +163,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		this.depth = depth;
 		if( spacing_units == null )
 			this.spacing_units = "unknown";
+		else
+			this.spacing_units = spacing_units;
 		needImageDataFromTracesFile = false;
 	}
 
@@ -174,6 +184,10 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	HashSet< Path > selectedPathsSet;
 
+	/* An index of the segments of all the paths, for quickly
+	   finding the paths near a point: */
+	PathSegmentIndex spatialIndex = new PathSegmentIndex();
+
 	public int size() {
 		return allPaths.size();
 	}
@@ -280,47 +294,59 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 	}
 
-	public synchronized boolean exportAllAsSWC( String prefix ) {
-		List<Path> primaryPaths = Arrays.asList(getPathsStructured());
-		int i = 0;
-		for( Path primaryPath : primaryPaths ) {
-			File swcFile = getSWCFileForIndex( prefix, i );
-			HashSet<Path> connectedPaths = new HashSet<Path>();
-			LinkedList<Path> nextPathsToConsider = new LinkedList<Path>();
-			nextPathsToConsider.add(primaryPath);
-			while( nextPathsToConsider.size() > 0 ) {
-				Path currentPath = nextPathsToConsider.removeFirst();
-				connectedPaths.add(currentPath);
-				for( Path joinedPath : currentPath.somehowJoins ) {
-					if( ! connectedPaths.contains(joinedPath) )
-						nextPathsToConsider.add( joinedPath );
-				}
-			}
+	/* The structure of the paths is worked out once, and then the
+	   connected set of paths from each primary path is exported
+	   in parallel from that snapshot, so the lock is only held
+	   while the snapshot is taken. */
+	public boolean exportAllAsSWC( String prefix ) {
+		final SWCExport export = new SWCExport( this );
+		int n = export.getPrimaryPathCount();
+		final File [] swcFiles = new File[n];
+		for( int i = 0; i < n; ++i )
+			swcFiles[i] = getSWCFileForIndex( prefix, i );
+		final String [] errors = new String[n];
 
-			ArrayList<SWCPoint> swcPoints = null;
-			try {
-				swcPoints = getSWCFor( connectedPaths );
-			} catch( SWCExportException see ) {
-				IJ.error(""+see.getMessage());
-				return false;
-			}
+		IJ.showStatus("Exporting SWC data to "+n+" files...");
 
-			IJ.showStatus("Exporting SWC data to "+swcFile.getAbsolutePath());
+		ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for( int i = 0; i < n; ++i ) {
+			final int index = i;
+			tasks.add( new Callable< Object >() {
+				public Object call() {
+					try {
+						ArrayList<SWCPoint> swcPoints = export.getSWCFor( export.getConnectedPaths( index ) );
+						SWCExport.write( swcPoints, swcFiles[index] );
+					} catch( SWCExportException see ) {
+						errors[index] = ""+see.getMessage();
+					} catch( IOException ioe ) {
+						errors[index] = "Saving to "+swcFiles[index].getAbsolutePath()+" failed";
+					}
+					return null;
+				}
+			} );
+		}
 
-			// FIXME: done elsewhere - DRY
-			try {
-				PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(swcFile),"UTF-8"));
-				pw.println("# Exported from \"Simple Neurite Tracer\" version "+SimpleNeuriteTracer.PLUGIN_VERSION);
-				for( SWCPoint p : swcPoints )
-					p.println(pw);
-				pw.close();
-
-			} catch( IOException ioe) {
-				IJ.error("Saving to "+swcFile.getAbsolutePath()+" failed");
+		int processors = Runtime.getRuntime().availableProcessors();
+		ExecutorService es = Executors.newFixedThreadPool( processors );
+		try {
+			List< Future< Object > > futures = es.invokeAll( tasks );
+			for( Future< Object > future : futures )
+				future.get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			IJ.error("The SWC export was interrupted");
+			return false;
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Exporting SWC files failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+
+		for( String error : errors )
+			if( error != null ) {
+				IJ.error(error);
 				return false;
 			}
-			++ i;
-		}
 		IJ.showStatus("Export finished.");
 		return true;
 	}
@@ -400,178 +426,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return primaryPaths.toArray(new Path[]{});
 	}
 
-	public synchronized ArrayList<SWCPoint> getSWCFor( Set<Path> selectedPaths ) throws SWCExportException {
-
-		/* Turn the primary paths into a Set.  This call also
-		   ensures that the Path.children and
-		   Path.somehowJoins relationships are set up
-		   correctly: */
-		Set<Path> structuredPathSet = new HashSet<Path>(Arrays.asList(getPathsStructured()));
-
-		/* Check that there's only one primary path in
-		   selectedPaths by taking the intersection and
-		   checking there's exactly one element in it: */
-
-		structuredPathSet.retainAll(selectedPaths);
-
-		if( structuredPathSet.size() == 0 )
-			throw new SWCExportException("The paths you select for SWC export must include a primary path\n(i.e. one at the top level in the Path Window's tree)");
-		if( structuredPathSet.size() > 1 )
-			throw new SWCExportException("You can only select one connected set of paths for SWC export");
-
-		/* So now we definitely only have one primary path.
-		   All the connected paths must also be selected, but
-		   we'll check that as we go along: */
-
-		ArrayList<SWCPoint> result = new ArrayList<SWCPoint>();
-
-		int currentPointID = 1;
-
-		/* nextPathsToAdd is the queue of Paths to add points
-		   from, and pathsAlreadyDone is the set of Paths that
-		   have already had their points added */
-
-		LinkedList<Path> nextPathsToAdd = new LinkedList<Path>();
-		Set<Path> pathsAlreadyDone = new HashSet<Path>();
-
-		Path firstPath = structuredPathSet.iterator().next();
-		if( firstPath.size() == 0 )
-			throw new SWCExportException("The primary path contained no points!");
-		nextPathsToAdd.add( firstPath );
-
-		while( nextPathsToAdd.size() > 0 ) {
-
-			Path currentPath = nextPathsToAdd.removeFirst();
-
-			if( ! selectedPaths.contains(currentPath) )
-				throw new SWCExportException("The path \""+currentPath+"\" is connected to other selected paths, but wasn't itself selected");
-
-			/* The paths we're dealing with specify
-			   connectivity, but we might be using the
-			   fitted versions - take them for the point
-			   positions: */
-
-			Path pathToUse = currentPath;
-			if( currentPath.getUseFitted() ) {
-				pathToUse = currentPath.fitted;
-			}
-
-			Path parent = null;
-
-			for( Path possibleParent : currentPath.somehowJoins ) {
-				if( pathsAlreadyDone.contains( possibleParent ) ) {
-					parent = possibleParent;
-					break;
-				}
-			}
-
-			int indexToStartAt = 0;
-			int nearestParentSWCPointID = -1;
-			PointInImage connectingPoint = null;
-			if( parent != null ) {
-				if( currentPath.startJoins != null &&
-				    currentPath.startJoins == parent )
-					connectingPoint = currentPath.startJoinsPoint;
-				else if( currentPath.endJoins != null &&
-					 currentPath.endJoins == parent )
-					connectingPoint = currentPath.endJoinsPoint;
-				else if( parent.startJoins != null &&
-					 parent.startJoins == currentPath )
-					connectingPoint = parent.startJoinsPoint;
-				else if( parent.endJoins != null &&
-					 parent.endJoins == currentPath )
-					connectingPoint = parent.endJoinsPoint;
-				else
-					throw new SWCExportException("Couldn't find the link between parent \""+parent+"\"\nand child \""+currentPath+"\" which are somehow joined");
-
-				/* Find the SWC point ID on the parent which is nearest: */
-
-				double distanceSquaredToNearestParentPoint = Double.MAX_VALUE;
-				for( SWCPoint s : result ) {
-					if( s.fromPath != parent )
-						continue;
-					double distanceSquared = connectingPoint.distanceSquaredTo(s.x, s.y, s.z);
-					if( distanceSquared < distanceSquaredToNearestParentPoint ) {
-						nearestParentSWCPointID = s.id;
-						distanceSquaredToNearestParentPoint = distanceSquared;
-					}
-				}
-
-				/* Now find the index of the point on this path which is nearest */
-				indexToStartAt = pathToUse.indexNearestTo( connectingPoint.x,
-									   connectingPoint.y,
-									   connectingPoint.z );
-			}
-
-			SWCPoint firstSWCPoint = null;
-
-			boolean realRadius = pathToUse.hasCircles();
-			for( int i = indexToStartAt; i < pathToUse.points; ++i ) {
-				double radius = 0;
-				if( realRadius )
-					radius = pathToUse.radiuses[i];
-				SWCPoint swcPoint = new SWCPoint(currentPointID,
-								 pathToUse.getSWCType(),
-								 pathToUse.precise_x_positions[i],
-								 pathToUse.precise_y_positions[i],
-								 pathToUse.precise_z_positions[i],
-								 radius,
-								 firstSWCPoint == null ?  nearestParentSWCPointID : currentPointID - 1);
-				swcPoint.fromPath = currentPath;
-				result.add(swcPoint);
-				++ currentPointID;
-				if( firstSWCPoint == null )
-					firstSWCPoint = swcPoint;
-			}
-
-			boolean firstOfOtherBranch = true;
-			for( int i = indexToStartAt - 1; i >= 0; --i ) {
-				int previousPointID = currentPointID - 1;
-				if( firstOfOtherBranch ) {
-					firstOfOtherBranch = false;
-					previousPointID = firstSWCPoint.id;
-				}
-				double radius = 0;
-				if( realRadius )
-					radius = pathToUse.radiuses[i];
-				SWCPoint swcPoint = new SWCPoint(currentPointID,
-								 pathToUse.getSWCType(),
-								 pathToUse.precise_x_positions[i],
-								 pathToUse.precise_y_positions[i],
-								 pathToUse.precise_z_positions[i],
-								 radius,
-								 previousPointID);
-				swcPoint.fromPath = currentPath;
-				result.add(swcPoint);
-				++ currentPointID;
-			}
-
-			pathsAlreadyDone.add( currentPath );
-
-			/* Add all the connected paths that aren't already in pathsAlreadyDone */
-
-			for( Path connectedPath : currentPath.somehowJoins ) {
-				if( ! pathsAlreadyDone.contains( connectedPath ) ) {
-					nextPathsToAdd.add( connectedPath );
-				}
-			}
-		}
-
-		// Now check that all selectedPaths are in pathsAlreadyDone, otherwise give an error:
-
-		Path disconnectedExample = null;
-		int selectedAndNotConnected = 0;
-		for( Path selectedPath : selectedPaths ) {
-			if( ! pathsAlreadyDone.contains(selectedPath) ) {
-				++ selectedAndNotConnected;
-				if( disconnectedExample == null )
-					disconnectedExample = selectedPath;
-			}
-		}
-		if( selectedAndNotConnected > 0 )
-			throw new SWCExportException("You must select all the connected paths\n("+selectedAndNotConnected+" paths (e.g. \""+disconnectedExample+"\") were not connected.)");
-
-		return result;
+	public ArrayList<SWCPoint> getSWCFor( Set<Path> selectedPaths ) throws SWCExportException {
+		return new SWCExport( this ).getSWCFor( selectedPaths );
 	}
 
 	public synchronized void resetListeners( Path justAdded ) {
@@ -580,6 +436,12 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	public synchronized void resetListeners( Path justAdded, boolean expandAll ) {
 
+		/* Building the lists means formatting the length of
+		   every path, which is wasted (and quadratic when adding
+		   many paths) if nothing is listening: */
+		if( listeners.isEmpty() )
+			return;
+
 		ArrayList<String> pathListEntries = new ArrayList<String>();
 
 		for( Path p : allPaths ) {
@@ -657,14 +519,73 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		/* Generate a new content3D, since it matters that the
 		   path is added with the right name via
 		   update3DViewerContents: */
-		if( plugin != null && plugin.use3DViewer ) {
+		boolean merged3D = plugin != null && plugin.use3DViewer && plugin.getMergePaths3D();
+		if( plugin != null && plugin.use3DViewer && ! merged3D ) {
 			p.removeFrom3DViewer( plugin.univ );
 			p.addTo3DViewer( plugin.univ, plugin.deselectedColor3f, plugin.colorImage );
 		}
+		finishStorage( p );
 		allPaths.add(p);
+		spatialIndex.add(p);
+		if( merged3D && deferred3DUpdates == 0 )
+			update3DViewerContents();
 		resetListeners( p );
 	}
 
+	/* If this is set, the points of each path are kept in compact
+	   storage (see Path.compact()) once it's added; otherwise
+	   they're just trimmed to size: */
+	protected boolean compactPathStorage;
+
+	public boolean getCompactPathStorage( ) {
+		return compactPathStorage;
+	}
+
+	/* Paths that are changed once they've been added are taken
+	   out of compact storage (to be changed) and stay out of it
+	   until this is called again: */
+	public synchronized void setCompactPathStorage( boolean compact ) {
+		compactPathStorage = compact;
+		for( Path p : allPaths ) {
+			if( compact == p.isCompact() )
+				continue;
+			if( compact )
+				p.compact();
+			else
+				p.uncompact();
+			// The points may have been rounded, so index them again:
+			spatialIndex.remove( p );
+			spatialIndex.add( p );
+		}
+	}
+
+	/* Stores the points of a path that's been added as
+	   compactPathStorage says: */
+	void finishStorage( Path p ) {
+		if( compactPathStorage )
+			p.compact();
+		else
+			p.trimToSize();
+	}
+
+	/* While a call to defer3DUpdates() hasn't been matched by a
+	   call to finishDeferred3DUpdates(), addPath() doesn't update
+	   the merged paths in the 3D viewer, so that adding many paths
+	   updates them just once, at the end: */
+	protected int deferred3DUpdates;
+
+	public synchronized void defer3DUpdates( ) {
+		++ deferred3DUpdates;
+	}
+
+	public synchronized void finishDeferred3DUpdates( ) {
+		if( deferred3DUpdates <= 0 )
+			throw new RuntimeException("BUG: finishDeferred3DUpdates() called without defer3DUpdates()");
+		-- deferred3DUpdates;
+		if( deferred3DUpdates == 0 && plugin != null && plugin.use3DViewer && plugin.getMergePaths3D() )
+			update3DViewerContents();
+	}
+
 	/* Find the default name for a new path, making sure it
 	   doesn't collide with any of the existing names: */
 
@@ -710,8 +631,12 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 
 		allPaths.remove(unfittedPathToDelete);
-		if( fittedPathToDelete != null )
+		spatialIndex.remove(unfittedPathToDelete);
+		unfittedPathToDelete.previousCircleFits = null;
+		if( fittedPathToDelete != null ) {
 			allPaths.remove(fittedPathToDelete);
+			spatialIndex.remove(fittedPathToDelete);
+		}
 
 		// We don't just delete; have to fix up the references
 		// in other paths (for start and end joins):
@@ -735,12 +660,39 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				fittedPathToDelete.removeFrom3DViewer(plugin.univ);
 			if( unfittedPathToDelete.content3D != null )
 				unfittedPathToDelete.removeFrom3DViewer(plugin.univ);
+			if( mergedPaths3D != null )
+				update3DViewerContents();
 		}
 
 		if( updateInterface )
 			resetListeners( null );
 	}
 
+	/* Removes just the fitted version of p, if it has one, and the
+	   fits that it was made from: */
+	public void deleteFittedVersion( Path p ) {
+		deleteFittedVersion( p, false );
+	}
+
+	/* Removes just the fitted version of p, if it has one, so that
+	   p can be fitted again.  If keepCircleFits is set, the fits at
+	   each point are kept for the refitting to reuse. */
+	public synchronized void deleteFittedVersion( Path p, boolean keepCircleFits ) {
+		Path fittedPathToDelete = p.fitted;
+		p.unsetFitted( keepCircleFits );
+		if( fittedPathToDelete == null )
+			return;
+		allPaths.remove(fittedPathToDelete);
+		spatialIndex.remove(fittedPathToDelete);
+		selectedPathsSet.remove(fittedPathToDelete);
+		if( plugin != null && plugin.use3DViewer ) {
+			if( fittedPathToDelete.content3D != null )
+				fittedPathToDelete.removeFrom3DViewer(plugin.univ);
+			if( mergedPaths3D != null )
+				update3DViewerContents();
+		}
+	}
+
 	public void deletePaths( int [] indices ) {
 
 		Arrays.sort( indices );
@@ -793,174 +745,17 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	}
 
-	// FIXME: should probably use XMLStreamWriter instead of this ad-hoc approach:
-	synchronized public void writeXML( String fileName,
-					   boolean compress ) throws IOException {
-
-		PrintWriter pw = null;
+	/* The paths and fills are copied while holding this object's
+	   lock, and then written out without it; see TracesWriter. */
+	public void writeXML( String fileName,
+			      boolean compress ) throws IOException {
+		new TracesWriter( this ).write( fileName, compress );
+	}
 
-		try {
-			if( compress )
-				pw = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fileName)),"UTF-8"));
-			else
-				pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileName),"UTF-8"));
-
-			pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-			pw.println("<!DOCTYPE tracings [");
-			pw.println("  <!ELEMENT tracings       (samplespacing,imagesize,path*,fill*)>");
-			pw.println("  <!ELEMENT imagesize      EMPTY>");
-			pw.println("  <!ELEMENT samplespacing  EMPTY>");
-			pw.println("  <!ELEMENT path           (point+)>");
-			pw.println("  <!ELEMENT point          EMPTY>");
-			pw.println("  <!ELEMENT fill           (node*)>");
-			pw.println("  <!ELEMENT node           EMPTY>");
-			pw.println("  <!ATTLIST samplespacing  x                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  y                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  z                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST samplespacing  units             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      width             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      height            CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST imagesize      depth             CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST path           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST path           primary           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           name              CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startson          CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsindex       CDATA           #IMPLIED>"); // deprecated
-			pw.println("  <!ATTLIST path           startsx           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsy           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           startsz           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endson            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsindex         CDATA           #IMPLIED>"); // deprecated
-			pw.println("  <!ATTLIST path           endsx             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsy             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           endsz             CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           reallength        CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           usefitted         (true|false)    #IMPLIED>");
-			pw.println("  <!ATTLIST path           fitted            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           fittedversionof   CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST path           swctype           CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          x                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          y                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          z                 CDATA           #REQUIRED>"); // deprecated
-			pw.println("  <!ATTLIST point          xd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          yd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          zd                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          tx                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          ty                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          tz                CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST point          r                 CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST fill           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           frompaths         CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST fill           metric            CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           threshold         CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST fill           volume            CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST node           id                CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           x                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           y                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           z                 CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           previousid        CDATA           #IMPLIED>");
-			pw.println("  <!ATTLIST node           distance          CDATA           #REQUIRED>");
-			pw.println("  <!ATTLIST node           status            (open|closed)   #REQUIRED>");
-			pw.println("]>");
-			pw.println("");
-
-			pw.println("<tracings>");
-
-			pw.println("  <samplespacing x=\"" + x_spacing + "\" " +
-				   "y=\"" + y_spacing + "\" " +
-				   "z=\"" + z_spacing + "\" " +
-				   "units=\"" + spacing_units + "\"/>" );
-
-			pw.println("  <imagesize width=\"" + width + "\" height=\"" + height + "\" depth=\"" + depth + "\"/>" );
-
-			for( Path p : allPaths ) {
-				// This probably should be a String returning
-				// method of Path.
-				pw.print("  <path id=\"" + p.getID() + "\"" );
-				pw.print(" swctype=\""+p.getSWCType()+"\"");
-				String startsString = "";
-				String endsString = "";
-				if( p.startJoins != null ) {
-					int startPathID = p.startJoins.getID();
-					// Find the nearest index for backward compatability:
-					int nearestIndexOnStartPath = -1;
-					if( p.startJoins.size() > 0 ) {
-						nearestIndexOnStartPath = p.startJoins.indexNearestTo(
-							p.startJoinsPoint.x,
-							p.startJoinsPoint.y,
-							p.startJoinsPoint.z );
-					}
-					startsString = " startson=\"" + startPathID + "\"" +
-						" startx=\"" + p.startJoinsPoint.x + "\"" +
-						" starty=\"" + p.startJoinsPoint.y + "\"" +
-						" startz=\"" + p.startJoinsPoint.z + "\"";
-					if( nearestIndexOnStartPath >= 0 )
-						startsString += " startsindex=\"" + nearestIndexOnStartPath + "\"";
-				}
-				if( p.endJoins != null ) {
-					int endPathID = p.endJoins.getID();
-					// Find the nearest index for backward compatability:
-					int nearestIndexOnEndPath = -1;
-					if( p.endJoins.size() > 0 ) {
-						nearestIndexOnEndPath = p.endJoins.indexNearestTo(
-							p.endJoinsPoint.x,
-							p.endJoinsPoint.y,
-							p.endJoinsPoint.z );
-					}
-					endsString = " endson=\"" + endPathID + "\"" +
-						" endsx=\"" + p.endJoinsPoint.x + "\"" +
-						" endsy=\"" + p.endJoinsPoint.y + "\"" +
-						" endsz=\"" + p.endJoinsPoint.z + "\"";
-					if( nearestIndexOnEndPath >= 0 )
-						endsString += " endsindex=\"" + nearestIndexOnEndPath + "\"";
-				}
-				if( p.getPrimary() )
-					pw.print(" primary=\"true\"");
-				pw.print(" usefitted=\""+p.getUseFitted()+"\"");
-				if( p.fitted != null ) {
-					pw.print(" fitted=\""+p.fitted.getID()+"\"");
-				}
-				if( p.fittedVersionOf != null ) {
-					pw.print(" fittedversionof=\""+p.fittedVersionOf.getID()+"\"");
-				}
-				pw.print(startsString);
-				pw.print(endsString);
-				if( p.name != null ) {
-					pw.print( " name=\""+XMLFunctions.escapeForXMLAttributeValue(p.name)+"\"" );
-				}
-				pw.print(" reallength=\"" + p.getRealLength( ) + "\"");
-				pw.println( ">" );
-
-				for( int i = 0; i < p.size(); ++i ) {
-					int px = p.getXUnscaled(i);
-					int py = p.getYUnscaled(i);
-					int pz = p.getZUnscaled(i);
-					double pxd = p.precise_x_positions[i];
-					double pyd = p.precise_y_positions[i];
-					double pzd = p.precise_z_positions[i];
-					String attributes = "x=\"" + px + "\" " + "y=\"" + py + "\" z=\"" + pz + "\" "+
-						"xd=\"" + pxd + "\" yd=\"" + pyd + "\" zd=\"" + pzd + "\"";
-					if( p.hasCircles() ) {
-						attributes += " tx=\""+p.tangents_x[i]+"\"";
-						attributes += " ty=\""+p.tangents_y[i]+"\"";
-						attributes += " tz=\""+p.tangents_z[i]+"\"";
-						attributes += " r=\""+p.radiuses[i]+"\"";
-					}
-					pw.println("    <point "+attributes+"/>");
-				}
-				pw.println( "  </path>" );
-			}
-			// Now output the fills:
-			int fillIndex = 0;
-			for( Fill f : allFills ) {
-				f.writeXML( pw, fillIndex );
-				++ fillIndex;
-			}
-			pw.println("</tracings>");
-		} finally {
-			if( pw != null )
-				pw.close();
-		}
+	/* Writes the paths and fills in the binary format that's
+	   described in TracesBinaryFile: */
+	public void writeBinary( String fileName ) throws IOException {
+		TracesBinaryFile.write( this, fileName );
 	}
 
 	double parsed_x_spacing;
@@ -992,58 +787,179 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	int last_fill_id;
 
-	HashSet< Integer > foundIDs;
+	/* The paths and fills are only added to allPaths and allFills
+	   once the whole file has been read: */
+	ArrayList< Path > loadedPaths;
+	ArrayList< Fill > loadedFills;
+	HashMap< Integer, Path > loadedPathsByID;
+
+	/* Every element of a particular type in a traces file almost
+	   always has its attributes in the same order, so rather than
+	   looking up each attribute by name, remember which one was
+	   at each position last time and only search through the
+	   names if that turns out to be wrong. */
+	static class AttributeCache {
+
+		final String [] names;
+		final String [] values;
+		int [] slotAtPosition = new int[0];
+
+		AttributeCache( String... names ) {
+			this.names = names;
+			this.values = new String[names.length];
+		}
 
-	@Override
-	public void startElement(String uri, String localName, String qName, Attributes attributes) throws TracesFileFormatException {
+		/* Returns the values of the attributes, in the order
+		   the names were given to the constructor, with null
+		   for any that are missing: */
+		String [] read( Attributes attributes ) {
+			Arrays.fill( values, null );
+			int n = attributes.getLength();
+			if( slotAtPosition.length < n ) {
+				int oldLength = slotAtPosition.length;
+				slotAtPosition = Arrays.copyOf( slotAtPosition, n );
+				Arrays.fill( slotAtPosition, oldLength, n, -1 );
+			}
+			for( int i = 0; i < n; ++i ) {
+				String attributeName = attributes.getQName( i );
+				int slot = slotAtPosition[i];
+				if( slot < 0 || ! names[slot].equals( attributeName ) ) {
+					slot = -1;
+					for( int k = 0; k < names.length; ++k )
+						if( names[k].equals( attributeName ) ) {
+							slot = k;
+							break;
+						}
+					slotAtPosition[i] = slot;
+				}
+				if( slot >= 0 )
+					values[slot] = attributes.getValue( i );
+			}
+			return values;
+		}
+	}
 
-		if( qName.equals("tracings") ) {
+	AttributeCache pathAttributes = new AttributeCache(
+		"id", "swctype", "usefitted", "fitted", "fittedversionof",
+		"startson", "startsindex", "startsx", "startsy", "startsz",
+		"endson", "endsindex", "endsx", "endsy", "endsz",
+		"name", "primary" );
 
-			startJoins            = new HashMap< Integer, Integer >();
-			startJoinsIndices     = new HashMap< Integer, Integer >();
-			startJoinsPoints      = new HashMap< Integer, PointInImage >();
-			endJoins              = new HashMap< Integer, Integer >();
-			endJoinsIndices       = new HashMap< Integer, Integer >();
-			endJoinsPoints        = new HashMap< Integer, PointInImage >();
-			useFittedFields       = new HashMap< Integer, Boolean >();
-			fittedFields          = new HashMap< Integer, Integer >();
-			fittedVersionOfFields = new HashMap< Integer, Integer >();
+	/* TracesFileReader looks for the <point> and <node>
+	   attributes in the same order: */
+	static final String [] POINT_ATTRIBUTES = {
+		"xd", "yd", "zd", "x", "y", "z", "r", "tx", "ty", "tz" };
 
-			sourcePathIDForFills = new ArrayList< int [] >();
-			foundIDs = new HashSet< Integer >();
+	static final String [] NODE_ATTRIBUTES = {
+		"x", "y", "z", "id", "distance", "previousid", "status" };
 
-			last_fill_id = -1;
+	AttributeCache pointAttributes = new AttributeCache( POINT_ATTRIBUTES );
 
-			/* We need to remove the old paths and fills
-			 * before loading the ones: */
+	AttributeCache nodeAttributes = new AttributeCache( NODE_ATTRIBUTES );
 
-			if (verbose) System.out.println("Clearing old paths and fills...");
+	/* Unless the file is being validated against the DTD, missing
+	   attributes have to be caught here: */
+	static String required( String value, String attributeName, String elementName ) throws TracesFileFormatException {
+		if( value == null )
+			throw new TracesFileFormatException("The required attribute '"+attributeName+"' was missing from <"+elementName+">");
+		return value;
+	}
 
-			clearPathsAndFills();
+	/* These are used by both the XML loader and TracesBinaryFile: */
+
+	void startLoading( ) {
+
+		startJoins            = new HashMap< Integer, Integer >();
+		startJoinsIndices     = new HashMap< Integer, Integer >();
+		startJoinsPoints      = new HashMap< Integer, PointInImage >();
+		endJoins              = new HashMap< Integer, Integer >();
+		endJoinsIndices       = new HashMap< Integer, Integer >();
+		endJoinsPoints        = new HashMap< Integer, PointInImage >();
+		useFittedFields       = new HashMap< Integer, Boolean >();
+		fittedFields          = new HashMap< Integer, Integer >();
+		fittedVersionOfFields = new HashMap< Integer, Integer >();
+
+		sourcePathIDForFills = new ArrayList< int [] >();
+
+		loadedPaths = new ArrayList< Path >();
+		loadedFills = new ArrayList< Fill >();
+		loadedPathsByID = new HashMap< Integer, Path >();
+
+		last_fill_id = -1;
 
-			if (verbose) System.out.println("Now "+allPaths.size()+" paths and "+allFills.size()+" fills");
+		/* We need to remove the old paths and fills
+		 * before loading the ones: */
+
+		if (verbose) System.out.println("Clearing old paths and fills...");
+
+		clearPathsAndFills();
+
+		if (verbose) System.out.println("Now "+allPaths.size()+" paths and "+allFills.size()+" fills");
+	}
+
+	void setLoadedPathID( Path p, int id ) throws TracesFileFormatException {
+		if( loadedPathsByID.containsKey(id) ) {
+			throw new TracesFileFormatException("There is more than one path with ID "+id);
+		}
+		loadedPathsByID.put( id, p );
+		p.setID(id);
+		if( id > maxUsedID )
+			maxUsedID = id;
+	}
+
+	void setLoadedImageSize( int width, int height, int depth ) throws TracesFileFormatException {
+
+		parsed_width = width;
+		parsed_height = height;
+		parsed_depth = depth;
+
+		if( needImageDataFromTracesFile ) {
+			this.width = parsed_width;
+			this.height = parsed_height;
+			this.depth = parsed_depth;
+		} else if( ! ((parsed_width == this.width) &&
+			      (parsed_height == this.height) &&
+			      (parsed_depth == this.depth)) ) {
+			throw new TracesFileFormatException("The image size in the traces file didn't match - it's probably for another image");
+		}
+	}
+
+	void setLoadedSpacing( double x_spacing, double y_spacing, double z_spacing, String units ) {
+
+		parsed_x_spacing = x_spacing;
+		parsed_y_spacing = y_spacing;
+		parsed_z_spacing = z_spacing;
+		parsed_units = units;
+
+		if( needImageDataFromTracesFile ) {
+			this.x_spacing = parsed_x_spacing;
+			this.y_spacing = parsed_y_spacing;
+			this.z_spacing = parsed_z_spacing;
+			this.spacing_units = parsed_units;
+		}
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws TracesFileFormatException {
+
+		if( ! qName.equals("tracings") && loadedPaths == null )
+			throw new TracesFileFormatException("The element <"+qName+"> must be inside <tracings>");
+
+		if( qName.equals("tracings") ) {
+
+			startLoading();
 
 		} else if( qName.equals("imagesize") ) {
 
 			try {
 
-				String widthString = attributes.getValue("width");
-				String heightString = attributes.getValue("height");
-				String depthString = attributes.getValue("depth");
-
-				parsed_width = Integer.parseInt(widthString);
-				parsed_height = Integer.parseInt(heightString);
-				parsed_depth = Integer.parseInt(depthString);
-
-				if( needImageDataFromTracesFile ) {
-					this.width = parsed_width;
-					this.height = parsed_height;
-					this.depth = parsed_depth;
-				} else if( ! ((parsed_width == width) &&
-					      (parsed_height == height) &&
-					      (parsed_depth == depth)) ) {
-					throw new TracesFileFormatException("The image size in the traces file didn't match - it's probably for another image");
-				}
+				String widthString = required( attributes.getValue("width"), "width", qName );
+				String heightString = required( attributes.getValue("height"), "height", qName );
+				String depthString = required( attributes.getValue("depth"), "depth", qName );
+
+				setLoadedImageSize( Integer.parseInt(widthString),
+						    Integer.parseInt(heightString),
+						    Integer.parseInt(depthString) );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <imagesize/>: "+e);
@@ -1053,21 +969,15 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 			try {
 
-				String xString = attributes.getValue("x");
-				String yString = attributes.getValue("y");
-				String zString = attributes.getValue("z");
-				parsed_units = attributes.getValue("units");
+				String xString = required( attributes.getValue("x"), "x", qName );
+				String yString = required( attributes.getValue("y"), "y", qName );
+				String zString = required( attributes.getValue("z"), "z", qName );
+				String unitsString = required( attributes.getValue("units"), "units", qName );
 
-				parsed_x_spacing = Double.parseDouble(xString);
-				parsed_y_spacing = Double.parseDouble(yString);
-				parsed_z_spacing = Double.parseDouble(zString);
-
-				if( needImageDataFromTracesFile ) {
-					this.x_spacing = parsed_x_spacing;
-					this.y_spacing = parsed_y_spacing;
-					this.z_spacing = parsed_z_spacing;
-					this.spacing_units = parsed_units;
-				}
+				setLoadedSpacing( Double.parseDouble(xString),
+						  Double.parseDouble(yString),
+						  Double.parseDouble(zString),
+						  unitsString );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <samplespacing/>: "+e);
@@ -1075,27 +985,32 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		} else if( qName.equals("path") ) {
 
-			String idString = attributes.getValue("id");
+			if( current_path != null )
+				throw new TracesFileFormatException("A <path> can't be inside another <path>");
+
+			String [] values = pathAttributes.read( attributes );
 
-			String swcTypeString = attributes.getValue("swctype");
-			String useFittedString = attributes.getValue("usefitted");
-			String fittedIDString = attributes.getValue("fitted");
-			String fittedVersionOfIDString = attributes.getValue("fittedversionof");
+			String idString = required( values[0], "id", qName );
 
-			String startsonString =  attributes.getValue("startson");
-			String startsindexString =  attributes.getValue("startsindex");
-			String startsxString = attributes.getValue("startsx");
-			String startsyString = attributes.getValue("startsy");
-			String startszString = attributes.getValue("startsz");
-			String endsonString =  attributes.getValue("endson");
-			String endsindexString =  attributes.getValue("endsindex");
-			String endsxString = attributes.getValue("endsx");
-			String endsyString = attributes.getValue("endsy");
-			String endszString = attributes.getValue("endsz");
+			String swcTypeString = values[1];
+			String useFittedString = values[2];
+			String fittedIDString = values[3];
+			String fittedVersionOfIDString = values[4];
 
-			String nameString = attributes.getValue("name");
+			String startsonString = values[5];
+			String startsindexString = values[6];
+			String startsxString = values[7];
+			String startsyString = values[8];
+			String startszString = values[9];
+			String endsonString = values[10];
+			String endsindexString = values[11];
+			String endsxString = values[12];
+			String endsyString = values[13];
+			String endszString = values[14];
 
-			String primaryString = attributes.getValue("primary");
+			String nameString = values[15];
+
+			String primaryString = values[16];
 
 			if( startsxString == null && startsyString == null && startszString == null ) { }
 			else if( startsxString != null && startsyString != null && startszString != null ) { }
@@ -1142,12 +1057,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			try {
 
 				id = Integer.parseInt(idString);
-				if( foundIDs.contains(id) ) {
-					throw new TracesFileFormatException("There is more than one path with ID "+id);
-				}
-				current_path.setID(id);
-				if( id > maxUsedID )
-					maxUsedID = id;
+				setLoadedPathID( current_path, id );
 
 				if( swcTypeString != null ) {
 					int swcType = Integer.parseInt(swcTypeString);
@@ -1240,13 +1150,15 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 				double parsed_xd, parsed_yd, parsed_zd;
 
-				String xdString = attributes.getValue("xd");
-				String ydString = attributes.getValue("yd");
-				String zdString = attributes.getValue("zd");
+				String [] values = pointAttributes.read( attributes );
+
+				String xdString = values[0];
+				String ydString = values[1];
+				String zdString = values[2];
 
-				String xString = attributes.getValue("x");
-				String yString = attributes.getValue("y");
-				String zString = attributes.getValue("z");
+				String xString = values[3];
+				String yString = values[4];
+				String zString = values[5];
 
 				if( xdString != null &&
 				    ydString != null &&
@@ -1272,37 +1184,27 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 					throw new TracesFileFormatException("Each point element must have at least the attributes (x, y and z) or (xd, yd, zd)");
 				}
 
-				current_path.addPointDouble(parsed_xd,parsed_yd,parsed_zd);
-
-				int lastIndex = current_path.size() - 1;
-				String radiusString = attributes.getValue("r");
-				String tXString = attributes.getValue("tx");
-				String tYString = attributes.getValue("ty");
-				String tZString = attributes.getValue("tz");
+				String radiusString = values[6];
+				String tXString = values[7];
+				String tYString = values[8];
+				String tZString = values[9];
 
 				if( radiusString != null &&
 				    tXString != null &&
 				    tYString != null &&
 				    tZString != null ) {
-					if( lastIndex == 0 )
-						// Then we've just started, create the arrays in Path:
-						current_path.createCircles();
-					else if( ! current_path.hasCircles() )
-						throw new TracesFileFormatException("The point at index " + lastIndex + " had a fitted circle, but none previously did");
-					current_path.tangents_x[lastIndex] = Double.parseDouble( tXString );
-					current_path.tangents_y[lastIndex] = Double.parseDouble( tYString );
-					current_path.tangents_z[lastIndex] = Double.parseDouble( tZString );
-					current_path.radiuses[lastIndex] = Double.parseDouble( radiusString );
+					addLoadedPoint( parsed_xd, parsed_yd, parsed_zd, true,
+							Double.parseDouble( radiusString ),
+							Double.parseDouble( tXString ),
+							Double.parseDouble( tYString ),
+							Double.parseDouble( tZString ) );
 				} else if( radiusString != null ||
 					   tXString != null ||
 					   tYString != null ||
 					   tZString != null )
 					throw new TracesFileFormatException("If one of the r, tx, ty or tz attributes to the point element is specified, they all must be");
-				else {
-					// All circle attributes are null:
-					if( current_path.hasCircles() )
-						throw new TracesFileFormatException("The point at index " + lastIndex + " had no fitted circle, but all previously did");
-				}
+				else
+					addLoadedPoint( parsed_xd, parsed_yd, parsed_zd, false, 0, 0, 0, 0 );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <imagesize/>");
@@ -1319,12 +1221,12 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 				current_fill = new Fill();
 
-				String metric = attributes.getValue("metric");
+				String metric = required( attributes.getValue("metric"), "metric", qName );
 				current_fill.setMetric(metric);
 
 				last_fill_node_id = -1;
 
-				String fill_id_string = attributes.getValue("id");
+				String fill_id_string = required( attributes.getValue("id"), "id", qName );
 
 				int fill_id = Integer.parseInt(fill_id_string);
 
@@ -1347,7 +1249,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 				last_fill_id = fill_id;
 
-				String thresholdString = attributes.getValue("threshold");
+				String thresholdString = required( attributes.getValue("threshold"), "threshold", qName );
 				double fillThreshold = Double.parseDouble(thresholdString);
 
 				current_fill.setThreshold(fillThreshold);
@@ -1361,12 +1263,14 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 			try {
 
-				String xString = attributes.getValue("x");
-				String yString = attributes.getValue("y");
-				String zString = attributes.getValue("z");
-				String idString = attributes.getValue("id");
-				String distanceString = attributes.getValue("distance");
-				String previousString = attributes.getValue("previousid");
+				String [] values = nodeAttributes.read( attributes );
+
+				String xString = required( values[0], "x", qName );
+				String yString = required( values[1], "y", qName );
+				String zString = required( values[2], "z", qName );
+				String idString = required( values[3], "id", qName );
+				String distanceString = required( values[4], "distance", qName );
+				String previousString = values[5];
 
 				int parsed_x = Integer.parseInt(xString);
 				int parsed_y = Integer.parseInt(yString);
@@ -1379,20 +1283,15 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				else
 					parsed_previous = Integer.parseInt(previousString);
 
-				if( parsed_id != (last_fill_node_id + 1) ) {
-					throw new TracesFileFormatException("Fill node IDs weren't consecutive integers");
-				}
-
-				String openString = attributes.getValue("status");
-
-				current_fill.add( parsed_x,
-						  parsed_y,
-						  parsed_z,
-						  parsed_distance,
-						  parsed_previous,
-						  openString.equals("open") );
+				String openString = required( values[6], "status", qName );
 
-				last_fill_node_id = parsed_id;
+				addLoadedNode( parsed_x,
+					       parsed_y,
+					       parsed_z,
+					       parsed_id,
+					       parsed_distance,
+					       parsed_previous,
+					       openString.equals("open") );
 
 			} catch( NumberFormatException e ) {
 				throw new TracesFileFormatException("There was an invalid attribute to <node/>: "+e);
@@ -1404,6 +1303,47 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	}
 
+	/* These two are used both for <point> and <node> elements
+	   from the SAX parser and by TracesFileReader, which parses
+	   them itself for speed: */
+
+	void addLoadedPoint( double xd, double yd, double zd, boolean hasCircle, double r, double tx, double ty, double tz ) throws TracesFileFormatException {
+
+		if( current_path == null )
+			throw new TracesFileFormatException("A <point> must be inside a <path>");
+
+		current_path.addPointDouble(xd,yd,zd);
+
+		int lastIndex = current_path.size() - 1;
+		if( hasCircle ) {
+			if( lastIndex == 0 )
+				// Then we've just started, create the arrays in Path:
+				current_path.createCircles();
+			else if( ! current_path.hasCircles() )
+				throw new TracesFileFormatException("The point at index " + lastIndex + " had a fitted circle, but none previously did");
+			current_path.tangents_x[lastIndex] = tx;
+			current_path.tangents_y[lastIndex] = ty;
+			current_path.tangents_z[lastIndex] = tz;
+			current_path.radiuses[lastIndex] = r;
+		} else if( current_path.hasCircles() ) {
+			throw new TracesFileFormatException("The point at index " + lastIndex + " had no fitted circle, but all previously did");
+		}
+	}
+
+	void addLoadedNode( int x, int y, int z, int id, double distance, int previous, boolean open ) throws TracesFileFormatException {
+
+		if( current_fill == null )
+			throw new TracesFileFormatException("A <node> must be inside a <fill>");
+
+		if( id != (last_fill_node_id + 1) ) {
+			throw new TracesFileFormatException("Fill node IDs weren't consecutive integers");
+		}
+
+		current_fill.add( x, y, z, distance, previous, open );
+
+		last_fill_node_id = id;
+	}
+
 	public void addTo3DViewer( Path p ) {
 		if( plugin != null && plugin.use3DViewer && p.fittedVersionOf == null && p.size() > 1 ) {
 			Path pathToAdd;
@@ -1420,100 +1360,135 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		if( qName.equals("path") ) {
 
-			allPaths.add( current_path );
+			current_path.trimToSize();
+			loadedPaths.add( current_path );
+			current_path = null;
 
 		} else if( qName.equals("fill") ) {
 
-			allFills.add( current_fill );
+			loadedFills.add( current_fill );
+			current_fill = null;
 
 		} else if( qName.equals("tracings") ) {
 
 			// Then we've finished...
+			finishLoading();
+		}
 
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-
-				Integer startID = startJoins.get(p.getID());
-				Integer startIndexInteger = startJoinsIndices.get(p.getID());
-				PointInImage startJoinPoint = startJoinsPoints.get(p.getID());
-				Integer endID = endJoins.get(p.getID());
-				Integer endIndexInteger = endJoinsIndices.get(p.getID());
-				PointInImage endJoinPoint = endJoinsPoints.get(p.getID());
-				Integer fittedID = fittedFields.get(p.getID());
-				Integer fittedVersionOfID = fittedVersionOfFields.get(p.getID());
-				Boolean useFitted = useFittedFields.get(p.getID());
-
-				if( startID != null ) {
-					Path startPath = getPathFromID(startID);
-					if( startJoinPoint == null ) {
-						// Then we have to get it from startIndexInteger:
-						startJoinPoint = startPath.getPointInImage(startIndexInteger.intValue());
-					}
-					p.setStartJoin( startPath, startJoinPoint );
-				}
-				if( endID != null ) {
-					Path endPath = getPathFromID(endID);
-					if( endJoinPoint == null ) {
-						// Then we have to get it from endIndexInteger:
-						endJoinPoint = endPath.getPointInImage(endIndexInteger.intValue());
-					}
-					p.setEndJoin( endPath, endJoinPoint );
-				}
-				if( fittedID != null ) {
-					Path fitted = getPathFromID(fittedID);
-					p.fitted = fitted;
-					p.setUseFitted(useFitted.booleanValue());
+	}
+
+	/* Once all the paths and fills have been loaded, resolve the
+	   joins, fitted versions and fills' source paths, and add
+	   them all to this PathAndFillManager: */
+	void finishLoading( ) throws TracesFileFormatException {
+
+		for( int i = 0; i < loadedPaths.size(); ++i ) {
+			Path p = loadedPaths.get(i);
+
+			Integer startID = startJoins.get(p.getID());
+			Integer startIndexInteger = startJoinsIndices.get(p.getID());
+			PointInImage startJoinPoint = startJoinsPoints.get(p.getID());
+			Integer endID = endJoins.get(p.getID());
+			Integer endIndexInteger = endJoinsIndices.get(p.getID());
+			PointInImage endJoinPoint = endJoinsPoints.get(p.getID());
+			Integer fittedID = fittedFields.get(p.getID());
+			Integer fittedVersionOfID = fittedVersionOfFields.get(p.getID());
+			Boolean useFitted = useFittedFields.get(p.getID());
+
+			if( startID != null ) {
+				Path startPath = loadedPath( startID );
+				if( startJoinPoint == null ) {
+					// Then we have to get it from startIndexInteger:
+					startJoinPoint = startPath.getPointInImage(startIndexInteger.intValue());
 				}
-				if( fittedVersionOfID != null ) {
-					Path fittedVersionOf = getPathFromID(fittedVersionOfID);
-					p.fittedVersionOf = fittedVersionOf;
+				p.setStartJoin( startPath, startJoinPoint );
+			}
+			if( endID != null ) {
+				Path endPath = loadedPath( endID );
+				if( endJoinPoint == null ) {
+					// Then we have to get it from endIndexInteger:
+					endJoinPoint = endPath.getPointInImage(endIndexInteger.intValue());
 				}
+				p.setEndJoin( endPath, endJoinPoint );
+			}
+			if( fittedID != null ) {
+				Path fitted = loadedPath( fittedID );
+				p.fitted = fitted;
+				p.fittedModificationCount = p.getModificationCount();
+				p.setUseFitted(useFitted.booleanValue());
 			}
+			if( fittedVersionOfID != null ) {
+				Path fittedVersionOf = loadedPath( fittedVersionOfID );
+				p.fittedVersionOf = fittedVersionOf;
+			}
+		}
 
-			// Do some checks that the fitted and fittedVersionOf fields match up:
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-				if( p.fitted != null ) {
-					if( p.fitted.fittedVersionOf == null )
-						throw new TracesFileFormatException("Malformed traces file: p.fitted.fittedVersionOf was null");
-					else if( p != p.fitted.fittedVersionOf )
-						throw new TracesFileFormatException("Malformed traces file: p didn't match p.fitted.fittedVersionOf");
-				} else if( p.fittedVersionOf != null ) {
-					if( p.fittedVersionOf.fitted == null )
-						throw new TracesFileFormatException("Malformed traces file: p.fittedVersionOf.fitted was null");
-					else if( p != p.fittedVersionOf.fitted )
-						throw new TracesFileFormatException("Malformed traces file: p didn't match p.fittedVersionOf.fitted");
-				}
-				if( p.useFitted && p.fitted == null ) {
-					throw new TracesFileFormatException("Malformed traces file: p.useFitted was true but p.fitted was null");
-				}
+		// Do some checks that the fitted and fittedVersionOf fields match up:
+		for( int i = 0; i < loadedPaths.size(); ++i ) {
+			Path p = loadedPaths.get(i);
+			if( p.fitted != null ) {
+				if( p.fitted.fittedVersionOf == null )
+					throw new TracesFileFormatException("Malformed traces file: p.fitted.fittedVersionOf was null");
+				else if( p != p.fitted.fittedVersionOf )
+					throw new TracesFileFormatException("Malformed traces file: p didn't match p.fitted.fittedVersionOf");
+			} else if( p.fittedVersionOf != null ) {
+				if( p.fittedVersionOf.fitted == null )
+					throw new TracesFileFormatException("Malformed traces file: p.fittedVersionOf.fitted was null");
+				else if( p != p.fittedVersionOf.fitted )
+					throw new TracesFileFormatException("Malformed traces file: p didn't match p.fittedVersionOf.fitted");
+			}
+			if( p.useFitted && p.fitted == null ) {
+				throw new TracesFileFormatException("Malformed traces file: p.useFitted was true but p.fitted was null");
 			}
+		}
 
-			// Now we're safe to add them all to the 3D Viewer
-			for( int i = 0; i < allPaths.size(); ++i ) {
-				Path p = allPaths.get(i);
-				addTo3DViewer( p );
+		// Now turn the source paths into real paths...
+		for( int i = 0; i < loadedFills.size(); ++i ) {
+			Fill f = loadedFills.get(i);
+			Set<Path> realSourcePaths = new HashSet<Path>();
+			int [] sourcePathIDs = sourcePathIDForFills.get(i);
+			for( int j = 0; j < sourcePathIDs.length; ++j ) {
+				Path sourcePath = loadedPathsByID.get(sourcePathIDs[j]);
+				if( sourcePath != null )
+					realSourcePaths.add( sourcePath );
 			}
+			f.setSourcePaths( realSourcePaths );
+		}
 
-			// Now turn the source paths into real paths...
-			for( int i = 0; i < allFills.size(); ++i ) {
-				Fill f = allFills.get(i);
-				Set<Path> realSourcePaths = new HashSet<Path>();
-				int [] sourcePathIDs = sourcePathIDForFills.get(i);
-				for( int j = 0; j < sourcePathIDs.length; ++j ) {
-					Path sourcePath = getPathFromID(sourcePathIDs[j]);
-					if( sourcePath != null )
-						realSourcePaths.add( sourcePath );
-				}
-				f.setSourcePaths( realSourcePaths );
+		synchronized( this ) {
+			for( Path p : loadedPaths ) {
+				finishStorage( p );
+				spatialIndex.add( p );
 			}
+			allPaths.addAll( loadedPaths );
+			allFills.addAll( loadedFills );
+		}
 
-			setSelected( new Path[0], this );
-			resetListeners( null, true );
-			if( plugin != null )
-				plugin.repaintAllPanes();
+		// Now we're safe to add them all to the 3D Viewer
+		if( plugin != null && plugin.use3DViewer && plugin.getMergePaths3D() ) {
+			update3DViewerContents();
+		} else {
+			for( int i = 0; i < loadedPaths.size(); ++i ) {
+				Path p = loadedPaths.get(i);
+				addTo3DViewer( p );
+			}
 		}
 
+		loadedPaths = null;
+		loadedFills = null;
+		loadedPathsByID = null;
+
+		setSelected( new Path[0], this );
+		resetListeners( null, true );
+		if( plugin != null )
+			plugin.repaintAllPanes();
+	}
+
+	Path loadedPath( int id ) throws TracesFileFormatException {
+		Path p = loadedPathsByID.get( id );
+		if( p == null )
+			throw new TracesFileFormatException("Malformed traces file: there's no path with ID "+id);
+		return p;
 	}
 
 	public static PathAndFillManager createFromTracesFile( String filename ) {
@@ -1533,19 +1508,61 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	}
 
+	/* By default, traces files aren't validated against the DTD
+	   when loading, since that takes much longer for large files
+	   and the loader checks everything it depends on anyway.
+	   Strict validation can be switched on here: */
+	protected boolean validateTracesFiles = false;
+
+	public void setValidateTracesFiles( boolean validate ) {
+		this.validateTracesFiles = validate;
+	}
+
+	public boolean getValidateTracesFiles( ) {
+		return validateTracesFiles;
+	}
+
+	/* DefaultHandler ignores validation errors, so make them fatal
+	   if validation was asked for: */
+	@Override
+	public void error( SAXParseException e ) throws SAXException {
+		if( validateTracesFiles )
+			throw e;
+	}
+
 	public boolean load( InputStream is, Reader reader ) {
 
+		loadedPaths = null;
+		current_path = null;
+		current_fill = null;
+
 		try {
 
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setValidating(true);
-			SAXParser parser = factory.newSAXParser();
+			/* Unless validation has been asked for, use the
+			   much faster TracesFileReader where possible: */
+			TracesFileReader tracesFileReader = null;
+			if( is != null && ! validateTracesFiles ) {
+				tracesFileReader = new TracesFileReader( is );
+				if( tracesFileReader.hasSupportedEncoding() ) {
+					tracesFileReader.read( this );
+				} else {
+					is = tracesFileReader.remainingInput();
+					tracesFileReader = null;
+				}
+			}
+
+			if( tracesFileReader == null ) {
 
-			if( is != null )
-				parser.parse( is, this );
-			else if( reader != null ) {
-				InputSource inputSource=new InputSource(reader);
-				parser.parse( inputSource, this );
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setValidating(validateTracesFiles);
+				SAXParser parser = factory.newSAXParser();
+
+				if( is != null )
+					parser.parse( is, this );
+				else if( reader != null ) {
+					InputSource inputSource=new InputSource(reader);
+					parser.parse( inputSource, this );
+				}
 			}
 
 			// We must have got the image data if we've got to this stage...
@@ -1586,9 +1603,12 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		if( plugin != null && plugin.use3DViewer ) {
 			for( Path p : allPaths )
 				p.removeFrom3DViewer( plugin.univ );
+			if( mergedPaths3D != null )
+				mergedPaths3D.removeFromViewer();
 		}
 		allPaths.clear();
 		allFills.clear();
+		spatialIndex.clear();
 		resetListeners( null );
 	}
 
@@ -1631,19 +1651,92 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				  double x_scale, double y_scale, double z_scale,
 				  boolean replaceAllPaths ) throws IOException {
 
+		SWCReader swc = new SWCReader();
+		try {
+			swc.read( br );
+		} catch( SWCImportException e ) {
+			IJ.error( e.getMessage() );
+			return false;
+		}
+		return importSWC( swc, assumeCoordinatesIndexVoxels,
+				  x_offset, y_offset, z_offset,
+				  x_scale, y_scale, z_scale,
+				  replaceAllPaths );
+	}
+
+	boolean importSWC( SWCReader swc, boolean assumeCoordinatesIndexVoxels,
+			   double x_offset, double y_offset, double z_offset,
+			   double x_scale, double y_scale, double z_scale,
+			   boolean replaceAllPaths ) {
+		try {
+			int pointsOutsideImageRange = addSWC( swc, assumeCoordinatesIndexVoxels,
+							      x_offset, y_offset, z_offset,
+							      x_scale, y_scale, z_scale,
+							      replaceAllPaths );
+			if( pointsOutsideImageRange > 0 )
+				IJ.log("Warning: "+pointsOutsideImageRange+" points were outside the image volume - you may need to change your SWC import options");
+			return true;
+		} catch( SWCImportException e ) {
+			IJ.error( e.getMessage() );
+			return false;
+		}
+	}
+
+	/* Adds paths for the points that have been read by an
+	   SWCReader.  Each path starts at a point with no parent, or
+	   at a branch point, and follows the first child of each point
+	   until there are no more.  Returns the number of coordinates
+	   that were outside the image volume, so that the caller can
+	   warn about them.  (Nothing here reports errors via IJ, so
+	   this can be used from SWCDirectoryImport.) */
+	int addSWC( SWCReader swc, boolean assumeCoordinatesIndexVoxels,
+		    double x_offset, double y_offset, double z_offset,
+		    double x_scale, double y_scale, double z_scale,
+		    boolean replaceAllPaths ) throws SWCImportException {
+
 		if( needImageDataFromTracesFile )
 			throw new RuntimeException( "[BUG] Trying to load SWC file while we still need image data information" );
 
-		if( replaceAllPaths )
-			clearPathsAndFills( );
-
-		Pattern pEmpty = Pattern.compile("^\\s*$");
-		Pattern pComment = Pattern.compile("^([^#]*)#.*$");
+		int n = swc.size();
 
-		Set< Integer > alreadySeen = new HashSet< Integer >();
-		Map< Integer, SWCPoint > idToSWCPoint = new HashMap< Integer, SWCPoint >();
+		HashMap< Integer, Integer > indexFromID = new HashMap< Integer, Integer >( n * 2 );
+		for( int i = 0; i < n; ++i ) {
+			if( indexFromID.put( swc.ids[i], i ) != null )
+				throw new SWCImportException( "Point with ID "+swc.ids[i]+" found more than once" );
+		}
 
-		List<SWCPoint> primaryPoints = new ArrayList<SWCPoint>();
+		/* The parent of each point, as an index, and its
+		   children, in the order they appear in the file: */
+		int [] parent = new int[n];
+		int [] childCount = new int[n];
+		for( int i = 0; i < n; ++i ) {
+			if( swc.parents[i] == -1 ) {
+				parent[i] = -1;
+				continue;
+			}
+			Integer parentIndex = indexFromID.get( swc.parents[i] );
+			if( parentIndex == null )
+				throw new SWCImportException( "The parent ("+swc.parents[i]+") of the point with ID "+swc.ids[i]+" doesn't exist" );
+			parent[i] = parentIndex;
+			++ childCount[parentIndex];
+		}
+		/* Each path takes the SWC type of its last point, which
+		   is a point with no children, so only those points need
+		   a type that Path knows about; other points may have
+		   custom types: */
+		for( int i = 0; i < n; ++i )
+			if( childCount[i] == 0 && (swc.types[i] < 0 || swc.types[i] >= Path.swcTypeNames.length) )
+				throw new SWCImportException( "Point with ID "+swc.ids[i]+", which ends a path, has an unknown SWC type ("+swc.types[i]+")" );
+		int [] firstChild = new int[n + 1];
+		for( int i = 0; i < n; ++i )
+			firstChild[i + 1] = firstChild[i] + childCount[i];
+		int [] children = new int[firstChild[n]];
+		int [] added = new int[n];
+		for( int i = 0; i < n; ++i )
+			if( parent[i] >= 0 ) {
+				int p = parent[i];
+				children[firstChild[p] + added[p]++] = i;
+			}
 
 		/* Some SWC files I've tried use world co-ordinates
 		   (good) but some seem to have the sign wrong, so
@@ -1662,160 +1755,122 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		int pointsOutsideImageRange = 0;
 
-		String line;
-		while( (line = br.readLine()) != null ) {
-			Matcher mComment = pComment.matcher(line);
-			line = mComment.replaceAll("$1").trim();
-			Matcher mEmpty = pEmpty.matcher(line);
-			if( mEmpty.matches() )
-				continue;
-			String [] fields = line.split("\\s+");
-			if( fields.length != 7 ) {
-				IJ.error("Wrong number of fields ("+fields.length+") in line: "+line);
-				return false;
-			}
-			try {
-				int id = Integer.parseInt(fields[0]);
-				int type = Integer.parseInt(fields[1]);
-				double x = x_scale * Double.parseDouble(fields[2]) + x_offset;
-				double y = y_scale * Double.parseDouble(fields[3]) + y_offset;
-				double z = z_scale * Double.parseDouble(fields[4]) + z_offset;
-				if( assumeCoordinatesIndexVoxels ) {
-					x *= x_spacing;
-					y *= y_spacing;
-					z *= z_spacing;
-				}
-				double radius = Double.parseDouble(fields[5]);
-				if( assumeCoordinatesIndexVoxels ) {
-					/* See the comment above; this just seems to be the
-					   convention in the broken files that I've come across: */
-					radius *= minimumVoxelSpacing;
-				}
-
-				/* If the radius is set to near zero,
-				   then artificially set it to half of
-				   the voxel spacing so that
-				   *something* appears in the 3D Viewer */
-
-				if( Math.abs(radius) < 0.0000001 )
-					radius = minimumVoxelSpacing / 2;
+		double [] xs = new double[n];
+		double [] ys = new double[n];
+		double [] zs = new double[n];
+		double [] radii = new double[n];
 
-				int previous = Integer.parseInt(fields[6]);
-				if( alreadySeen.contains(id) ) {
-					IJ.error("Point with ID "+id+" found more than once");
-					return false;
-				}
-				alreadySeen.add( id );
-
-				if( x < minX || x > maxX )
-					++ pointsOutsideImageRange;
-				if( y < minY || y > maxY )
-					++ pointsOutsideImageRange;
-				if( z < minZ || z > maxZ )
-					++ pointsOutsideImageRange;
-
-				SWCPoint p = new SWCPoint( id, type, x, y, z, radius, previous );
-				idToSWCPoint.put( id, p );
-				if( previous == -1 )
-					primaryPoints.add( p );
-				else {
-					SWCPoint previousPoint = idToSWCPoint.get( previous );
-					p.previousPoint = previousPoint;
-					previousPoint.addNextPoint( p );
-				}
-			} catch( NumberFormatException nfe ) {
-				IJ.error( "There was a malformed number in line: "+line );
-				return false;
+		for( int i = 0; i < n; ++i ) {
+			double x = x_scale * swc.xs[i] + x_offset;
+			double y = y_scale * swc.ys[i] + y_offset;
+			double z = z_scale * swc.zs[i] + z_offset;
+			double radius = swc.radii[i];
+			if( assumeCoordinatesIndexVoxels ) {
+				x *= x_spacing;
+				y *= y_spacing;
+				z *= z_spacing;
+				/* See the comment above; this just seems to be the
+				   convention in the broken files that I've come across: */
+				radius *= minimumVoxelSpacing;
 			}
-		}
 
-		if( pointsOutsideImageRange > 0 )
-			IJ.log("Warning: "+pointsOutsideImageRange+" points were outside the image volume - you may need to change your SWC import options");
-
-		HashMap< SWCPoint, Path > pointToPath =
-			new HashMap< SWCPoint, Path >();
-
-		PriorityQueue< SWCPoint > backtrackTo =
-			new PriorityQueue< SWCPoint >();
-
-		for( SWCPoint start : primaryPoints )
-			backtrackTo.add( start );
+			/* If the radius is set to near zero,
+			   then artificially set it to half of
+			   the voxel spacing so that
+			   *something* appears in the 3D Viewer */
+
+			if( Math.abs(radius) < 0.0000001 )
+				radius = minimumVoxelSpacing / 2;
+
+			if( x < minX || x > maxX )
+				++ pointsOutsideImageRange;
+			if( y < minY || y > maxY )
+				++ pointsOutsideImageRange;
+			if( z < minZ || z > maxZ )
+				++ pointsOutsideImageRange;
+
+			xs[i] = x;
+			ys[i] = y;
+			zs[i] = z;
+			radii[i] = radius;
+		}
 
-		HashMap< Path, SWCPoint > pathStartsOnSWCPoint =
-			new HashMap< Path, SWCPoint >();
-		HashMap< Path, PointInImage > pathStartsAtPointInImage =
-			new HashMap< Path, PointInImage >();
+		if( replaceAllPaths )
+			clearPathsAndFills( );
 
-		SWCPoint start;
-		Path currentPath;
-		while( (start = backtrackTo.poll()) != null ) {
-			currentPath = new Path( x_spacing, y_spacing, z_spacing, spacing_units );
-			currentPath.createCircles();
-			int added = 0;
-			if( start.previousPoint != null ) {
-				SWCPoint beforeStart = start.previousPoint;
-				pathStartsOnSWCPoint.put( currentPath, beforeStart );
-				pathStartsAtPointInImage.put( currentPath, beforeStart.getPointInImage() );
-				currentPath.addPointDouble( beforeStart.x,
-							    beforeStart.y,
-							    beforeStart.z );
-				currentPath.radiuses[added] = beforeStart.radius;
-				++ added;
+		/* The merged paths in the 3D viewer are only updated
+		   once all the paths have been added: */
+		defer3DUpdates();
+		try {
 
-			}
-			// Now we can start adding points to the path:
-			SWCPoint currentPoint = start;
-			while( currentPoint != null ) {
-				currentPath.addPointDouble( currentPoint.x,
-							    currentPoint.y,
-							    currentPoint.z );
-				currentPath.radiuses[added] = currentPoint.radius;
-				++ added;
-				pointToPath.put( currentPoint, currentPath );
-				/* Remove each one from "alreadySeen"
-				   when we add it to a path, just to
-				   check that nothing's left at the
-				   end, which indicates that the file
-				   is malformed. */
-				alreadySeen.remove( currentPoint.id );
-				if( currentPoint.nextPoints.size() > 0 ) {
-					SWCPoint newCurrentPoint = currentPoint.nextPoints.get(0);
-					currentPoint.nextPoints.remove(0);
-					for( int i = 0; i < currentPoint.nextPoints.size(); ++i ) {
-						SWCPoint pointToQueue = currentPoint.nextPoints.get(i);
-						backtrackTo.add( pointToQueue );
+			/* Paths are started from the queued points in order of
+			   their IDs: */
+			PriorityQueue< Integer > backtrackTo = new PriorityQueue< Integer >();
+			for( int i = 0; i < n; ++i )
+				if( parent[i] == -1 )
+					backtrackTo.add( swc.ids[i] );
+
+			Path [] pointToPath = new Path[n];
+			ArrayList< Path > pathsStartingOnPoints = new ArrayList< Path >();
+			ArrayList< Integer > startPoints = new ArrayList< Integer >();
+			int pointsUsed = 0;
+
+			Integer startID;
+			while( (startID = backtrackTo.poll()) != null ) {
+				int start = indexFromID.get( startID );
+				Path currentPath = new Path( x_spacing, y_spacing, z_spacing, spacing_units );
+				currentPath.createCircles();
+				int pointsInPath = 0;
+				if( parent[start] >= 0 ) {
+					int beforeStart = parent[start];
+					pathsStartingOnPoints.add( currentPath );
+					startPoints.add( beforeStart );
+					currentPath.addPointDouble( xs[beforeStart], ys[beforeStart], zs[beforeStart] );
+					currentPath.radiuses[pointsInPath] = radii[beforeStart];
+					++ pointsInPath;
+				}
+				// Now we can start adding points to the path:
+				int currentPoint = start;
+				while( currentPoint >= 0 ) {
+					currentPath.addPointDouble( xs[currentPoint], ys[currentPoint], zs[currentPoint] );
+					currentPath.radiuses[pointsInPath] = radii[currentPoint];
+					++ pointsInPath;
+					pointToPath[currentPoint] = currentPath;
+					++ pointsUsed;
+					int from = firstChild[currentPoint], to = firstChild[currentPoint + 1];
+					if( from < to ) {
+						for( int c = from + 1; c < to; ++c )
+							backtrackTo.add( swc.ids[children[c]] );
+						currentPoint = children[from];
+					} else {
+						currentPath.setSWCType(swc.types[currentPoint]); // Assign point type to path
+						currentPoint = -1;
 					}
-					currentPoint = newCurrentPoint;
-				} else {
-					currentPath.setSWCType(currentPoint.type); // Assign point type to path
-					currentPoint = null;
 				}
+				currentPath.setGuessedTangents( 2 );
+				addPath( currentPath );
 			}
-			currentPath.setGuessedTangents( 2 );
-			addPath( currentPath );
-		}
 
-		if( alreadySeen.size() > 0 ) {
-			IJ.error( "Malformed file: there are some misconnected points" );
-			for( int i : alreadySeen ) {
-				SWCPoint p = idToSWCPoint.get( i );
-				System.out.println( "  Misconnected: " + p);
+			/* Any points that weren't reached from a point with no
+			   parent must be in a loop: */
+			if( pointsUsed < n ) {
+				int example = 0;
+				while( pointToPath[example] != null )
+					++ example;
+				throw new SWCImportException( "Malformed file: there are some misconnected points ("+(n - pointsUsed)+", including the point with ID "+swc.ids[example]+")" );
 			}
-			return false;
-		}
 
-		// Set the start joins:
-		for( Path p : allPaths ) {
-			SWCPoint swcPoint = pathStartsOnSWCPoint.get( p );
-			if( swcPoint == null )
-				continue;
-			Path previousPath = pointToPath.get(swcPoint);
-			PointInImage pointInImage = pathStartsAtPointInImage.get( p );
-			p.setStartJoin( previousPath, pointInImage );
+			// Set the start joins:
+			for( int i = 0; i < pathsStartingOnPoints.size(); ++i ) {
+				int point = startPoints.get( i );
+				pathsStartingOnPoints.get( i ).setStartJoin( pointToPath[point], new PointInImage( xs[point], ys[point], zs[point] ) );
+			}
+		} finally {
+			finishDeferred3DUpdates();
 		}
 
 		resetListeners( null, true );
-		return true;
+		return pointsOutsideImageRange;
 	}
 
 	public boolean importSWC( String filename, boolean ignoreCalibration ) {
@@ -1833,32 +1888,32 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			return false;
 		}
 
-		InputStream is = null;
-		boolean result = false;
+		SWCReader swc = new SWCReader();
 
 		try {
 
-			is = new BufferedInputStream(new FileInputStream(filename));
-			BufferedReader br = new BufferedReader(new InputStreamReader(is,"UTF-8"));
-
-			result = importSWC(br,ignoreCalibration,x_offset,y_offset,z_offset,x_scale,y_scale,z_scale,replaceAllPaths);
-
-			if( is != null )
+			InputStream is = new FileInputStream(filename);
+			try {
+				swc.read( is );
+			} finally {
 				is.close();
+			}
 
 		} catch( IOException ioe ) {
 			IJ.error("Couldn't open file '"+filename+"' for reading.");
 			return false;
+		} catch( SWCImportException e ) {
+			IJ.error( e.getMessage() );
+			return false;
 		}
 
-		return result;
-
-
+		return importSWC(swc,ignoreCalibration,x_offset,y_offset,z_offset,x_scale,y_scale,z_scale,replaceAllPaths);
 	}
 
 	public static final int TRACES_FILE_TYPE_COMPRESSED_XML = 1;
 	public static final int TRACES_FILE_TYPE_UNCOMPRESSED_XML = 2;
 	public static final int TRACES_FILE_TYPE_SWC = 3;
+	public static final int TRACES_FILE_TYPE_BINARY = 4;
 
 	public static int guessTracesFileType( String filename ) {
 
@@ -1871,6 +1926,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		   If it begins "<?xml", assume it's an uncompressed
 		   traces file.
 
+		   If it begins with TracesBinaryFile.MAGIC, it's a
+		   binary traces file.
+
 		   Otherwise, assum it's an SWC file.
 		*/
 
@@ -1893,6 +1951,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				  (buf[2] == 'x') && (buf[3] == 'm') &&
 				  (buf[4] == 'l') && (buf[5] == ' ')) )
 				return TRACES_FILE_TYPE_UNCOMPRESSED_XML;
+			else if( TracesBinaryFile.hasMagic( buf ) )
+				return TRACES_FILE_TYPE_BINARY;
 
 		} catch (IOException e) {
 			IJ.error("Couldn't read from file: "+filename);
@@ -1905,7 +1965,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	public boolean loadCompressedXML( String filename ) {
 		try {
 			if (verbose) System.out.println("Loading gzipped file...");
-			return load( new GZIPInputStream(new BufferedInputStream(new FileInputStream(filename))), null );
+			return load( new GZIPInputStream(new BufferedInputStream(new FileInputStream(filename),65536),65536), null );
 		} catch( IOException ioe ) {
 			IJ.error("Couldn't open file '"+filename+"' for reading\n(n.b. it was expected to be compressed XML)");
 			return false;
@@ -1915,13 +1975,30 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	public boolean loadUncompressedXML( String filename ) {
 		try {
 			if (verbose) System.out.println("Loading uncompressed file...");
-			return load( new BufferedInputStream(new FileInputStream(filename)), null );
+			return load( new BufferedInputStream(new FileInputStream(filename),65536), null );
 		} catch( IOException ioe ) {
 			IJ.error("Couldn't open file '"+filename+"' for reading\n(n.b. it was expected to be XML)");
 			return false;
 		}
 	}
 
+	public boolean loadBinary( String filename ) {
+		try {
+			if (verbose) System.out.println("Loading binary file...");
+			TracesBinaryFile.open( filename ).addTo( this );
+			needImageDataFromTracesFile = false;
+			return true;
+		} catch( TracesFileFormatException e ) {
+			clearPathsAndFills();
+			IJ.error(e.toString());
+			return false;
+		} catch( IOException e ) {
+			clearPathsAndFills();
+			IJ.error("Couldn't load the binary traces file '"+filename+"': "+e);
+			return false;
+		}
+	}
+
 	public boolean loadGuessingType( String filename ) {
 
 		int guessedType = guessTracesFileType( filename );
@@ -1933,6 +2010,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			return loadUncompressedXML(filename);
 		case TRACES_FILE_TYPE_SWC:
 			return importSWC( filename, false, 0, 0, 0, 1, 1, 1, true );
+		case TRACES_FILE_TYPE_BINARY:
+			return loadBinary(filename);
 		default:
 			IJ.error("guessTracesFileType() return an unknown type"+guessedType);
 			return false;
@@ -2014,40 +2093,16 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	synchronized PointInImage nearestJoinPointOnSelectedPaths( double x, double y, double z ) {
 
-		PointInImage result = null;
-
-		double minimumDistanceSquared = Double.MAX_VALUE;
-
-		int paths = allPaths.size();
-
-		for( int s = 0; s < paths; ++s ) {
-
-			Path p = allPaths.get(s);
+		assert spatialIndex.isCurrent( allPaths );
 
-			if( ! selectedPathsSet.contains(p) )
-				continue;
-
-			if( 0 == p.size() )
-				continue;
-
-			int i = p.indexNearestTo( x * x_spacing,
-						  y * y_spacing,
-						  z * z_spacing );
-
-			PointInImage nearestOnPath = p.getPointInImage( i );
-
-			double distanceSquared = nearestOnPath.distanceSquaredTo(
-				x * x_spacing,
-				y * y_spacing,
-				z * z_spacing );
-
-			if( distanceSquared < minimumDistanceSquared ) {
-				result = nearestOnPath;
-				minimumDistanceSquared = distanceSquared;
-			}
-		}
+		NearPoint np = spatialIndex.nearestPointOnPaths( x * x_spacing,
+								 y * y_spacing,
+								 z * z_spacing,
+								 selectedPathsSet );
+		if( np == null )
+			return null;
 
-		return result;
+		return np.getPath().getPointInImage( np.getIndexInPath() );
 	}
 
 	@Deprecated
@@ -2076,39 +2131,16 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	}
 	// ... end of methods for UniverseListener
 
-	public NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
+	/* Find the nearest point on any path in use to (x,y,z),
+	   considering the line segments on either side of each path
+	   point (see NearPoint.distanceToPathNearPoint()).  The
+	   spatial index means that only the points near (x,y,z) are
+	   examined; it's updated whenever a path is added, removed
+	   or changed (see pathChanged()), rather than here. */
 
-		/* Order all points in all paths by their euclidean
-		   distance to (x,y,z): */
-
-		PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
-
-		for( Path path : allPaths ) {
-			if( ! path.versionInUse() )
-				continue;
-			for( int j = 0; j < path.size(); ++j ) {
-				pq.add( new NearPoint( x, y, z, path, j ) );
-			}
-		}
-
-		while( true ) {
-
-			NearPoint np = pq.poll();
-			if( np == null )
-				return null;
-
-			/* Don't bother looking at points that are
-			   more than distanceLimit away.  Since we get
-			   them in the order closest to furthest away,
-			   if we exceed this limit returned: */
-
-			if( np.distanceToPathPointSquared() > (distanceLimit * distanceLimit) )
-				return null;
-
-			double distanceToPath = np.distanceToPathNearPoint();
-			if( distanceToPath >= 0 )
-				return np;
-		}
+	public synchronized NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
+		assert spatialIndex.isCurrent( allPaths );
+		return spatialIndex.nearestPointOnAnyPath( x, y, z, distanceLimit );
 	}
 
 	public AllPointsIterator allPointsIterator() {
@@ -2188,23 +2220,16 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	/* For each point in *this* PathAndFillManager, find the
 	   corresponding point on the other one.  If there's no
-	   corresponding one, include a null instead. */
+	   corresponding one, include a null instead.  (See
+	   TracingComparison for the other measures of agreement
+	   between two tracings.) */
 
 	public ArrayList< NearPoint > getCorrespondences( PathAndFillManager other, double maxDistance ) {
-
-		ArrayList< NearPoint > result = new ArrayList< NearPoint >();
-
-		AllPointsIterator i = allPointsIterator();
-		while( i.hasNext() ) {
-			PointInImage p = i.next();
-			NearPoint np = other.nearestPointOnAnyPath(
-				p.x,
-				p.y,
-				p.z,
-				maxDistance );
-			result.add(np);
+		try {
+			return TracingComparison.findCorrespondences( this, other, maxDistance );
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Interrupted while finding corresponding points" );
 		}
-		return result;
 	}
 
 	public static String stringForCSV( String s ) {
@@ -2364,12 +2389,34 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	   (fitted or unfitted) is being used, whether the line or
 	   surface representation is being used, or whether the path
 	   should be displayed at all (it shouldn't if the "Show only
-	   selected paths" option is set.) */
+	   selected paths" option is set.)  If the paths are merged in
+	   the 3D viewer, this is the only way they're added to it. */
+
+	MergedPaths3D mergedPaths3D;
 
 	public void update3DViewerContents() {
 		if( plugin != null && ! plugin.use3DViewer )
 			return;
 		boolean showOnlySelectedPaths = plugin.getShowOnlySelectedPaths();
+		if( plugin.getMergePaths3D() ) {
+			if( mergedPaths3D == null ) {
+				// Replace the content for each path:
+				for( Path p : allPaths )
+					p.removeFrom3DViewer( plugin.univ );
+				mergedPaths3D = new MergedPaths3D( plugin.univ );
+			}
+			mergedPaths3D.update(
+				allPaths,
+				showOnlySelectedPaths,
+				plugin.getPaths3DDisplay(),
+				plugin.selectedColor3f,
+				plugin.deselectedColor3f,
+				plugin.colorImage );
+			return;
+		} else if( mergedPaths3D != null ) {
+			mergedPaths3D.removeFromViewer();
+			mergedPaths3D = null;
+		}
 		// Now iterate over all the paths:
 		for( Path p : allPaths ) {
 
@@ -2392,7 +2439,23 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	// Note that this will transform fitted Paths but lose the radiuses
 
+	/* transformPaths() caches a slow transformation with a grid
+	   node every this many voxels (see SampledPathTransformer): */
+	public static final int TRANSFORM_VOXELS_PER_SAMPLE = 4;
+
+	/* CMTK's inverse transformation is found iteratively at each
+	   point, so it's cached; any other transformation is done
+	   exactly at each point: */
 	public PathAndFillManager transformPaths( PathTransformer transformation, ImagePlus templateImage ) {
+		boolean slow = transformation instanceof CMTKInversePathTransformer;
+		return transformPaths( transformation, templateImage, slow ? TRANSFORM_VOXELS_PER_SAMPLE : 0 );
+	}
+
+	/* If voxelsPerSample is more than zero, the transformation is
+	   cached on a grid over the paths with a node every
+	   voxelsPerSample voxels, and interpolated between the nodes
+	   (on several threads) rather than done at every point: */
+	public PathAndFillManager transformPaths( PathTransformer transformation, ImagePlus templateImage, int voxelsPerSample ) {
 
 		double pixelWidth = 1;
 		double pixelHeight = 1;
@@ -2423,6 +2486,51 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 		Path [] addedPaths = new Path[size()];
 
+		/* Transform the points of all the paths, and the join
+		   points of the paths that have joins, in one batch, in
+		   case the transformation can do that more quickly: */
+		int [] firstPoint = new int[size()];
+		int [] startJoinIndex = new int[size()];
+		int [] endJoinIndex = new int[size()];
+		int totalPoints = 0;
+		for( int i = 0; i < size(); ++i ) {
+			Path p = allPaths.get(i);
+			firstPoint[i] = totalPoints;
+			totalPoints += p.size();
+			startJoinIndex[i] = p.getStartJoins() == null ? -1 : totalPoints++;
+			endJoinIndex[i] = p.getEndJoins() == null ? -1 : totalPoints++;
+		}
+		double [] xs = new double[totalPoints];
+		double [] ys = new double[totalPoints];
+		double [] zs = new double[totalPoints];
+		for( int i = 0; i < size(); ++i ) {
+			Path p = allPaths.get(i);
+			int first = firstPoint[i];
+			int n = p.size();
+			p.getPrecisePositions( 0, n, xs, ys, zs, first );
+			if( startJoinIndex[i] >= 0 ) {
+				PointInImage join = p.getStartJoinsPoint();
+				xs[startJoinIndex[i]] = join.x;
+				ys[startJoinIndex[i]] = join.y;
+				zs[startJoinIndex[i]] = join.z;
+			}
+			if( endJoinIndex[i] >= 0 ) {
+				PointInImage join = p.getEndJoinsPoint();
+				xs[endJoinIndex[i]] = join.x;
+				ys[endJoinIndex[i]] = join.y;
+				zs[endJoinIndex[i]] = join.z;
+			}
+		}
+		PathTransformer batchTransformation = transformation;
+		if( voxelsPerSample > 0 )
+			batchTransformation = SampledPathTransformer.covering(
+				transformation, false, 0,
+				xs, ys, zs, totalPoints,
+				voxelsPerSample * Math.abs( x_spacing ),
+				voxelsPerSample * Math.abs( y_spacing ),
+				voxelsPerSample * Math.abs( z_spacing ) );
+		ParallelPathTransformer.transformPoints( batchTransformation, xs, ys, zs, xs, ys, zs, totalPoints );
+
 		int i = 0;
 		for( Path p : allPaths ) {
 
@@ -2432,7 +2540,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				endJoinsPoints[i] = null;
 			} else {
 				startJoinsIndices[i] = allPaths.indexOf(startJoin);
-				PointInImage transformedPoint = p.getStartJoinsPoint().transform( transformation );
+				int j = startJoinIndex[i];
+				PointInImage transformedPoint = new PointInImage( xs[j], ys[j], zs[j] );
 				if( transformedPoint.isReal() )
 					startJoinsPoints[i] = transformedPoint;
 			}
@@ -2443,12 +2552,13 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				endJoinsPoints[i] = null;
 			} else {
 				endJoinsIndices[i] = allPaths.indexOf(endJoin);
-				PointInImage transformedPoint = p.getEndJoinsPoint().transform( transformation );
+				int j = endJoinIndex[i];
+				PointInImage transformedPoint = new PointInImage( xs[j], ys[j], zs[j] );
 				if( transformedPoint.isReal() )
 					endJoinsPoints[i] = transformedPoint;
 			}
 
-			Path transformedPath = p.transform( transformation, templateImage, imagePlus );
+			Path transformedPath = p.transformed( xs, ys, zs, firstPoint[i], templateImage );
 			if( transformedPath.size() >= 2 ) {
 				addedPaths[i] = transformedPath;
 				pafmResult.addPath( transformedPath );
@@ -2471,9 +2581,20 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return pafmResult;
 	}
 
-	public void downsampleAll(double maximumPermittedDistance) {
+	public synchronized void downsampleAll(double maximumPermittedDistance) {
 		for (Path p : allPaths) {
 			p.downsample(maximumPermittedDistance);
+			pathChanged( p );
 		}
 	}
+
+	/* This should be called after the points of a path that's
+	   been added are changed in place, e.g. by downsampling it,
+	   so that it's stored and indexed again: */
+	public synchronized void pathChanged( Path p ) {
+		if( ! allPaths.contains( p ) )
+			return;
+		finishStorage( p );
+		spatialIndex.add( p );
+	}
 }
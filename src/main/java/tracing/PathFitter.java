@@ -27,6 +27,8 @@
 
 package tracing;
 
+import ij.ImagePlus;
+
 import java.util.concurrent.Callable;
 
 /* This class represents a list of points, and has methods for drawing
@@ -35,6 +37,7 @@ import java.util.concurrent.Callable;
 public class PathFitter implements Callable<Path> {
 
 	protected SimpleNeuriteTracer plugin;
+	protected ImagePlus image;
 	protected int fitterIndex;
 	protected Path path;
 	protected MultiTaskProgress progress;
@@ -55,13 +58,20 @@ public class PathFitter implements Callable<Path> {
 			throw new RuntimeException("BUG: trying to fit a fitted path");
 	}
 
+	/* For fitting without a plugin instance, e.g. in BatchRunner: */
+	public PathFitter( ImagePlus image, Path path ) {
+		this( null, path, false );
+		this.image = image;
+	}
+
 	public void setProgressCallback( int fitterIndex, MultiTaskProgress progress ) {
 		this.fitterIndex = fitterIndex;
 		this.progress = progress;
 	}
 
 	public Path call() throws Exception {
-		Path fitted = path.fitCircles( 40, plugin.getImagePlus(), showDetailedFittingResults, plugin, fitterIndex, progress );
+		ImagePlus imageToFit = (plugin == null) ? image : plugin.getImagePlus();
+		Path fitted = path.fitCircles( 40, imageToFit, showDetailedFittingResults, plugin, fitterIndex, progress );
 		if( fitted == null ) {
 			succeeded = false;
 			return null;
@@ -0,0 +1,493 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/* A uniform grid over the line segments of a set of paths, so that
+   "what's the nearest point to the mouse pointer?" doesn't have to
+   look at every point of every path.
+
+   Each segment (between point i and point i+1 of a path, or the
+   single point of a one-point path) is registered in every cell
+   that its bounding box overlaps.  The queries then search outwards
+   from the cell containing the query point, ring by ring, so only
+   the neighbourhood of the query is ever examined.
+
+   The index is updated explicitly with add() and remove(), which
+   the PathAndFillManager calls whenever it adds, removes or changes
+   a path.  sync() brings the whole index up to date with a
+   collection of paths instead, by checking each path's modification
+   count against the one it had when it was indexed, and isCurrent()
+   checks whether it's up to date without changing it.
+
+   This class is not thread-safe - the PathAndFillManager only uses
+   it while holding its own lock. */
+
+public class PathSegmentIndex {
+
+	/* The default cell size is this many times the smallest
+	   voxel separation of the first path added: */
+	public static final int DEFAULT_CELL_SIZE_IN_VOXELS = 8;
+
+	/* Information about each path that has been indexed, used
+	   to find its segments again and to detect changes: */
+	static class IndexedPath {
+		int [] segments;
+		int modificationCount;
+		int syncStamp;
+	}
+
+	/* A simple growable list of segment IDs for each cell: */
+	static class SegmentList {
+		int [] ids = new int[4];
+		int size = 0;
+		void add( int id ) {
+			if( size == ids.length ) {
+				int [] newIDs = new int[size * 2];
+				System.arraycopy( ids, 0, newIDs, 0, size );
+				ids = newIDs;
+			}
+			ids[size++] = id;
+		}
+		void remove( int id ) {
+			for( int i = 0; i < size; ++i )
+				if( ids[i] == id ) {
+					ids[i] = ids[--size];
+					return;
+				}
+		}
+	}
+
+	double cellSize;
+
+	HashMap< Long, SegmentList > cells = new HashMap< Long, SegmentList >();
+	HashMap< Path, IndexedPath > indexedPaths = new HashMap< Path, IndexedPath >();
+
+	/* The segments themselves are kept in parallel arrays,
+	   indexed by segment ID; IDs of removed segments are
+	   reused: */
+	Path [] segmentPath = new Path[1024];
+	int [] segmentIndex = new int[1024];
+	int [] segmentCells = new int[1024 * 6];
+	int [] freeSegments = new int[64];
+	int freeSegmentsSize = 0;
+	int maxSegmentID = -1;
+	int liveSegments = 0;
+
+	/* The range of cells that have ever been occupied, so the
+	   ring search knows when to stop: */
+	int minCellX = Integer.MAX_VALUE, minCellY = Integer.MAX_VALUE, minCellZ = Integer.MAX_VALUE;
+	int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE, maxCellZ = Integer.MIN_VALUE;
+
+	int syncStamp = 0;
+
+	public PathSegmentIndex( ) {
+		this( -1 );
+	}
+
+	/* A cellSize of zero or less means that the cell size
+	   should be picked when the first path is added. */
+	public PathSegmentIndex( double cellSize ) {
+		this.cellSize = cellSize;
+	}
+
+	public double getCellSize( ) {
+		return cellSize;
+	}
+
+	public int size( ) {
+		return liveSegments;
+	}
+
+	public boolean contains( Path p ) {
+		return indexedPaths.containsKey( p );
+	}
+
+	public void clear( ) {
+		cells.clear();
+		indexedPaths.clear();
+		for( int i = 0; i <= maxSegmentID; ++i )
+			segmentPath[i] = null;
+		freeSegmentsSize = 0;
+		maxSegmentID = -1;
+		liveSegments = 0;
+		minCellX = minCellY = minCellZ = Integer.MAX_VALUE;
+		maxCellX = maxCellY = maxCellZ = Integer.MIN_VALUE;
+	}
+
+	static long cellKey( int cx, int cy, int cz ) {
+		return ((long)(cx & 0x1FFFFF) << 42) | ((long)(cy & 0x1FFFFF) << 21) | (long)(cz & 0x1FFFFF);
+	}
+
+	int cellFor( double v ) {
+		return (int)Math.floor( v / cellSize );
+	}
+
+	int allocateSegment( ) {
+		if( freeSegmentsSize > 0 )
+			return freeSegments[--freeSegmentsSize];
+		int id = ++maxSegmentID;
+		if( id == segmentPath.length ) {
+			int newLength = segmentPath.length * 2;
+			Path [] newSegmentPath = new Path[newLength];
+			int [] newSegmentIndex = new int[newLength];
+			int [] newSegmentCells = new int[newLength * 6];
+			System.arraycopy( segmentPath, 0, newSegmentPath, 0, id );
+			System.arraycopy( segmentIndex, 0, newSegmentIndex, 0, id );
+			System.arraycopy( segmentCells, 0, newSegmentCells, 0, id * 6 );
+			segmentPath = newSegmentPath;
+			segmentIndex = newSegmentIndex;
+			segmentCells = newSegmentCells;
+		}
+		return id;
+	}
+
+	void freeSegment( int id ) {
+		segmentPath[id] = null;
+		if( freeSegmentsSize == freeSegments.length ) {
+			int [] newFreeSegments = new int[freeSegmentsSize * 2];
+			System.arraycopy( freeSegments, 0, newFreeSegments, 0, freeSegmentsSize );
+			freeSegments = newFreeSegments;
+		}
+		freeSegments[freeSegmentsSize++] = id;
+	}
+
+	/* Add all the segments of p to the index.  If p was already
+	   indexed, its old segments are replaced. */
+	public void add( Path p ) {
+		if( indexedPaths.containsKey( p ) )
+			remove( p );
+		int n = p.size();
+		if( cellSize <= 0 ) {
+			if( n == 0 )
+				return;
+			cellSize = DEFAULT_CELL_SIZE_IN_VOXELS * p.getMinimumSeparation();
+			if( ! (cellSize > 0) || Double.isInfinite( cellSize ) )
+				cellSize = DEFAULT_CELL_SIZE_IN_VOXELS;
+		}
+		IndexedPath ip = new IndexedPath();
+		ip.modificationCount = p.getModificationCount();
+		ip.syncStamp = syncStamp;
+		int segments = n <= 1 ? n : n - 1;
+		ip.segments = new int[segments];
+		for( int i = 0; i < segments; ++i ) {
+			int j = (n == 1) ? 0 : i + 1;
+			double x1 = p.getPreciseX( i ), x2 = p.getPreciseX( j );
+			double y1 = p.getPreciseY( i ), y2 = p.getPreciseY( j );
+			double z1 = p.getPreciseZ( i ), z2 = p.getPreciseZ( j );
+			int id = allocateSegment();
+			segmentPath[id] = p;
+			segmentIndex[id] = i;
+			int c = id * 6;
+			int cx0 = segmentCells[c]     = cellFor( Math.min( x1, x2 ) );
+			int cy0 = segmentCells[c + 1] = cellFor( Math.min( y1, y2 ) );
+			int cz0 = segmentCells[c + 2] = cellFor( Math.min( z1, z2 ) );
+			int cx1 = segmentCells[c + 3] = cellFor( Math.max( x1, x2 ) );
+			int cy1 = segmentCells[c + 4] = cellFor( Math.max( y1, y2 ) );
+			int cz1 = segmentCells[c + 5] = cellFor( Math.max( z1, z2 ) );
+			for( int cx = cx0; cx <= cx1; ++cx )
+				for( int cy = cy0; cy <= cy1; ++cy )
+					for( int cz = cz0; cz <= cz1; ++cz ) {
+						Long key = cellKey( cx, cy, cz );
+						SegmentList l = cells.get( key );
+						if( l == null ) {
+							l = new SegmentList();
+							cells.put( key, l );
+						}
+						l.add( id );
+					}
+			minCellX = Math.min( minCellX, cx0 ); maxCellX = Math.max( maxCellX, cx1 );
+			minCellY = Math.min( minCellY, cy0 ); maxCellY = Math.max( maxCellY, cy1 );
+			minCellZ = Math.min( minCellZ, cz0 ); maxCellZ = Math.max( maxCellZ, cz1 );
+			ip.segments[i] = id;
+			++ liveSegments;
+		}
+		indexedPaths.put( p, ip );
+	}
+
+	public void remove( Path p ) {
+		IndexedPath ip = indexedPaths.remove( p );
+		if( ip == null )
+			return;
+		for( int id : ip.segments ) {
+			int c = id * 6;
+			for( int cx = segmentCells[c]; cx <= segmentCells[c + 3]; ++cx )
+				for( int cy = segmentCells[c + 1]; cy <= segmentCells[c + 4]; ++cy )
+					for( int cz = segmentCells[c + 2]; cz <= segmentCells[c + 5]; ++cz ) {
+						Long key = cellKey( cx, cy, cz );
+						SegmentList l = cells.get( key );
+						if( l == null )
+							continue;
+						l.remove( id );
+						if( l.size == 0 )
+							cells.remove( key );
+					}
+			freeSegment( id );
+			-- liveSegments;
+		}
+	}
+
+	boolean isStale( Path p, IndexedPath ip ) {
+		return ip.modificationCount != p.getModificationCount();
+	}
+
+	/* Make the index match the given collection of paths: paths
+	   that are new or have changed since they were indexed are
+	   (re)added, and indexed paths that are no longer in the
+	   collection are removed. */
+	public void sync( Collection< Path > paths ) {
+		++ syncStamp;
+		for( Path p : paths ) {
+			IndexedPath ip = indexedPaths.get( p );
+			if( ip == null || isStale( p, ip ) ) {
+				add( p );
+				ip = indexedPaths.get( p );
+				if( ip == null )
+					continue;
+			}
+			ip.syncStamp = syncStamp;
+		}
+		if( indexedPaths.size() > paths.size() || anyNotSynced() ) {
+			ArrayList< Path > toRemove = new ArrayList< Path >();
+			for( Map.Entry< Path, IndexedPath > e : indexedPaths.entrySet() )
+				if( e.getValue().syncStamp != syncStamp )
+					toRemove.add( e.getKey() );
+			for( Path p : toRemove )
+				remove( p );
+		}
+	}
+
+	/* Whether the index has just the given paths, as they are
+	   now, so that sync() would change nothing: */
+	public boolean isCurrent( Collection< Path > paths ) {
+		int indexed = 0;
+		for( Path p : paths ) {
+			IndexedPath ip = indexedPaths.get( p );
+			if( ip == null ) {
+				// Only an empty path can be left out:
+				if( p.size() > 0 )
+					return false;
+				continue;
+			}
+			if( isStale( p, ip ) )
+				return false;
+			++ indexed;
+		}
+		return indexed == indexedPaths.size();
+	}
+
+	boolean anyNotSynced( ) {
+		for( IndexedPath ip : indexedPaths.values() )
+			if( ip.syncStamp != syncStamp )
+				return true;
+		return false;
+	}
+
+	/* The ring search visits cells in order of their Chebyshev
+	   distance (in cells) from the cell containing the query
+	   point.  Any point in a cell at ring r+1 or beyond is more
+	   than r * cellSize away from the query point, which is what
+	   lets us stop early.  The visitor returns true to stop the
+	   search.  If more cells would be visited than there are
+	   segments in the index, it's cheaper just to look at every
+	   segment, so in that case this returns false without
+	   finishing and the caller falls back to a linear scan. */
+
+	interface RingVisitor {
+		/* Called with the IDs of the segments newly found in
+		   ring r; return true if the search is finished. */
+		boolean visitRing( int r, int [] segmentIDs, int n );
+	}
+
+	boolean ringSearch( double x, double y, double z, RingVisitor visitor ) {
+		if( liveSegments == 0 )
+			return true;
+		int qx = cellFor( x ), qy = cellFor( y ), qz = cellFor( z );
+		int maxRing = Math.max( Math.max( Math.max( qx - minCellX, maxCellX - qx ),
+						  Math.max( qy - minCellY, maxCellY - qy ) ),
+					Math.max( qz - minCellZ, maxCellZ - qz ) );
+		if( maxRing < 0 )
+			maxRing = 0;
+		HashSet< Integer > seen = new HashSet< Integer >();
+		int [] found = new int[64];
+		long cellsVisited = 0;
+		for( int r = 0; r <= maxRing; ++r ) {
+			int n = 0;
+			for( int dx = -r; dx <= r; ++dx ) {
+				int cx = qx + dx;
+				if( cx < minCellX || cx > maxCellX )
+					continue;
+				for( int dy = -r; dy <= r; ++dy ) {
+					int cy = qy + dy;
+					if( cy < minCellY || cy > maxCellY )
+						continue;
+					boolean onFace = Math.abs( dx ) == r || Math.abs( dy ) == r;
+					int dzStep = onFace ? 1 : Math.max( 1, 2 * r );
+					for( int dz = -r; dz <= r; dz += dzStep ) {
+						int cz = qz + dz;
+						if( cz < minCellZ || cz > maxCellZ )
+							continue;
+						if( ++ cellsVisited > liveSegments )
+							return false;
+						SegmentList l = cells.get( cellKey( cx, cy, cz ) );
+						if( l == null )
+							continue;
+						for( int k = 0; k < l.size; ++k ) {
+							int id = l.ids[k];
+							if( ! seen.add( id ) )
+								continue;
+							if( n == found.length ) {
+								int [] newFound = new int[n * 2];
+								System.arraycopy( found, 0, newFound, 0, n );
+								found = newFound;
+							}
+							found[n++] = id;
+						}
+					}
+				}
+			}
+			if( visitor.visitRing( r, found, n ) )
+				return true;
+		}
+		visitor.visitRing( Integer.MAX_VALUE, new int[0], 0 );
+		return true;
+	}
+
+	/* Add the points "owned" by a segment to the queue: each
+	   segment owns its first point, and the last segment of a
+	   path also owns the final point, so that every point is
+	   considered exactly once. */
+	void addOwnedPoints( int id, double x, double y, double z, PriorityQueue< NearPoint > pq, boolean onlyInUse, Set< Path > restrictTo ) {
+		Path p = segmentPath[id];
+		if( onlyInUse && ! p.versionInUse() )
+			return;
+		if( restrictTo != null && ! restrictTo.contains( p ) )
+			return;
+		int i = segmentIndex[id];
+		pq.add( new NearPoint( x, y, z, p, i ) );
+		if( i == p.size() - 2 )
+			pq.add( new NearPoint( x, y, z, p, i + 1 ) );
+	}
+
+	/* Finds the nearest point (x,y,z) on any of the paths in
+	   use, using NearPoint.distanceToPathNearPoint(); this gives
+	   exactly the same answer as considering every point on
+	   every path in order of distance, but only looks at the
+	   points near (x,y,z).  Returns null if there's no such
+	   point within distanceLimit. */
+	public NearPoint nearestPointOnAnyPath( final double x, final double y, final double z, final double distanceLimit ) {
+		final PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
+		final double distanceLimitSquared = distanceLimit * distanceLimit;
+		final NearPoint [] result = new NearPoint[1];
+		boolean finished = ringSearch( x, y, z, new RingVisitor() {
+			public boolean visitRing( int r, int [] segmentIDs, int n ) {
+				for( int k = 0; k < n; ++k )
+					addOwnedPoints( segmentIDs[k], x, y, z, pq, true, null );
+				double settledDistance = (r == Integer.MAX_VALUE) ? Double.MAX_VALUE : r * cellSize;
+				double settledDistanceSquared = settledDistance * settledDistance;
+				while( true ) {
+					/* Points that haven't been seen
+					   yet may still be closer than
+					   anything beyond the settled
+					   distance: */
+					NearPoint np = pq.peek();
+					if( np == null || np.distanceToPathPointSquared() > settledDistanceSquared )
+						return settledDistance > distanceLimit;
+					if( np.distanceToPathPointSquared() > distanceLimitSquared )
+						return true;
+					pq.poll();
+					if( np.distanceToPathNearPoint() >= 0 ) {
+						result[0] = np;
+						return true;
+					}
+				}
+			}
+		} );
+		if( finished )
+			return result[0];
+
+		// Then it's quicker just to look at everything:
+		pq.clear();
+		for( int id = 0; id <= maxSegmentID; ++id )
+			if( segmentPath[id] != null )
+				addOwnedPoints( id, x, y, z, pq, true, null );
+		NearPoint np;
+		while( (np = pq.poll()) != null ) {
+			if( np.distanceToPathPointSquared() > distanceLimitSquared )
+				return null;
+			if( np.distanceToPathNearPoint() >= 0 )
+				return np;
+		}
+		return null;
+	}
+
+	/* Finds the point on any of the paths in restrictTo that is
+	   nearest to (x,y,z), whether or not that version of the path
+	   is in use.  Returns null if there are no points on those
+	   paths. */
+	public NearPoint nearestPointOnPaths( final double x, final double y, final double z, final Set< Path > restrictTo ) {
+		if( restrictTo.isEmpty() )
+			return null;
+		final PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
+		final NearPoint [] result = new NearPoint[1];
+		boolean finished = ringSearch( x, y, z, new RingVisitor() {
+			public boolean visitRing( int r, int [] segmentIDs, int n ) {
+				for( int k = 0; k < n; ++k )
+					addOwnedPoints( segmentIDs[k], x, y, z, pq, false, restrictTo );
+				NearPoint np = pq.peek();
+				if( np == null )
+					return false;
+				double settledDistance = (r == Integer.MAX_VALUE) ? Double.MAX_VALUE : r * cellSize;
+				if( np.distanceToPathPointSquared() <= settledDistance * settledDistance ) {
+					result[0] = np;
+					return true;
+				}
+				return false;
+			}
+		} );
+		if( finished )
+			return result[0];
+
+		NearPoint best = null;
+		for( Path p : restrictTo ) {
+			if( ! indexedPaths.containsKey( p ) || p.size() == 0 )
+				continue;
+			NearPoint np = new NearPoint( x, y, z, p, p.indexNearestTo( x, y, z ) );
+			if( best == null || np.compareTo( best ) < 0 )
+				best = np;
+		}
+		return best;
+	}
+}
@@ -38,10 +38,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -145,6 +142,7 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 						final List<Future<Path>> futures = es.invokeAll(pathsToFit);
 						SwingUtilities.invokeLater(new Runnable() {
 								public void run() {
+									pathAndFillManager.defer3DUpdates();
 									try {
 										for( Future<Path> future : futures ) {
 											Path result = future.get();
@@ -154,6 +152,8 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 										IJ.error("The following exception was thrown: "+e);
 										e.printStackTrace();
 										return;
+									} finally {
+										pathAndFillManager.finishDeferred3DUpdates();
 									}
 									pathAndFillManager.resetListeners(null);
 									progress.done();
@@ -234,12 +234,7 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 			IJ.showStatus("Exporting SWC data to "+saveFile.getAbsolutePath());
 
 			try {
-				PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(saveFile),"UTF-8"));
-				pw.println("# Exported from \"Simple Neurite Tracer\" version "+SimpleNeuriteTracer.PLUGIN_VERSION);
-				for( SWCPoint p : swcPoints )
-					p.println(pw);
-				pw.close();
-
+				SWCExport.write( swcPoints, saveFile );
 			} catch( IOException ioe) {
 				IJ.error("Saving to "+saveFile.getAbsolutePath()+" failed");
 				return;
@@ -264,6 +259,11 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 				if( allAlreadyFitted ) {
 					p.setUseFitted(false, plugin);
 				} else {
+					if( p.fittedVersionIsStale() ) {
+						/* The path has changed since it was fitted; its
+						   fits are kept for the points that haven't: */
+						pathAndFillManager.deleteFittedVersion( p, true );
+					}
 					if( p.getUseFitted() ) {
 						continue;
 					}
@@ -336,6 +336,7 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 					pathToUse = p.fitted;
 				}
 				pathToUse.downsample(maximumDeviation);
+				pathAndFillManager.pathChanged(pathToUse);
 			}
 			// Make sure that the 3D viewer and the stacks are redrawn:
 			pathAndFillManager.update3DViewerContents();
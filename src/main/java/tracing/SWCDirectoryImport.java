@@ -0,0 +1,298 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Imports every SWC file in a directory, each into its own
+   PathAndFillManager, using a thread for each processor.  Nothing
+   is reported via IJ: a file that can't be imported just gets an
+   error message in its FileResult, and the other files carry on.
+
+   The totals over all the files imported so far are kept up to
+   date as each one finishes, and a Listener can be told about
+   each file as it's done, e.g. to process and discard its paths
+   rather than keeping thousands of managers in memory (see
+   setKeepManagers()). */
+
+public class SWCDirectoryImport {
+
+	public static interface Listener {
+		/* Called from the importing threads, but never
+		   concurrently: */
+		public void fileImported( FileResult result, int filesDone, int filesTotal );
+	}
+
+	public static class FileResult {
+
+		protected File file;
+		protected PathAndFillManager pathAndFillManager;
+		protected String error;
+		protected int paths;
+		protected int points;
+		protected double length;
+		protected int pointsOutsideImageRange;
+
+		public File getFile( ) {
+			return file;
+		}
+
+		public boolean succeeded( ) {
+			return error == null;
+		}
+
+		/* A description of why the file couldn't be imported,
+		   or null if it was: */
+		public String getError( ) {
+			return error;
+		}
+
+		/* null if the import failed or the managers aren't
+		   being kept: */
+		public PathAndFillManager getPathAndFillManager( ) {
+			return pathAndFillManager;
+		}
+
+		public int getPaths( ) {
+			return paths;
+		}
+
+		public int getPoints( ) {
+			return points;
+		}
+
+		public double getLength( ) {
+			return length;
+		}
+
+		/* The number of coordinates that were outside the image
+		   volume; see PathAndFillManager.importSWC(): */
+		public int getPointsOutsideImageRange( ) {
+			return pointsOutsideImageRange;
+		}
+
+		@Override
+		public String toString( ) {
+			if( error != null )
+				return file.getName()+": failed: "+error;
+			return file.getName()+": "+paths+" paths, "+points+" points, length "+length;
+		}
+	}
+
+	protected File directory;
+	protected int width, height, depth;
+	protected float x_spacing, y_spacing, z_spacing;
+	protected String spacing_units;
+
+	protected boolean assumeCoordinatesIndexVoxels = false;
+	protected boolean keepManagers = true;
+	protected Listener listener;
+
+	protected ArrayList< FileResult > results;
+
+	protected int filesTotal;
+	protected int filesDone;
+	protected int filesFailed;
+	protected long totalPaths;
+	protected long totalPoints;
+	protected double totalLength;
+
+	/* The image dimensions and spacing are those that each
+	   PathAndFillManager is created with: */
+	public SWCDirectoryImport( File directory,
+				   int width, int height, int depth,
+				   float x_spacing, float y_spacing, float z_spacing,
+				   String spacing_units ) {
+		this.directory = directory;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.x_spacing = x_spacing;
+		this.y_spacing = y_spacing;
+		this.z_spacing = z_spacing;
+		this.spacing_units = spacing_units;
+	}
+
+	public void setAssumeCoordinatesIndexVoxels( boolean assumeCoordinatesIndexVoxels ) {
+		this.assumeCoordinatesIndexVoxels = assumeCoordinatesIndexVoxels;
+	}
+
+	public void setKeepManagers( boolean keepManagers ) {
+		this.keepManagers = keepManagers;
+	}
+
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	/* The SWC files in the directory, sorted by name: */
+	public File [] getFiles( ) throws IOException {
+		File [] files = directory.listFiles();
+		if( files == null )
+			throw new IOException( "Couldn't list the files in "+directory );
+		ArrayList< File > swcFiles = new ArrayList< File >();
+		for( File f : files )
+			if( f.isFile() && f.getName().toLowerCase().endsWith( ".swc" ) )
+				swcFiles.add( f );
+		File [] result = swcFiles.toArray( new File[swcFiles.size()] );
+		Arrays.sort( result );
+		return result;
+	}
+
+	/* Never throws: whatever goes wrong with the file is
+	   recorded in the result. */
+	FileResult importFile( File file ) {
+		FileResult result = new FileResult();
+		result.file = file;
+		try {
+			SWCReader swc = new SWCReader();
+			InputStream is = new FileInputStream( file );
+			try {
+				swc.read( is );
+			} finally {
+				is.close();
+			}
+			PathAndFillManager pafm = new PathAndFillManager( width, height, depth,
+									  x_spacing, y_spacing, z_spacing,
+									  spacing_units );
+			result.pointsOutsideImageRange = pafm.addSWC( swc, assumeCoordinatesIndexVoxels,
+								      0, 0, 0, 1, 1, 1, true );
+			for( Path p : pafm.allPaths ) {
+				result.points += p.size();
+				result.length += p.getRealLength();
+			}
+			result.paths = pafm.size();
+			if( keepManagers )
+				result.pathAndFillManager = pafm;
+		} catch( IOException e ) {
+			result.error = "Couldn't read the file: "+e.getMessage();
+		} catch( SWCImportException e ) {
+			result.error = e.getMessage();
+		} catch( RuntimeException e ) {
+			// So that one bad file doesn't stop the others:
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	synchronized void finished( FileResult result ) {
+		++ filesDone;
+		if( result.succeeded() ) {
+			totalPaths += result.paths;
+			totalPoints += result.points;
+			totalLength += result.length;
+		} else
+			++ filesFailed;
+		if( listener != null )
+			listener.fileImported( result, filesDone, filesTotal );
+	}
+
+	public void run( ) throws IOException, InterruptedException {
+
+		File [] files = getFiles();
+
+		synchronized( this ) {
+			results = new ArrayList< FileResult >();
+			filesTotal = files.length;
+			filesDone = filesFailed = 0;
+			totalPaths = totalPoints = 0;
+			totalLength = 0;
+		}
+
+		ArrayList< Callable< FileResult > > tasks = new ArrayList< Callable< FileResult > >();
+		for( final File file : files )
+			tasks.add( new Callable< FileResult >() {
+				public FileResult call() {
+					FileResult result = importFile( file );
+					finished( result );
+					return result;
+				}
+			} );
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		ExecutorService es = Executors.newFixedThreadPool( processors );
+		try {
+			List< Future< FileResult > > futures = es.invokeAll( tasks );
+			for( Future< FileResult > future : futures )
+				results.add( future.get() );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Importing SWC files failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+	}
+
+	/* The result for each file, in the order of getFiles(): */
+	public ArrayList< FileResult > getResults( ) {
+		return results;
+	}
+
+	public synchronized int getFilesTotal( ) {
+		return filesTotal;
+	}
+
+	public synchronized int getFilesDone( ) {
+		return filesDone;
+	}
+
+	public synchronized int getFilesFailed( ) {
+		return filesFailed;
+	}
+
+	public synchronized long getTotalPaths( ) {
+		return totalPaths;
+	}
+
+	public synchronized long getTotalPoints( ) {
+		return totalPoints;
+	}
+
+	public synchronized double getTotalLength( ) {
+		return totalLength;
+	}
+
+	@Override
+	public synchronized String toString( ) {
+		return "Imported "+(filesDone - filesFailed)+" of "+filesTotal+" SWC files from "+directory+
+			" ("+filesFailed+" failed):\n"+
+			"  paths: "+totalPaths+"\n"+
+			"  points: "+totalPoints+"\n"+
+			"  total length: "+totalLength+" "+spacing_units;
+	}
+}
@@ -0,0 +1,380 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/* The structure of the paths in a PathAndFillManager, as
+   getPathsStructured() finds it, and a copy of the points of the
+   version of each path that's in use.  Once this has been created
+   (which holds the manager's lock) any number of threads can
+   generate SWC points from it at the same time, without locking.
+
+   getSWCFor() gives the same results as the method that
+   PathAndFillManager used to have, but only searches the SWC
+   points of the parent path when joining a path on to it, rather
+   than all the points generated so far. */
+
+class SWCExport {
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	static class PathData {
+
+		Path path;
+
+		/* The points and type of the version of the path
+		   that's in use; radii is null if it has no circles: */
+		double [] xs, ys, zs, radii;
+		int swcType;
+
+		PathData startJoins, endJoins;
+		PointInImage startJoinsPoint, endJoinsPoint;
+		PathData [] somehowJoins;
+
+		int indexNearestTo( double x, double y, double z ) {
+			if( xs.length < 1 )
+				throw new RuntimeException("indexNearestTo called on a Path of size() = 0");
+			double minimumDistanceSquared = Double.MAX_VALUE;
+			int indexOfMinimum = -1;
+			for( int i = 0; i < xs.length; ++i ) {
+				double diff_x = x - xs[i];
+				double diff_y = y - ys[i];
+				double diff_z = z - zs[i];
+				double thisDistanceSquared = diff_x * diff_x + diff_y * diff_y + diff_z * diff_z;
+				if( thisDistanceSquared < minimumDistanceSquared ) {
+					indexOfMinimum = i;
+					minimumDistanceSquared = thisDistanceSquared;
+				}
+			}
+			return indexOfMinimum;
+		}
+	}
+
+	protected HashMap< Path, PathData > pathData = new HashMap< Path, PathData >();
+	protected PathData [] primaryPaths;
+
+	public SWCExport( PathAndFillManager pafm ) {
+		synchronized( pafm ) {
+			/* This also sets up the Path.children and
+			   Path.somehowJoins relationships: */
+			Path [] structured = pafm.getPathsStructured();
+			ArrayList< PathData > created = new ArrayList< PathData >();
+			for( Path p : pafm.allPaths )
+				data( p, created );
+			primaryPaths = new PathData[structured.length];
+			for( int i = 0; i < structured.length; ++i )
+				primaryPaths[i] = data( structured[i], created );
+			/* Linking the paths up may find others, which are
+			   added to the end of created: */
+			for( int i = 0; i < created.size(); ++i ) {
+				PathData d = created.get( i );
+				Path p = d.path;
+				d.startJoins = data( p.startJoins, created );
+				d.endJoins = data( p.endJoins, created );
+				d.somehowJoins = new PathData[p.somehowJoins.size()];
+				for( int j = 0; j < d.somehowJoins.length; ++j )
+					d.somehowJoins[j] = data( p.somehowJoins.get( j ), created );
+			}
+		}
+	}
+
+	PathData data( Path p, ArrayList< PathData > created ) {
+		if( p == null )
+			return null;
+		PathData d = pathData.get( p );
+		if( d != null )
+			return d;
+		d = new PathData();
+		pathData.put( p, d );
+		created.add( d );
+		d.path = p;
+		Path pathToUse = p.getUseFitted() ? p.fitted : p;
+		int n = pathToUse.points;
+		d.xs = pathToUse.getPreciseXs();
+		d.ys = pathToUse.getPreciseYs();
+		d.zs = pathToUse.getPreciseZs();
+		if( pathToUse.hasCircles() )
+			d.radii = Arrays.copyOf( pathToUse.radiuses, n );
+		d.swcType = pathToUse.getSWCType();
+		d.startJoinsPoint = copy( p.startJoinsPoint );
+		d.endJoinsPoint = copy( p.endJoinsPoint );
+		return d;
+	}
+
+	static PointInImage copy( PointInImage p ) {
+		return p == null ? null : new PointInImage( p.x, p.y, p.z );
+	}
+
+	public int getPrimaryPathCount( ) {
+		return primaryPaths.length;
+	}
+
+	/* All the paths connected to the i'th primary path (in the
+	   order of getPathsStructured()), including itself: */
+	public Set< Path > getConnectedPaths( int i ) {
+		HashSet< Path > connectedPaths = new HashSet< Path >();
+		HashSet< PathData > seen = new HashSet< PathData >();
+		LinkedList< PathData > nextPathsToConsider = new LinkedList< PathData >();
+		nextPathsToConsider.add( primaryPaths[i] );
+		while( nextPathsToConsider.size() > 0 ) {
+			PathData currentPath = nextPathsToConsider.removeFirst();
+			seen.add( currentPath );
+			connectedPaths.add( currentPath.path );
+			for( PathData joinedPath : currentPath.somehowJoins )
+				if( ! seen.contains( joinedPath ) )
+					nextPathsToConsider.add( joinedPath );
+		}
+		return connectedPaths;
+	}
+
+	public ArrayList< SWCPoint > getSWCFor( Set< Path > selectedPaths ) throws SWCExportException {
+
+		/* Check that there's only one primary path in
+		   selectedPaths: */
+
+		PathData firstPath = null;
+		int primaryPathsSelected = 0;
+		for( PathData p : primaryPaths )
+			if( selectedPaths.contains( p.path ) ) {
+				firstPath = p;
+				++ primaryPathsSelected;
+			}
+
+		if( primaryPathsSelected == 0 )
+			throw new SWCExportException("The paths you select for SWC export must include a primary path\n(i.e. one at the top level in the Path Window's tree)");
+		if( primaryPathsSelected > 1 )
+			throw new SWCExportException("You can only select one connected set of paths for SWC export");
+
+		/* So now we definitely only have one primary path.
+		   All the connected paths must also be selected, but
+		   we'll check that as we go along: */
+
+		ArrayList< SWCPoint > result = new ArrayList< SWCPoint >();
+
+		int currentPointID = 1;
+
+		/* nextPathsToAdd is the queue of paths to add points
+		   from, and the keys of firstPointIndices are the paths
+		   that have already had their points added.  The
+		   points of a path are added to result together, so
+		   the values are the index in result of the first
+		   point each time the path was added. */
+
+		LinkedList< PathData > nextPathsToAdd = new LinkedList< PathData >();
+		HashMap< PathData, ArrayList< Integer > > firstPointIndices = new HashMap< PathData, ArrayList< Integer > >();
+
+		if( firstPath.xs.length == 0 )
+			throw new SWCExportException("The primary path contained no points!");
+		nextPathsToAdd.add( firstPath );
+
+		while( nextPathsToAdd.size() > 0 ) {
+
+			PathData currentPath = nextPathsToAdd.removeFirst();
+
+			if( ! selectedPaths.contains( currentPath.path ) )
+				throw new SWCExportException("The path \""+currentPath.path+"\" is connected to other selected paths, but wasn't itself selected");
+
+			PathData parent = null;
+
+			for( PathData possibleParent : currentPath.somehowJoins ) {
+				if( firstPointIndices.containsKey( possibleParent ) ) {
+					parent = possibleParent;
+					break;
+				}
+			}
+
+			int indexToStartAt = 0;
+			int nearestParentSWCPointID = -1;
+			PointInImage connectingPoint = null;
+			if( parent != null ) {
+				if( currentPath.startJoins != null &&
+				    currentPath.startJoins == parent )
+					connectingPoint = currentPath.startJoinsPoint;
+				else if( currentPath.endJoins != null &&
+					 currentPath.endJoins == parent )
+					connectingPoint = currentPath.endJoinsPoint;
+				else if( parent.startJoins != null &&
+					 parent.startJoins == currentPath )
+					connectingPoint = parent.startJoinsPoint;
+				else if( parent.endJoins != null &&
+					 parent.endJoins == currentPath )
+					connectingPoint = parent.endJoinsPoint;
+				else
+					throw new SWCExportException("Couldn't find the link between parent \""+parent.path+"\"\nand child \""+currentPath.path+"\" which are somehow joined");
+
+				/* Find the SWC point ID on the parent which is nearest: */
+
+				double distanceSquaredToNearestParentPoint = Double.MAX_VALUE;
+				for( int first : firstPointIndices.get( parent ) ) {
+					for( int k = first; k < first + parent.xs.length; ++k ) {
+						SWCPoint s = result.get( k );
+						double distanceSquared = connectingPoint.distanceSquaredTo(s.x, s.y, s.z);
+						if( distanceSquared < distanceSquaredToNearestParentPoint ) {
+							nearestParentSWCPointID = s.id;
+							distanceSquaredToNearestParentPoint = distanceSquared;
+						}
+					}
+				}
+
+				/* Now find the index of the point on this path which is nearest */
+				indexToStartAt = currentPath.indexNearestTo( connectingPoint.x,
+									     connectingPoint.y,
+									     connectingPoint.z );
+			}
+
+			int firstPointIndex = result.size();
+			SWCPoint firstSWCPoint = null;
+
+			int n = currentPath.xs.length;
+			for( int i = indexToStartAt; i < n; ++i ) {
+				double radius = currentPath.radii == null ? 0 : currentPath.radii[i];
+				SWCPoint swcPoint = new SWCPoint(currentPointID,
+								 currentPath.swcType,
+								 currentPath.xs[i],
+								 currentPath.ys[i],
+								 currentPath.zs[i],
+								 radius,
+								 firstSWCPoint == null ?  nearestParentSWCPointID : currentPointID - 1);
+				swcPoint.fromPath = currentPath.path;
+				result.add(swcPoint);
+				++ currentPointID;
+				if( firstSWCPoint == null )
+					firstSWCPoint = swcPoint;
+			}
+
+			boolean firstOfOtherBranch = true;
+			for( int i = indexToStartAt - 1; i >= 0; --i ) {
+				int previousPointID = currentPointID - 1;
+				if( firstOfOtherBranch ) {
+					firstOfOtherBranch = false;
+					previousPointID = firstSWCPoint.id;
+				}
+				double radius = currentPath.radii == null ? 0 : currentPath.radii[i];
+				SWCPoint swcPoint = new SWCPoint(currentPointID,
+								 currentPath.swcType,
+								 currentPath.xs[i],
+								 currentPath.ys[i],
+								 currentPath.zs[i],
+								 radius,
+								 previousPointID);
+				swcPoint.fromPath = currentPath.path;
+				result.add(swcPoint);
+				++ currentPointID;
+			}
+
+			ArrayList< Integer > indices = firstPointIndices.get( currentPath );
+			if( indices == null ) {
+				indices = new ArrayList< Integer >( 1 );
+				firstPointIndices.put( currentPath, indices );
+			}
+			indices.add( firstPointIndex );
+
+			/* Add all the connected paths that haven't already been added */
+
+			for( PathData connectedPath : currentPath.somehowJoins ) {
+				if( ! firstPointIndices.containsKey( connectedPath ) ) {
+					nextPathsToAdd.add( connectedPath );
+				}
+			}
+		}
+
+		// Now check that all selectedPaths have been added, otherwise give an error:
+
+		HashSet< Path > pathsAlreadyDone = new HashSet< Path >();
+		for( PathData p : firstPointIndices.keySet() )
+			pathsAlreadyDone.add( p.path );
+
+		Path disconnectedExample = null;
+		int selectedAndNotConnected = 0;
+		for( Path selectedPath : selectedPaths ) {
+			if( ! pathsAlreadyDone.contains(selectedPath) ) {
+				++ selectedAndNotConnected;
+				if( disconnectedExample == null )
+					disconnectedExample = selectedPath;
+			}
+		}
+		if( selectedAndNotConnected > 0 )
+			throw new SWCExportException("You must select all the connected paths\n("+selectedAndNotConnected+" paths (e.g. \""+disconnectedExample+"\") were not connected.)");
+
+		return result;
+	}
+
+	/* Writes the points out in the same format as
+	   SWCPoint.println(), but formatting each line into a
+	   StringBuilder and writing it out as bytes (a line of
+	   numbers is always ASCII) rather than going through a
+	   PrintWriter: */
+	public static void write( List< SWCPoint > points, File file ) throws IOException {
+		OutputStream os = new BufferedOutputStream( new FileOutputStream( file ), 65536 );
+		try {
+			write( points, os );
+		} finally {
+			os.close();
+		}
+	}
+
+	public static void write( List< SWCPoint > points, OutputStream os ) throws IOException {
+		String lineSeparator = System.getProperty( "line.separator" );
+		os.write( ("# Exported from \"Simple Neurite Tracer\" version "+SimpleNeuriteTracer.PLUGIN_VERSION+lineSeparator).getBytes( UTF8 ) );
+		StringBuilder sb = new StringBuilder( 128 );
+		char [] chars = new char[128];
+		byte [] bytes = new byte[128];
+		for( SWCPoint p : points ) {
+			sb.setLength( 0 );
+			sb.append( p.id ).append( ' ' ).
+				append( p.type ).append( ' ' ).
+				append( p.x ).append( ' ' ).
+				append( p.y ).append( ' ' ).
+				append( p.z ).append( ' ' ).
+				append( p.radius ).append( ' ' ).
+				append( p.previous ).append( lineSeparator );
+			int n = sb.length();
+			if( n > bytes.length ) {
+				chars = new char[n];
+				bytes = new byte[n];
+			}
+			sb.getChars( 0, n, chars, 0 );
+			for( int i = 0; i < n; ++i )
+				bytes[i] = (byte)chars[i];
+			os.write( bytes, 0, n );
+		}
+	}
+}
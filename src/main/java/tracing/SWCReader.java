@@ -0,0 +1,175 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/* Reads the seven columns of an SWC file (ID, type, x, y, z,
+   radius and parent ID) into arrays, parsing the numbers straight
+   from the bytes of each line rather than splitting it into
+   Strings.  The input is read in blocks, so the file is never held
+   in memory as a whole.
+
+   As with the old line-based parser, everything after a '#' on a
+   line is a comment, blank lines are ignored and any other line
+   must have exactly seven whitespace-separated fields.
+   PathAndFillManager.addSWC() turns the columns into paths. */
+
+class SWCReader {
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	static final int FIELDS = 7;
+
+	int points = 0;
+	int [] ids = new int[1024];
+	int [] types = new int[1024];
+	double [] xs = new double[1024];
+	double [] ys = new double[1024];
+	double [] zs = new double[1024];
+	double [] radii = new double[1024];
+	int [] parents = new int[1024];
+
+	/* The start and end of each field of the current line: */
+	private final int [] fieldStarts = new int[FIELDS];
+	private final int [] fieldEnds = new int[FIELDS];
+
+	public int size( ) {
+		return points;
+	}
+
+	public void read( InputStream is ) throws IOException, SWCImportException {
+		byte [] buffer = new byte[65536];
+		int length = 0;
+		int scanned = 0;
+		boolean firstBlock = true;
+		while( true ) {
+			if( length == buffer.length )
+				buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+			int n = is.read( buffer, length, buffer.length - length );
+			if( n < 0 )
+				break;
+			length += n;
+			int lineStart = 0;
+			if( firstBlock && length >= 3 &&
+			    (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF ) {
+				// Skip a UTF-8 byte order mark:
+				lineStart = scanned = 3;
+			}
+			firstBlock = false;
+			for( int i = scanned; i < length; ++i ) {
+				byte b = buffer[i];
+				if( b == '\n' || b == '\r' ) {
+					parseLine( buffer, lineStart, i );
+					lineStart = i + 1;
+				}
+			}
+			// Keep the incomplete last line for the next block:
+			System.arraycopy( buffer, lineStart, buffer, 0, length - lineStart );
+			length -= lineStart;
+			scanned = length;
+		}
+		if( length > 0 )
+			parseLine( buffer, 0, length );
+	}
+
+	public void read( Reader reader ) throws IOException, SWCImportException {
+		StringBuilder sb = new StringBuilder();
+		char [] buffer = new char[65536];
+		int n;
+		while( (n = reader.read( buffer )) >= 0 )
+			sb.append( buffer, 0, n );
+		read( new ByteArrayInputStream( sb.toString().getBytes( UTF8 ) ) );
+	}
+
+	static boolean isWhitespace( byte b ) {
+		return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+	}
+
+	void parseLine( byte [] bytes, int start, int end ) throws SWCImportException {
+		for( int i = start; i < end; ++i )
+			if( bytes[i] == '#' ) {
+				end = i;
+				break;
+			}
+		int fields = 0;
+		int i = start;
+		while( true ) {
+			while( i < end && isWhitespace( bytes[i] ) )
+				++ i;
+			if( i == end )
+				break;
+			int fieldStart = i;
+			while( i < end && ! isWhitespace( bytes[i] ) )
+				++ i;
+			if( fields < FIELDS ) {
+				fieldStarts[fields] = fieldStart;
+				fieldEnds[fields] = i;
+			}
+			++ fields;
+		}
+		if( fields == 0 )
+			return;
+		if( fields != FIELDS )
+			throw new SWCImportException( "Wrong number of fields ("+fields+") in line: "+line( bytes, start, end ) );
+		if( points == ids.length )
+			grow();
+		try {
+			ids[points] = TracesFileReader.parseInt( bytes, fieldStarts[0], fieldEnds[0] );
+			types[points] = TracesFileReader.parseInt( bytes, fieldStarts[1], fieldEnds[1] );
+			xs[points] = TracesFileReader.parseDouble( bytes, fieldStarts[2], fieldEnds[2] );
+			ys[points] = TracesFileReader.parseDouble( bytes, fieldStarts[3], fieldEnds[3] );
+			zs[points] = TracesFileReader.parseDouble( bytes, fieldStarts[4], fieldEnds[4] );
+			radii[points] = TracesFileReader.parseDouble( bytes, fieldStarts[5], fieldEnds[5] );
+			parents[points] = TracesFileReader.parseInt( bytes, fieldStarts[6], fieldEnds[6] );
+		} catch( NumberFormatException nfe ) {
+			throw new SWCImportException( "There was a malformed number in line: "+line( bytes, start, end ) );
+		}
+		++ points;
+	}
+
+	static String line( byte [] bytes, int start, int end ) {
+		return new String( bytes, start, end - start, UTF8 ).trim();
+	}
+
+	void grow( ) {
+		int newLength = ids.length * 2;
+		ids = Arrays.copyOf( ids, newLength );
+		types = Arrays.copyOf( types, newLength );
+		xs = Arrays.copyOf( xs, newLength );
+		ys = Arrays.copyOf( ys, newLength );
+		zs = Arrays.copyOf( zs, newLength );
+		radii = Arrays.copyOf( radii, newLength );
+		parents = Arrays.copyOf( parents, newLength );
+	}
+}
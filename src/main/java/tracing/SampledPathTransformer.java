@@ -0,0 +1,345 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package tracing;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+/** A cache for slow transformations such as Bookstein's thin-plate
+    splines or CMTK's warps.  It samples the displacement
+    (transformed point minus original point) on a regular grid of
+    nodes over the image, and interpolates it trilinearly, so that
+    transforming a whole reconstruction only needs the transformer
+    at the grid nodes near its points.  The nodes are only
+    transformed when first needed, and then kept.
+
+    A point outside the grid, or in a grid cell where any corner
+    couldn't be transformed, is transformed with the transformer
+    itself, so this only changes the results by the error of the
+    interpolation, which is small for smooth transformations and a
+    grid spacing of a few voxels.
+
+    The interpolation in transformPoints() is done on several
+    threads; the transformer is only called from several threads at
+    once if threadSafe is true.  The transformPoint() methods with
+    int arguments, which are in image indices rather than world
+    coordinates, aren't cached. */
+
+public class SampledPathTransformer implements BatchPathTransformer {
+
+	protected PathTransformer transformer;
+	protected boolean threadSafe;
+	protected int threads;
+
+	/* Node (i,j,k) is at (originX + i * stepX, ...): */
+	protected double originX, originY, originZ;
+	protected double stepX, stepY, stepZ;
+	protected int nodesX, nodesY, nodesZ;
+
+	/* The displacement at each node, or NaN if the node couldn't
+	   be transformed; only valid where the bit in known is set: */
+	protected float [] displacementX, displacementY, displacementZ;
+	protected long [] known;
+
+	/** Samples every voxelsPerSample voxels over the image that
+	    the points are in, using its calibration.  If threads is 0,
+	    there's a thread for each processor. */
+	public SampledPathTransformer( PathTransformer transformer, ImagePlus image, int voxelsPerSample, boolean threadSafe, int threads ) {
+		this( transformer, threadSafe, threads, image.getWidth(), image.getHeight(), image.getStackSize(), image.getCalibration(), voxelsPerSample );
+	}
+
+	SampledPathTransformer( PathTransformer transformer, boolean threadSafe, int threads,
+				int width, int height, int depth, Calibration calibration, int voxelsPerSample ) {
+		this( transformer, threadSafe, threads,
+		      0, 0, 0,
+		      voxelsPerSample * ((calibration == null) ? 1 : calibration.pixelWidth),
+		      voxelsPerSample * ((calibration == null) ? 1 : calibration.pixelHeight),
+		      voxelsPerSample * ((calibration == null) ? 1 : calibration.pixelDepth),
+		      nodesFor( width, voxelsPerSample ),
+		      nodesFor( height, voxelsPerSample ),
+		      nodesFor( depth, voxelsPerSample ) );
+	}
+
+	public SampledPathTransformer( PathTransformer transformer, boolean threadSafe, int threads,
+				       double originX, double originY, double originZ,
+				       double stepX, double stepY, double stepZ,
+				       int nodesX, int nodesY, int nodesZ ) {
+		if( stepX == 0 || stepY == 0 || stepZ == 0 ||
+		    Double.isNaN( stepX ) || Double.isNaN( stepY ) || Double.isNaN( stepZ ) )
+			throw new IllegalArgumentException( "The grid spacing must be non-zero" );
+		if( nodesX < 2 || nodesY < 2 || nodesZ < 2 )
+			throw new IllegalArgumentException( "There must be at least two grid nodes along each axis" );
+		long nodes = (long)nodesX * nodesY * nodesZ;
+		if( nodes >= Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "There are too many grid nodes ("+nodes+")" );
+		this.transformer = transformer;
+		this.threadSafe = threadSafe;
+		this.threads = threads;
+		this.originX = originX;
+		this.originY = originY;
+		this.originZ = originZ;
+		this.stepX = stepX;
+		this.stepY = stepY;
+		this.stepZ = stepZ;
+		this.nodesX = nodesX;
+		this.nodesY = nodesY;
+		this.nodesZ = nodesZ;
+		displacementX = new float[(int)nodes];
+		displacementY = new float[(int)nodes];
+		displacementZ = new float[(int)nodes];
+		known = new long[(int)((nodes + 63) >>> 6)];
+	}
+
+	/* The most grid nodes that covering() will use: */
+	static final int MAXIMUM_COVERING_NODES = 1 << 24;
+
+	/** A SampledPathTransformer whose grid covers the first n of
+	    the points, with nodes (at most) step apart along each axis,
+	    or transformer itself if there are no points, the steps
+	    aren't positive, or the grid would have too many nodes. */
+	public static PathTransformer covering( PathTransformer transformer, boolean threadSafe, int threads,
+						double [] xs, double [] ys, double [] zs, int n,
+						double stepX, double stepY, double stepZ ) {
+		if( ! (stepX > 0 && stepY > 0 && stepZ > 0) )
+			return transformer;
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		for( int p = 0; p < n; ++p ) {
+			double x = xs[p], y = ys[p], z = zs[p];
+			if( Double.isNaN( x ) || Double.isNaN( y ) || Double.isNaN( z ) )
+				continue;
+			minX = Math.min( minX, x ); maxX = Math.max( maxX, x );
+			minY = Math.min( minY, y ); maxY = Math.max( maxY, y );
+			minZ = Math.min( minZ, z ); maxZ = Math.max( maxZ, z );
+		}
+		if( minX > maxX )
+			return transformer;
+		double nodesX = Math.max( 2, Math.ceil( (maxX - minX) / stepX ) + 1 );
+		double nodesY = Math.max( 2, Math.ceil( (maxY - minY) / stepY ) + 1 );
+		double nodesZ = Math.max( 2, Math.ceil( (maxZ - minZ) / stepZ ) + 1 );
+		if( nodesX * nodesY * nodesZ > MAXIMUM_COVERING_NODES )
+			return transformer;
+		return new SampledPathTransformer( transformer, threadSafe, threads,
+						   minX, minY, minZ,
+						   stepX, stepY, stepZ,
+						   (int)nodesX, (int)nodesY, (int)nodesZ );
+	}
+
+	/* Enough nodes that the last is at or beyond the last voxel: */
+	static int nodesFor( int voxels, int voxelsPerSample ) {
+		if( voxelsPerSample < 1 )
+			throw new IllegalArgumentException( "There must be at least one voxel per sample" );
+		return Math.max( 2, (voxels - 1 + voxelsPerSample - 1) / voxelsPerSample + 1 );
+	}
+
+	int node( int i, int j, int k ) {
+		return (k * nodesY + j) * nodesX + i;
+	}
+
+	boolean isKnown( int node ) {
+		return (known[node >>> 6] & (1L << node)) != 0;
+	}
+
+	/* The index of the grid cell that position (already divided
+	   by the step) is in, or -1 if it's outside the grid: */
+	static int cell( double position, int nodes ) {
+		if( ! (position >= 0 && position <= nodes - 1) )
+			return -1;
+		return Math.min( (int)position, nodes - 2 );
+	}
+
+	/* The first corner node of the cell that the point is in, or
+	   -1 if it's outside the grid; the other corners are +1, +nodesX
+	   and +nodesX*nodesY from it: */
+	int cellNode( double x, double y, double z ) {
+		int i = cell( (x - originX) / stepX, nodesX );
+		int j = cell( (y - originY) / stepY, nodesY );
+		int k = cell( (z - originZ) / stepZ, nodesZ );
+		if( i < 0 || j < 0 || k < 0 )
+			return -1;
+		return node( i, j, k );
+	}
+
+	public void transformPoint( double x, double y, double z, double [] transformed ) {
+		double [] xs = { x }, ys = { y }, zs = { z };
+		transformPoints( xs, ys, zs, xs, ys, zs, 1 );
+		transformed[0] = xs[0];
+		transformed[1] = ys[0];
+		transformed[2] = zs[0];
+	}
+
+	public void transformPoint( double x, double y, double z, int [] transformed ) {
+		double [] result = new double[3];
+		transformPoint( x, y, z, result );
+		for( int i = 0; i < 3; ++i )
+			transformed[i] = Double.isNaN( result[i] ) ? Integer.MIN_VALUE : (int)Math.round( result[i] );
+	}
+
+	public void transformPoint( int x, int y, int z, int [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	public void transformPoint( int x, int y, int z, double [] transformed ) {
+		transformer.transformPoint( x, y, z, transformed );
+	}
+
+	/* Transforms (with the transformer itself) the points at the
+	   given indices, which are written back to the same indices: */
+	void transformExactly( int [] indices, int count,
+			       double [] xs, double [] ys, double [] zs,
+			       double [] txs, double [] tys, double [] tzs ) {
+		double [] px = new double[count], py = new double[count], pz = new double[count];
+		for( int n = 0; n < count; ++n ) {
+			px[n] = xs[indices[n]];
+			py[n] = ys[indices[n]];
+			pz[n] = zs[indices[n]];
+		}
+		if( threadSafe )
+			new ParallelPathTransformer( transformer, threads ).transformPoints( px, py, pz, px, py, pz, count );
+		else
+			ParallelPathTransformer.transformPoints( transformer, px, py, pz, px, py, pz, count );
+		for( int n = 0; n < count; ++n ) {
+			txs[indices[n]] = px[n];
+			tys[indices[n]] = py[n];
+			tzs[indices[n]] = pz[n];
+		}
+	}
+
+	/* Transforms the grid nodes that the points need and that
+	   aren't known yet: */
+	void fillNodesFor( double [] xs, double [] ys, double [] zs, int n ) {
+		long [] needed = new long[known.length];
+		int count = 0;
+		int [] corners = { 0, 1, nodesX, nodesX + 1,
+				   nodesX * nodesY, nodesX * nodesY + 1,
+				   nodesX * nodesY + nodesX, nodesX * nodesY + nodesX + 1 };
+		for( int p = 0; p < n; ++p ) {
+			int first = cellNode( xs[p], ys[p], zs[p] );
+			if( first < 0 )
+				continue;
+			for( int c : corners ) {
+				int node = first + c;
+				long bit = 1L << node;
+				if( (known[node >>> 6] & bit) != 0 || (needed[node >>> 6] & bit) != 0 )
+					continue;
+				needed[node >>> 6] |= bit;
+				++ count;
+			}
+		}
+		if( count == 0 )
+			return;
+
+		int [] nodes = new int[count];
+		int found = 0;
+		for( int word = 0; word < needed.length; ++word )
+			for( long bits = needed[word]; bits != 0; bits &= bits - 1 )
+				nodes[found++] = (word << 6) + Long.numberOfTrailingZeros( bits );
+
+		double [] nx = new double[count], ny = new double[count], nz = new double[count];
+		int pointsInSlice = nodesX * nodesY;
+		for( int i = 0; i < count; ++i ) {
+			int node = nodes[i];
+			int k = node / pointsInSlice;
+			int inSlice = node - k * pointsInSlice;
+			nx[i] = originX + (inSlice % nodesX) * stepX;
+			ny[i] = originY + (inSlice / nodesX) * stepY;
+			nz[i] = originZ + k * stepZ;
+		}
+		int [] all = new int[count];
+		for( int i = 0; i < count; ++i )
+			all[i] = i;
+		double [] tx = new double[count], ty = new double[count], tz = new double[count];
+		transformExactly( all, count, nx, ny, nz, tx, ty, tz );
+		for( int i = 0; i < count; ++i ) {
+			int node = nodes[i];
+			displacementX[node] = (float)(tx[i] - nx[i]);
+			displacementY[node] = (float)(ty[i] - ny[i]);
+			displacementZ[node] = (float)(tz[i] - nz[i]);
+			known[node >>> 6] |= 1L << node;
+		}
+	}
+
+	/* Interpolates the displacement at a point, returning false
+	   (and leaving txs etc. alone) if it's outside the grid or any
+	   corner of its cell couldn't be transformed: */
+	boolean interpolate( int p, double [] xs, double [] ys, double [] zs,
+			     double [] txs, double [] tys, double [] tzs ) {
+		double x = xs[p], y = ys[p], z = zs[p];
+		double fx = (x - originX) / stepX;
+		double fy = (y - originY) / stepY;
+		double fz = (z - originZ) / stepZ;
+		int i = cell( fx, nodesX ), j = cell( fy, nodesY ), k = cell( fz, nodesZ );
+		if( i < 0 || j < 0 || k < 0 )
+			return false;
+		double u = fx - i, v = fy - j, w = fz - k;
+		double sumX = 0, sumY = 0, sumZ = 0;
+		for( int c = 0; c < 8; ++c ) {
+			int di = c & 1, dj = (c >> 1) & 1, dk = c >> 2;
+			int node = node( i + di, j + dj, k + dk );
+			double weight = (di == 0 ? 1 - u : u) * (dj == 0 ? 1 - v : v) * (dk == 0 ? 1 - w : w);
+			float ddx = displacementX[node], ddy = displacementY[node], ddz = displacementZ[node];
+			if( Float.isNaN( ddx ) || Float.isNaN( ddy ) || Float.isNaN( ddz ) )
+				return false;
+			sumX += weight * ddx;
+			sumY += weight * ddy;
+			sumZ += weight * ddz;
+		}
+		txs[p] = x + sumX;
+		tys[p] = y + sumY;
+		tzs[p] = z + sumZ;
+		return true;
+	}
+
+	/* This is synchronized since it may add to the grid; it uses
+	   several threads itself: */
+	public synchronized void transformPoints( final double [] xs, final double [] ys, final double [] zs,
+						  final double [] txs, final double [] tys, final double [] tzs,
+						  int n ) {
+		fillNodesFor( xs, ys, zs, n );
+
+		final boolean [] interpolated = new boolean[n];
+		ParallelPathTransformer.forEachChunk( n, threads, new ParallelPathTransformer.Chunk() {
+			public void run( int from, int to ) {
+				for( int p = from; p < to; ++p )
+					interpolated[p] = interpolate( p, xs, ys, zs, txs, tys, tzs );
+			}
+		} );
+
+		int count = 0;
+		for( int p = 0; p < n; ++p )
+			if( ! interpolated[p] )
+				++ count;
+		if( count == 0 )
+			return;
+		int [] others = new int[count];
+		count = 0;
+		for( int p = 0; p < n; ++p )
+			if( ! interpolated[p] )
+				others[count++] = p;
+		transformExactly( others, count, xs, ys, zs, txs, tys, tzs );
+	}
+}
@@ -68,8 +68,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import javax.swing.JButton;
@@ -215,7 +213,7 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 	}
 
 	public ShollResults getCurrentResults() {
-		List<ShollPoint> pointsToUse;
+		ShollEvents pointsToUse;
 		String description = "Sholl analysis ";
 		String postDescription = " for "+originalImage.getTitle();
 		boolean useAllPaths = ! useSelectedPathsCheckbox.getState();
@@ -480,6 +478,33 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 				     int normalization,
 				     double sphereSeparation,
 				     boolean twoDimensional ) {
+			this( ShollEvents.fromPoints(shollPoints),
+			      originalImage,
+			      useAllPaths,
+			      numberOfPathsUsed,
+			      x_start,
+			      y_start,
+			      z_start,
+			      description,
+			      axes,
+			      normalization,
+			      sphereSeparation,
+			      twoDimensional );
+		}
+		/* The events are sorted in place, so the same ShollEvents
+		   can be used again without sorting them again: */
+		public ShollResults( ShollEvents shollEvents,
+				     ImagePlus originalImage,
+				     boolean useAllPaths,
+				     int numberOfPathsUsed,
+				     double x_start,
+				     double y_start,
+				     double z_start,
+				     String description,
+				     int axes,
+				     int normalization,
+				     double sphereSeparation,
+				     boolean twoDimensional ) {
 			parametersSuffix = "_"+axesParameters[axes]+"_"+normalizationParameters[normalization]+"_"+sphereSeparation;
 			this.originalImage = originalImage;
 			this.useAllPaths = useAllPaths;
@@ -492,24 +517,21 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 			this.normalization = normalization;
 			this.sphereSeparation = sphereSeparation;
 			this.twoDimensional = twoDimensional;
-			Collections.sort(shollPoints);
-			n = shollPoints.size();
+			shollEvents.sort();
+			n = shollEvents.size();
 			squaredRangeStarts = new double[n];
 			crossingsPastEach = new int[n];
 			int currentCrossings = 0;
 			for( int i = 0; i < n; ++i ) {
-				ShollPoint p = shollPoints.get(i);
-				if( p.nearer )
-					++ currentCrossings;
-				else
-					-- currentCrossings;
-				squaredRangeStarts[i] = p.distanceSquared;
+				double distanceSquared = shollEvents.getDistanceSquared(i);
+				currentCrossings += shollEvents.getCrossingChange(i);
+				squaredRangeStarts[i] = distanceSquared;
 				crossingsPastEach[i] = currentCrossings;
 				if( currentCrossings > maxCrossings ) {
 					maxCrossings = currentCrossings;
-					criticalValue = Math.sqrt(p.distanceSquared);
+					criticalValue = Math.sqrt(distanceSquared);
 				}
-				// System.out.println("Range starting at: "+Math.sqrt(p.distanceSquared)+" has crossings: "+currentCrossings);
+				// System.out.println("Range starting at: "+Math.sqrt(distanceSquared)+" has crossings: "+currentCrossings);
 			}
 			xAxisLabel = "Distance in space from ( "+x_start+", "+y_start+", "+z_start+" )";
 			yAxisLabel = "Number of intersections";
@@ -687,6 +709,12 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 		}
 
 		public ImagePlus makeShollCrossingsImagePlus(ImagePlus original) {
+			return makeShollCrossingsImagePlus(original, false);
+		}
+
+		/* If virtual is true, each slice is only generated when
+		   it's displayed, which is useful for very large stacks: */
+		public ImagePlus makeShollCrossingsImagePlus(ImagePlus original, boolean virtual) {
 			int width = original.getWidth();
 			int height = original.getHeight();
 			int depth = original.getStackSize();
@@ -699,28 +727,13 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 				y_spacing = c.pixelHeight;
 				z_spacing = c.pixelDepth;
 			}
-			ImageStack stack = new ImageStack(width,height);
-			for( int z = 0; z < depth; ++z ) {
-				short [] pixels = new short[width*height];
-				for( int y = 0; y < height; ++y ) {
-					for( int x = 0; x < width; ++x ) {
-						double xdiff = x_spacing * x - x_start;
-						double ydiff = y_spacing * y - y_start;
-						double zdiff = z_spacing * z - z_start;
-						double distanceSquared =
-							xdiff * xdiff +
-							ydiff * ydiff +
-							zdiff * zdiff;
-						pixels[y*width+x] = (short)crossingsAtDistanceSquared(distanceSquared);
-					}
-				}
-				ShortProcessor sp = new ShortProcessor(width,height);
-				sp.setPixels(pixels);
-				stack.addSlice( "", sp );
-			}
+			ShollCrossingsImage crossingsImage = new ShollCrossingsImage( this,
+										      width, height, depth,
+										      x_spacing, y_spacing, z_spacing );
+			IndexColorModel icm = FindConnectedRegions.backgroundAndSpectrum(255);
+			ImageStack stack = virtual ? crossingsImage.makeVirtualStack(icm) : crossingsImage.makeStack();
 			ImagePlus result = new ImagePlus( description, stack );
 			result.show();
-			IndexColorModel icm = FindConnectedRegions.backgroundAndSpectrum(255);
 			stack.setColorModel(icm);
 			ImageProcessor ip = result.getProcessor();
 			if( ip != null ) {
@@ -739,8 +752,10 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 		}
 
 		public String getOriginalFilename() {
+			if( originalImage == null )
+				return "[unknown]";
 			FileInfo originalFileInfo = originalImage.getOriginalFileInfo();
-			if( originalFileInfo.directory == null )
+			if( originalFileInfo == null || originalFileInfo.directory == null )
 				return "[unknown]";
 			else
 				return new File(originalFileInfo.directory,
@@ -749,20 +764,35 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 
 		}
 
-		public void exportSummaryToCSV( File outputFile ) throws IOException {
-			String [] headers = new String[]{ "Filename",
-							  "AllPathsUsed",
-							  "NumberOfPathsUsed",
-							  "SphereSeparation",
-							  "Normlization",
-							  "Axes",
-							  "CriticalValue",
-							  "DendriteMaximum",
-							  "ShollRegressionCoefficient",
-							  "RegressionGradient",
-							  "RegressionIntercept" };
+		public static final String [] summaryHeaders = new String[]{ "Filename",
+									      "AllPathsUsed",
+									      "NumberOfPathsUsed",
+									      "SphereSeparation",
+									      "Normlization",
+									      "Axes",
+									      "CriticalValue",
+									      "DendriteMaximum",
+									      "ShollRegressionCoefficient",
+									      "RegressionGradient",
+									      "RegressionIntercept" };
+
+		public String [] getDetailHeaders() {
+			return getDetailHeaders(sphereSeparation);
+		}
 
-			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile.getAbsolutePath()),"UTF-8"));
+		public static String [] getDetailHeaders( double sphereSeparation ) {
+			if( sphereSeparation > 0 )
+				return new String[]{ "Radius",
+						     "Crossings",
+						     "NormalizedCrossings" };
+			else
+				return new String []{ "StartRadius",
+						      "EndRadius",
+						      "Crossings",
+						      "NormalizedCrossings" };
+		}
+
+		public static void printCSVHeaders( PrintWriter pw, String [] headers ) {
 			int columns = headers.length;
 			for( int c = 0; c < columns; ++c ) {
 				csvQuoteAndPrint(pw,headers[c]);
@@ -770,7 +800,12 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 					pw.print(",");
 			}
 			pw.print("\r\n");
-			csvQuoteAndPrint(pw,getOriginalFilename());
+		}
+
+		/* The row of summaryHeaders, but without the line ending,
+		   so that more columns can be added: */
+		public void printSummaryValues( PrintWriter pw, String filename ) {
+			csvQuoteAndPrint(pw,filename);
 			pw.print(",");
 			csvQuoteAndPrint(pw,useAllPaths);
 			pw.print(",");
@@ -791,31 +826,19 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 			csvQuoteAndPrint(pw,getRegressionGradient());
 			pw.print(",");
 			csvQuoteAndPrint(pw,getRegressionIntercept());
-			pw.print("\r\n");
-
-			pw.close();
 		}
 
-		public void exportDetailToCSV( File outputFile ) throws IOException {
-			String [] headers;
-			if( sphereSeparation > 0 )
-				headers = new String[]{ "Radius",
-							"Crossings",
-							"NormalizedCrossings" };
-			else
-				headers = new String []{ "StartRadius",
-							 "EndRadius",
-							 "Crossings",
-							 "NormalizedCrossings" };
-
+		public void exportSummaryToCSV( File outputFile ) throws IOException {
 			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile.getAbsolutePath()),"UTF-8"));
-			int columns = headers.length;
-			for( int c = 0; c < columns; ++c ) {
-				csvQuoteAndPrint(pw,headers[c]);
-				if( c < (columns - 1) )
-					pw.print(",");
-			}
+			printCSVHeaders(pw,summaryHeaders);
+			printSummaryValues(pw,getOriginalFilename());
 			pw.print("\r\n");
+			pw.close();
+		}
+
+		/* The rows of getDetailHeaders(); if firstColumn isn't
+		   null, it's printed at the start of each row: */
+		public void printDetailRows( PrintWriter pw, String firstColumn ) {
 			if( sphereSeparation > 0 ) {
 				int graphPoints = (int)Math.ceil(Math.sqrt(getMaxDistanceSquared()) / sphereSeparation);
 				for( int i = 0; i < graphPoints; ++i ) {
@@ -827,6 +850,10 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 						normalizedCrossings = crossings / (Math.PI * distanceSquared);
 					else
 						normalizedCrossings = crossings / ((4.0 * Math.PI * x * distanceSquared) / 3.0);
+					if( firstColumn != null ) {
+						csvQuoteAndPrint(pw,firstColumn);
+						pw.print(",");
+					}
 					csvQuoteAndPrint(pw,x);
 					pw.print(",");
 					csvQuoteAndPrint(pw,crossings);
@@ -850,6 +877,10 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 						normalizedCrossings = crossings / (Math.PI * (midX * midX));
 					else
 						normalizedCrossings = crossings / ((4.0 * Math.PI * (midX * midX * midX)) / 3.0);
+					if( firstColumn != null ) {
+						csvQuoteAndPrint(pw,firstColumn);
+						pw.print(",");
+					}
 					csvQuoteAndPrint(pw,startX);
 					pw.print(",");
 					csvQuoteAndPrint(pw,endX);
@@ -860,6 +891,12 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 					pw.print("\r\n");
 				}
 			}
+		}
+
+		public void exportDetailToCSV( File outputFile ) throws IOException {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile.getAbsolutePath()),"UTF-8"));
+			printCSVHeaders(pw,getDetailHeaders());
+			printDetailRows(pw,null);
 			pw.close();
 		}
 	}
@@ -883,12 +920,12 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 						     List<ShollPoint> shollPointsList ) {
 
 		for( int i = 0; i < p.points - 1; ++i ) {
-			double xdiff_first = p.precise_x_positions[i] - x_start;
-			double ydiff_first = p.precise_y_positions[i] - y_start;
-			double zdiff_first = p.precise_z_positions[i] - z_start;
-			double xdiff_second = p.precise_x_positions[i+1] - x_start;
-			double ydiff_second = p.precise_y_positions[i+1] - y_start;
-			double zdiff_second = p.precise_z_positions[i+1] - z_start;
+			double xdiff_first = p.getPreciseX( i ) - x_start;
+			double ydiff_first = p.getPreciseY( i ) - y_start;
+			double zdiff_first = p.getPreciseZ( i ) - z_start;
+			double xdiff_second = p.getPreciseX( i+1 ) - x_start;
+			double ydiff_second = p.getPreciseY( i+1 ) - y_start;
+			double zdiff_second = p.getPreciseZ( i+1 ) - z_start;
 			double distanceSquaredFirst = xdiff_first*xdiff_first + ydiff_first*ydiff_first + zdiff_first*zdiff_first;
 			double distanceSquaredSecond = xdiff_second*xdiff_second + ydiff_second*ydiff_second + zdiff_second*zdiff_second;
 			shollPointsList.add( new ShollPoint( distanceSquaredFirst, distanceSquaredFirst < distanceSquaredSecond ) );
@@ -897,8 +934,8 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 
 	}
 
-	ArrayList<ShollPoint> shollPointsAllPaths;
-	ArrayList<ShollPoint> shollPointsSelectedPaths;
+	ShollEvents shollPointsAllPaths;
+	ShollEvents shollPointsSelectedPaths;
 
 	ResultsPanel resultsPanel = new ResultsPanel();
 
@@ -920,8 +957,8 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 		this.originalImage = originalImage;
 		twoDimensional = (originalImage.getStackSize() == 1);
 
-		shollPointsAllPaths = new ArrayList<ShollPoint>();
-		shollPointsSelectedPaths = new ArrayList<ShollPoint>();
+		shollPointsAllPaths = new ShollEvents();
+		shollPointsSelectedPaths = new ShollEvents();
 
 		numberOfAllPaths = 0;
 		numberOfSelectedPaths = 0;
@@ -932,18 +969,16 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 				p = p.fitted;
 			} else if( p.fittedVersionOf != null )
 				continue;
-			addPathPointsToShollList(p,
-						 x_start,
-						 y_start,
-						 z_start,
-						 shollPointsAllPaths);
+			shollPointsAllPaths.addPath(p,
+						    x_start,
+						    y_start,
+						    z_start);
 			++ numberOfAllPaths;
 			if( selected ) {
-				addPathPointsToShollList(p,
-							 x_start,
-							 y_start,
-							 z_start,
-							 shollPointsSelectedPaths);
+				shollPointsSelectedPaths.addPath(p,
+								 x_start,
+								 y_start,
+								 z_start);
 				++ numberOfSelectedPaths;
 			}
 		}
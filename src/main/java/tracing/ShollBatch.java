@@ -0,0 +1,604 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Sholl analysis of all the paths in each of a list of traces or
+   SWC files, for comparing many reconstructions at once.  The
+   centre for each file is found by a rule: the start of the soma
+   path, the start of the primary path, or the same coordinates for
+   every file.  The analysis is the same as ShollAnalysisDialog's
+   for "all paths", but without an image.
+
+   The files are analysed with a thread for each processor, and the
+   results are written as they're finished, in the order of the
+   files, to two CSV files:
+
+     - a summary file, with one row for each file, in the format of
+       ShollResults.exportSummaryToCSV() with the centre and an
+       error message (for files that couldn't be analysed) added
+
+     - a detail file in "long" format, i.e. the rows of
+       ShollResults.exportDetailToCSV() for every file, with the
+       filename as the first column
+
+   Only a few files' results are held at once, so this can be used
+   on thousands of files. */
+
+public class ShollBatch {
+
+	public static final int CENTRE_SOMA     = 1;
+	public static final int CENTRE_PRIMARY  = 2;
+	public static final int CENTRE_EXPLICIT = 3;
+
+	public static final String [] centreRuleNames = { null, "soma", "primary", "explicit" };
+
+	public static interface Listener {
+		/* Called from the thread that called run(), in the
+		   order of the files: */
+		public void fileAnalysed( FileResult result, int filesDone, int filesTotal );
+	}
+
+	static class FileFailedException extends Exception {
+		FileFailedException( String message ) {
+			super( message );
+		}
+	}
+
+	public static class FileResult {
+
+		protected File file;
+		protected String error;
+		protected int pathsUsed;
+		protected double [] centre;
+		protected boolean twoDimensional;
+		protected double criticalValue = Double.NaN;
+		protected int dendriteMaximum = -1;
+
+		/* The CSV rows, which are dropped once they've been
+		   written: */
+		protected String summaryRow;
+		protected String detailRows;
+
+		public File getFile( ) {
+			return file;
+		}
+
+		public boolean succeeded( ) {
+			return error == null;
+		}
+
+		/* A description of why the file couldn't be analysed,
+		   or null if it was: */
+		public String getError( ) {
+			return error;
+		}
+
+		public int getPathsUsed( ) {
+			return pathsUsed;
+		}
+
+		/* null if no centre could be found: */
+		public double [] getCentre( ) {
+			return centre;
+		}
+
+		public double getCriticalValue( ) {
+			return criticalValue;
+		}
+
+		public int getDendriteMaximum( ) {
+			return dendriteMaximum;
+		}
+
+		@Override
+		public String toString( ) {
+			if( error != null )
+				return file.getName()+": failed: "+error;
+			return file.getName()+": "+pathsUsed+" paths, critical value "+criticalValue+
+				", dendrite maximum "+dendriteMaximum;
+		}
+	}
+
+	protected List< File > files;
+
+	protected int centreRule = CENTRE_PRIMARY;
+	protected double [] explicitCentre;
+	protected double sphereSeparation = 0;
+	protected int axes = ShollAnalysisDialog.AXES_NORMAL;
+	protected int normalization = ShollAnalysisDialog.NOT_NORMALIZED;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected Listener listener;
+
+	protected int filesDone;
+	protected int filesFailed;
+
+	public ShollBatch( List< File > files ) {
+		this.files = new ArrayList< File >( files );
+	}
+
+	/* The traces and SWC files in a directory, sorted by name: */
+	public static List< File > getTracesFiles( File directory ) throws IOException {
+		File [] listed = directory.listFiles();
+		if( listed == null )
+			throw new IOException( "Couldn't list the files in "+directory );
+		ArrayList< File > result = new ArrayList< File >();
+		for( File f : listed ) {
+			String name = f.getName().toLowerCase();
+			if( f.isFile() && (name.endsWith( ".traces" ) ||
+					   name.endsWith( ".swc" ) ||
+					   name.endsWith( ".xml" )) )
+				result.add( f );
+		}
+		File [] sorted = result.toArray( new File[result.size()] );
+		Arrays.sort( sorted );
+		return Arrays.asList( sorted );
+	}
+
+	/* CENTRE_SOMA or CENTRE_PRIMARY; use setCentre() for
+	   CENTRE_EXPLICIT: */
+	public void setCentreRule( int centreRule ) {
+		if( centreRule != CENTRE_SOMA && centreRule != CENTRE_PRIMARY )
+			throw new IllegalArgumentException( "Unknown centre rule: "+centreRule );
+		this.centreRule = centreRule;
+		explicitCentre = null;
+	}
+
+	/* The same centre, in world coordinates, for every file: */
+	public void setCentre( double x, double y, double z ) {
+		centreRule = CENTRE_EXPLICIT;
+		explicitCentre = new double[] { x, y, z };
+	}
+
+	/* 0 for the exact distances at which the crossings change,
+	   as in the dialog: */
+	public void setSphereSeparation( double sphereSeparation ) {
+		this.sphereSeparation = sphereSeparation;
+	}
+
+	/* One of ShollAnalysisDialog.AXES_*: */
+	public void setAxes( int axes ) {
+		if( axes < 1 || axes >= ShollAnalysisDialog.axesParameters.length )
+			throw new IllegalArgumentException( "Unknown axes: "+axes );
+		this.axes = axes;
+	}
+
+	/* ShollAnalysisDialog.NOT_NORMALIZED or
+	   NORMALIZED_FOR_SPHERE_VOLUME: */
+	public void setNormalization( int normalization ) {
+		if( normalization < 1 || normalization >= ShollAnalysisDialog.normalizationParameters.length )
+			throw new IllegalArgumentException( "Unknown normalization: "+normalization );
+		this.normalization = normalization;
+	}
+
+	public void setThreads( int threads ) {
+		if( threads < 1 )
+			throw new IllegalArgumentException( "The number of threads must be at least 1" );
+		this.threads = threads;
+	}
+
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	/* The start of the path that the centre rule picks, in world
+	   coordinates, or null if there isn't one.  Fitted versions
+	   are used where they're in use.  For CENTRE_PRIMARY, if no
+	   path has been marked as primary (as is the case after
+	   importing an SWC file) the first path that doesn't start on
+	   another path is used instead. */
+	public static double [] findCentre( PathAndFillManager pafm, int centreRule ) {
+		Path found = null;
+		if( centreRule == CENTRE_SOMA ) {
+			for( Path p : pafm.allPaths )
+				if( ! p.isFittedVersionOfAnotherPath() && p.getSWCType() == Path.SWC_SOMA ) {
+					found = p;
+					break;
+				}
+		} else if( centreRule == CENTRE_PRIMARY ) {
+			for( Path p : pafm.allPaths )
+				if( ! p.isFittedVersionOfAnotherPath() && p.getPrimary() ) {
+					found = p;
+					break;
+				}
+			if( found == null )
+				for( Path p : pafm.allPaths )
+					if( ! p.isFittedVersionOfAnotherPath() && p.startJoins == null ) {
+						found = p;
+						break;
+					}
+		} else
+			throw new IllegalArgumentException( "There's no path for the centre rule "+centreRule );
+		if( found == null || found.size() == 0 )
+			return null;
+		if( found.getUseFitted() )
+			found = found.fitted;
+		return new double[] { found.getPreciseX( 0 ),
+				      found.getPreciseY( 0 ),
+				      found.getPreciseZ( 0 ) };
+	}
+
+	/* Adds the same events as the dialog does for "all paths",
+	   returning the number of paths used: */
+	public static int addAllPaths( ShollEvents events, PathAndFillManager pafm, double x, double y, double z ) {
+		int pathsUsed = 0;
+		for( Path p : pafm.allPaths ) {
+			if( p.getUseFitted() )
+				p = p.fitted;
+			else if( p.fittedVersionOf != null )
+				continue;
+			events.addPath( p, x, y, z );
+			++ pathsUsed;
+		}
+		return pathsUsed;
+	}
+
+	/* SWC files are read directly in world coordinates, rather
+	   than with PathAndFillManager.importSWC(), which reports
+	   errors with IJ.error(): */
+	PathAndFillManager load( File file, FileResult result ) throws IOException, FileFailedException {
+		if( ! file.isFile() )
+			throw new FileFailedException( "The file doesn't exist" );
+		int type = PathAndFillManager.guessTracesFileType( file.getAbsolutePath() );
+		if( type == PathAndFillManager.TRACES_FILE_TYPE_SWC ) {
+			SWCReader swc = new SWCReader();
+			InputStream is = new FileInputStream( file );
+			try {
+				swc.read( is );
+			} catch( SWCImportException e ) {
+				throw new FileFailedException( e.getMessage() );
+			} finally {
+				is.close();
+			}
+			PathAndFillManager pafm = new PathAndFillManager( 1, 1, 1, 1, 1, 1, "unknown" );
+			try {
+				pafm.addSWC( swc, false, 0, 0, 0, 1, 1, 1, true );
+			} catch( SWCImportException e ) {
+				throw new FileFailedException( e.getMessage() );
+			}
+			/* There's no image, so it's 2D if every point is
+			   in the same plane: */
+			result.twoDimensional = true;
+			for( int i = 1; i < swc.size(); ++i )
+				if( swc.zs[i] != swc.zs[0] )
+					result.twoDimensional = false;
+			return pafm;
+		}
+		PathAndFillManager pafm = new PathAndFillManager();
+		if( ! pafm.loadGuessingType( file.getAbsolutePath() ) )
+			throw new FileFailedException( "Couldn't load the traces file" );
+		result.twoDimensional = pafm.depth == 1;
+		return pafm;
+	}
+
+	/* Never throws: whatever goes wrong with the file is
+	   recorded in the result. */
+	FileResult analyse( File file ) {
+		FileResult result = new FileResult();
+		result.file = file;
+		try {
+			PathAndFillManager pafm = load( file, result );
+
+			if( centreRule == CENTRE_EXPLICIT )
+				result.centre = explicitCentre;
+			else {
+				result.centre = findCentre( pafm, centreRule );
+				if( result.centre == null )
+					throw new FileFailedException( "There's no "+centreRuleNames[centreRule]+
+								       " path to centre the Sholl analysis on" );
+			}
+			double [] c = result.centre;
+
+			ShollEvents events = new ShollEvents();
+			result.pathsUsed = addAllPaths( events, pafm, c[0], c[1], c[2] );
+			pafm = null;
+			if( events.size() == 0 )
+				throw new FileFailedException( "There are no path segments for Sholl analysis" );
+
+			ShollAnalysisDialog.ShollResults sholl = new ShollAnalysisDialog.ShollResults(
+				events,
+				null,
+				true,
+				result.pathsUsed,
+				c[0],
+				c[1],
+				c[2],
+				"Sholl analysis of all paths for "+file.getName(),
+				axes,
+				normalization,
+				sphereSeparation,
+				result.twoDimensional );
+			events = null;
+
+			result.criticalValue = sholl.getCriticalValue();
+			result.dendriteMaximum = sholl.getDendriteMaximum();
+
+			StringWriter summary = new StringWriter();
+			PrintWriter pw = new PrintWriter( summary );
+			sholl.printSummaryValues( pw, file.getPath() );
+			printExtraSummaryValues( pw, result );
+			pw.close();
+			result.summaryRow = summary.toString();
+
+			StringWriter detail = new StringWriter();
+			pw = new PrintWriter( detail );
+			sholl.printDetailRows( pw, file.getPath() );
+			pw.close();
+			result.detailRows = detail.toString();
+
+		} catch( IOException e ) {
+			result.error = "Couldn't read the file: "+e.getMessage();
+		} catch( FileFailedException e ) {
+			result.error = e.getMessage();
+		} catch( RuntimeException e ) {
+			// So that one bad file doesn't stop the others:
+			result.error = e.toString();
+			result.detailRows = null;
+		}
+		if( result.error != null ) {
+			StringWriter summary = new StringWriter();
+			PrintWriter pw = new PrintWriter( summary );
+			ShollAnalysisDialog.ShollResults.csvQuoteAndPrint( pw, file.getPath() );
+			for( int i = 1; i < ShollAnalysisDialog.ShollResults.summaryHeaders.length; ++i )
+				pw.print( "," );
+			printExtraSummaryValues( pw, result );
+			pw.close();
+			result.summaryRow = summary.toString();
+		}
+		return result;
+	}
+
+	static final String [] extraSummaryHeaders = { "CentreX",
+						       "CentreY",
+						       "CentreZ",
+						       "TwoDimensional",
+						       "Error" };
+
+	void printExtraSummaryValues( PrintWriter pw, FileResult result ) {
+		for( int i = 0; i < 3; ++i ) {
+			pw.print( "," );
+			if( result.centre != null )
+				ShollAnalysisDialog.ShollResults.csvQuoteAndPrint( pw, result.centre[i] );
+		}
+		pw.print( "," );
+		if( result.succeeded() )
+			ShollAnalysisDialog.ShollResults.csvQuoteAndPrint( pw, result.twoDimensional );
+		pw.print( "," );
+		if( result.error != null )
+			ShollAnalysisDialog.ShollResults.csvQuoteAndPrint( pw, result.error.replace( '\n', ' ' ).replace( '\r', ' ' ) );
+		pw.print( "\r\n" );
+	}
+
+	void finished( FileResult result, PrintWriter summary, PrintWriter detail ) {
+		summary.print( result.summaryRow );
+		if( result.detailRows != null )
+			detail.print( result.detailRows );
+		result.summaryRow = null;
+		result.detailRows = null;
+		int done;
+		synchronized( this ) {
+			done = ++ filesDone;
+			if( ! result.succeeded() )
+				++ filesFailed;
+		}
+		if( listener != null )
+			listener.fileAnalysed( result, done, files.size() );
+	}
+
+	/* Analyses every file, writing the results to summaryFile and
+	   detailFile as they're finished.  A file that can't be
+	   analysed just gets an error in its summary row. */
+	public void run( File summaryFile, File detailFile ) throws IOException, InterruptedException {
+
+		synchronized( this ) {
+			filesDone = filesFailed = 0;
+		}
+
+		String [] summaryHeaders = ShollAnalysisDialog.ShollResults.summaryHeaders;
+		String [] allSummaryHeaders = Arrays.copyOf( summaryHeaders, summaryHeaders.length + extraSummaryHeaders.length );
+		System.arraycopy( extraSummaryHeaders, 0, allSummaryHeaders, summaryHeaders.length, extraSummaryHeaders.length );
+
+		String [] detailHeaders = ShollAnalysisDialog.ShollResults.getDetailHeaders( sphereSeparation );
+		String [] allDetailHeaders = new String[detailHeaders.length + 1];
+		allDetailHeaders[0] = "Filename";
+		System.arraycopy( detailHeaders, 0, allDetailHeaders, 1, detailHeaders.length );
+
+		PrintWriter summary = new PrintWriter( new OutputStreamWriter( new FileOutputStream( summaryFile ), "UTF-8" ) );
+		PrintWriter detail = null;
+		ExecutorService es = Executors.newFixedThreadPool( threads );
+		try {
+			detail = new PrintWriter( new OutputStreamWriter( new FileOutputStream( detailFile ), "UTF-8" ) );
+			ShollAnalysisDialog.ShollResults.printCSVHeaders( summary, allSummaryHeaders );
+			ShollAnalysisDialog.ShollResults.printCSVHeaders( detail, allDetailHeaders );
+
+			/* Only a couple of files for each thread are
+			   queued at once, so that the results waiting to
+			   be written don't build up: */
+			int window = threads * 2;
+			ArrayDeque< Future< FileResult > > pending = new ArrayDeque< Future< FileResult > >();
+			for( final File file : files ) {
+				if( pending.size() >= window )
+					finished( pending.removeFirst().get(), summary, detail );
+				pending.addLast( es.submit( new Callable< FileResult >() {
+					public FileResult call() {
+						return analyse( file );
+					}
+				} ) );
+			}
+			while( ! pending.isEmpty() )
+				finished( pending.removeFirst().get(), summary, detail );
+
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Sholl analysis of the files failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdownNow();
+			summary.close();
+			if( detail != null )
+				detail.close();
+		}
+		if( summary.checkError() || detail.checkError() )
+			throw new IOException( "Writing the Sholl analysis results failed" );
+	}
+
+	public synchronized int getFilesDone( ) {
+		return filesDone;
+	}
+
+	public synchronized int getFilesFailed( ) {
+		return filesFailed;
+	}
+
+	@Override
+	public synchronized String toString( ) {
+		return "Analysed "+(filesDone - filesFailed)+" of "+files.size()+" files ("+filesFailed+" failed)";
+	}
+
+	static void usage( ) {
+		System.err.println( "Usage: tracing.ShollBatch [-threads N] [-centre soma|primary|x,y,z] [-separation S]\n"+
+				    "                          [-axes normal|semi-log|log-log] [-normalization none|volume]\n"+
+				    "                          [-list file-list.txt] <summary.csv> <detail.csv> [traces-file-or-directory ...]" );
+		System.exit( 2 );
+	}
+
+	/* A file with one filename on each line; blank lines and
+	   lines starting with # are ignored: */
+	static void readFileList( File listFile, List< File > files ) throws IOException {
+		BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( listFile ), "UTF-8" ) );
+		try {
+			String line;
+			while( (line = br.readLine()) != null ) {
+				line = line.trim();
+				if( line.length() == 0 || line.startsWith( "#" ) )
+					continue;
+				files.add( new File( line ) );
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	public static void main( String [] args ) throws Exception {
+		ArrayList< String > positional = new ArrayList< String >();
+		ArrayList< File > files = new ArrayList< File >();
+		int threads = 0;
+		String centre = null, axes = null, normalization = null;
+		double separation = 0;
+		try {
+			for( int i = 0; i < args.length; ++i ) {
+				if( args[i].equals( "-threads" ) && i + 1 < args.length )
+					threads = Integer.parseInt( args[++i] );
+				else if( args[i].equals( "-centre" ) && i + 1 < args.length )
+					centre = args[++i];
+				else if( args[i].equals( "-separation" ) && i + 1 < args.length )
+					separation = Double.parseDouble( args[++i] );
+				else if( args[i].equals( "-axes" ) && i + 1 < args.length )
+					axes = args[++i];
+				else if( args[i].equals( "-normalization" ) && i + 1 < args.length )
+					normalization = args[++i];
+				else if( args[i].equals( "-list" ) && i + 1 < args.length )
+					readFileList( new File( args[++i] ), files );
+				else if( args[i].startsWith( "-" ) )
+					usage();
+				else
+					positional.add( args[i] );
+			}
+		} catch( NumberFormatException e ) {
+			usage();
+		}
+		if( positional.size() < 2 )
+			usage();
+		for( String name : positional.subList( 2, positional.size() ) ) {
+			File f = new File( name );
+			if( f.isDirectory() )
+				files.addAll( getTracesFiles( f ) );
+			else
+				files.add( f );
+		}
+
+		ShollBatch batch = new ShollBatch( files );
+		if( threads > 0 )
+			batch.setThreads( threads );
+		if( centre == null || centre.equals( "primary" ) )
+			batch.setCentreRule( CENTRE_PRIMARY );
+		else if( centre.equals( "soma" ) )
+			batch.setCentreRule( CENTRE_SOMA );
+		else {
+			String [] coordinates = centre.split( "," );
+			if( coordinates.length != 3 )
+				usage();
+			try {
+				batch.setCentre( Double.parseDouble( coordinates[0] ),
+						 Double.parseDouble( coordinates[1] ),
+						 Double.parseDouble( coordinates[2] ) );
+			} catch( NumberFormatException e ) {
+				usage();
+			}
+		}
+		batch.setSphereSeparation( separation );
+		if( axes != null ) {
+			int a = Arrays.asList( ShollAnalysisDialog.axesParameters ).indexOf( axes );
+			if( a < 1 )
+				usage();
+			batch.setAxes( a );
+		}
+		if( normalization == null || normalization.equals( "none" ) )
+			batch.setNormalization( ShollAnalysisDialog.NOT_NORMALIZED );
+		else if( normalization.equals( "volume" ) )
+			batch.setNormalization( ShollAnalysisDialog.NORMALIZED_FOR_SPHERE_VOLUME );
+		else
+			usage();
+
+		batch.setListener( new Listener() {
+			public void fileAnalysed( FileResult result, int filesDone, int filesTotal ) {
+				System.out.println( "["+filesDone+"/"+filesTotal+"] "+result );
+			}
+		} );
+		batch.run( new File( positional.get( 0 ) ), new File( positional.get( 1 ) ) );
+		System.out.println( batch );
+		System.exit( batch.getFilesFailed() > 0 ? 1 : 0 );
+	}
+}
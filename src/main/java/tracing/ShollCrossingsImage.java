@@ -0,0 +1,299 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Generates the slices of the image that
+   ShollResults.makeShollCrossingsImagePlus() shows, where each
+   voxel is the number of crossings at its distance from the centre.
+
+   The number of crossings only changes at the distances in
+   squaredRangeStarts, so this divides the space around the centre
+   into thin shells (an eighth of a voxel thick, or thinner if there
+   are many range starts) and finds which of those distances are in
+   each shell.  The binary search for each voxel
+   is then only over the handful of distances in its shell (often
+   none), rather than over all of them.  The distances are worked
+   out in exactly the same way as before, and the number of
+   crossings for a voxel is what crossingsAtDistanceSquared() would
+   return, so the image is identical.
+
+   The slices are independent, so they can either be generated in
+   parallel, or on demand as a VirtualStack. */
+
+class ShollCrossingsImage {
+
+	/* There are at least this many shells across the smallest
+	   voxel dimension: */
+	static final int SHELLS_PER_VOXEL = 8;
+
+	/* ... and if there are many range starts, enough shells that
+	   there are about this many in each: */
+	static final int RANGE_STARTS_PER_SHELL = 4;
+
+	static final int MAX_SHELLS = 1 << 21;
+
+	protected ShollAnalysisDialog.ShollResults results;
+	protected int width, height, depth;
+
+	/* The squared distances from the centre along each axis: */
+	protected double [] xSquared;
+	protected double [] ySquared;
+	protected double [] zSquared;
+
+	protected double shellWidth;
+	protected int shells;
+	/* The range starts in each shell are from
+	   squaredRangeStarts[shellFirst[s]] up to, but not including,
+	   squaredRangeStarts[shellLast[s]]: */
+	protected int [] shellFirst;
+	protected int [] shellLast;
+
+	ShollCrossingsImage( ShollAnalysisDialog.ShollResults results,
+			     int width, int height, int depth,
+			     double x_spacing, double y_spacing, double z_spacing ) {
+		this.results = results;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		xSquared = new double[width];
+		for( int x = 0; x < width; ++x ) {
+			double xdiff = x_spacing * x - results.x_start;
+			xSquared[x] = xdiff * xdiff;
+		}
+		ySquared = new double[height];
+		for( int y = 0; y < height; ++y ) {
+			double ydiff = y_spacing * y - results.y_start;
+			ySquared[y] = ydiff * ydiff;
+		}
+		zSquared = new double[depth];
+		for( int z = 0; z < depth; ++z ) {
+			double zdiff = z_spacing * z - results.z_start;
+			zSquared[z] = zdiff * zdiff;
+		}
+
+		double maxDistanceSquared = max( xSquared ) + max( ySquared ) + max( zSquared );
+		double maxDistance = Math.sqrt( maxDistanceSquared );
+		double minSpacing = Math.min( Math.abs( x_spacing ), Math.min( Math.abs( y_spacing ), Math.abs( z_spacing ) ) );
+		if( ! (minSpacing > 0) )
+			minSpacing = 1;
+		int n = results.n;
+		shellWidth = minSpacing / SHELLS_PER_VOXEL;
+		if( n > 0 ) {
+			double maxRangeStart = Math.sqrt( results.squaredRangeStarts[n-1] );
+			shellWidth = Math.min( shellWidth, maxRangeStart * RANGE_STARTS_PER_SHELL / n );
+		}
+		if( ! (maxDistance / shellWidth <= MAX_SHELLS - 2) )
+			shellWidth = maxDistance / (MAX_SHELLS - 2);
+		if( Double.isNaN( maxDistance ) || Double.isInfinite( maxDistance ) ||
+		    n == 0 || Double.isNaN( results.squaredRangeStarts[n-1] ) ) {
+			/* Then every voxel just uses
+			   crossingsAtDistanceSquared(), since a NaN
+			   isn't ordered in the way that
+			   crossingsForRangeStartsUpTo() assumes: */
+			shells = 0;
+		} else
+			shells = (int)Math.ceil( maxDistance / shellWidth ) + 1;
+		buildShells();
+	}
+
+	static double max( double [] values ) {
+		double result = 0;
+		for( double v : values )
+			if( v > result )
+				result = v;
+		return result;
+	}
+
+	/* The number of range starts <= distanceSquared, searching
+	   only from index from to index to (exclusive), which must
+	   include that position: */
+	int rangeStartsUpTo( double distanceSquared, int from, int to ) {
+		double [] starts = results.squaredRangeStarts;
+		int low = from, high = to;
+		while( low < high ) {
+			int mid = (low + high) >>> 1;
+			if( starts[mid] <= distanceSquared )
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/* This is also shell s - 1's end; it's worked out in the same
+	   way each time, so that it's always exactly the same: */
+	double shellStartSquared( int s ) {
+		double start = s * shellWidth;
+		return start * start;
+	}
+
+	void buildShells( ) {
+		shellFirst = new int[shells];
+		shellLast = new int[shells];
+		double [] starts = results.squaredRangeStarts;
+		int n = results.n;
+		int first = 0;
+		for( int s = 0; s < shells; ++s ) {
+			first = rangeStartsUpTo( shellStartSquared( s ), first, n );
+			double endSquared = shellStartSquared( s + 1 );
+			int last = first;
+			while( last < n && starts[last] < endSquared )
+				++ last;
+			shellFirst[s] = first;
+			shellLast[s] = last;
+		}
+	}
+
+	/* The same as ShollResults.crossingsAtDistanceSquared(), given
+	   the number of range starts <= distanceSquared.  (Its binary
+	   search finds the last of those, but never the last element
+	   of the array.) */
+	int crossingsForRangeStartsUpTo( int upTo, double distanceSquared ) {
+		int n = results.n;
+		if( upTo == 0 )
+			return 1;
+		if( upTo == n && distanceSquared > results.squaredRangeStarts[n-1] )
+			return 0;
+		return results.crossingsPastEach[Math.max( 0, Math.min( upTo - 1, n - 2 ) )];
+	}
+
+	int crossingsAtDistanceSquared( double distanceSquared ) {
+		int s = (int)(Math.sqrt( distanceSquared ) / shellWidth);
+		/* Rounding may put a distance right at the edge of a
+		   shell into its neighbour, so check: */
+		if( s >= 0 && s < shells &&
+		    distanceSquared >= shellStartSquared( s ) &&
+		    distanceSquared < shellStartSquared( s + 1 ) ) {
+			int upTo = rangeStartsUpTo( distanceSquared, shellFirst[s], shellLast[s] );
+			return crossingsForRangeStartsUpTo( upTo, distanceSquared );
+		}
+		return results.crossingsAtDistanceSquared( distanceSquared );
+	}
+
+	/* z is from 0: */
+	short [] slice( int z ) {
+		short [] pixels = new short[width*height];
+		double zz = zSquared[z];
+		for( int y = 0; y < height; ++y ) {
+			double yy = ySquared[y];
+			int offset = y * width;
+			for( int x = 0; x < width; ++x ) {
+				// The same order of additions as before:
+				double distanceSquared = xSquared[x] + yy + zz;
+				pixels[offset+x] = (short)crossingsAtDistanceSquared( distanceSquared );
+			}
+		}
+		return pixels;
+	}
+
+	/* Generates every slice, using a thread for each processor: */
+	ImageStack makeStack( ) {
+		ArrayList< Callable< short [] > > tasks = new ArrayList< Callable< short [] > >();
+		for( int z = 0; z < depth; ++z ) {
+			final int sliceIndex = z;
+			tasks.add( new Callable< short [] >() {
+				public short [] call() {
+					return slice( sliceIndex );
+				}
+			} );
+		}
+		ImageStack stack = new ImageStack( width, height );
+		int processors = Runtime.getRuntime().availableProcessors();
+		ExecutorService es = Executors.newFixedThreadPool( processors );
+		try {
+			List< Future< short [] > > futures = es.invokeAll( tasks );
+			for( Future< short [] > future : futures ) {
+				ShortProcessor sp = new ShortProcessor( width, height );
+				sp.setPixels( future.get() );
+				stack.addSlice( "", sp );
+			}
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Generating the Sholl crossings image was interrupted", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Generating the Sholl crossings image failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+		return stack;
+	}
+
+	/* Generates each slice only when it's asked for: */
+	ImageStack makeVirtualStack( ColorModel cm ) {
+		return new CrossingsStack( cm );
+	}
+
+	class CrossingsStack extends VirtualStack {
+
+		CrossingsStack( ColorModel cm ) {
+			super( width, height, cm, null );
+		}
+
+		/* n is from 1, as usual for ImageStack: */
+		@Override
+		public ImageProcessor getProcessor( int n ) {
+			if( n < 1 || n > depth )
+				throw new IllegalArgumentException( "Slice "+n+" is out of range" );
+			ShortProcessor sp = new ShortProcessor( width, height );
+			sp.setPixels( slice( n - 1 ) );
+			ColorModel cm = getColorModel();
+			if( cm != null )
+				sp.setColorModel( cm );
+			return sp;
+		}
+
+		@Override
+		public Object getPixels( int n ) {
+			return getProcessor( n ).getPixels();
+		}
+
+		@Override
+		public int getSize( ) {
+			return depth;
+		}
+
+		@Override
+		public String getSliceLabel( int n ) {
+			return "";
+		}
+	}
+}
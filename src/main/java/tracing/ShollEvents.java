@@ -0,0 +1,286 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* The points at which paths cross spheres around a centre, for
+   Sholl analysis.  This does the same as a list of
+   ShollAnalysisDialog.ShollPoint objects, but each event is just a
+   squared distance from the centre with its sign bit set if the
+   path is leaving the sphere at that point, stored as the bits of
+   that double in a long [] so that nothing is allocated per
+   segment.
+
+   ShollResults depends on equal distances staying in the order
+   they were added (the old code used the stable Collections.sort())
+   so the events are sorted with a stable radix sort on the bits of
+   the distance, which for non-negative doubles sort in the same
+   order as the values.  Large arrays are sorted with a thread for
+   each processor.
+
+   This isn't thread-safe; create one for each thread. */
+
+public class ShollEvents {
+
+	static final long SIGN = 0x8000000000000000L;
+
+	/* Below this many events it's quicker to sort in one thread: */
+	static final int PARALLEL_THRESHOLD = 1 << 17;
+
+	protected long [] events;
+	protected int size;
+	protected boolean sorted = true;
+
+	/* Kept between sorts, so that sorting again after adding
+	   more events doesn't allocate unless the array has grown: */
+	private long [] scratch;
+
+	public ShollEvents( ) {
+		this( 1024 );
+	}
+
+	public ShollEvents( int initialCapacity ) {
+		events = new long[Math.max( 2, initialCapacity )];
+	}
+
+	public int size( ) {
+		return size;
+	}
+
+	public void clear( ) {
+		size = 0;
+		sorted = true;
+	}
+
+	void ensureCapacity( int capacity ) {
+		if( capacity > events.length )
+			events = Arrays.copyOf( events, Math.max( capacity, events.length * 2 ) );
+	}
+
+	/* nearer is true if the path is entering the sphere at this
+	   point, as in ShollPoint: */
+	public void add( double distanceSquared, boolean nearer ) {
+		if( size == events.length )
+			ensureCapacity( size + 1 );
+		// doubleToLongBits() makes every NaN the same, as Double.compare() does:
+		long bits = Double.doubleToLongBits( distanceSquared );
+		if( bits < 0 )
+			throw new IllegalArgumentException( "A squared distance can't be negative: "+distanceSquared );
+		events[size++] = nearer ? bits : (bits | SIGN);
+		sorted = false;
+	}
+
+	/* The same events as ShollAnalysisDialog.addPathPointsToShollList()
+	   adds, in the same order: */
+	public void addPath( Path p, double x_start, double y_start, double z_start ) {
+		int segments = p.points - 1;
+		if( segments <= 0 )
+			return;
+		ensureCapacity( size + 2 * segments );
+		double xdiff = p.getPreciseX( 0 ) - x_start;
+		double ydiff = p.getPreciseY( 0 ) - y_start;
+		double zdiff = p.getPreciseZ( 0 ) - z_start;
+		double distanceSquaredFirst = xdiff*xdiff + ydiff*ydiff + zdiff*zdiff;
+		for( int i = 0; i < segments; ++i ) {
+			xdiff = p.getPreciseX( i+1 ) - x_start;
+			ydiff = p.getPreciseY( i+1 ) - y_start;
+			zdiff = p.getPreciseZ( i+1 ) - z_start;
+			double distanceSquaredSecond = xdiff*xdiff + ydiff*ydiff + zdiff*zdiff;
+			// These aren't opposites if either is NaN:
+			boolean firstNearer = distanceSquaredFirst < distanceSquaredSecond;
+			boolean secondNearer = distanceSquaredFirst >= distanceSquaredSecond;
+			long first = Double.doubleToLongBits( distanceSquaredFirst );
+			long second = Double.doubleToLongBits( distanceSquaredSecond );
+			events[size++] = firstNearer ? first : (first | SIGN);
+			events[size++] = secondNearer ? second : (second | SIGN);
+			distanceSquaredFirst = distanceSquaredSecond;
+		}
+		sorted = false;
+	}
+
+	public static ShollEvents fromPoints( List<ShollAnalysisDialog.ShollPoint> shollPoints ) {
+		ShollEvents result = new ShollEvents( shollPoints.size() );
+		for( ShollAnalysisDialog.ShollPoint p : shollPoints )
+			result.add( p.distanceSquared, p.nearer );
+		return result;
+	}
+
+	public double getDistanceSquared( int i ) {
+		return Double.longBitsToDouble( events[i] & ~SIGN );
+	}
+
+	public boolean getNearer( int i ) {
+		return (events[i] & SIGN) == 0;
+	}
+
+	/* +1 if the path enters the sphere at event i, -1 if it leaves: */
+	public int getCrossingChange( int i ) {
+		return (events[i] & SIGN) == 0 ? 1 : -1;
+	}
+
+	public boolean isSorted( ) {
+		return sorted;
+	}
+
+	/* Sorts by distance, keeping events at the same distance in the
+	   order they were added: */
+	public void sort( ) {
+		if( sorted )
+			return;
+		if( scratch == null || scratch.length < size )
+			scratch = new long[events.length];
+		long [] from = events;
+		long [] to = scratch;
+		if( size < PARALLEL_THRESHOLD ) {
+			int [] counts = new int[256];
+			for( int shift = 0; shift < 64; shift += 8 ) {
+				if( radixPass( from, to, shift, counts ) ) {
+					long [] t = from; from = to; to = t;
+				}
+			}
+		} else {
+			int processors = Runtime.getRuntime().availableProcessors();
+			ExecutorService es = Executors.newFixedThreadPool( processors );
+			try {
+				for( int shift = 0; shift < 64; shift += 8 ) {
+					if( parallelRadixPass( es, processors, from, to, shift ) ) {
+						long [] t = from; from = to; to = t;
+					}
+				}
+			} finally {
+				es.shutdown();
+			}
+		}
+		if( from != events ) {
+			// An odd number of passes left the result in scratch:
+			scratch = events;
+			events = from;
+		}
+		sorted = true;
+	}
+
+	static int digit( long event, int shift ) {
+		return (int)(((event & ~SIGN) >>> shift) & 0xFF);
+	}
+
+	/* Returns false, without moving anything, if every event has the
+	   same digit so that the pass would change nothing: */
+	boolean radixPass( long [] from, long [] to, int shift, int [] counts ) {
+		Arrays.fill( counts, 0 );
+		for( int i = 0; i < size; ++i )
+			++ counts[digit( from[i], shift )];
+		if( counts[digit( from[0], shift )] == size )
+			return false;
+		int total = 0;
+		for( int d = 0; d < 256; ++d ) {
+			int c = counts[d];
+			counts[d] = total;
+			total += c;
+		}
+		for( int i = 0; i < size; ++i ) {
+			long e = from[i];
+			to[counts[digit( e, shift )]++] = e;
+		}
+		return true;
+	}
+
+	/* The same as radixPass(), but each thread counts and then
+	   moves the digits of its own contiguous chunk; the chunks'
+	   offsets for each digit are in chunk order, so the pass is
+	   still stable: */
+	boolean parallelRadixPass( ExecutorService es, int chunks, final long [] from, final long [] to, final int shift ) {
+		final int [][] counts = new int[chunks][256];
+		final int chunkSize = (size + chunks - 1) / chunks;
+		ArrayList< Callable< Object > > countTasks = new ArrayList< Callable< Object > >();
+		for( int c = 0; c < chunks; ++c ) {
+			final int chunk = c;
+			countTasks.add( new Callable< Object >() {
+				public Object call() {
+					int [] chunkCounts = counts[chunk];
+					int end = Math.min( size, (chunk + 1) * chunkSize );
+					for( int i = chunk * chunkSize; i < end; ++i )
+						++ chunkCounts[digit( from[i], shift )];
+					return null;
+				}
+			} );
+		}
+		invokeAll( es, countTasks );
+
+		int firstDigit = digit( from[0], shift );
+		int withFirstDigit = 0;
+		for( int c = 0; c < chunks; ++c )
+			withFirstDigit += counts[c][firstDigit];
+		if( withFirstDigit == size )
+			return false;
+
+		int total = 0;
+		for( int d = 0; d < 256; ++d )
+			for( int c = 0; c < chunks; ++c ) {
+				int count = counts[c][d];
+				counts[c][d] = total;
+				total += count;
+			}
+
+		ArrayList< Callable< Object > > moveTasks = new ArrayList< Callable< Object > >();
+		for( int c = 0; c < chunks; ++c ) {
+			final int chunk = c;
+			moveTasks.add( new Callable< Object >() {
+				public Object call() {
+					int [] offsets = counts[chunk];
+					int end = Math.min( size, (chunk + 1) * chunkSize );
+					for( int i = chunk * chunkSize; i < end; ++i ) {
+						long e = from[i];
+						to[offsets[digit( e, shift )]++] = e;
+					}
+					return null;
+				}
+			} );
+		}
+		invokeAll( es, moveTasks );
+		return true;
+	}
+
+	static void invokeAll( ExecutorService es, List< Callable< Object > > tasks ) {
+		try {
+			for( Future< Object > future : es.invokeAll( tasks ) )
+				future.get();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Sorting the Sholl events was interrupted", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Sorting the Sholl events failed: "+e.getCause(), e.getCause() );
+		}
+	}
+}
@@ -100,10 +100,30 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	volatile protected boolean unsavedPaths = false;
 
+	/* Counts the changes that have marked the paths as unsaved,
+	   so that a save in the background, of a copy of the paths,
+	   only marks them as saved if there have been none since the
+	   copy was made: */
+	protected int pathChanges = 0;
+
 	public boolean pathsUnsaved() {
 		return unsavedPaths;
 	}
 
+	synchronized void pathsChanged() {
+		++ pathChanges;
+		unsavedPaths = true;
+	}
+
+	synchronized int getPathChanges() {
+		return pathChanges;
+	}
+
+	synchronized void pathsSaved( int changesWhenCopied ) {
+		if( pathChanges == changesWhenCopied )
+			unsavedPaths = false;
+	}
+
 	public PathAndFillManager getPathAndFillManager() {
 		return pathAndFillManager;
 	}
@@ -534,6 +554,10 @@ public class SimpleNeuriteTracer extends ThreePanes
 				if( pathAndFillManager.loadUncompressedXML( chosenFile.getAbsolutePath() ) )
 					unsavedPaths = false;
 				break;
+			case PathAndFillManager.TRACES_FILE_TYPE_BINARY:
+				if( pathAndFillManager.loadBinary( chosenFile.getAbsolutePath() ) )
+					unsavedPaths = false;
+				break;
 			default:
 				IJ.error("The file '"+chosenFile.getAbsolutePath()+"' was of unknown type ("+guessedType+")");
 				break;
@@ -949,7 +973,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		pathAndFillManager.addPath( savedCurrentPath, true );
 
-		unsavedPaths = true;
+		pathsChanged();
 
 		// ... and change the state of the UI
 		resultsDialog.changeState( NeuriteTracerResultsDialog.WAITING_TO_START_PATH );
@@ -1410,7 +1434,15 @@ public class SimpleNeuriteTracer extends ThreePanes
 		List<Point3f> linePoints = new ArrayList<Point3f>();
 
 		// Now find corresponding points from the first one, and draw lines to them:
-		ArrayList< NearPoint > cp = pathAndFillManager.getCorrespondences( pafmTraces, 2.5 );
+		TracingComparison comparison = new TracingComparison( pathAndFillManager, pafmTraces, maxDistance );
+		try {
+			comparison.run();
+		} catch( InterruptedException e ) {
+			IJ.error("Interrupted while comparing with: "+tracesFile.getAbsolutePath());
+			return;
+		}
+		IJ.log( comparison.toString() );
+		ArrayList< NearPoint > cp = comparison.getCorrespondences();
 		int done = 0;
 		for( NearPoint np : cp ) {
 			if( np != null ) {
@@ -1457,6 +1489,20 @@ public class SimpleNeuriteTracer extends ThreePanes
 		return showOnlySelectedPaths;
 	}
 
+	/* Whether all the paths are shown in the 3D viewer as a few
+	   merged meshes (see MergedPaths3D) rather than a content for
+	   each path, which is much faster with many paths: */
+	volatile private boolean mergePaths3D;
+
+	public void setMergePaths3D(boolean mergePaths3D) {
+		this.mergePaths3D = mergePaths3D;
+		update3DViewerContents();
+	}
+
+	public boolean getMergePaths3D() {
+		return mergePaths3D;
+	}
+
 	/* Whatever the state of the paths, update the 3D viewer to
 	   make sure that they're the right colour, the right version
 	   (fitted or unfitted) is being used and whether the path
@@ -33,10 +33,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.GZIPOutputStream;
 
 public class SinglePathsGraph {
@@ -53,42 +52,148 @@ public class SinglePathsGraph {
 		this.spacing_z = (float)spacing_z;
 	}
 
-	// For fast lookup from positions:
-	Hashtable<Integer,AutoPoint> fromPosition=new Hashtable<Integer,AutoPoint>();
+	/* The vertices are numbered from 0 in the order they're
+	   added, and found from their voxel indices (x + y * width +
+	   z * width * height, as a long) with a primitive hash index.
+	   The links are directed, from one vertex number to another,
+	   and are kept in the same way, keyed by the two vertex
+	   numbers packed into a long, so that adding the same link
+	   twice does nothing.  This takes about 15 bytes for each
+	   vertex and each link, rather than the 70 or more that a
+	   Hashtable of AutoPoint objects and a HashSet of Long
+	   objects needed.
+
+	   Auto_Tracer's parallel searches look up vertices (in every
+	   node they expand) while paths are merged in, so the methods
+	   take a read-write lock rather than being synchronized: any
+	   number of lookups can run at once, and only adding waits for
+	   them. */
+
+	LongHashIndex vertices = new LongHashIndex( 1024 );
+	LongHashIndex links = new LongHashIndex( 1024 );
+
+	protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	protected final Lock readLock = lock.readLock();
+	protected final Lock writeLock = lock.writeLock();
+
+	public long voxelIndex( int x, int y, int z ) {
+		return x + y * (long)width + z * (long)width * height;
+	}
+
+	public boolean contains( int x, int y, int z ) {
+		readLock.lock();
+		try {
+			return vertices.contains( voxelIndex( x, y, z ) );
+		} finally {
+			readLock.unlock();
+		}
+	}
 
+	/* A new AutoPoint for the vertex at (x,y,z), or null if there
+	   isn't one: */
 	public AutoPoint get( int x, int y, int z ) {
-		int k = x + y * width + z * width * height;
-		return fromPosition.get(k);
+		return contains( x, y, z ) ? new AutoPoint( x, y, z ) : null;
+	}
+
+	/* Adds a vertex at (x,y,z) if there isn't one there already,
+	   and returns its number either way: */
+	public int addVertex( int x, int y, int z ) {
+		writeLock.lock();
+		try {
+			return vertices.add( voxelIndex( x, y, z ) );
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/* Adds a link between two vertex numbers, if it isn't there
+	   already: */
+	public void addLink( int fromVertex, int toVertex ) {
+		writeLock.lock();
+		try {
+			if( fromVertex < 0 || fromVertex >= vertices.size() ||
+			    toVertex < 0 || toVertex >= vertices.size() )
+				throw new IllegalArgumentException( "There's no vertex "+fromVertex+" or "+toVertex );
+			links.add( ((long)fromVertex << 32) | (toVertex & 0xFFFFFFFFL) );
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	public void addPoint( AutoPoint p, AutoPoint previous ) {
-		int k = (int)p.x + (int)p.y * width + (int)p.z * width * height;
-		AutoPoint existingPoint=fromPosition.get( k );
-		if( existingPoint == null ) {
-			fromPosition.put(k,p);
+		writeLock.lock();
+		try {
+			int v = addVertex( p.x, p.y, p.z );
+			if( previous != null )
+				addLink( addVertex( previous.x, previous.y, previous.z ), v );
+		} finally {
+			writeLock.unlock();
 		}
-		if( previous != null ) {
-			int k_previous = (int)previous.x + (int)previous.y * width + (int)previous.z * width * height;
-			addLink( k_previous, k );
+	}
+
+	void addLink( int from_x, int from_y, int from_z, int to_x, int to_y, int to_z ) {
+		addPoint( new AutoPoint( to_x, to_y, to_z ), new AutoPoint( from_x, from_y, from_z ) );
+	}
+
+	/* These allow iterating over the vertices and links without
+	   any boxing; they shouldn't be used while the graph might be
+	   changing. */
+
+	public int getVertexCount( ) {
+		readLock.lock();
+		try {
+			return vertices.size();
+		} finally {
+			readLock.unlock();
 		}
 	}
 
-	/* This all turns out to be very memory hungry, so keep track
-	   of the links between points here, encoded into a long for
-	   each link:
-	 */
+	public long getVertexVoxelIndex( int vertex ) {
+		readLock.lock();
+		try {
+			return vertices.get( vertex );
+		} finally {
+			readLock.unlock();
+		}
+	}
 
-	HashSet<Long> directedLinks = new HashSet<Long>();
+	public int getVertexX( int vertex ) {
+		return (int)(getVertexVoxelIndex( vertex ) % width);
+	}
 
-	void addLink( int from_k, int to_k ) {
-		long toAdd = (from_k << 32) + to_k;
-		directedLinks.add(toAdd);
+	public int getVertexY( int vertex ) {
+		return (int)((getVertexVoxelIndex( vertex ) / width) % height);
 	}
 
-	void addLink( int from_x, int from_y, int from_z, int to_x, int to_y, int to_z ) {
-		int from_k = from_x + from_y * width + from_z * width * height;
-		int to_k = to_x + to_y * width + to_z * width * height;
-		addLink( from_k, to_k );
+	public int getVertexZ( int vertex ) {
+		return (int)(getVertexVoxelIndex( vertex ) / ((long)width * height));
+	}
+
+	public int getLinkCount( ) {
+		readLock.lock();
+		try {
+			return links.size();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	public int getLinkFrom( int link ) {
+		readLock.lock();
+		try {
+			return (int)(links.get( link ) >>> 32);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	public int getLinkTo( int link ) {
+		readLock.lock();
+		try {
+			return (int)links.get( link );
+		} finally {
+			readLock.unlock();
+		}
 	}
 
 	void writeWavefrontObj( String outputFilename ) throws IOException {
@@ -104,31 +209,32 @@ public class SinglePathsGraph {
 		pw.println("# spacing_y: "+spacing_y);
 		pw.println("# spacing_z: "+spacing_z);
 
+		/* Wavefront vertex indices start from 1, so each is just
+		   the vertex number plus one.  The read lock is taken
+		   once for the whole export, and the vertices and links
+		   are read straight from their arrays: */
 
-		/* First build a map from keys to wavefront indices: */
-
-		Hashtable<Integer,Integer> wavefrontToKey=new Hashtable<Integer,Integer>();
-
-		Set<Integer> keySet=fromPosition.keySet();
-
-		int counter = 1;
-		for( int k : keySet ) {
-			wavefrontToKey.put(k,counter);
-			int x = k % width;
-			int y = ( k / width ) % height;
-			int z = ( k / ( width * height ) ) % depth;
-			pw.println("v "+(x * spacing_x)+" "+(y * spacing_y)+" "+(z * spacing_z));
-			++counter;
-		}
+		readLock.lock();
+		try {
+			int vertexCount = vertices.size();
+			long [] voxelIndices = vertices.keys;
+			long slice = (long)width * height;
+			for( int v = 0; v < vertexCount; ++v ) {
+				long voxelIndex = voxelIndices[v];
+				int x = (int)(voxelIndex % width);
+				int y = (int)((voxelIndex / width) % height);
+				int z = (int)(voxelIndex / slice);
+				pw.println("v "+(x * spacing_x)+" "+(y * spacing_y)+" "+(z * spacing_z));
+			}
 
-		for( long l : directedLinks ) {
-			long from = l >> 32;
-			long to = l & 0xFFFFFFFF;
-			int from_k = (int)from;
-			int to_k = (int)to;
-			int from_vertex = wavefrontToKey.get(from_k);
-			int to_vertex = wavefrontToKey.get(to_k);
-			pw.println("l "+from_vertex+" "+to_vertex);
+			int linkCount = links.size();
+			long [] linkKeys = links.keys;
+			for( int l = 0; l < linkCount; ++l ) {
+				long link = linkKeys[l];
+				pw.println("l "+((int)(link >>> 32) + 1)+" "+((int)link + 1));
+			}
+		} finally {
+			readLock.unlock();
 		}
 
 		pw.print("g");
@@ -154,8 +260,43 @@ public class SinglePathsGraph {
 		}
 	}
 
+	/* Writes the graph in the format of AutoTracesBinaryFile: */
+	void writeBinary( String outputFilename ) throws IOException {
+		readLock.lock();
+		try {
+			int vertexCount = vertices.size();
+			int linkCount = links.size();
+			int [] linkFrom = new int[linkCount];
+			int [] linkTo = new int[linkCount];
+			for( int l = 0; l < linkCount; ++l ) {
+				long link = links.get( l );
+				linkFrom[l] = (int)(link >>> 32);
+				linkTo[l] = (int)link;
+			}
+			AutoTracesBinaryFile.write( outputFilename,
+						    width, height, depth,
+						    spacing_x, spacing_y, spacing_z,
+						    vertices.keys, vertexCount,
+						    linkFrom, linkTo, linkCount );
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/* Reads either a .traces.obj file or one in the binary format
+	   of AutoTracesBinaryFile, depending on its first bytes: */
 	static boolean loadWithListener( String inputFilename, TraceLoaderListener listener ) {
 
+		try {
+			if( AutoTracesBinaryFile.hasMagic( inputFilename ) ) {
+				AutoTracesBinaryFile.loadWithListener( inputFilename, listener );
+				return true;
+			}
+		} catch( IOException e ) {
+			IJ.error("IOException loading "+inputFilename+": "+e);
+			return false;
+		}
+
 		int width = -1, height = -1, depth = -1;
 		float spacing_x = Float.MIN_VALUE;
 		float spacing_y = Float.MIN_VALUE;
@@ -176,71 +317,76 @@ public class SinglePathsGraph {
 			int vertexIndex = 1;
 
 			BufferedReader br = new BufferedReader(new FileReader(inputFilename));
-			String lastLine;
-			while( null != (lastLine = br.readLine()) ) {
+			try {
+				String lastLine;
+				while( null != (lastLine = br.readLine()) ) {
 
-				if( lastLine.startsWith(widthPrefix) ) {
-					width = getNonNegativeIntAfterPrefix(lastLine, widthPrefix);
-					listener.gotWidth(width);
-				}
-				if( lastLine.startsWith(heightPrefix) ) {
-					height = getNonNegativeIntAfterPrefix(lastLine, heightPrefix);
-					listener.gotHeight(height);
-				}
-				if( lastLine.startsWith(depthPrefix) ) {
-					depth = getNonNegativeIntAfterPrefix(lastLine, depthPrefix);
-					listener.gotDepth(depth);
-				}
-				if( lastLine.startsWith(spacingXPrefix) ) {
-					spacing_x = getNonNegativeFloatAfterPrefix(lastLine, spacingXPrefix);
-					listener.gotSpacingX(spacing_x);
-				}
-				if( lastLine.startsWith(spacingYPrefix) ) {
-					spacing_y = getNonNegativeFloatAfterPrefix(lastLine, spacingYPrefix);
-					listener.gotSpacingY(spacing_y);
-				}
-				if( lastLine.startsWith(spacingZPrefix) ) {
-					spacing_z = getNonNegativeFloatAfterPrefix(lastLine, spacingZPrefix);
-					listener.gotSpacingZ(spacing_z);
-				}
+					if( lastLine.startsWith(widthPrefix) ) {
+						width = getNonNegativeIntAfterPrefix(lastLine, widthPrefix);
+						listener.gotWidth(width);
+					}
+					if( lastLine.startsWith(heightPrefix) ) {
+						height = getNonNegativeIntAfterPrefix(lastLine, heightPrefix);
+						listener.gotHeight(height);
+					}
+					if( lastLine.startsWith(depthPrefix) ) {
+						depth = getNonNegativeIntAfterPrefix(lastLine, depthPrefix);
+						listener.gotDepth(depth);
+					}
+					if( lastLine.startsWith(spacingXPrefix) ) {
+						spacing_x = getNonNegativeFloatAfterPrefix(lastLine, spacingXPrefix);
+						listener.gotSpacingX(spacing_x);
+					}
+					if( lastLine.startsWith(spacingYPrefix) ) {
+						spacing_y = getNonNegativeFloatAfterPrefix(lastLine, spacingYPrefix);
+						listener.gotSpacingY(spacing_y);
+					}
+					if( lastLine.startsWith(spacingZPrefix) ) {
+						spacing_z = getNonNegativeFloatAfterPrefix(lastLine, spacingZPrefix);
+						listener.gotSpacingZ(spacing_z);
+					}
 
-				if( lastLine.startsWith(vertexPrefix) ) {
+					if( lastLine.startsWith(vertexPrefix) ) {
 
-					StringTokenizer tokenizer=new StringTokenizer(lastLine.substring(vertexPrefix.length())," ");
+						StringTokenizer tokenizer=new StringTokenizer(lastLine.substring(vertexPrefix.length())," ");
 
-					float [] vertex = new float[3];
+						float [] vertex = new float[3];
 
-					int i = 0;
-					while( tokenizer.hasMoreTokens() ) {
-						vertex[i] = Float.parseFloat( tokenizer.nextToken() );
-						++i;
-					}
+						int i = 0;
+						while( tokenizer.hasMoreTokens() ) {
+							vertex[i] = Float.parseFloat( tokenizer.nextToken() );
+							++i;
+						}
 
-					int x = (int)Math.round(vertex[0]/spacing_x);
-					int y = (int)Math.round(vertex[1]/spacing_y);
-					int z = (int)Math.round(vertex[2]/spacing_z);
+						int x = (int)Math.round(vertex[0]/spacing_x);
+						int y = (int)Math.round(vertex[1]/spacing_y);
+						int z = (int)Math.round(vertex[2]/spacing_z);
 
-					listener.gotVertex( vertexIndex,
-							    vertex[0], vertex[1], vertex[2],
-							    x, y, z );
+						listener.gotVertex( vertexIndex,
+								    vertex[0], vertex[1], vertex[2],
+								    x, y, z );
+						++vertexIndex;
 
-				}
+					}
 
-				if( lastLine.startsWith(linePrefix) ) {
-					StringTokenizer tokenizer=new StringTokenizer(lastLine.substring(linePrefix.length())," ");
-					int [] vertexIndices = new int[2];
+					if( lastLine.startsWith(linePrefix) ) {
+						StringTokenizer tokenizer=new StringTokenizer(lastLine.substring(linePrefix.length())," ");
+						int [] vertexIndices = new int[2];
 
-					int i = 0;
-					while( tokenizer.hasMoreTokens() ) {
-						vertexIndices[i] = Integer.parseInt( tokenizer.nextToken() );
-						++i;
+						int i = 0;
+						while( tokenizer.hasMoreTokens() ) {
+							vertexIndices[i] = Integer.parseInt( tokenizer.nextToken() );
+							++i;
+						}
+
+						listener.gotLine( vertexIndices[0], vertexIndices[1] );
 					}
 
-					listener.gotLine( vertexIndices[0], vertexIndices[1] );
+					if( lastLine.startsWith(groupPrefix) )
+						; // Do nothing
 				}
-
-				if( lastLine.startsWith(groupPrefix) )
-					; // Do nothing
+			} finally {
+				br.close();
 			}
 
 		} catch( IOException e ) {
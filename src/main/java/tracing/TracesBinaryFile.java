@@ -0,0 +1,979 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/* A binary version of the traces file format, which is laid out so
+   that it can be memory-mapped: analysis code can then read the
+   points of every path straight from the file, without parsing
+   anything or creating Path objects.  addTo() loads the file into
+   a PathAndFillManager in the usual way.
+
+   All numbers are little-endian, and every section starts at a
+   multiple of 8 bytes.  The file is:
+
+     - a header of HEADER_SIZE bytes: the magic bytes, the format
+       version, the image size and spacing, the number of each
+       kind of record and the offset of each section
+
+     - the path table: PATH_RECORD_SIZE bytes for each path, in
+       the order of PathAndFillManager.allPaths (see the PATH_
+       constants below for the fields)
+
+     - the point columns x, y and z (doubles), with the points of
+       each path stored contiguously, starting at the path's
+       "first point" index
+
+     - the circle columns r, tx, ty and tz (doubles), for those
+       paths that have fitted circles, starting at the path's
+       "first circle" index
+
+     - the fill table: FILL_RECORD_SIZE bytes for each fill
+
+     - the IDs of each fill's source paths (ints)
+
+     - the fill node columns x, y, z and previous (ints), distance
+       (doubles) and open (bytes)
+
+     - a table of the UTF-8 strings (the units, path names and fill
+       metrics) that the other sections refer to by offset and
+       length
+
+   Coordinates are stored as doubles rather than floats so that
+   nothing is lost when converting to and from the XML format. */
+
+public class TracesBinaryFile {
+
+	static final byte [] MAGIC = { 'S', 'N', 'T', 'T', 'R', 'A', 'C', 'E' };
+	static final int VERSION = 1;
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	static final int HEADER_SIZE = 256;
+
+	/* Offsets of the fields in the header: */
+	static final int HEADER_VERSION = 8;
+	static final int HEADER_WIDTH = 12;
+	static final int HEADER_HEIGHT = 16;
+	static final int HEADER_DEPTH = 20;
+	static final int HEADER_X_SPACING = 24;
+	static final int HEADER_Y_SPACING = 32;
+	static final int HEADER_Z_SPACING = 40;
+	static final int HEADER_PATHS = 48;
+	static final int HEADER_FILLS = 52;
+	static final int HEADER_POINTS = 56;
+	static final int HEADER_CIRCLES = 64;
+	static final int HEADER_FILL_NODES = 72;
+	static final int HEADER_SOURCE_PATHS = 80;
+	static final int HEADER_STRINGS_LENGTH = 88;
+	static final int HEADER_UNITS_OFFSET = 96;
+	static final int HEADER_UNITS_LENGTH = 100;
+	static final int HEADER_SECTION_OFFSETS = 104;
+
+	/* The sections, in the order they appear in the file: */
+	static final int SECTION_PATHS = 0;
+	static final int SECTION_X = 1;
+	static final int SECTION_Y = 2;
+	static final int SECTION_Z = 3;
+	static final int SECTION_R = 4;
+	static final int SECTION_TX = 5;
+	static final int SECTION_TY = 6;
+	static final int SECTION_TZ = 7;
+	static final int SECTION_FILLS = 8;
+	static final int SECTION_SOURCE_PATHS = 9;
+	static final int SECTION_NODE_X = 10;
+	static final int SECTION_NODE_Y = 11;
+	static final int SECTION_NODE_Z = 12;
+	static final int SECTION_NODE_PREVIOUS = 13;
+	static final int SECTION_NODE_DISTANCE = 14;
+	static final int SECTION_NODE_OPEN = 15;
+	static final int SECTION_STRINGS = 16;
+	static final int SECTIONS = 17;
+
+	/* Offsets of the fields in each path record: */
+	static final int PATH_ID = 0;
+	static final int PATH_SWC_TYPE = 4;
+	static final int PATH_FLAGS = 8;
+	static final int PATH_FITTED = 12;
+	static final int PATH_FITTED_VERSION_OF = 16;
+	static final int PATH_POINTS = 20;
+	static final int PATH_FIRST_POINT = 24;
+	static final int PATH_FIRST_CIRCLE = 32;
+	static final int PATH_STARTS_ON = 40;
+	static final int PATH_ENDS_ON = 44;
+	static final int PATH_START_X = 48;
+	static final int PATH_START_Y = 56;
+	static final int PATH_START_Z = 64;
+	static final int PATH_END_X = 72;
+	static final int PATH_END_Y = 80;
+	static final int PATH_END_Z = 88;
+	static final int PATH_NAME_OFFSET = 96;
+	static final int PATH_NAME_LENGTH = 100;
+	static final int PATH_RECORD_SIZE = 104;
+
+	static final int FLAG_PRIMARY = 1;
+	static final int FLAG_USE_FITTED = 2;
+	static final int FLAG_HAS_CIRCLES = 4;
+
+	/* Offsets of the fields in each fill record: */
+	static final int FILL_NODES = 0;
+	static final int FILL_SOURCE_PATHS = 4;
+	static final int FILL_FIRST_NODE = 8;
+	static final int FILL_FIRST_SOURCE_PATH = 16;
+	static final int FILL_THRESHOLD = 24;
+	static final int FILL_METRIC_OFFSET = 32;
+	static final int FILL_METRIC_LENGTH = 36;
+	static final int FILL_RECORD_SIZE = 40;
+
+	protected int width, height, depth;
+	protected double x_spacing, y_spacing, z_spacing;
+	protected String spacing_units;
+
+	protected int paths;
+	protected int fills;
+	protected long points;
+	protected long circles;
+	protected long fillNodes;
+	protected long sourcePaths;
+
+	protected ByteBuffer pathTable;
+	protected DoubleBuffer x, y, z;
+	protected DoubleBuffer r, tx, ty, tz;
+	protected ByteBuffer fillTable;
+	protected IntBuffer fillSourcePaths;
+	protected IntBuffer nodeX, nodeY, nodeZ, nodePrevious;
+	protected DoubleBuffer nodeDistance;
+	protected ByteBuffer nodeOpen;
+	protected ByteBuffer strings;
+
+	protected HashMap< Integer, Integer > pathIndexFromID;
+
+	protected TracesBinaryFile( ) {
+	}
+
+	public static boolean hasMagic( byte [] start ) {
+		if( start.length < MAGIC.length )
+			return false;
+		for( int i = 0; i < MAGIC.length; ++i )
+			if( start[i] != MAGIC[i] )
+				return false;
+		return true;
+	}
+
+	static long align( long offset ) {
+		return (offset + 7) & ~7L;
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Reading: */
+
+	public static TracesBinaryFile open( String fileName ) throws IOException {
+		RandomAccessFile file = new RandomAccessFile( fileName, "r" );
+		try {
+			// The mappings remain valid after the file is closed:
+			return new TracesBinaryFile().map( file.getChannel() );
+		} finally {
+			file.close();
+		}
+	}
+
+	protected TracesBinaryFile map( FileChannel channel ) throws IOException {
+
+		long fileLength = channel.size();
+		if( fileLength < HEADER_SIZE )
+			throw new IOException( "The file is too short to be a binary traces file" );
+
+		ByteBuffer header = map( channel, 0, HEADER_SIZE, fileLength );
+		byte [] magic = new byte[MAGIC.length];
+		header.get( magic );
+		if( ! hasMagic( magic ) )
+			throw new IOException( "This is not a binary traces file" );
+		int version = header.getInt( HEADER_VERSION );
+		if( version != VERSION )
+			throw new IOException( "Unsupported binary traces file version: " + version );
+
+		width = header.getInt( HEADER_WIDTH );
+		height = header.getInt( HEADER_HEIGHT );
+		depth = header.getInt( HEADER_DEPTH );
+		x_spacing = header.getDouble( HEADER_X_SPACING );
+		y_spacing = header.getDouble( HEADER_Y_SPACING );
+		z_spacing = header.getDouble( HEADER_Z_SPACING );
+		paths = header.getInt( HEADER_PATHS );
+		fills = header.getInt( HEADER_FILLS );
+		points = header.getLong( HEADER_POINTS );
+		circles = header.getLong( HEADER_CIRCLES );
+		fillNodes = header.getLong( HEADER_FILL_NODES );
+		sourcePaths = header.getLong( HEADER_SOURCE_PATHS );
+		long stringsLength = header.getLong( HEADER_STRINGS_LENGTH );
+
+		if( paths < 0 || fills < 0 || points < 0 || circles < 0 || fillNodes < 0 || sourcePaths < 0 || stringsLength < 0 )
+			throw new IOException( "Malformed binary traces file: negative counts in the header" );
+
+		long [] lengths = sectionLengths( paths, fills, points, circles, fillNodes, sourcePaths, stringsLength );
+		ByteBuffer [] sections = new ByteBuffer[SECTIONS];
+		for( int s = 0; s < SECTIONS; ++s ) {
+			long offset = header.getLong( HEADER_SECTION_OFFSETS + 8 * s );
+			sections[s] = map( channel, offset, lengths[s], fileLength );
+		}
+
+		pathTable = sections[SECTION_PATHS];
+		x = sections[SECTION_X].asDoubleBuffer();
+		y = sections[SECTION_Y].asDoubleBuffer();
+		z = sections[SECTION_Z].asDoubleBuffer();
+		r = sections[SECTION_R].asDoubleBuffer();
+		tx = sections[SECTION_TX].asDoubleBuffer();
+		ty = sections[SECTION_TY].asDoubleBuffer();
+		tz = sections[SECTION_TZ].asDoubleBuffer();
+		fillTable = sections[SECTION_FILLS];
+		fillSourcePaths = sections[SECTION_SOURCE_PATHS].asIntBuffer();
+		nodeX = sections[SECTION_NODE_X].asIntBuffer();
+		nodeY = sections[SECTION_NODE_Y].asIntBuffer();
+		nodeZ = sections[SECTION_NODE_Z].asIntBuffer();
+		nodePrevious = sections[SECTION_NODE_PREVIOUS].asIntBuffer();
+		nodeDistance = sections[SECTION_NODE_DISTANCE].asDoubleBuffer();
+		nodeOpen = sections[SECTION_NODE_OPEN];
+		strings = sections[SECTION_STRINGS];
+
+		spacing_units = string( header.getInt( HEADER_UNITS_OFFSET ), header.getInt( HEADER_UNITS_LENGTH ) );
+
+		// Check that all the records refer to data that's there:
+		pathIndexFromID = new HashMap< Integer, Integer >();
+		for( int i = 0; i < paths; ++i ) {
+			long first = getFirstPoint( i );
+			if( getPointCount( i ) < 0 || first < 0 || first + getPointCount( i ) > points )
+				throw new IOException( "Malformed binary traces file: the points of path " + i + " are out of range" );
+			if( hasCircles( i ) ) {
+				long firstCircle = getFirstCircle( i );
+				if( firstCircle < 0 || firstCircle + getPointCount( i ) > circles )
+					throw new IOException( "Malformed binary traces file: the circles of path " + i + " are out of range" );
+			}
+			getName( i );
+			if( pathIndexFromID.put( getPathID( i ), i ) != null )
+				throw new IOException( "Malformed binary traces file: there is more than one path with ID " + getPathID( i ) );
+		}
+		for( int f = 0; f < fills; ++f ) {
+			long firstNode = getFirstFillNode( f );
+			long firstSourcePath = fillTable.getLong( f * FILL_RECORD_SIZE + FILL_FIRST_SOURCE_PATH );
+			if( getFillNodeCount( f ) < 0 || firstNode < 0 || firstNode + getFillNodeCount( f ) > fillNodes )
+				throw new IOException( "Malformed binary traces file: the nodes of fill " + f + " are out of range" );
+			int sourcePathCount = fillTable.getInt( f * FILL_RECORD_SIZE + FILL_SOURCE_PATHS );
+			if( sourcePathCount < 0 || firstSourcePath < 0 || firstSourcePath + sourcePathCount > sourcePaths )
+				throw new IOException( "Malformed binary traces file: the source paths of fill " + f + " are out of range" );
+			getFillMetric( f );
+		}
+
+		return this;
+	}
+
+	static ByteBuffer map( FileChannel channel, long offset, long length, long fileLength ) throws IOException {
+		if( offset < 0 || offset > fileLength || length > fileLength - offset )
+			throw new IOException( "Malformed binary traces file: a section extends beyond the end of the file" );
+		if( length > Integer.MAX_VALUE )
+			throw new IOException( "A section of the binary traces file is too large to be mapped" );
+		return channel.map( FileChannel.MapMode.READ_ONLY, offset, length ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	static long [] sectionLengths( int paths, int fills, long points, long circles, long fillNodes, long sourcePaths, long stringsLength ) {
+		long [] lengths = new long[SECTIONS];
+		lengths[SECTION_PATHS] = (long)paths * PATH_RECORD_SIZE;
+		lengths[SECTION_X] = lengths[SECTION_Y] = lengths[SECTION_Z] = 8 * points;
+		lengths[SECTION_R] = lengths[SECTION_TX] = lengths[SECTION_TY] = lengths[SECTION_TZ] = 8 * circles;
+		lengths[SECTION_FILLS] = (long)fills * FILL_RECORD_SIZE;
+		lengths[SECTION_SOURCE_PATHS] = 4 * sourcePaths;
+		lengths[SECTION_NODE_X] = lengths[SECTION_NODE_Y] = lengths[SECTION_NODE_Z] = lengths[SECTION_NODE_PREVIOUS] = 4 * fillNodes;
+		lengths[SECTION_NODE_DISTANCE] = 8 * fillNodes;
+		lengths[SECTION_NODE_OPEN] = fillNodes;
+		lengths[SECTION_STRINGS] = stringsLength;
+		return lengths;
+	}
+
+	String string( int offset, int length ) throws IOException {
+		if( length < 0 )
+			return null;
+		if( offset < 0 || offset > strings.capacity() - length )
+			throw new IOException( "Malformed binary traces file: a string is out of range" );
+		byte [] bytes = new byte[length];
+		ByteBuffer b = strings.duplicate();
+		b.position( offset );
+		b.get( bytes );
+		return new String( bytes, UTF8 );
+	}
+
+	public int getWidth( ) {
+		return width;
+	}
+
+	public int getHeight( ) {
+		return height;
+	}
+
+	public int getDepth( ) {
+		return depth;
+	}
+
+	public double getXSpacing( ) {
+		return x_spacing;
+	}
+
+	public double getYSpacing( ) {
+		return y_spacing;
+	}
+
+	public double getZSpacing( ) {
+		return z_spacing;
+	}
+
+	public String getSpacingUnits( ) {
+		return spacing_units;
+	}
+
+	public int getPathCount( ) {
+		return paths;
+	}
+
+	public int getPathID( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_ID );
+	}
+
+	/* The index of the path with a particular ID, or -1 if there
+	   is none: */
+	public int getPathIndex( int id ) {
+		Integer index = pathIndexFromID.get( id );
+		return index == null ? -1 : index;
+	}
+
+	public int getSWCType( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_SWC_TYPE );
+	}
+
+	int getFlags( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_FLAGS );
+	}
+
+	public boolean getPrimary( int path ) {
+		return (getFlags( path ) & FLAG_PRIMARY) != 0;
+	}
+
+	public boolean getUseFitted( int path ) {
+		return (getFlags( path ) & FLAG_USE_FITTED) != 0;
+	}
+
+	public boolean hasCircles( int path ) {
+		return (getFlags( path ) & FLAG_HAS_CIRCLES) != 0;
+	}
+
+	/* The IDs of the fitted version of the path, and the path
+	   that this is a fitted version of, or -1 if there isn't one: */
+	public int getFittedID( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_FITTED );
+	}
+
+	public int getFittedVersionOfID( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_FITTED_VERSION_OF );
+	}
+
+	/* Mirrors Path.versionInUse(): */
+	public boolean versionInUse( int path ) {
+		int fittedVersionOf = getPathIndex( getFittedVersionOfID( path ) );
+		if( fittedVersionOf >= 0 )
+			return getUseFitted( fittedVersionOf );
+		else
+			return ! getUseFitted( path );
+	}
+
+	public String getName( int path ) throws IOException {
+		return string( pathTable.getInt( path * PATH_RECORD_SIZE + PATH_NAME_OFFSET ),
+			       pathTable.getInt( path * PATH_RECORD_SIZE + PATH_NAME_LENGTH ) );
+	}
+
+	public int getPointCount( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_POINTS );
+	}
+
+	/* The index in the x, y and z columns of the first point of
+	   the path: */
+	public long getFirstPoint( int path ) {
+		return pathTable.getLong( path * PATH_RECORD_SIZE + PATH_FIRST_POINT );
+	}
+
+	/* The index in the r, tx, ty and tz columns of the circle
+	   for the first point of the path, if it has circles: */
+	public long getFirstCircle( int path ) {
+		return pathTable.getLong( path * PATH_RECORD_SIZE + PATH_FIRST_CIRCLE );
+	}
+
+	/* The ID of the path that this one starts or ends on, or -1
+	   if it doesn't join another path: */
+	public int getStartsOnID( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_STARTS_ON );
+	}
+
+	public int getEndsOnID( int path ) {
+		return pathTable.getInt( path * PATH_RECORD_SIZE + PATH_ENDS_ON );
+	}
+
+	public PointInImage getStartJoinPoint( int path ) {
+		if( getStartsOnID( path ) < 0 )
+			return null;
+		int record = path * PATH_RECORD_SIZE;
+		return new PointInImage( pathTable.getDouble( record + PATH_START_X ),
+					 pathTable.getDouble( record + PATH_START_Y ),
+					 pathTable.getDouble( record + PATH_START_Z ) );
+	}
+
+	public PointInImage getEndJoinPoint( int path ) {
+		if( getEndsOnID( path ) < 0 )
+			return null;
+		int record = path * PATH_RECORD_SIZE;
+		return new PointInImage( pathTable.getDouble( record + PATH_END_X ),
+					 pathTable.getDouble( record + PATH_END_Y ),
+					 pathTable.getDouble( record + PATH_END_Z ) );
+	}
+
+	/* The columns themselves; these are views onto the mapped
+	   file, so nothing is copied.  Each call returns a new view,
+	   so its position can be changed freely. */
+
+	public DoubleBuffer getXColumn( ) {
+		return x.duplicate();
+	}
+
+	public DoubleBuffer getYColumn( ) {
+		return y.duplicate();
+	}
+
+	public DoubleBuffer getZColumn( ) {
+		return z.duplicate();
+	}
+
+	public DoubleBuffer getRadiusColumn( ) {
+		return r.duplicate();
+	}
+
+	public DoubleBuffer getTangentXColumn( ) {
+		return tx.duplicate();
+	}
+
+	public DoubleBuffer getTangentYColumn( ) {
+		return ty.duplicate();
+	}
+
+	public DoubleBuffer getTangentZColumn( ) {
+		return tz.duplicate();
+	}
+
+	/* The same as Path.getRealLength(), but read straight from
+	   the file: */
+	public double getRealLength( int path ) {
+		int n = getPointCount( path );
+		int first = (int)getFirstPoint( path );
+		double totalLength = 0;
+		for( int i = first + 1; i < first + n; ++i ) {
+			double xdiff = x.get( i ) - x.get( i - 1 );
+			double ydiff = y.get( i ) - y.get( i - 1 );
+			double zdiff = z.get( i ) - z.get( i - 1 );
+			totalLength += Math.sqrt( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
+		}
+		return totalLength;
+	}
+
+	public int getFillCount( ) {
+		return fills;
+	}
+
+	public int getFillNodeCount( int fill ) {
+		return fillTable.getInt( fill * FILL_RECORD_SIZE + FILL_NODES );
+	}
+
+	public long getFirstFillNode( int fill ) {
+		return fillTable.getLong( fill * FILL_RECORD_SIZE + FILL_FIRST_NODE );
+	}
+
+	public double getFillThreshold( int fill ) {
+		return fillTable.getDouble( fill * FILL_RECORD_SIZE + FILL_THRESHOLD );
+	}
+
+	public String getFillMetric( int fill ) throws IOException {
+		return string( fillTable.getInt( fill * FILL_RECORD_SIZE + FILL_METRIC_OFFSET ),
+			       fillTable.getInt( fill * FILL_RECORD_SIZE + FILL_METRIC_LENGTH ) );
+	}
+
+	public int [] getFillSourcePathIDs( int fill ) {
+		int n = fillTable.getInt( fill * FILL_RECORD_SIZE + FILL_SOURCE_PATHS );
+		int first = (int)fillTable.getLong( fill * FILL_RECORD_SIZE + FILL_FIRST_SOURCE_PATH );
+		int [] result = new int[n];
+		for( int i = 0; i < n; ++i )
+			result[i] = fillSourcePaths.get( first + i );
+		return result;
+	}
+
+	/* Load everything into pafm, replacing its current paths and
+	   fills, just as loading an XML traces file would: */
+	void addTo( PathAndFillManager pafm ) throws IOException, TracesFileFormatException {
+
+		pafm.startLoading();
+		pafm.setLoadedImageSize( width, height, depth );
+		pafm.setLoadedSpacing( x_spacing, y_spacing, z_spacing, spacing_units );
+
+		DoubleBuffer xs = getXColumn(), ys = getYColumn(), zs = getZColumn();
+		DoubleBuffer rs = getRadiusColumn(), txs = getTangentXColumn(), tys = getTangentYColumn(), tzs = getTangentZColumn();
+
+		for( int i = 0; i < paths; ++i ) {
+
+			int n = getPointCount( i );
+			Path p = new Path( pafm.x_spacing, pafm.y_spacing, pafm.z_spacing, pafm.spacing_units, n );
+			int first = (int)getFirstPoint( i );
+			xs.position( first );
+			xs.get( p.precise_x_positions, 0, n );
+			ys.position( first );
+			ys.get( p.precise_y_positions, 0, n );
+			zs.position( first );
+			zs.get( p.precise_z_positions, 0, n );
+			p.points = n;
+			p.pointsChanged();
+
+			if( hasCircles( i ) ) {
+				p.createCircles();
+				int firstCircle = (int)getFirstCircle( i );
+				rs.position( firstCircle );
+				rs.get( p.radiuses, 0, n );
+				txs.position( firstCircle );
+				txs.get( p.tangents_x, 0, n );
+				tys.position( firstCircle );
+				tys.get( p.tangents_y, 0, n );
+				tzs.position( firstCircle );
+				tzs.get( p.tangents_z, 0, n );
+			}
+
+			int id = getPathID( i );
+			pafm.setLoadedPathID( p, id );
+			p.setSWCType( getSWCType( i ), false );
+			if( getPrimary( i ) )
+				p.setPrimary( true );
+			String name = getName( i );
+			if( name == null )
+				p.setDefaultName();
+			else
+				p.setName( name );
+
+			if( getStartsOnID( i ) >= 0 ) {
+				pafm.startJoins.put( id, getStartsOnID( i ) );
+				pafm.startJoinsPoints.put( id, getStartJoinPoint( i ) );
+			}
+			if( getEndsOnID( i ) >= 0 ) {
+				pafm.endJoins.put( id, getEndsOnID( i ) );
+				pafm.endJoinsPoints.put( id, getEndJoinPoint( i ) );
+			}
+			pafm.useFittedFields.put( id, getUseFitted( i ) );
+			if( getFittedID( i ) >= 0 )
+				pafm.fittedFields.put( id, getFittedID( i ) );
+			if( getFittedVersionOfID( i ) >= 0 )
+				pafm.fittedVersionOfFields.put( id, getFittedVersionOfID( i ) );
+
+			pafm.loadedPaths.add( p );
+		}
+
+		for( int f = 0; f < fills; ++f ) {
+			Fill fill = new Fill();
+			fill.setMetric( getFillMetric( f ) );
+			fill.setThreshold( getFillThreshold( f ) );
+			int first = (int)getFirstFillNode( f );
+			int n = getFillNodeCount( f );
+			for( int i = first; i < first + n; ++i )
+				fill.add( nodeX.get( i ),
+					  nodeY.get( i ),
+					  nodeZ.get( i ),
+					  nodeDistance.get( i ),
+					  nodePrevious.get( i ),
+					  nodeOpen.get( i ) != 0 );
+			pafm.sourcePathIDForFills.add( getFillSourcePathIDs( f ) );
+			pafm.loadedFills.add( fill );
+		}
+
+		pafm.finishLoading();
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Writing: */
+
+	/* Everything that's written, copied from the
+	   PathAndFillManager while holding its lock: */
+	static class Snapshot {
+		int width, height, depth;
+		double x_spacing, y_spacing, z_spacing;
+		ByteArrayBuilder strings = new ByteArrayBuilder();
+		int unitsOffset, unitsLength;
+		ArrayList< Path > paths = new ArrayList< Path >();
+		int [] ids, swcTypes, flags, fitted, fittedVersionOf, startsOn, endsOn, nameOffsets, nameLengths;
+		double [][] startPoints, endPoints;
+		double [][] xs, ys, zs, rs, txs, tys, tzs;
+		ArrayList< Fill.Node [] > fillNodes = new ArrayList< Fill.Node [] >();
+		ArrayList< int [] > fillSourcePaths = new ArrayList< int [] >();
+		double [] fillThresholds;
+		int [] metricOffsets, metricLengths;
+		long points, circles, nodes, sourcePaths;
+	}
+
+	static class ByteArrayBuilder {
+		byte [] bytes = new byte[1024];
+		int length = 0;
+		/* Returns the offset of s, which is added as UTF-8: */
+		int add( String s ) {
+			byte [] b = s.getBytes( UTF8 );
+			if( length + b.length > bytes.length )
+				bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, length + b.length ) );
+			System.arraycopy( b, 0, bytes, length, b.length );
+			int offset = length;
+			length += b.length;
+			return offset;
+		}
+	}
+
+	static Snapshot snapshot( PathAndFillManager pafm ) {
+		Snapshot s = new Snapshot();
+		synchronized( pafm ) {
+			s.width = pafm.width;
+			s.height = pafm.height;
+			s.depth = pafm.depth;
+			s.x_spacing = pafm.x_spacing;
+			s.y_spacing = pafm.y_spacing;
+			s.z_spacing = pafm.z_spacing;
+			String units = pafm.spacing_units == null ? "" : pafm.spacing_units;
+			s.unitsOffset = s.strings.add( units );
+			s.unitsLength = s.strings.length - s.unitsOffset;
+
+			int n = pafm.allPaths.size();
+			s.ids = new int[n];
+			s.swcTypes = new int[n];
+			s.flags = new int[n];
+			s.fitted = new int[n];
+			s.fittedVersionOf = new int[n];
+			s.startsOn = new int[n];
+			s.endsOn = new int[n];
+			s.nameOffsets = new int[n];
+			s.nameLengths = new int[n];
+			s.startPoints = new double[n][];
+			s.endPoints = new double[n][];
+			s.xs = new double[n][];
+			s.ys = new double[n][];
+			s.zs = new double[n][];
+			s.rs = new double[n][];
+			s.txs = new double[n][];
+			s.tys = new double[n][];
+			s.tzs = new double[n][];
+
+			for( int i = 0; i < n; ++i ) {
+				Path p = pafm.allPaths.get( i );
+				int points = p.size();
+				s.ids[i] = p.getID();
+				s.swcTypes[i] = p.getSWCType();
+				s.flags[i] = (p.getPrimary() ? FLAG_PRIMARY : 0) |
+					(p.getUseFitted() ? FLAG_USE_FITTED : 0) |
+					(p.hasCircles() ? FLAG_HAS_CIRCLES : 0);
+				s.fitted[i] = p.fitted == null ? -1 : p.fitted.getID();
+				s.fittedVersionOf[i] = p.fittedVersionOf == null ? -1 : p.fittedVersionOf.getID();
+				s.startsOn[i] = p.startJoins == null ? -1 : p.startJoins.getID();
+				s.endsOn[i] = p.endJoins == null ? -1 : p.endJoins.getID();
+				if( p.startJoins != null )
+					s.startPoints[i] = new double[] { p.startJoinsPoint.x, p.startJoinsPoint.y, p.startJoinsPoint.z };
+				if( p.endJoins != null )
+					s.endPoints[i] = new double[] { p.endJoinsPoint.x, p.endJoinsPoint.y, p.endJoinsPoint.z };
+				if( p.name == null ) {
+					s.nameLengths[i] = -1;
+				} else {
+					s.nameOffsets[i] = s.strings.add( p.name );
+					s.nameLengths[i] = s.strings.length - s.nameOffsets[i];
+				}
+				s.xs[i] = p.getPreciseXs();
+				s.ys[i] = p.getPreciseYs();
+				s.zs[i] = p.getPreciseZs();
+				s.points += points;
+				if( p.hasCircles() ) {
+					s.rs[i] = Arrays.copyOf( p.radiuses, points );
+					s.txs[i] = Arrays.copyOf( p.tangents_x, points );
+					s.tys[i] = Arrays.copyOf( p.tangents_y, points );
+					s.tzs[i] = Arrays.copyOf( p.tangents_z, points );
+					s.circles += points;
+				}
+			}
+
+			int fills = pafm.allFills.size();
+			s.fillThresholds = new double[fills];
+			s.metricOffsets = new int[fills];
+			s.metricLengths = new int[fills];
+			for( int f = 0; f < fills; ++f ) {
+				Fill fill = pafm.allFills.get( f );
+				s.fillThresholds[f] = fill.getThreshold();
+				if( fill.getMetric() == null ) {
+					s.metricLengths[f] = -1;
+				} else {
+					s.metricOffsets[f] = s.strings.add( fill.getMetric() );
+					s.metricLengths[f] = s.strings.length - s.metricOffsets[f];
+				}
+				Fill.Node [] nodes = fill.nodeList.toArray( new Fill.Node[fill.nodeList.size()] );
+				s.fillNodes.add( nodes );
+				s.nodes += nodes.length;
+				int [] sourcePathIDs;
+				if( fill.sourcePaths == null ) {
+					sourcePathIDs = new int[0];
+				} else {
+					sourcePathIDs = new int[fill.sourcePaths.size()];
+					int k = 0;
+					for( Path p : fill.sourcePaths )
+						sourcePathIDs[k++] = p.getID();
+					Arrays.sort( sourcePathIDs );
+				}
+				s.fillSourcePaths.add( sourcePathIDs );
+				s.sourcePaths += sourcePathIDs.length;
+			}
+		}
+		return s;
+	}
+
+	/* Writes little-endian values to a file through a large
+	   buffer, keeping track of the offset: */
+	static class Output {
+
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( 1 << 20 ).order( ByteOrder.LITTLE_ENDIAN );
+		long written = 0;
+
+		Output( FileChannel channel ) {
+			this.channel = channel;
+		}
+
+		long position( ) {
+			return written + buffer.position();
+		}
+
+		void makeSpace( int bytes ) throws IOException {
+			if( buffer.remaining() < bytes )
+				flush();
+		}
+
+		void flush( ) throws IOException {
+			buffer.flip();
+			while( buffer.hasRemaining() )
+				written += channel.write( buffer );
+			buffer.clear();
+		}
+
+		void putByte( int b ) throws IOException {
+			makeSpace( 1 );
+			buffer.put( (byte)b );
+		}
+
+		void putInt( int i ) throws IOException {
+			makeSpace( 4 );
+			buffer.putInt( i );
+		}
+
+		void putLong( long l ) throws IOException {
+			makeSpace( 8 );
+			buffer.putLong( l );
+		}
+
+		void putDouble( double d ) throws IOException {
+			makeSpace( 8 );
+			buffer.putDouble( d );
+		}
+
+		void putDoubles( double [][] arrays ) throws IOException {
+			for( double [] a : arrays )
+				if( a != null )
+					for( int i = 0; i < a.length; ++i )
+						putDouble( a[i] );
+		}
+
+		void putBytes( byte [] bytes, int length ) throws IOException {
+			int done = 0;
+			while( done < length ) {
+				makeSpace( 1 );
+				int n = Math.min( buffer.remaining(), length - done );
+				buffer.put( bytes, done, n );
+				done += n;
+			}
+		}
+
+		/* Pads to the start of the next section, which must be
+		   where it was expected to be: */
+		void startSection( long offset ) throws IOException {
+			while( position() < offset )
+				putByte( 0 );
+			if( position() != offset )
+				throw new RuntimeException( "BUG: a section of the binary traces file started at " + position() + " rather than " + offset );
+		}
+	}
+
+	/* Writes the paths and fills of pafm to fileName in the binary
+	   format.  Only copying them holds pafm's lock. */
+	public static void write( PathAndFillManager pafm, String fileName ) throws IOException {
+
+		Snapshot s = snapshot( pafm );
+
+		int paths = s.ids.length;
+		int fills = s.fillThresholds.length;
+
+		long [] lengths = sectionLengths( paths, fills, s.points, s.circles, s.nodes, s.sourcePaths, s.strings.length );
+		long [] offsets = new long[SECTIONS];
+		long offset = HEADER_SIZE;
+		for( int i = 0; i < SECTIONS; ++i ) {
+			offsets[i] = offset;
+			offset = align( offset + lengths[i] );
+		}
+
+		FileOutputStream fos = new FileOutputStream( fileName );
+		try {
+			Output out = new Output( fos.getChannel() );
+
+			out.putBytes( MAGIC, MAGIC.length );
+			out.putInt( VERSION );
+			out.putInt( s.width );
+			out.putInt( s.height );
+			out.putInt( s.depth );
+			out.putDouble( s.x_spacing );
+			out.putDouble( s.y_spacing );
+			out.putDouble( s.z_spacing );
+			out.putInt( paths );
+			out.putInt( fills );
+			out.putLong( s.points );
+			out.putLong( s.circles );
+			out.putLong( s.nodes );
+			out.putLong( s.sourcePaths );
+			out.putLong( s.strings.length );
+			out.putInt( s.unitsOffset );
+			out.putInt( s.unitsLength );
+			for( int i = 0; i < SECTIONS; ++i )
+				out.putLong( offsets[i] );
+
+			out.startSection( offsets[SECTION_PATHS] );
+			long firstPoint = 0, firstCircle = 0;
+			for( int i = 0; i < paths; ++i ) {
+				int points = s.xs[i].length;
+				out.putInt( s.ids[i] );
+				out.putInt( s.swcTypes[i] );
+				out.putInt( s.flags[i] );
+				out.putInt( s.fitted[i] );
+				out.putInt( s.fittedVersionOf[i] );
+				out.putInt( points );
+				out.putLong( firstPoint );
+				out.putLong( s.rs[i] == null ? -1 : firstCircle );
+				out.putInt( s.startsOn[i] );
+				out.putInt( s.endsOn[i] );
+				for( int k = 0; k < 3; ++k )
+					out.putDouble( s.startPoints[i] == null ? 0 : s.startPoints[i][k] );
+				for( int k = 0; k < 3; ++k )
+					out.putDouble( s.endPoints[i] == null ? 0 : s.endPoints[i][k] );
+				out.putInt( s.nameOffsets[i] );
+				out.putInt( s.nameLengths[i] );
+				firstPoint += points;
+				if( s.rs[i] != null )
+					firstCircle += points;
+			}
+
+			out.startSection( offsets[SECTION_X] );
+			out.putDoubles( s.xs );
+			out.startSection( offsets[SECTION_Y] );
+			out.putDoubles( s.ys );
+			out.startSection( offsets[SECTION_Z] );
+			out.putDoubles( s.zs );
+			out.startSection( offsets[SECTION_R] );
+			out.putDoubles( s.rs );
+			out.startSection( offsets[SECTION_TX] );
+			out.putDoubles( s.txs );
+			out.startSection( offsets[SECTION_TY] );
+			out.putDoubles( s.tys );
+			out.startSection( offsets[SECTION_TZ] );
+			out.putDoubles( s.tzs );
+
+			out.startSection( offsets[SECTION_FILLS] );
+			long firstNode = 0, firstSourcePath = 0;
+			for( int f = 0; f < fills; ++f ) {
+				int nodes = s.fillNodes.get( f ).length;
+				int sourcePaths = s.fillSourcePaths.get( f ).length;
+				out.putInt( nodes );
+				out.putInt( sourcePaths );
+				out.putLong( firstNode );
+				out.putLong( firstSourcePath );
+				out.putDouble( s.fillThresholds[f] );
+				out.putInt( s.metricOffsets[f] );
+				out.putInt( s.metricLengths[f] );
+				firstNode += nodes;
+				firstSourcePath += sourcePaths;
+			}
+
+			out.startSection( offsets[SECTION_SOURCE_PATHS] );
+			for( int [] ids : s.fillSourcePaths )
+				for( int id : ids )
+					out.putInt( id );
+
+			out.startSection( offsets[SECTION_NODE_X] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putInt( node.x );
+			out.startSection( offsets[SECTION_NODE_Y] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putInt( node.y );
+			out.startSection( offsets[SECTION_NODE_Z] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putInt( node.z );
+			out.startSection( offsets[SECTION_NODE_PREVIOUS] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putInt( node.previous );
+			out.startSection( offsets[SECTION_NODE_DISTANCE] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putDouble( node.distance );
+			out.startSection( offsets[SECTION_NODE_OPEN] );
+			for( Fill.Node [] nodes : s.fillNodes )
+				for( Fill.Node node : nodes )
+					out.putByte( node.open ? 1 : 0 );
+
+			out.startSection( offsets[SECTION_STRINGS] );
+			out.putBytes( s.strings.bytes, s.strings.length );
+			out.flush();
+		} finally {
+			fos.close();
+		}
+	}
+}
@@ -0,0 +1,694 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/* A non-validating reader for traces files, which is much faster
+   than going through a SAX parser for large files.  It only
+   understands the parts of XML that can appear in a traces file
+   (elements, attributes, comments, processing instructions and
+   the DOCTYPE declaration, which is skipped) and only UTF-8 input,
+   which is what TracesWriter produces.
+
+   Most of a traces file is <point> elements (and <node> elements,
+   for fills), so these are parsed straight from the byte buffer,
+   numbers included, without creating any Strings, and passed to
+   PathAndFillManager.addLoadedPoint() / addLoadedNode().  Every
+   other element is passed to PathAndFillManager.startElement() and
+   endElement(), just as the SAX parser would. */
+
+class TracesFileReader {
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+	static final Charset ASCII = Charset.forName( "US-ASCII" );
+
+	static final byte [] POINT = "point".getBytes( ASCII );
+	static final byte [] NODE = "node".getBytes( ASCII );
+	static final byte [] OPEN = "open".getBytes( ASCII );
+
+	protected InputStream in;
+
+	protected byte [] buffer = new byte[65536];
+	protected int position; // the next byte to be read from buffer
+	protected int limit; // the end of the valid data in buffer
+	protected long bufferOffset; // the offset in the input of buffer[0]
+	protected boolean endOfInput;
+
+	/* The attributes of the current element, as offsets into
+	   buffer: */
+	protected int attributes;
+	protected int [] nameStarts = new int[16];
+	protected int [] nameEnds = new int[16];
+	protected int [] valueStarts = new int[16];
+	protected int [] valueEnds = new int[16];
+	protected boolean [] hasReferences = new boolean[16];
+
+	/* Which attribute (if any) has each of the names that we're
+	   interested in, like PathAndFillManager.AttributeCache: */
+	static class AttributeSlots {
+
+		final String elementName;
+		final String [] names;
+		final byte [][] nameBytes;
+		final int [] attributeForSlot;
+		int [] slotAtPosition = new int[0];
+
+		AttributeSlots( String elementName, String [] names ) {
+			this.elementName = elementName;
+			this.names = names;
+			this.nameBytes = new byte[names.length][];
+			for( int i = 0; i < names.length; ++i )
+				nameBytes[i] = names[i].getBytes( ASCII );
+			this.attributeForSlot = new int[names.length];
+		}
+	}
+
+	protected AttributeSlots pointSlots = new AttributeSlots( "point", PathAndFillManager.POINT_ATTRIBUTES );
+
+	protected AttributeSlots nodeSlots = new AttributeSlots( "node", PathAndFillManager.NODE_ATTRIBUTES );
+
+	TracesFileReader( InputStream in ) {
+		this.in = in;
+	}
+
+	/* Tries to make n bytes available from position onwards,
+	   returning the number that actually are, which is only less
+	   than n at the end of the input.  This may move the data in
+	   the buffer, so any offsets into it other than position
+	   are invalidated. */
+	int ensure( int n ) throws IOException {
+		while( limit - position < n && ! endOfInput ) {
+			if( position > 0 ) {
+				System.arraycopy( buffer, position, buffer, 0, limit - position );
+				limit -= position;
+				bufferOffset += position;
+				position = 0;
+			}
+			if( limit == buffer.length )
+				buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+			int read = in.read( buffer, limit, buffer.length - limit );
+			if( read < 0 )
+				endOfInput = true;
+			else
+				limit += read;
+		}
+		return limit - position;
+	}
+
+	/* The byte at position + offset, or -1 if the input ends
+	   before then: */
+	int peek( int offset ) throws IOException {
+		if( position + offset >= limit && ensure( offset + 1 ) <= offset )
+			return -1;
+		return buffer[position + offset] & 0xFF;
+	}
+
+	boolean lookingAt( byte [] bytes ) throws IOException {
+		if( ensure( bytes.length ) < bytes.length )
+			return false;
+		for( int i = 0; i < bytes.length; ++i )
+			if( buffer[position + i] != bytes[i] )
+				return false;
+		return true;
+	}
+
+	TracesFileFormatException error( String message ) {
+		return new TracesFileFormatException( message + " (at byte " + (bufferOffset + position) + ")" );
+	}
+
+	/* This reader only understands UTF-8 (or ASCII); for any other
+	   encoding, the caller should give remainingInput() to a
+	   real XML parser instead. */
+	boolean hasSupportedEncoding( ) throws IOException {
+		int available = ensure( 1024 );
+		if( available >= 2 ) {
+			int first = buffer[position] & 0xFF;
+			int second = buffer[position + 1] & 0xFF;
+			// UTF-16 or UTF-32, with or without a byte order mark:
+			if( first == 0xFE || first == 0xFF || first == 0 || second == 0 )
+				return false;
+		}
+		String start = new String( buffer, position, available, ASCII );
+		if( ! start.startsWith( "<?xml" ) )
+			return true;
+		int declarationEnd = start.indexOf( "?>" );
+		if( declarationEnd < 0 )
+			return true;
+		Matcher m = Pattern.compile( "encoding\\s*=\\s*[\"']([^\"']*)[\"']" ).matcher( start.substring( 0, declarationEnd ) );
+		if( ! m.find() )
+			return true;
+		String encoding = m.group( 1 );
+		return encoding.equalsIgnoreCase( "UTF-8" ) ||
+			encoding.equalsIgnoreCase( "UTF8" ) ||
+			encoding.equalsIgnoreCase( "US-ASCII" ) ||
+			encoding.equalsIgnoreCase( "ASCII" );
+	}
+
+	/* Everything that hasn't been read yet: */
+	InputStream remainingInput( ) {
+		return new SequenceInputStream( new ByteArrayInputStream( buffer, position, limit - position ), in );
+	}
+
+	static boolean isWhitespace( int c ) {
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	void read( PathAndFillManager pafm ) throws IOException, SAXException {
+
+		// Skip any UTF-8 byte order mark:
+		if( peek( 0 ) == 0xEF && peek( 1 ) == 0xBB && peek( 2 ) == 0xBF )
+			position += 3;
+
+		ArrayList< String > openElements = new ArrayList< String >();
+		boolean seenRootElement = false;
+
+		while( true ) {
+
+			// Skip to the next tag; any text is ignored:
+			while( true ) {
+				if( position >= limit && ensure( 1 ) == 0 )
+					break;
+				if( buffer[position] == '<' )
+					break;
+				++ position;
+			}
+			if( position >= limit )
+				break;
+
+			int next = peek( 1 );
+
+			if( next == '?' ) {
+
+				skipPast( "?>", "a processing instruction" );
+
+			} else if( next == '!' ) {
+
+				if( lookingAt( "<!--".getBytes( ASCII ) ) )
+					skipPast( "-->", "a comment" );
+				else if( lookingAt( "<![CDATA[".getBytes( ASCII ) ) )
+					skipPast( "]]>", "a CDATA section" );
+				else if( lookingAt( "<!DOCTYPE".getBytes( ASCII ) ) )
+					skipDoctype();
+				else
+					throw error( "Unknown markup beginning '<!'" );
+
+			} else if( next == '/' ) {
+
+				int end = findTagEnd();
+				int nameStart = position + 2;
+				int nameEnd = position + end;
+				while( nameEnd > nameStart && isWhitespace( buffer[nameEnd - 1] ) )
+					-- nameEnd;
+				String name = new String( buffer, nameStart, nameEnd - nameStart, UTF8 );
+				if( openElements.isEmpty() )
+					throw error( "There was an unexpected end tag </" + name + ">" );
+				String expected = openElements.remove( openElements.size() - 1 );
+				if( ! expected.equals( name ) )
+					throw error( "The end tag </" + name + "> doesn't match <" + expected + ">" );
+				position += end + 1;
+				pafm.endElement( "", name, name );
+
+			} else {
+
+				int end = findTagEnd();
+				boolean selfClosing = buffer[position + end - 1] == '/';
+				int nameStart = position + 1;
+				int attributesEnd = position + end - (selfClosing ? 1 : 0);
+				int nameEnd = nameStart;
+				while( nameEnd < attributesEnd && ! isWhitespace( buffer[nameEnd] ) )
+					++ nameEnd;
+				if( nameEnd == nameStart )
+					throw error( "Missing element name" );
+
+				if( openElements.isEmpty() ) {
+					if( seenRootElement )
+						throw error( "There can only be one top-level element" );
+					seenRootElement = true;
+				}
+
+				parseAttributes( nameEnd, attributesEnd );
+
+				String name;
+				if( matches( POINT, nameStart, nameEnd ) ) {
+					name = "point";
+					readPoint( pafm );
+				} else if( matches( NODE, nameStart, nameEnd ) ) {
+					name = "node";
+					readNode( pafm );
+				} else {
+					name = new String( buffer, nameStart, nameEnd - nameStart, UTF8 );
+					AttributesImpl attributesImpl = new AttributesImpl();
+					for( int i = 0; i < attributes; ++i ) {
+						String attributeName = new String( buffer, nameStarts[i], nameEnds[i] - nameStarts[i], UTF8 );
+						attributesImpl.addAttribute( "", attributeName, attributeName, "CDATA", stringValue( i ) );
+					}
+					pafm.startElement( "", name, name, attributesImpl );
+				}
+
+				position += end + 1;
+
+				if( selfClosing )
+					pafm.endElement( "", name, name );
+				else
+					openElements.add( name );
+			}
+		}
+
+		if( ! openElements.isEmpty() )
+			throw error( "The file ended inside <" + openElements.get( openElements.size() - 1 ) + ">" );
+		if( ! seenRootElement )
+			throw error( "There were no elements in the file" );
+	}
+
+	void skipPast( String terminator, String what ) throws IOException, SAXException {
+		byte [] bytes = terminator.getBytes( ASCII );
+		while( true ) {
+			if( ensure( bytes.length ) < bytes.length )
+				throw error( "The file ended inside " + what );
+			if( lookingAt( bytes ) ) {
+				position += bytes.length;
+				return;
+			}
+			++ position;
+		}
+	}
+
+	/* The internal subset of the DOCTYPE may contain quoted
+	   strings, comments and declarations, which all may contain
+	   '>' characters. */
+	void skipDoctype( ) throws IOException, SAXException {
+		int quote = 0;
+		boolean inInternalSubset = false;
+		while( true ) {
+			int c = peek( 0 );
+			if( c < 0 )
+				throw error( "The file ended inside the DOCTYPE declaration" );
+			if( quote != 0 ) {
+				if( c == quote )
+					quote = 0;
+			} else if( c == '"' || c == '\'' ) {
+				quote = c;
+			} else if( c == '<' && lookingAt( "<!--".getBytes( ASCII ) ) ) {
+				skipPast( "-->", "a comment" );
+				continue;
+			} else if( c == '[' ) {
+				inInternalSubset = true;
+			} else if( c == ']' ) {
+				inInternalSubset = false;
+			} else if( c == '>' && ! inInternalSubset ) {
+				++ position;
+				return;
+			}
+			++ position;
+		}
+	}
+
+	/* Returns the offset from position of the '>' that ends the
+	   tag starting at position, making sure that the whole tag
+	   is in the buffer: */
+	int findTagEnd( ) throws IOException, SAXException {
+		int quote = 0;
+		int offset = 1;
+		while( true ) {
+			int i = position + offset;
+			for( ; i < limit; ++i ) {
+				byte c = buffer[i];
+				if( quote != 0 ) {
+					if( c == quote )
+						quote = 0;
+				} else if( c == '"' || c == '\'' ) {
+					quote = c;
+				} else if( c == '>' ) {
+					return i - position;
+				} else if( c == '<' ) {
+					throw error( "There was a '<' inside a tag" );
+				}
+			}
+			offset = i - position;
+			if( ensure( offset + 1 ) <= offset )
+				throw error( "The file ended inside a tag" );
+		}
+	}
+
+	boolean matches( byte [] bytes, int start, int end ) {
+		if( end - start != bytes.length )
+			return false;
+		for( int i = 0; i < bytes.length; ++i )
+			if( buffer[start + i] != bytes[i] )
+				return false;
+		return true;
+	}
+
+	/* Finds the attributes between from and to, which must both
+	   be within the buffer: */
+	void parseAttributes( int from, int to ) throws SAXException {
+		attributes = 0;
+		int i = from;
+		while( true ) {
+			while( i < to && isWhitespace( buffer[i] ) )
+				++ i;
+			if( i >= to )
+				break;
+			if( i == from )
+				throw error( "There must be whitespace before an attribute" );
+			int nameStart = i;
+			while( i < to && buffer[i] != '=' && ! isWhitespace( buffer[i] ) )
+				++ i;
+			int nameEnd = i;
+			while( i < to && isWhitespace( buffer[i] ) )
+				++ i;
+			if( i >= to || buffer[i] != '=' )
+				throw error( "Expected '=' after an attribute name" );
+			++ i;
+			while( i < to && isWhitespace( buffer[i] ) )
+				++ i;
+			if( i >= to || (buffer[i] != '"' && buffer[i] != '\'') )
+				throw error( "Expected a quoted attribute value" );
+			byte quote = buffer[i];
+			++ i;
+			int valueStart = i;
+			boolean hasReference = false;
+			while( i < to && buffer[i] != quote ) {
+				if( buffer[i] == '&' )
+					hasReference = true;
+				++ i;
+			}
+			if( i >= to )
+				throw error( "An attribute value wasn't terminated" );
+			if( attributes == nameStarts.length ) {
+				int newLength = attributes * 2;
+				nameStarts = Arrays.copyOf( nameStarts, newLength );
+				nameEnds = Arrays.copyOf( nameEnds, newLength );
+				valueStarts = Arrays.copyOf( valueStarts, newLength );
+				valueEnds = Arrays.copyOf( valueEnds, newLength );
+				hasReferences = Arrays.copyOf( hasReferences, newLength );
+			}
+			nameStarts[attributes] = nameStart;
+			nameEnds[attributes] = nameEnd;
+			valueStarts[attributes] = valueStart;
+			valueEnds[attributes] = i;
+			hasReferences[attributes] = hasReference;
+			++ attributes;
+			++ i;
+			if( i < to && ! isWhitespace( buffer[i] ) )
+				throw error( "There must be whitespace between attributes" );
+		}
+	}
+
+	/* Fills in slots.attributeForSlot for the current element,
+	   with -1 for any names that aren't present.  The attributes
+	   are almost always in the same order each time, so check
+	   first whether each one has the same name as last time. */
+	void assignSlots( AttributeSlots slots ) {
+		Arrays.fill( slots.attributeForSlot, -1 );
+		if( slots.slotAtPosition.length < attributes ) {
+			int oldLength = slots.slotAtPosition.length;
+			slots.slotAtPosition = Arrays.copyOf( slots.slotAtPosition, attributes );
+			Arrays.fill( slots.slotAtPosition, oldLength, attributes, -1 );
+		}
+		for( int i = 0; i < attributes; ++i ) {
+			int slot = slots.slotAtPosition[i];
+			if( slot < 0 || ! matches( slots.nameBytes[slot], nameStarts[i], nameEnds[i] ) ) {
+				slot = -1;
+				for( int k = 0; k < slots.nameBytes.length; ++k )
+					if( matches( slots.nameBytes[k], nameStarts[i], nameEnds[i] ) ) {
+						slot = k;
+						break;
+					}
+				slots.slotAtPosition[i] = slot;
+			}
+			if( slot >= 0 )
+				slots.attributeForSlot[slot] = i;
+		}
+	}
+
+	int required( AttributeSlots slots, int slot ) throws SAXException {
+		int i = slots.attributeForSlot[slot];
+		if( i < 0 )
+			throw error( "The required attribute '" + slots.names[slot] + "' was missing from <" + slots.elementName + ">" );
+		return i;
+	}
+
+	void readPoint( PathAndFillManager pafm ) throws SAXException {
+
+		assignSlots( pointSlots );
+		int [] a = pointSlots.attributeForSlot;
+
+		double xd, yd, zd;
+		if( a[0] >= 0 && a[1] >= 0 && a[2] >= 0 ) {
+			xd = doubleValue( a[0], "point" );
+			yd = doubleValue( a[1], "point" );
+			zd = doubleValue( a[2], "point" );
+		} else if( a[0] >= 0 || a[1] >= 0 || a[2] >= 0 ) {
+			throw error( "If one of the attributes xd, yd or zd to the point element is specified, they all must be." );
+		} else if( a[3] >= 0 && a[4] >= 0 && a[5] >= 0 ) {
+			xd = pafm.parsed_x_spacing * intValue( a[3], "point" );
+			yd = pafm.parsed_y_spacing * intValue( a[4], "point" );
+			zd = pafm.parsed_z_spacing * intValue( a[5], "point" );
+		} else if( a[3] >= 0 || a[4] >= 0 || a[5] >= 0 ) {
+			throw error( "If one of the attributes x, y or z to the point element is specified, they all must be." );
+		} else {
+			throw error( "Each point element must have at least the attributes (x, y and z) or (xd, yd, zd)" );
+		}
+
+		if( a[6] >= 0 && a[7] >= 0 && a[8] >= 0 && a[9] >= 0 ) {
+			pafm.addLoadedPoint( xd, yd, zd, true,
+					     doubleValue( a[6], "point" ),
+					     doubleValue( a[7], "point" ),
+					     doubleValue( a[8], "point" ),
+					     doubleValue( a[9], "point" ) );
+		} else if( a[6] >= 0 || a[7] >= 0 || a[8] >= 0 || a[9] >= 0 ) {
+			throw error( "If one of the r, tx, ty or tz attributes to the point element is specified, they all must be" );
+		} else {
+			pafm.addLoadedPoint( xd, yd, zd, false, 0, 0, 0, 0 );
+		}
+	}
+
+	void readNode( PathAndFillManager pafm ) throws SAXException {
+
+		assignSlots( nodeSlots );
+		int [] a = nodeSlots.attributeForSlot;
+
+		int x = intValue( required( nodeSlots, 0 ), "node" );
+		int y = intValue( required( nodeSlots, 1 ), "node" );
+		int z = intValue( required( nodeSlots, 2 ), "node" );
+		int id = intValue( required( nodeSlots, 3 ), "node" );
+		double distance = doubleValue( required( nodeSlots, 4 ), "node" );
+		int previous = a[5] < 0 ? -1 : intValue( a[5], "node" );
+		int status = required( nodeSlots, 6 );
+		boolean open = hasReferences[status] ?
+			stringValue( status ).equals( "open" ) :
+			matches( OPEN, valueStarts[status], valueEnds[status] );
+
+		pafm.addLoadedNode( x, y, z, id, distance, previous, open );
+	}
+
+	/* The value of attribute i, with any character or entity
+	   references replaced, and whitespace normalized as an XML
+	   parser would: */
+	String stringValue( int i ) throws SAXException {
+		String raw = new String( buffer, valueStarts[i], valueEnds[i] - valueStarts[i], UTF8 );
+		StringBuilder sb = new StringBuilder( raw.length() );
+		for( int j = 0; j < raw.length(); ++j ) {
+			char c = raw.charAt( j );
+			if( c == '\r' ) {
+				if( j + 1 < raw.length() && raw.charAt( j + 1 ) == '\n' )
+					++ j;
+				sb.append( ' ' );
+			} else if( c == '\n' || c == '\t' ) {
+				sb.append( ' ' );
+			} else if( c == '&' ) {
+				int semicolon = raw.indexOf( ';', j );
+				if( semicolon < 0 )
+					throw error( "Unterminated reference in an attribute value" );
+				String reference = raw.substring( j + 1, semicolon );
+				if( reference.equals( "lt" ) )
+					sb.append( '<' );
+				else if( reference.equals( "gt" ) )
+					sb.append( '>' );
+				else if( reference.equals( "amp" ) )
+					sb.append( '&' );
+				else if( reference.equals( "quot" ) )
+					sb.append( '"' );
+				else if( reference.equals( "apos" ) )
+					sb.append( '\'' );
+				else if( reference.startsWith( "#" ) ) {
+					try {
+						int codePoint;
+						if( reference.startsWith( "#x" ) )
+							codePoint = Integer.parseInt( reference.substring( 2 ), 16 );
+						else
+							codePoint = Integer.parseInt( reference.substring( 1 ) );
+						sb.appendCodePoint( codePoint );
+					} catch( IllegalArgumentException e ) {
+						throw error( "Invalid character reference '&" + reference + ";'" );
+					}
+				} else
+					throw error( "Unknown entity '&" + reference + ";'" );
+				j = semicolon;
+			} else {
+				sb.append( c );
+			}
+		}
+		return sb.toString();
+	}
+
+	double doubleValue( int i, String elementName ) throws SAXException {
+		try {
+			if( hasReferences[i] )
+				return Double.parseDouble( stringValue( i ) );
+			return parseDouble( buffer, valueStarts[i], valueEnds[i] );
+		} catch( NumberFormatException e ) {
+			throw error( "There was an invalid attribute to <" + elementName + "/>: " + e );
+		}
+	}
+
+	int intValue( int i, String elementName ) throws SAXException {
+		try {
+			if( hasReferences[i] )
+				return Integer.parseInt( stringValue( i ) );
+			return parseInt( buffer, valueStarts[i], valueEnds[i] );
+		} catch( NumberFormatException e ) {
+			throw error( "There was an invalid attribute to <" + elementName + "/>: " + e );
+		}
+	}
+
+	/* Behaves like Integer.parseInt() on the ASCII text in
+	   bytes[start..end): */
+	static int parseInt( byte [] bytes, int start, int end ) {
+		int i = start;
+		boolean negative = false;
+		if( i < end && (bytes[i] == '-' || bytes[i] == '+') ) {
+			negative = bytes[i] == '-';
+			++ i;
+		}
+		if( i == end )
+			throw new NumberFormatException( "For input string: \"" + new String( bytes, start, end - start, UTF8 ) + "\"" );
+		long result = 0;
+		for( ; i < end; ++i ) {
+			int digit = bytes[i] - '0';
+			if( digit < 0 || digit > 9 )
+				throw new NumberFormatException( "For input string: \"" + new String( bytes, start, end - start, UTF8 ) + "\"" );
+			result = result * 10 + digit;
+			if( result > (long)Integer.MAX_VALUE + 1 )
+				throw new NumberFormatException( "For input string: \"" + new String( bytes, start, end - start, UTF8 ) + "\"" );
+		}
+		if( negative )
+			result = -result;
+		if( result > Integer.MAX_VALUE )
+			throw new NumberFormatException( "For input string: \"" + new String( bytes, start, end - start, UTF8 ) + "\"" );
+		return (int)result;
+	}
+
+	static final double [] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+		1e21, 1e22
+	};
+
+	/* Gives exactly the same result as Double.parseDouble() on the
+	   ASCII text in bytes[start..end).  If the significant digits
+	   fit in a double exactly and the decimal exponent is small
+	   enough that its power of ten does too, then a single
+	   multiplication or division is correctly rounded, so that's
+	   done directly; anything else goes to Double.parseDouble(). */
+	static double parseDouble( byte [] bytes, int start, int end ) {
+		int i = start;
+		boolean negative = false;
+		if( i < end && (bytes[i] == '-' || bytes[i] == '+') ) {
+			negative = bytes[i] == '-';
+			++ i;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean sawDigit = false, sawPoint = false, simple = true;
+		for( ; i < end; ++i ) {
+			int c = bytes[i];
+			if( c >= '0' && c <= '9' ) {
+				sawDigit = true;
+				if( sawPoint )
+					-- exponent;
+				if( mantissa == 0 && c == '0' )
+					continue;
+				if( ++digits > 18 ) {
+					simple = false;
+					break;
+				}
+				mantissa = mantissa * 10 + (c - '0');
+			} else if( c == '.' && ! sawPoint ) {
+				sawPoint = true;
+			} else {
+				break;
+			}
+		}
+		if( simple && i < end && (bytes[i] == 'e' || bytes[i] == 'E') ) {
+			++ i;
+			boolean negativeExponent = false;
+			if( i < end && (bytes[i] == '-' || bytes[i] == '+') ) {
+				negativeExponent = bytes[i] == '-';
+				++ i;
+			}
+			int exponentStart = i;
+			int explicitExponent = 0;
+			for( ; i < end && i - exponentStart < 5; ++i ) {
+				int digit = bytes[i] - '0';
+				if( digit < 0 || digit > 9 )
+					break;
+				explicitExponent = explicitExponent * 10 + digit;
+			}
+			if( i == exponentStart )
+				simple = false;
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		if( simple && sawDigit && i == end && mantissa <= (1L << 53) ) {
+			if( mantissa == 0 )
+				return negative ? -0.0 : 0.0;
+			if( exponent >= 0 && exponent < POWERS_OF_TEN.length ) {
+				double value = mantissa * POWERS_OF_TEN[exponent];
+				return negative ? -value : value;
+			} else if( exponent < 0 && -exponent < POWERS_OF_TEN.length ) {
+				double value = mantissa / POWERS_OF_TEN[-exponent];
+				return negative ? -value : value;
+			}
+		}
+		return Double.parseDouble( new String( bytes, start, end - start, UTF8 ) );
+	}
+}
@@ -0,0 +1,384 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import util.XMLFunctions;
+
+/* This writes the traces file format that PathAndFillManager.load()
+   reads.  The constructor takes a snapshot of the paths and fills
+   while holding the PathAndFillManager's lock, which is quick, and
+   the (much slower) formatting and compression can then be done
+   without the lock, e.g. on a background thread, while the user
+   carries on tracing.
+
+   Numbers are formatted with StringBuilder.append(), which gives
+   exactly the same text as string concatenation, but into a
+   single reused buffer that is encoded as UTF-8 and written out
+   in large blocks. */
+
+public class TracesWriter {
+
+	static final int BUFFER_SIZE = 65536;
+
+	static final String [] dtd = {
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+		"<!DOCTYPE tracings [",
+		"  <!ELEMENT tracings       (samplespacing,imagesize,path*,fill*)>",
+		"  <!ELEMENT imagesize      EMPTY>",
+		"  <!ELEMENT samplespacing  EMPTY>",
+		"  <!ELEMENT path           (point+)>",
+		"  <!ELEMENT point          EMPTY>",
+		"  <!ELEMENT fill           (node*)>",
+		"  <!ELEMENT node           EMPTY>",
+		"  <!ATTLIST samplespacing  x                 CDATA           #REQUIRED>",
+		"  <!ATTLIST samplespacing  y                 CDATA           #REQUIRED>",
+		"  <!ATTLIST samplespacing  z                 CDATA           #REQUIRED>",
+		"  <!ATTLIST samplespacing  units             CDATA           #REQUIRED>",
+		"  <!ATTLIST imagesize      width             CDATA           #REQUIRED>",
+		"  <!ATTLIST imagesize      height            CDATA           #REQUIRED>",
+		"  <!ATTLIST imagesize      depth             CDATA           #REQUIRED>",
+		"  <!ATTLIST path           id                CDATA           #REQUIRED>",
+		"  <!ATTLIST path           primary           CDATA           #IMPLIED>",
+		"  <!ATTLIST path           name              CDATA           #IMPLIED>",
+		"  <!ATTLIST path           startson          CDATA           #IMPLIED>",
+		"  <!ATTLIST path           startsindex       CDATA           #IMPLIED>", // deprecated
+		"  <!ATTLIST path           startsx           CDATA           #IMPLIED>",
+		"  <!ATTLIST path           startsy           CDATA           #IMPLIED>",
+		"  <!ATTLIST path           startsz           CDATA           #IMPLIED>",
+		"  <!ATTLIST path           endson            CDATA           #IMPLIED>",
+		"  <!ATTLIST path           endsindex         CDATA           #IMPLIED>", // deprecated
+		"  <!ATTLIST path           endsx             CDATA           #IMPLIED>",
+		"  <!ATTLIST path           endsy             CDATA           #IMPLIED>",
+		"  <!ATTLIST path           endsz             CDATA           #IMPLIED>",
+		"  <!ATTLIST path           reallength        CDATA           #IMPLIED>",
+		"  <!ATTLIST path           usefitted         (true|false)    #IMPLIED>",
+		"  <!ATTLIST path           fitted            CDATA           #IMPLIED>",
+		"  <!ATTLIST path           fittedversionof   CDATA           #IMPLIED>",
+		"  <!ATTLIST path           swctype           CDATA           #IMPLIED>",
+		"  <!ATTLIST point          x                 CDATA           #REQUIRED>", // deprecated
+		"  <!ATTLIST point          y                 CDATA           #REQUIRED>", // deprecated
+		"  <!ATTLIST point          z                 CDATA           #REQUIRED>", // deprecated
+		"  <!ATTLIST point          xd                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          yd                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          zd                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          tx                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          ty                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          tz                CDATA           #IMPLIED>",
+		"  <!ATTLIST point          r                 CDATA           #IMPLIED>",
+		"  <!ATTLIST fill           id                CDATA           #REQUIRED>",
+		"  <!ATTLIST fill           frompaths         CDATA           #IMPLIED>",
+		"  <!ATTLIST fill           metric            CDATA           #REQUIRED>",
+		"  <!ATTLIST fill           threshold         CDATA           #REQUIRED>",
+		"  <!ATTLIST fill           volume            CDATA           #IMPLIED>",
+		"  <!ATTLIST node           id                CDATA           #REQUIRED>",
+		"  <!ATTLIST node           x                 CDATA           #REQUIRED>",
+		"  <!ATTLIST node           y                 CDATA           #REQUIRED>",
+		"  <!ATTLIST node           z                 CDATA           #REQUIRED>",
+		"  <!ATTLIST node           previousid        CDATA           #IMPLIED>",
+		"  <!ATTLIST node           distance          CDATA           #REQUIRED>",
+		"  <!ATTLIST node           status            (open|closed)   #REQUIRED>",
+		"]>",
+		""
+	};
+
+	/* Everything about a path that's needed to write it out; the
+	   start tag is formatted when the snapshot is taken, since
+	   it's short and depends on other paths. */
+	static class PathSnapshot {
+		String startTag;
+		int points;
+		double x_spacing, y_spacing, z_spacing;
+		double [] x, y, z;
+		double [] tx, ty, tz, r;
+	}
+
+	static class FillSnapshot {
+		String startTag;
+		Fill.Node [] nodes;
+	}
+
+	protected String header;
+	protected ArrayList< PathSnapshot > paths;
+	protected ArrayList< FillSnapshot > fills;
+
+	protected int compressionLevel = Deflater.BEST_SPEED;
+
+	protected final String lineSeparator = System.getProperty( "line.separator" );
+
+	public TracesWriter( PathAndFillManager pafm ) {
+		synchronized( pafm ) {
+			StringBuilder sb = new StringBuilder();
+			sb.append( "  <samplespacing x=\"" ).append( pafm.x_spacing ).append( "\" " );
+			sb.append( "y=\"" ).append( pafm.y_spacing ).append( "\" " );
+			sb.append( "z=\"" ).append( pafm.z_spacing ).append( "\" " );
+			sb.append( "units=\"" ).append( pafm.spacing_units ).append( "\"/>" );
+			sb.append( lineSeparator );
+			sb.append( "  <imagesize width=\"" ).append( pafm.width );
+			sb.append( "\" height=\"" ).append( pafm.height );
+			sb.append( "\" depth=\"" ).append( pafm.depth ).append( "\"/>" );
+			header = sb.toString();
+
+			paths = new ArrayList< PathSnapshot >( pafm.allPaths.size() );
+			for( Path p : pafm.allPaths )
+				paths.add( snapshot( p ) );
+
+			fills = new ArrayList< FillSnapshot >( pafm.allFills.size() );
+			int fillIndex = 0;
+			for( Fill f : pafm.allFills ) {
+				fills.add( snapshot( f, fillIndex ) );
+				++ fillIndex;
+			}
+		}
+	}
+
+	static PathSnapshot snapshot( Path p ) {
+		StringBuilder sb = new StringBuilder();
+		sb.append( "  <path id=\"" ).append( p.getID() ).append( "\"" );
+		sb.append( " swctype=\"" ).append( p.getSWCType() ).append( "\"" );
+		if( p.getPrimary() )
+			sb.append( " primary=\"true\"" );
+		sb.append( " usefitted=\"" ).append( p.getUseFitted() ).append( "\"" );
+		if( p.fitted != null )
+			sb.append( " fitted=\"" ).append( p.fitted.getID() ).append( "\"" );
+		if( p.fittedVersionOf != null )
+			sb.append( " fittedversionof=\"" ).append( p.fittedVersionOf.getID() ).append( "\"" );
+		if( p.startJoins != null ) {
+			// Find the nearest index for backward compatability:
+			int nearestIndexOnStartPath = -1;
+			if( p.startJoins.size() > 0 )
+				nearestIndexOnStartPath = p.startJoins.indexNearestTo(
+					p.startJoinsPoint.x,
+					p.startJoinsPoint.y,
+					p.startJoinsPoint.z );
+			sb.append( " startson=\"" ).append( p.startJoins.getID() ).append( "\"" );
+			sb.append( " startsx=\"" ).append( p.startJoinsPoint.x ).append( "\"" );
+			sb.append( " startsy=\"" ).append( p.startJoinsPoint.y ).append( "\"" );
+			sb.append( " startsz=\"" ).append( p.startJoinsPoint.z ).append( "\"" );
+			if( nearestIndexOnStartPath >= 0 )
+				sb.append( " startsindex=\"" ).append( nearestIndexOnStartPath ).append( "\"" );
+		}
+		if( p.endJoins != null ) {
+			int nearestIndexOnEndPath = -1;
+			if( p.endJoins.size() > 0 )
+				nearestIndexOnEndPath = p.endJoins.indexNearestTo(
+					p.endJoinsPoint.x,
+					p.endJoinsPoint.y,
+					p.endJoinsPoint.z );
+			sb.append( " endson=\"" ).append( p.endJoins.getID() ).append( "\"" );
+			sb.append( " endsx=\"" ).append( p.endJoinsPoint.x ).append( "\"" );
+			sb.append( " endsy=\"" ).append( p.endJoinsPoint.y ).append( "\"" );
+			sb.append( " endsz=\"" ).append( p.endJoinsPoint.z ).append( "\"" );
+			if( nearestIndexOnEndPath >= 0 )
+				sb.append( " endsindex=\"" ).append( nearestIndexOnEndPath ).append( "\"" );
+		}
+		if( p.name != null )
+			sb.append( " name=\"" ).append( XMLFunctions.escapeForXMLAttributeValue( p.name ) ).append( "\"" );
+		sb.append( " reallength=\"" ).append( p.getRealLength() ).append( "\"" );
+		sb.append( ">" );
+
+		PathSnapshot s = new PathSnapshot();
+		s.startTag = sb.toString();
+		s.points = p.size();
+		s.x_spacing = p.x_spacing;
+		s.y_spacing = p.y_spacing;
+		s.z_spacing = p.z_spacing;
+		s.x = p.getPreciseXs();
+		s.y = p.getPreciseYs();
+		s.z = p.getPreciseZs();
+		if( p.hasCircles() ) {
+			s.tx = Arrays.copyOf( p.tangents_x, s.points );
+			s.ty = Arrays.copyOf( p.tangents_y, s.points );
+			s.tz = Arrays.copyOf( p.tangents_z, s.points );
+			s.r = Arrays.copyOf( p.radiuses, s.points );
+		}
+		return s;
+	}
+
+	static FillSnapshot snapshot( Fill f, int fillIndex ) {
+		StringBuilder sb = new StringBuilder();
+		sb.append( "  <fill id=\"" ).append( fillIndex ).append( "\"" );
+		if( (f.sourcePaths != null) && (f.sourcePaths.size() > 0) )
+			sb.append( " frompaths=\"" ).append( f.getSourcePathsStringMachine() ).append( "\"" );
+		sb.append( " volume=\"" ).append( f.getVolume() ).append( "\"" );
+		sb.append( " metric=\"" ).append( f.getMetric() );
+		sb.append( "\" threshold=\"" ).append( f.getThreshold() ).append( "\">" );
+
+		FillSnapshot s = new FillSnapshot();
+		s.startTag = sb.toString();
+		s.nodes = f.nodeList.toArray( new Fill.Node[f.nodeList.size()] );
+		return s;
+	}
+
+	/* The deflater level used for compressed files; the default
+	   is the fastest, since the files are mostly numbers and
+	   higher levels only make them slightly smaller. */
+	public void setCompressionLevel( int level ) {
+		if( level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION )
+			throw new IllegalArgumentException( "Compression level must be between "+Deflater.BEST_SPEED+" and "+Deflater.BEST_COMPRESSION );
+		compressionLevel = level;
+	}
+
+	public void write( String fileName, boolean compress ) throws IOException {
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream( fileName );
+			if( compress ) {
+				final int level = compressionLevel;
+				os = new GZIPOutputStream( os, BUFFER_SIZE ) {
+					{
+						def.setLevel( level );
+					}
+				};
+			}
+			write( os );
+		} finally {
+			if( os != null )
+				os.close();
+		}
+	}
+
+	/* Writes the snapshot to os, but doesn't close it: */
+	public void write( OutputStream os ) throws IOException {
+		Output out = new Output( os );
+		StringBuilder sb = out.sb;
+
+		for( String line : dtd )
+			out.line( line );
+		out.line( "<tracings>" );
+		out.line( header );
+
+		for( PathSnapshot p : paths ) {
+			out.line( p.startTag );
+			for( int i = 0; i < p.points; ++i ) {
+				sb.append( "    <point x=\"" ).append( (int)Math.round( p.x[i] / p.x_spacing ) );
+				sb.append( "\" y=\"" ).append( (int)Math.round( p.y[i] / p.y_spacing ) );
+				sb.append( "\" z=\"" ).append( (int)Math.round( p.z[i] / p.z_spacing ) );
+				sb.append( "\" xd=\"" ).append( p.x[i] );
+				sb.append( "\" yd=\"" ).append( p.y[i] );
+				sb.append( "\" zd=\"" ).append( p.z[i] ).append( "\"" );
+				if( p.r != null ) {
+					sb.append( " tx=\"" ).append( p.tx[i] );
+					sb.append( "\" ty=\"" ).append( p.ty[i] );
+					sb.append( "\" tz=\"" ).append( p.tz[i] );
+					sb.append( "\" r=\"" ).append( p.r[i] ).append( "\"" );
+				}
+				out.line( "/>" );
+			}
+			out.line( "  </path>" );
+		}
+
+		for( FillSnapshot f : fills ) {
+			out.line( f.startTag );
+			for( int i = 0; i < f.nodes.length; ++i ) {
+				Fill.Node n = f.nodes[i];
+				sb.append( "    <node id=\"" ).append( i ).append( "\" " );
+				sb.append( "x=\"" ).append( n.x ).append( "\" " );
+				sb.append( "y=\"" ).append( n.y ).append( "\" " );
+				sb.append( "z=\"" ).append( n.z ).append( "\" " );
+				if( n.previous >= 0 )
+					sb.append( "previousid=\"" ).append( n.previous ).append( "\" " );
+				sb.append( "distance=\"" ).append( n.distance );
+				sb.append( "\" status=\"" ).append( n.open ? "open" : "closed" );
+				out.line( "\"/>" );
+			}
+			out.line( "  </fill>" );
+		}
+
+		out.line( "</tracings>" );
+		out.flush();
+	}
+
+	/* Lines are built up in sb, and once there's enough text
+	   there it's encoded as UTF-8 into a byte buffer and written
+	   out.  This is only done at the end of a line, so a
+	   surrogate pair is never split between two blocks. */
+	class Output {
+
+		final OutputStream os;
+		final StringBuilder sb = new StringBuilder( BUFFER_SIZE );
+		final byte [] bytes = new byte[BUFFER_SIZE];
+		int used = 0;
+
+		Output( OutputStream os ) {
+			this.os = os;
+		}
+
+		void line( String s ) throws IOException {
+			sb.append( s ).append( lineSeparator );
+			if( sb.length() >= BUFFER_SIZE / 2 )
+				encode();
+		}
+
+		void encode() throws IOException {
+			int n = sb.length();
+			for( int i = 0; i < n; ++i ) {
+				if( used > BUFFER_SIZE - 4 ) {
+					os.write( bytes, 0, used );
+					used = 0;
+				}
+				char c = sb.charAt( i );
+				if( c < 0x80 ) {
+					bytes[used++] = (byte)c;
+				} else if( c < 0x800 ) {
+					bytes[used++] = (byte)( 0xC0 | (c >> 6) );
+					bytes[used++] = (byte)( 0x80 | (c & 0x3F) );
+				} else if( Character.isHighSurrogate( c ) && i + 1 < n && Character.isLowSurrogate( sb.charAt( i + 1 ) ) ) {
+					int codePoint = Character.toCodePoint( c, sb.charAt( ++i ) );
+					bytes[used++] = (byte)( 0xF0 | (codePoint >> 18) );
+					bytes[used++] = (byte)( 0x80 | ((codePoint >> 12) & 0x3F) );
+					bytes[used++] = (byte)( 0x80 | ((codePoint >> 6) & 0x3F) );
+					bytes[used++] = (byte)( 0x80 | (codePoint & 0x3F) );
+				} else if( Character.isSurrogate( c ) ) {
+					// An unpaired surrogate, which OutputStreamWriter
+					// would also replace with '?':
+					bytes[used++] = (byte)'?';
+				} else {
+					bytes[used++] = (byte)( 0xE0 | (c >> 12) );
+					bytes[used++] = (byte)( 0x80 | ((c >> 6) & 0x3F) );
+					bytes[used++] = (byte)( 0x80 | (c & 0x3F) );
+				}
+			}
+			sb.setLength( 0 );
+		}
+
+		void flush() throws IOException {
+			encode();
+			os.write( bytes, 0, used );
+			used = 0;
+			os.flush();
+		}
+	}
+}
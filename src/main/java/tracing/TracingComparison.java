@@ -0,0 +1,271 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Copyright 2006, 2007, 2008, 2009, 2010, 2011 Mark Longair */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* This class compares two tracings of the same image, typically an
+   automatic tracing against a manual "gold standard" one.  Every
+   point of each tracing is matched to the nearest point on the
+   other (in the sense of NearPoint.distanceToPathNearPoint()), and
+   the results are summarized as:
+
+      - the matched length: the length of the reference tracing
+        that has a corresponding part in the candidate tracing
+
+      - the missed length: the length of the reference tracing
+        that has no corresponding part in the candidate
+
+      - the extra length: the length of the candidate tracing that
+        has no corresponding part in the reference
+
+      - the mean distance from the matched reference points to the
+        candidate tracing
+
+   Each segment of a path contributes half of its length to each
+   of its end points, so a segment counts as matched if both end
+   points are, and half-matched if only one is.
+
+   The spatial index of each tracing is built just once, from a
+   snapshot of the paths that are in use, and the points are then
+   matched in parallel. */
+
+public class TracingComparison {
+
+	protected PathAndFillManager reference;
+	protected PathAndFillManager candidate;
+	protected double maxDistance;
+
+	protected ArrayList< NearPoint > correspondences;
+
+	protected double referenceLength;
+	protected double candidateLength;
+	protected double matchedLength;
+	protected double extraLength;
+	protected double meanDistance;
+	protected int referencePointsMatched;
+	protected int referencePoints;
+
+	public TracingComparison( PathAndFillManager reference, PathAndFillManager candidate, double maxDistance ) {
+		this.reference = reference;
+		this.candidate = candidate;
+		this.maxDistance = maxDistance;
+	}
+
+	/* The paths whose points AllPointsIterator would return, in
+	   the same order: */
+	static List< Path > pathsInUse( PathAndFillManager pafm ) {
+		ArrayList< Path > result = new ArrayList< Path >();
+		synchronized( pafm ) {
+			for( Path p : pafm.allPaths )
+				if( p.size() > 0 && p.versionInUse() )
+					result.add( p );
+		}
+		return result;
+	}
+
+	/* For each point of the "from" paths, find the corresponding
+	   point on the "to" paths, or null if there is none within
+	   maxDistance. */
+	static NearPoint [] match( List< Path > from, List< Path > to, final double maxDistance ) throws InterruptedException {
+
+		final PathSegmentIndex index = new PathSegmentIndex();
+		index.sync( to );
+
+		int totalPoints = 0;
+		for( Path p : from )
+			totalPoints += p.size();
+
+		final Path [] pointPath = new Path[totalPoints];
+		final int [] pointIndex = new int[totalPoints];
+		int k = 0;
+		for( Path p : from )
+			for( int i = 0; i < p.size(); ++i ) {
+				pointPath[k] = p;
+				pointIndex[k] = i;
+				++ k;
+			}
+
+		final NearPoint [] result = new NearPoint[totalPoints];
+		if( totalPoints == 0 )
+			return result;
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int chunks = Math.min( totalPoints, processors * 4 );
+		ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for( int c = 0; c < chunks; ++c ) {
+			final int start = (int)( (long)totalPoints * c / chunks );
+			final int end = (int)( (long)totalPoints * (c + 1) / chunks );
+			tasks.add( new Callable< Object >() {
+				public Object call() {
+					for( int j = start; j < end; ++j ) {
+						Path p = pointPath[j];
+						int i = pointIndex[j];
+						result[j] = index.nearestPointOnAnyPath(
+							p.getPreciseX( i ),
+							p.getPreciseY( i ),
+							p.getPreciseZ( i ),
+							maxDistance );
+					}
+					return null;
+				}
+			} );
+		}
+
+		ExecutorService es = Executors.newFixedThreadPool( processors );
+		try {
+			List< Future< Object > > futures = es.invokeAll( tasks );
+			for( Future< Object > future : futures )
+				future.get();
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Matching points failed: "+e.getCause(), e.getCause() );
+		} finally {
+			es.shutdown();
+		}
+		return result;
+	}
+
+	/* Returns { totalLength, matchedLength } for the paths, given
+	   which of their points were matched: */
+	static double [] lengths( List< Path > paths, NearPoint [] matches ) {
+		double total = 0, matched = 0;
+		int k = 0;
+		for( Path p : paths ) {
+			int n = p.size();
+			for( int i = 1; i < n; ++i ) {
+				double xdiff = p.getPreciseX( i ) - p.getPreciseX( i-1 );
+				double ydiff = p.getPreciseY( i ) - p.getPreciseY( i-1 );
+				double zdiff = p.getPreciseZ( i ) - p.getPreciseZ( i-1 );
+				double segmentLength = Math.sqrt( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
+				total += segmentLength;
+				if( matches[k + i - 1] != null )
+					matched += segmentLength / 2;
+				if( matches[k + i] != null )
+					matched += segmentLength / 2;
+			}
+			k += n;
+		}
+		return new double[] { total, matched };
+	}
+
+	/* Only find the corresponding points in the candidate tracing
+	   for each point of the reference tracing; this is what
+	   PathAndFillManager.getCorrespondences() returns. */
+	public static ArrayList< NearPoint > findCorrespondences( PathAndFillManager reference, PathAndFillManager candidate, double maxDistance ) throws InterruptedException {
+		NearPoint [] matches = match( pathsInUse( reference ), pathsInUse( candidate ), maxDistance );
+		return new ArrayList< NearPoint >( Arrays.asList( matches ) );
+	}
+
+	public void run( ) throws InterruptedException {
+
+		List< Path > referencePaths = pathsInUse( reference );
+		List< Path > candidatePaths = pathsInUse( candidate );
+
+		NearPoint [] referenceMatches = match( referencePaths, candidatePaths, maxDistance );
+		NearPoint [] candidateMatches = match( candidatePaths, referencePaths, maxDistance );
+
+		correspondences = new ArrayList< NearPoint >( Arrays.asList( referenceMatches ) );
+
+		double [] referenceLengths = lengths( referencePaths, referenceMatches );
+		double [] candidateLengths = lengths( candidatePaths, candidateMatches );
+
+		referenceLength = referenceLengths[0];
+		matchedLength = referenceLengths[1];
+		candidateLength = candidateLengths[0];
+		extraLength = candidateLengths[0] - candidateLengths[1];
+
+		double totalDistance = 0;
+		referencePoints = referenceMatches.length;
+		referencePointsMatched = 0;
+		for( NearPoint np : referenceMatches ) {
+			if( np == null )
+				continue;
+			totalDistance += np.distanceToPathNearPoint();
+			++ referencePointsMatched;
+		}
+		meanDistance = referencePointsMatched == 0 ? Double.NaN : totalDistance / referencePointsMatched;
+	}
+
+	/* For each point in the reference tracing, the corresponding
+	   point on the candidate tracing, or null if there isn't one: */
+	public ArrayList< NearPoint > getCorrespondences( ) {
+		return correspondences;
+	}
+
+	public double getReferenceLength( ) {
+		return referenceLength;
+	}
+
+	public double getCandidateLength( ) {
+		return candidateLength;
+	}
+
+	public double getMatchedLength( ) {
+		return matchedLength;
+	}
+
+	public double getMissedLength( ) {
+		return referenceLength - matchedLength;
+	}
+
+	public double getExtraLength( ) {
+		return extraLength;
+	}
+
+	public double getMeanDistance( ) {
+		return meanDistance;
+	}
+
+	public int getReferencePoints( ) {
+		return referencePoints;
+	}
+
+	public int getReferencePointsMatched( ) {
+		return referencePointsMatched;
+	}
+
+	@Override
+	public String toString( ) {
+		String units = reference.spacing_units;
+		return "Comparison with maximum distance "+maxDistance+" "+units+":\n"+
+			"  reference length: "+referenceLength+" "+units+"\n"+
+			"  candidate length: "+candidateLength+" "+units+"\n"+
+			"  matched length: "+matchedLength+" "+units+"\n"+
+			"  missed length: "+getMissedLength()+" "+units+"\n"+
+			"  extra length: "+extraLength+" "+units+"\n"+
+			"  mean distance: "+meanDistance+" "+units+"\n"+
+			"  reference points matched: "+referencePointsMatched+" of "+referencePoints;
+	}
+}
@@ -0,0 +1,195 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that refitting a path after a local change, which reuses the
+   fits from the last time it was fitted where it's unchanged, gives
+   exactly the same fitted path as fitting it from scratch, and that
+   fits aren't reused where the pixels, the image, the spacing or the
+   side of the normal planes are different */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircleFitsReuseTest {
+
+	static final int width = 80, height = 32, depth = 20;
+	static final int side = 15;
+
+	Random random;
+	ImagePlus image;
+
+	@Before public void setUp() {
+		random = new Random( 1 );
+		image = makeImage();
+	}
+
+	/* A bright tube along the x axis: */
+	ImagePlus makeImage() {
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			ImageProcessor ip = new ByteProcessor( width, height );
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					double r2 = (y - 16) * (y - 16) + (z - 10) * (z - 10);
+					ip.setf( x, y, (float)(20 + 200 * Math.exp( - r2 / 8 ) + random.nextInt( 10 )) );
+				}
+			stack.addSlice( null, ip );
+		}
+		return new ImagePlus( "tube", stack );
+	}
+
+	/* A path along the tube, from x to x + n - 1: */
+	Path makePath( double x, int n ) {
+		Path p = new Path( 1, 1, 1, "pixels" );
+		addPoints( p, x, n );
+		return p;
+	}
+
+	void addPoints( Path p, double x, int n ) {
+		for( int i = 0; i < n; ++i )
+			p.addPointDouble( x + i, 16 + random.nextDouble() - 0.5, 10 + random.nextDouble() - 0.5 );
+	}
+
+	/* A copy of p's points with nothing kept from fitting it: */
+	Path copy( Path p ) {
+		Path c = new Path( p.x_spacing, p.y_spacing, p.z_spacing, p.spacing_units );
+		for( int i = 0; i < p.size(); ++i )
+			c.addPointDouble( p.getPreciseX( i ), p.getPreciseY( i ), p.getPreciseZ( i ) );
+		return c;
+	}
+
+	/* Reuses the fits from the last time p was fitted, as
+	   fitCircles() would, so that the points left to be fitted
+	   can be checked: */
+	Path.CircleFits reuse( Path p, int side, ImagePlus image ) {
+		Path.CircleFits fits = p.new CircleFits( p.size(), side, image, p.getMinimumSeparation(), 4, false, -1, null );
+		fits.pointsDone.set( fits.reuseFits( p.previousCircleFits, p.getGuessedTangents( 4 ).tangents ) );
+		return fits;
+	}
+
+	void assertSameFit( Path expected, Path found ) {
+		assertNotNull( expected );
+		assertNotNull( found );
+		assertEquals( expected.size(), found.size() );
+		assertArrayEquals( expected.getPreciseXs(), found.getPreciseXs(), 0 );
+		assertArrayEquals( expected.getPreciseYs(), found.getPreciseYs(), 0 );
+		assertArrayEquals( expected.getPreciseZs(), found.getPreciseZs(), 0 );
+		assertArrayEquals( expected.radiuses, found.radiuses, 0 );
+		assertArrayEquals( expected.tangents_x, found.tangents_x, 0 );
+		assertArrayEquals( expected.tangents_y, found.tangents_y, 0 );
+		assertArrayEquals( expected.tangents_z, found.tangents_z, 0 );
+	}
+
+	/* Checks that refitting p reuses some fits but not all, and
+	   gives the same as fitting its points from scratch: */
+	void checkRefit( Path p ) {
+		Path.CircleFits fits = reuse( p, side, image );
+		assertTrue( fits.pointsDone.get() > 0 );
+		assertTrue( fits.toFitCount > 0 );
+		assertEquals( p.size(), fits.pointsDone.get() + fits.toFitCount );
+		assertSameFit( copy( p ).fitCircles( side, image, false ), p.fitCircles( side, image, false ) );
+	}
+
+	@Test public void testExtend() {
+		Path p = makePath( 5, 30 );
+		assertNotNull( p.fitCircles( side, image, false ) );
+		addPoints( p, 35, 20 );
+		checkRefit( p );
+		// Fitting again with no changes reuses everything:
+		assertEquals( 0, reuse( p, side, image ).toFitCount );
+	}
+
+	@Test public void testJoin() {
+		Path p = makePath( 5, 30 );
+		assertNotNull( p.fitCircles( side, image, false ) );
+		Path other = makePath( 35, 30 );
+		p.add( other );
+		assertEquals( 60, p.size() );
+		checkRefit( p );
+	}
+
+	@Test public void testDownsample() {
+		/* Only the straight end of the path will be
+		   downsampled, not the zigzag before it: */
+		Path p = new Path( 1, 1, 1, "pixels" );
+		for( int i = 0; i < 40; ++i )
+			p.addPointDouble( 5 + i, 16 + (i % 2 == 0 ? 0.5 : -0.5), 10 );
+		for( int i = 0; i < 20; ++i )
+			p.addPointDouble( 45 + i, 16, 10 );
+		assertNotNull( p.fitCircles( side, image, false ) );
+		p.downsample( 0.5 );
+		assertTrue( p.size() < 60 );
+		checkRefit( p );
+	}
+
+	@Test public void testPixelsChangedInPlace() {
+		Path p = makePath( 5, 60 );
+		assertNotNull( p.fitCircles( side, image, false ) );
+		// Brighten a slab of the image around point 30:
+		ImageStack stack = image.getStack();
+		for( int z = 1; z <= depth; ++z ) {
+			ImageProcessor ip = stack.getProcessor( z );
+			for( int y = 0; y < height; ++y )
+				for( int x = 33; x <= 37; ++x )
+					ip.setf( x, y, 255 );
+		}
+		Path.CircleFits fits = reuse( p, side, image );
+		int [] toFit = Arrays.copyOf( fits.toFit, fits.toFitCount );
+		assertTrue( Arrays.binarySearch( toFit, 30 ) >= 0 );
+		assertTrue( Arrays.binarySearch( toFit, 0 ) < 0 );
+		assertTrue( Arrays.binarySearch( toFit, 59 ) < 0 );
+		assertSameFit( copy( p ).fitCircles( side, image, false ), p.fitCircles( side, image, false ) );
+	}
+
+	@Test public void testNothingReusedWhenIncompatible() {
+		Path p = makePath( 5, 40 );
+		assertNotNull( p.fitCircles( side, image, false ) );
+		assertEquals( 40, reuse( p, side, image ).pointsDone.get() );
+		// A different image, even with the same pixels:
+		assertEquals( 0, reuse( p, side, image.duplicate() ).pointsDone.get() );
+		// A different side of the normal planes:
+		assertEquals( 0, reuse( p, side + 2, image ).pointsDone.get() );
+		// The same points with a different spacing:
+		Path q = new Path( 1, 1, 2, "pixels" );
+		for( int i = 0; i < p.size(); ++i )
+			q.addPointDouble( p.getPreciseX( i ), p.getPreciseY( i ), p.getPreciseZ( i ) );
+		q.previousCircleFits = p.previousCircleFits;
+		assertEquals( 0, reuse( q, side, image ).pointsDone.get() );
+	}
+
+	@Test public void testDeleteFittedVersion() {
+		PathAndFillManager pafm = new PathAndFillManager( width, height, depth, 1, 1, 1, "pixels" );
+		Path p = makePath( 5, 30 );
+		pafm.addPath( p );
+		Path fitted = p.fitCircles( side, image, false );
+		p.setFitted( fitted );
+		pafm.addPath( fitted );
+
+		pafm.deleteFittedVersion( p, true );
+		assertNull( p.fitted );
+		assertNotNull( p.previousCircleFits );
+
+		fitted = p.fitCircles( side, image, false );
+		p.setFitted( fitted );
+		pafm.addPath( fitted );
+		pafm.deleteFittedVersion( p, false );
+		assertNull( p.fitted );
+		assertNull( p.previousCircleFits );
+		assertEquals( 1, pafm.size() );
+	}
+}
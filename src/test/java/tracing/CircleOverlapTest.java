@@ -0,0 +1,209 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that Path.removeOverlappingCircles() leaves the same circles
+   valid as the loop that fitCircles() used before, including for
+   circles that are nearly parallel, which circlesOverlap() may say
+   overlap however far apart they are */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircleOverlapTest {
+
+	static final int WANDERING = 0;
+	static final int HELIX = 1;
+	static final int STRAIGHT = 2;
+	static final int NEARLY_STRAIGHT = 3;
+	static final int THERE_AND_BACK = 4;
+
+	Path path;
+	Random random;
+
+	int n;
+	boolean [] valid;
+	double [] ts_x, ts_y, ts_z;
+	double [] optimized_x, optimized_y, optimized_z;
+	double [] rs;
+
+	@Before public void setUp() {
+		path = new Path( 1, 1, 1, "um" );
+		random = new Random( 1 );
+	}
+
+	/* This is the loop that fitCircles() used before: */
+	void removeByExhaustiveSearch( boolean [] valid ) {
+		int totalPoints = valid.length;
+		int [] overlapsWith = new int[totalPoints];
+		boolean someStillOverlap = true;
+		while( someStillOverlap ) {
+			someStillOverlap = false;
+			int maximumNumberOfOverlaps = -1;
+			for( int i = 0; i < totalPoints; ++i ) {
+				overlapsWith[i] = 0;
+				if( ! valid[i] )
+					continue;
+				for( int j = 0; j < totalPoints; ++j ) {
+					if( ! valid[j] )
+						continue;
+					if( i == j )
+						continue;
+					if( path.circlesOverlap(
+						    ts_x[i], ts_y[i], ts_z[i],
+						    optimized_x[i], optimized_y[i], optimized_z[i],
+						    rs[i],
+						    ts_x[j], ts_y[j], ts_z[j],
+						    optimized_x[j], optimized_y[j], optimized_z[j],
+						    rs[j] ) ) {
+						++ overlapsWith[i];
+						someStillOverlap = true;
+					}
+				}
+				if( overlapsWith[i] > maximumNumberOfOverlaps )
+					maximumNumberOfOverlaps = overlapsWith[i];
+			}
+			if( maximumNumberOfOverlaps <= 0 ) {
+				break;
+			}
+			for( int i = 0; i < totalPoints; ++i ) {
+				if( ! valid[i] )
+					continue;
+				int n = totalPoints;
+				for( int j = totalPoints - 1; j > i; --j )
+					if( valid[j] )
+						n = j;
+				if( overlapsWith[i] == maximumNumberOfOverlaps ) {
+					if( n < totalPoints && overlapsWith[n] == maximumNumberOfOverlaps && rs[n] > rs[i] ) {
+						valid[n] = false;
+					} else {
+						valid[i] = false;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/* Makes up the circles for a path of the given shape, with
+	   the tangents scaled by tangentScale, since fitCircles()
+	   doesn't normalize them: */
+	void makeCircles( int shape, int points, double tangentScale ) {
+		n = points;
+		valid = new boolean[n];
+		ts_x = new double[n]; ts_y = new double[n]; ts_z = new double[n];
+		optimized_x = new double[n]; optimized_y = new double[n]; optimized_z = new double[n];
+		rs = new double[n];
+		double x = 0, y = 0, z = 0;
+		double dx = 1, dy = 0, dz = 0;
+		for( int i = 0; i < n; ++i ) {
+			if( shape == WANDERING ) {
+				dx += random.nextGaussian() * 0.3;
+				dy += random.nextGaussian() * 0.3;
+				dz += random.nextGaussian() * 0.1;
+			} else if( shape == HELIX ) {
+				dx = Math.cos( i * 0.2 );
+				dy = Math.sin( i * 0.2 );
+				dz = 0.1;
+			} else if( shape == STRAIGHT ) {
+				dx = 1; dy = 0; dz = 0;
+			} else if( shape == NEARLY_STRAIGHT ) {
+				dx = 1;
+				dy = random.nextGaussian() * 1e-4;
+				dz = random.nextGaussian() * 1e-4;
+			} else if( shape == THERE_AND_BACK ) {
+				// Back along a parallel line halfway:
+				dx = (i < n / 2) ? 1 : -1;
+				dy = (i == n / 2) ? 30 : random.nextGaussian() * 1e-4;
+				dz = random.nextGaussian() * 1e-4;
+			}
+			double m = Math.sqrt( dx * dx + dy * dy + dz * dz );
+			dx /= m; dy /= m; dz /= m;
+			x += dx; y += dy; z += dz;
+			optimized_x[i] = x + random.nextGaussian() * 0.2;
+			optimized_y[i] = y + random.nextGaussian() * 0.2;
+			optimized_z[i] = z + random.nextGaussian() * 0.2;
+			double scale = tangentScale * (0.5 + random.nextDouble());
+			ts_x[i] = dx * scale;
+			ts_y[i] = dy * scale;
+			ts_z[i] = dz * scale;
+			rs[i] = 0.3 + random.nextDouble() * 2;
+			valid[i] = random.nextDouble() < 0.9;
+		}
+	}
+
+	void check( int shape, double tangentScale ) {
+		for( int k = 0; k < 10; ++k ) {
+			makeCircles( shape, 20 + random.nextInt( 150 ), tangentScale );
+			boolean [] expected = valid.clone();
+			removeByExhaustiveSearch( expected );
+			boolean [] found = valid.clone();
+			path.removeOverlappingCircles( found,
+						       ts_x, ts_y, ts_z,
+						       optimized_x, optimized_y, optimized_z,
+						       rs );
+			assertArrayEquals( expected, found );
+		}
+	}
+
+	@Test public void testWandering() {
+		check( WANDERING, 4 );
+		check( WANDERING, 0.05 );
+	}
+
+	@Test public void testHelix() {
+		check( HELIX, 4 );
+	}
+
+	@Test public void testStraight() {
+		check( STRAIGHT, 4 );
+	}
+
+	@Test public void testNearlyStraight() {
+		check( NEARLY_STRAIGHT, 4 );
+		check( NEARLY_STRAIGHT, 0.05 );
+		check( NEARLY_STRAIGHT, 30 );
+	}
+
+	@Test public void testThereAndBack() {
+		check( THERE_AND_BACK, 4 );
+		check( THERE_AND_BACK, 0.5 );
+	}
+
+	@Test public void testZeroTangents() {
+		makeCircles( WANDERING, 100, 4 );
+		for( int i = 0; i < n; i += 17 )
+			ts_x[i] = ts_y[i] = ts_z[i] = 0;
+		boolean [] expected = valid.clone();
+		removeByExhaustiveSearch( expected );
+		boolean [] found = valid.clone();
+		path.removeOverlappingCircles( found,
+					       ts_x, ts_y, ts_z,
+					       optimized_x, optimized_y, optimized_z,
+					       rs );
+		assertArrayEquals( expected, found );
+	}
+
+	/* Circles far apart along a nearly straight path must still
+	   be found to overlap: */
+	@Test public void testFarApartParallel() {
+		makeCircles( NEARLY_STRAIGHT, 100, 4 );
+		for( int i = 0; i < n; ++i )
+			valid[i] = true;
+		boolean [] found = valid.clone();
+		path.removeOverlappingCircles( found,
+					       ts_x, ts_y, ts_z,
+					       optimized_x, optimized_y, optimized_z,
+					       rs );
+		int left = 0;
+		for( int i = 0; i < n; ++i )
+			if( found[i] )
+				++ left;
+		assertTrue( left < n / 2 );
+	}
+}
@@ -0,0 +1,353 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that after a series of changes to the paths, each updating
+   the merged meshes in place, the meshes have the same vertices and
+   colours for each path as meshes built from scratch, and that the
+   meshes are removed when there's nothing left to show in them */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import customnode.CustomLineMesh;
+import customnode.CustomMesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.scijava.java3d.GeometryArray;
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+public class MergedPaths3DTest {
+
+	static final Color3f selectedColor = new Color3f( 0, 1, 0 );
+	static final Color3f deselectedColor = new Color3f( 1, 0, 1 );
+
+	/* Keeps the meshes itself, rather than adding them to a 3D
+	   viewer: */
+	static class Merged extends MergedPaths3D {
+		Map<String,CustomMesh> meshes = new HashMap<String,CustomMesh>();
+
+		Merged() {
+			super( null );
+		}
+
+		@Override
+		String addMesh( CustomMesh mesh, String name ) {
+			if( meshes.containsKey( name ) )
+				throw new RuntimeException( "BUG: there's already a mesh called "+name );
+			meshes.put( name, mesh );
+			return name;
+		}
+
+		@Override
+		void removeMesh( String name ) {
+			if( meshes.remove( name ) == null )
+				throw new RuntimeException( "BUG: there's no mesh called "+name );
+		}
+	}
+
+	Random random;
+	List<Path> allPaths;
+	int paths3DDisplay;
+	boolean showOnlySelectedPaths;
+	Merged merged;
+
+	/* Whether meshes can be made, since Java 3D can't be used
+	   without a display: */
+	static boolean canMakeMeshes() {
+		try {
+			new CustomLineMesh( Arrays.asList( new Point3f(), new Point3f( 1, 1, 1 ) ),
+					    CustomLineMesh.PAIRWISE, deselectedColor, 0 );
+			return true;
+		} catch( Throwable t ) {
+			return false;
+		}
+	}
+
+	@Before public void setUp() {
+		assumeTrue( canMakeMeshes() );
+		random = new Random( 1 );
+		allPaths = new ArrayList<Path>();
+		paths3DDisplay = SimpleNeuriteTracer.DISPLAY_PATHS_LINES;
+		showOnlySelectedPaths = false;
+		merged = new Merged();
+	}
+
+	Path makePath( int n ) {
+		Path p = new Path( 1, 1, 1, "um" );
+		double x = random.nextDouble() * 100, y = random.nextDouble() * 100, z = random.nextDouble() * 20;
+		for( int i = 0; i < n; ++i ) {
+			x += 5 * random.nextDouble();
+			y += 5 * random.nextDouble();
+			z += random.nextDouble();
+			p.addPointDouble( x, y, z );
+		}
+		return p;
+	}
+
+	/* A fitted version of p, with circles, and moved a little: */
+	Path makeFitted( Path p ) {
+		int n = p.size();
+		Path fitted = new Path( 1, 1, 1, "um" );
+		double [] ts_x = new double[n], ts_y = new double[n], ts_z = new double[n], rs = new double[n];
+		double [] xs = new double[n], ys = new double[n], zs = new double[n];
+		for( int i = 0; i < n; ++i ) {
+			xs[i] = p.getPreciseX( i ) + 0.5;
+			ys[i] = p.getPreciseY( i );
+			zs[i] = p.getPreciseZ( i );
+			ts_x[i] = 1;
+			rs[i] = 1 + random.nextDouble();
+			fitted.addPointDouble( xs[i], ys[i], zs[i] );
+		}
+		fitted.setFittedCircles( ts_x, ts_y, ts_z, rs, xs, ys, zs );
+		return fitted;
+	}
+
+	void addPaths( int count ) {
+		for( int i = 0; i < count; ++i )
+			allPaths.add( makePath( 3 + random.nextInt( 10 ) ) );
+	}
+
+	void update( Merged m ) {
+		m.update( allPaths, showOnlySelectedPaths, paths3DDisplay, selectedColor, deselectedColor, null );
+	}
+
+	/* The first vertex of each path shown in m, in both meshes: */
+	static Map<Path,int[]> firstVertices( Merged m ) {
+		Map<Path,int[]> firsts = new HashMap<Path,int[]>();
+		Map<MergedPaths3D.Shown,Path> paths = new HashMap<MergedPaths3D.Shown,Path>();
+		for( Map.Entry<Path,MergedPaths3D.Shown> entry : m.shownPaths.entrySet() )
+			paths.put( entry.getValue(), entry.getKey() );
+		int lineVertex = 0, triangleVertex = 0;
+		for( MergedPaths3D.Shown shown : m.order ) {
+			firsts.put( paths.get( shown ), new int[] { lineVertex, triangleVertex } );
+			lineVertex += shown.lineVertices;
+			triangleVertex += shown.triangleColors.size();
+		}
+		return firsts;
+	}
+
+	static int vertices( CustomMesh mesh ) {
+		return mesh == null ? 0 : mesh.getMesh().size();
+	}
+
+	static void assertSameVertices( CustomMesh expectedMesh, int expectedFirst,
+					CustomMesh foundMesh, int foundFirst, int count ) {
+		GeometryArray expectedGeometry = (GeometryArray)expectedMesh.getGeometry();
+		GeometryArray foundGeometry = (GeometryArray)foundMesh.getGeometry();
+		Color3f expectedColor = new Color3f(), foundColor = new Color3f();
+		for( int v = 0; v < count; ++v ) {
+			Point3f expected = expectedMesh.getMesh().get( expectedFirst + v );
+			Point3f found = foundMesh.getMesh().get( foundFirst + v );
+			assertEquals( expected, found );
+			expectedGeometry.getColor( expectedFirst + v, expectedColor );
+			foundGeometry.getColor( foundFirst + v, foundColor );
+			assertEquals( expectedColor, foundColor );
+		}
+	}
+
+	/* Checks that the vertices of shown, starting at first in
+	   each mesh, have its colours: */
+	static void assertColors( Merged m, MergedPaths3D.Shown shown, int [] first ) {
+		Color3f color = new Color3f();
+		for( int v = 0; v < shown.lineVertices; ++v ) {
+			((GeometryArray)m.lineMesh.getGeometry()).getColor( first[0] + v, color );
+			assertEquals( shown.color, color );
+		}
+		for( int v = 0; v < shown.triangleColors.size(); ++v ) {
+			((GeometryArray)m.triangleMesh.getGeometry()).getColor( first[1] + v, color );
+			assertEquals( shown.triangleColors.get( v ), color );
+		}
+	}
+
+	/* Checks that the meshes that merged has been updated to have
+	   the same vertices and colours for each path as meshes built
+	   from scratch: */
+	void assertSameAsRebuilt() {
+		Merged rebuilt = new Merged();
+		update( rebuilt );
+
+		assertEquals( rebuilt.lineMesh == null, merged.lineMesh == null );
+		assertEquals( rebuilt.triangleMesh == null, merged.triangleMesh == null );
+		assertEquals( rebuilt.meshes.size(), merged.meshes.size() );
+		if( merged.lineMesh != null )
+			assertSame( merged.lineMesh, merged.meshes.get( merged.lineMeshName ) );
+		if( merged.triangleMesh != null )
+			assertSame( merged.triangleMesh, merged.meshes.get( merged.triangleMeshName ) );
+		assertEquals( vertices( rebuilt.lineMesh ), vertices( merged.lineMesh ) );
+		assertEquals( vertices( rebuilt.triangleMesh ), vertices( merged.triangleMesh ) );
+
+		assertEquals( rebuilt.shownPaths.keySet(), merged.shownPaths.keySet() );
+		Map<Path,int[]> expectedFirsts = firstVertices( rebuilt );
+		Map<Path,int[]> foundFirsts = firstVertices( merged );
+		for( Path p : rebuilt.shownPaths.keySet() ) {
+			MergedPaths3D.Shown expected = rebuilt.shownPaths.get( p );
+			MergedPaths3D.Shown found = merged.shownPaths.get( p );
+			assertSame( expected.path, found.path );
+			assertEquals( p.getSelected() ? selectedColor : deselectedColor, found.color );
+			assertColors( merged, found, foundFirsts.get( p ) );
+			assertEquals( expected.lineVertices, found.lineVertices );
+			assertEquals( expected.triangleColors.size(), found.triangleColors.size() );
+			int [] e = expectedFirsts.get( p ), f = foundFirsts.get( p );
+			if( expected.lineVertices > 0 )
+				assertSameVertices( rebuilt.lineMesh, e[0], merged.lineMesh, f[0], expected.lineVertices );
+			if( expected.triangleColors.size() > 0 )
+				assertSameVertices( rebuilt.triangleMesh, e[1], merged.triangleMesh, f[1], expected.triangleColors.size() );
+		}
+	}
+
+	@Test public void testAddAndDelete() {
+		addPaths( 5 );
+		update( merged );
+		assertNotNull( merged.lineMesh );
+		assertSameAsRebuilt();
+
+		addPaths( 3 );
+		update( merged );
+		assertEquals( 8, merged.order.size() );
+		assertSameAsRebuilt();
+
+		// Delete paths from the middle:
+		allPaths.remove( 4 );
+		allPaths.remove( 2 );
+		update( merged );
+		assertEquals( 6, merged.order.size() );
+		assertSameAsRebuilt();
+
+		// A path with a single point isn't shown:
+		allPaths.add( makePath( 1 ) );
+		update( merged );
+		assertEquals( 6, merged.order.size() );
+		assertSameAsRebuilt();
+	}
+
+	@Test public void testRecolour() {
+		addPaths( 6 );
+		paths3DDisplay = SimpleNeuriteTracer.DISPLAY_PATHS_LINES_AND_DISCS;
+		for( int i = 0; i < allPaths.size(); ++i ) {
+			Path p = allPaths.get( i );
+			p.setFitted( makeFitted( p ) );
+			p.setUseFitted( true );
+		}
+		update( merged );
+		assertNotNull( merged.triangleMesh );
+		assertSameAsRebuilt();
+
+		// Selecting a path only changes its colour:
+		List<MergedPaths3D.Shown> order = new ArrayList<MergedPaths3D.Shown>( merged.order );
+		allPaths.get( 3 ).setSelected( true );
+		update( merged );
+		assertEquals( order, merged.order );
+		assertSameAsRebuilt();
+
+		allPaths.get( 3 ).setSelected( false );
+		allPaths.get( 0 ).setSelected( true );
+		allPaths.get( 5 ).setSelected( true );
+		update( merged );
+		assertEquals( order, merged.order );
+		assertSameAsRebuilt();
+
+		// ... and only the selected paths can be shown:
+		showOnlySelectedPaths = true;
+		update( merged );
+		assertEquals( 2, merged.order.size() );
+		assertSameAsRebuilt();
+	}
+
+	@Test public void testFittedVersion() {
+		addPaths( 5 );
+		paths3DDisplay = SimpleNeuriteTracer.DISPLAY_PATHS_SURFACE;
+		update( merged );
+		assertSameAsRebuilt();
+
+		Path p = allPaths.get( 2 );
+		Path fitted = makeFitted( p );
+		p.setFitted( fitted );
+		allPaths.add( fitted );
+		p.setUseFitted( true );
+		update( merged );
+		assertSame( fitted, merged.shownPaths.get( p ).path );
+		assertEquals( 5, merged.order.size() );
+		assertSameAsRebuilt();
+
+		p.setUseFitted( false );
+		update( merged );
+		assertSame( p, merged.shownPaths.get( p ).path );
+		assertSameAsRebuilt();
+
+		// Changing a path's points replaces its vertices:
+		p.addPointDouble( 0, 0, 0 );
+		update( merged );
+		assertSameAsRebuilt();
+	}
+
+	@Test public void testDisplayModes() {
+		addPaths( 4 );
+		Path p = allPaths.get( 1 );
+		p.setFitted( makeFitted( p ) );
+		p.setUseFitted( true );
+
+		int [] modes = { SimpleNeuriteTracer.DISPLAY_PATHS_LINES,
+				 SimpleNeuriteTracer.DISPLAY_PATHS_LINES_AND_DISCS,
+				 SimpleNeuriteTracer.DISPLAY_PATHS_SURFACE,
+				 SimpleNeuriteTracer.DISPLAY_PATHS_LINES };
+		for( int mode : modes ) {
+			paths3DDisplay = mode;
+			update( merged );
+			assertSameAsRebuilt();
+		}
+		// There are only lines again, so no triangle mesh:
+		assertNotNull( merged.lineMesh );
+		assertNull( merged.triangleMesh );
+		assertEquals( 1, merged.meshes.size() );
+
+		paths3DDisplay = SimpleNeuriteTracer.DISPLAY_PATHS_SURFACE;
+		update( merged );
+		assertNull( merged.lineMesh );
+		assertNotNull( merged.triangleMesh );
+		assertEquals( 1, merged.meshes.size() );
+	}
+
+	@Test public void testTeardown() {
+		addPaths( 3 );
+		paths3DDisplay = SimpleNeuriteTracer.DISPLAY_PATHS_LINES_AND_DISCS;
+		Path p = allPaths.get( 0 );
+		p.setFitted( makeFitted( p ) );
+		p.setUseFitted( true );
+		update( merged );
+		assertEquals( 2, merged.meshes.size() );
+
+		// Deleting every path removes both meshes:
+		allPaths.clear();
+		update( merged );
+		assertNull( merged.lineMesh );
+		assertNull( merged.triangleMesh );
+		assertTrue( merged.meshes.isEmpty() );
+		assertTrue( merged.order.isEmpty() );
+		assertSameAsRebuilt();
+
+		// ... and they're made again when there are paths:
+		addPaths( 2 );
+		update( merged );
+		assertNotNull( merged.lineMesh );
+		assertSameAsRebuilt();
+
+		merged.removeFromViewer();
+		assertTrue( merged.meshes.isEmpty() );
+		assertTrue( merged.shownPaths.isEmpty() );
+	}
+}
@@ -0,0 +1,263 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that NormalPlaneSampler gives exactly the same values as the
+   interpolation that Path.squareNormalToVector() used to do itself,
+   for each image type, including samples off the edge of the image
+   and samples exactly on voxels */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NormalPlaneSamplerTest {
+
+	static final int width = 23, height = 19, depth = 11;
+
+	Random random;
+
+	@Before public void setUp() {
+		random = new Random( 1 );
+	}
+
+	ImagePlus makeImage( int type ) {
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			ImageProcessor ip;
+			if( type == ImagePlus.GRAY8 )
+				ip = new ByteProcessor( width, height );
+			else if( type == ImagePlus.GRAY16 )
+				ip = new ShortProcessor( width, height );
+			else
+				ip = new FloatProcessor( width, height );
+			for( int i = 0; i < width * height; ++i ) {
+				if( type == ImagePlus.GRAY8 )
+					ip.setf( i, random.nextInt( 256 ) );
+				else if( type == ImagePlus.GRAY16 )
+					ip.setf( i, random.nextInt( 65536 ) );
+				else
+					ip.setf( i, (float)(random.nextGaussian() * 1000) );
+			}
+			stack.addSlice( null, ip );
+		}
+		return new ImagePlus( "test", stack );
+	}
+
+	/* This is the interpolation that squareNormalToVector() did
+	   before there was a NormalPlaneSampler: */
+	static float [] sampleByOldMethod( int side, double step,
+					   double ox, double oy, double oz,
+					   double nx, double ny, double nz,
+					   double [] x_basis_vector, double [] y_basis_vector,
+					   ImagePlus image,
+					   double x_spacing, double y_spacing, double z_spacing ) {
+
+		float [] result = new float[side*side];
+
+		double epsilon = 0.000001;
+
+		double ax, ay, az;
+
+		if( Math.abs(nx) < epsilon && Math.abs(ny) < epsilon ) {
+			ax = nz;
+			ay = 0;
+			az = -nx;
+		} else {
+			ax = -ny;
+			ay = nx;
+			az = 0;
+		}
+
+		double bx = ay * nz - az * ny;
+		double by = az * nx - ax * nz;
+		double bz = ax * ny - ay * nx;
+
+		double a_size = Math.sqrt( ax*ax + ay*ay + az*az );
+		ax = ax / a_size; ay = ay / a_size; az = az / a_size;
+
+		double b_size = Math.sqrt( bx*bx + by*by + bz*bz );
+		bx = bx / b_size; by = by / b_size; bz = bz / b_size;
+
+		double ax_s = ax * step;
+		double ay_s = ay * step;
+		double az_s = az * step;
+
+		double bx_s = bx * step;
+		double by_s = by * step;
+		double bz_s = bz * step;
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int depth = image.getStackSize();
+		float [][] v = new float[depth][];
+		ImageStack s = image.getStack();
+		int imageType = image.getType();
+		final int arraySize = width * height;
+		if( imageType == ImagePlus.GRAY8 || imageType == ImagePlus.COLOR_256 ) {
+			for( int z = 0; z < depth; ++z ) {
+				byte [] bytePixels = (byte[])s.getPixels(z+1);
+				float [] fa = new float[arraySize];
+				for( int i = 0; i < arraySize; ++i  )
+					fa[i] = bytePixels[i] & 0xFF;
+				v[z] = fa;
+			}
+		} else if( imageType == ImagePlus.GRAY16 ) {
+			for( int z = 0; z < depth; ++z ) {
+				short [] shortPixels = (short[])s.getPixels(z+1);
+				float [] fa = new float[arraySize];
+				for( int i = 0; i < arraySize; ++i  )
+					fa[i] = shortPixels[i];
+				v[z] = fa;
+			}
+		} else if( imageType == ImagePlus.GRAY32 ) {
+			for( int z = 0; z < depth; ++z ) {
+				v[z] = (float[])s.getPixels(z+1);
+			}
+		}
+
+		for( int grid_i = 0; grid_i < side; ++grid_i ) {
+			for( int grid_j = 0; grid_j < side; ++grid_j ) {
+
+				double midside_grid = ((side - 1) / 2.0f);
+
+				double gi = midside_grid - grid_i;
+				double gj = midside_grid - grid_j;
+
+				double vx = ox + gi * ax_s + gj * bx_s;
+				double vy = oy + gi * ay_s + gj * by_s;
+				double vz = oz + gi * az_s + gj * bz_s;
+
+				double image_x = vx / x_spacing;
+				double image_y = vy / y_spacing;
+				double image_z = vz / z_spacing;
+
+				double x_d = image_x - Math.floor(image_x);
+				double y_d = image_y - Math.floor(image_y);
+				double z_d = image_z - Math.floor(image_z);
+
+				int x_f = (int)Math.floor(image_x); int x_c = (int)Math.ceil(image_x);
+				int y_f = (int)Math.floor(image_y); int y_c = (int)Math.ceil(image_y);
+				int z_f = (int)Math.floor(image_z); int z_c = (int)Math.ceil(image_z);
+
+				double fff, cff, fcf, ccf, ffc, cfc, fcc, ccc;
+
+				if( (x_f < 0) || (x_c < 0) || (y_f < 0) || (y_c < 0) || (z_f < 0) || (z_c < 0) ||
+				    (x_f >= width) || (x_c >= width) || (y_f >= height) || (y_c >= height) || (z_f >= depth) || (z_c >= depth) ) {
+					fff = cff = fcf = ccf = ffc = cfc = fcc = ccc = 0;
+				} else {
+					fff = v[z_f][width*y_f+x_f];
+					cff = v[z_c][width*y_f+x_f];
+					fcf = v[z_f][width*y_c+x_f];
+					ccf = v[z_c][width*y_c+x_f];
+					ffc = v[z_f][width*y_f+x_c];
+					cfc = v[z_c][width*y_f+x_c];
+					fcc = v[z_f][width*y_c+x_c];
+					ccc = v[z_c][width*y_c+x_c];
+				}
+
+				double i1 = (1 - z_d) * (fff) + (cff) * z_d;
+				double i2 = (1 - z_d) * (fcf) + (ccf) * z_d;
+
+				double j1 = (1 - z_d) * (ffc) + (cfc) * z_d;
+				double j2 = (1 - z_d) * (fcc) + (ccc) * z_d;
+
+				double w1 = i1 * (1 - y_d) + i2 * y_d;
+				double w2 = j1 * (1 - y_d) + j2 * y_d;
+
+				double value_f = w1 * (1 - x_d) + w2 * x_d;
+
+				result[grid_j*side+grid_i] = (float)value_f;
+			}
+		}
+
+		x_basis_vector[0] = ax_s;
+		x_basis_vector[1] = ay_s;
+		x_basis_vector[2] = az_s;
+
+		y_basis_vector[0] = bx_s;
+		y_basis_vector[1] = by_s;
+		y_basis_vector[2] = bz_s;
+
+		return result;
+	}
+
+	void checkSample( ImagePlus image, int side, double step,
+			  double ox, double oy, double oz,
+			  double nx, double ny, double nz,
+			  double x_spacing, double y_spacing, double z_spacing ) {
+		double [] expectedX = new double[3], expectedY = new double[3];
+		float [] expected = sampleByOldMethod( side, step, ox, oy, oz, nx, ny, nz,
+						       expectedX, expectedY,
+						       image, x_spacing, y_spacing, z_spacing );
+		NormalPlaneSampler sampler = new NormalPlaneSampler( image, x_spacing, y_spacing, z_spacing );
+		double [] foundX = new double[3], foundY = new double[3];
+		float [] found = new float[side * side];
+		sampler.sample( side, step, ox, oy, oz, nx, ny, nz, foundX, foundY, found );
+		assertArrayEquals( expectedX, foundX, 0 );
+		assertArrayEquals( expectedY, foundY, 0 );
+		for( int i = 0; i < side * side; ++i )
+			assertEquals( Float.floatToIntBits( expected[i] ), Float.floatToIntBits( found[i] ) );
+	}
+
+	void checkType( int type ) {
+		ImagePlus image = makeImage( type );
+		for( int trial = 0; trial < 200; ++trial ) {
+			double x_spacing = 0.5 + random.nextInt( 3 ) * 0.25;
+			double y_spacing = x_spacing;
+			double z_spacing = 1 + random.nextInt( 2 );
+			// Some of the planes go off the edges of the image:
+			double ox = (random.nextDouble() * 1.4 - 0.2) * width * x_spacing;
+			double oy = (random.nextDouble() * 1.4 - 0.2) * height * y_spacing;
+			double oz = (random.nextDouble() * 1.4 - 0.2) * depth * z_spacing;
+			double nx = random.nextGaussian();
+			double ny = random.nextGaussian();
+			double nz = random.nextGaussian();
+			if( trial % 7 == 0 )
+				nx = ny = 0;
+			int side = 5 + random.nextInt( 20 );
+			double step = 0.3 + random.nextDouble();
+			checkSample( image, side, step, ox, oy, oz, nx, ny, nz, x_spacing, y_spacing, z_spacing );
+		}
+	}
+
+	@Test public void test8Bit() {
+		checkType( ImagePlus.GRAY8 );
+	}
+
+	@Test public void test16Bit() {
+		checkType( ImagePlus.GRAY16 );
+	}
+
+	@Test public void test32Bit() {
+		checkType( ImagePlus.GRAY32 );
+	}
+
+	/* With a normal along z and the step the same as the
+	   spacing, every sample is exactly on a voxel, including
+	   those on the last row, column and slice: */
+	@Test public void testOnVoxels() {
+		int [] types = { ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32 };
+		for( int type : types ) {
+			ImagePlus image = makeImage( type );
+			for( int z = 0; z < depth; ++z ) {
+				checkSample( image, 9, 1, 4, 4, z, 0, 0, 1, 1, 1, 1 );
+				checkSample( image, 9, 1, width - 1, height - 1, z, 0, 0, 1, 1, 1, 1 );
+				checkSample( image, 9, 0.5, 0, 0, z * 2, 0, 0, 1, 0.5, 0.5, 2 );
+			}
+			// And along y, on the last slice:
+			checkSample( image, 7, 1, 10, 3, depth - 1, 0, 1, 0, 1, 1, 1 );
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that a path in compact storage gives the same points
+   (to within a float's precision) through all the accessors, and
+   that changing it puts its points back in double arrays */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathCompactStorageTest {
+
+	/* The paths below are at most a few hundred units across,
+	   starting about 1000 units from the origin: */
+	static final double TOLERANCE = 1e-4;
+
+	Random random;
+
+	@Before public void setUp() {
+		random = new Random( 1 );
+	}
+
+	Path makePath( int n ) {
+		Path p = new Path( 0.5, 0.5, 2, "um" );
+		double x = 1000 + random.nextDouble() * 10, y = 900, z = 40;
+		for( int i = 0; i < n; ++i ) {
+			x += random.nextDouble();
+			y += random.nextDouble() - 0.5;
+			z += random.nextDouble() * 0.2 - 0.1;
+			p.addPointDouble( x, y, z );
+		}
+		return p;
+	}
+
+	void assertSamePoints( double [] xs, double [] ys, double [] zs, Path p ) {
+		assertEquals( xs.length, p.size() );
+		double [] point = new double[3];
+		for( int i = 0; i < p.size(); ++i ) {
+			p.getPointDouble( i, point );
+			assertEquals( xs[i], point[0], TOLERANCE );
+			assertEquals( ys[i], point[1], TOLERANCE );
+			assertEquals( zs[i], point[2], TOLERANCE );
+			assertEquals( xs[i] / 0.5, p.getXUnscaledDouble( i ), TOLERANCE / 0.5 );
+			assertEquals( ys[i] / 0.5, p.getYUnscaledDouble( i ), TOLERANCE / 0.5 );
+			assertEquals( zs[i] / 2, p.getZUnscaledDouble( i ), TOLERANCE / 2 );
+			PointInImage pim = p.getPointInImage( i );
+			assertEquals( xs[i], pim.x, TOLERANCE );
+			assertEquals( ys[i], pim.y, TOLERANCE );
+			assertEquals( zs[i], pim.z, TOLERANCE );
+		}
+	}
+
+	@Test public void testAccessors() {
+		Path p = makePath( 300 );
+		double [] xs = p.getPreciseXs(), ys = p.getPreciseYs(), zs = p.getPreciseZs();
+		double length = p.getRealLength();
+		int modificationCount = p.getModificationCount();
+		p.compact();
+		assertTrue( p.isCompact() );
+		assertNull( p.precise_x_positions );
+		assertEquals( 300, p.maxPoints );
+		assertSamePoints( xs, ys, zs, p );
+		assertEquals( length, p.getRealLength(), TOLERANCE * 300 );
+		// Compacting doesn't count as changing the points:
+		assertEquals( modificationCount, p.getModificationCount() );
+		// ... and doing it again changes nothing:
+		float [] compactXs = p.compact_x_positions;
+		p.compact();
+		assertSame( compactXs, p.compact_x_positions );
+		// The first point is exact:
+		assertEquals( xs[0], p.getPreciseX( 0 ), 0 );
+		double [] copied = new double[310];
+		p.getPrecisePositions( 5, 295, copied, new double[310], new double[310], 10 );
+		for( int i = 0; i < 295; ++i )
+			assertEquals( xs[i+5], copied[i+10], TOLERANCE );
+	}
+
+	@Test public void testEmptyPath() {
+		Path p = new Path( 1, 1, 1, "um" );
+		p.compact();
+		assertTrue( p.isCompact() );
+		assertEquals( 0, p.size() );
+		p.addPointDouble( 1, 2, 3 );
+		assertFalse( p.isCompact() );
+		assertEquals( 2, p.getPreciseY( 0 ), 0 );
+	}
+
+	@Test public void testChangingUncompacts() {
+		Path p = makePath( 50 );
+		p.compact();
+		double [] xs = p.getPreciseXs(), ys = p.getPreciseYs(), zs = p.getPreciseZs();
+		p.addPointDouble( 1, 2, 3 );
+		assertFalse( p.isCompact() );
+		assertNotNull( p.precise_x_positions );
+		assertNull( p.compact_x_positions );
+		assertEquals( 51, p.size() );
+		for( int i = 0; i < 50; ++i )
+			assertEquals( xs[i], p.getPreciseX( i ), 0 );
+		assertEquals( 3, p.getPreciseZ( 50 ), 0 );
+
+		// Adding a compact path to a compact path:
+		Path a = makePath( 20 ), b = makePath( 30 );
+		double [] axs = a.getPreciseXs(), bxs = b.getPreciseXs();
+		a.trimToSize();
+		a.compact();
+		b.compact();
+		a.add( b );
+		assertFalse( a.isCompact() );
+		assertEquals( 50, a.size() );
+		for( int i = 0; i < 20; ++i )
+			assertEquals( axs[i], a.getPreciseX( i ), TOLERANCE );
+		for( int i = 0; i < 30; ++i )
+			assertEquals( bxs[i], a.getPreciseX( 20 + i ), TOLERANCE );
+
+		// Reversing and downsampling:
+		Path c = makePath( 100 );
+		c.compact();
+		Path r = c.reversed();
+		for( int i = 0; i < 100; ++i )
+			assertEquals( c.getPreciseX( 99 - i ), r.getPreciseX( i ), 0 );
+		c.downsample( 0.5 );
+		assertFalse( c.isCompact() );
+		assertTrue( c.size() < 100 );
+	}
+
+	@Test public void testManager() {
+		PathAndFillManager pafm = new PathAndFillManager( 2000, 2000, 100, 0.5f, 0.5f, 2, "um" );
+		Path first = makePath( 100 );
+		pafm.addPath( first );
+		assertFalse( first.isCompact() );
+		pafm.setCompactPathStorage( true );
+		assertTrue( first.isCompact() );
+		Path second = makePath( 100 );
+		pafm.addPath( second );
+		assertTrue( second.isCompact() );
+		// The index still finds points on compact paths:
+		double [] point = new double[3];
+		second.getPointDouble( 40, point );
+		NearPoint np = pafm.nearestPointOnAnyPath( point[0], point[1], point[2], 1 );
+		assertNotNull( np );
+		assertSame( second, np.getPath() );
+		pafm.setCompactPathStorage( false );
+		assertFalse( first.isCompact() );
+		assertFalse( second.isCompact() );
+	}
+}
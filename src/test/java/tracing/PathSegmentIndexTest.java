@@ -0,0 +1,147 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that the spatial index gives the same answers as looking
+   at every point of every path */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathSegmentIndexTest {
+
+	List<Path> paths;
+	PathSegmentIndex index;
+	Random random;
+
+	@Before public void setUp() {
+		random = new Random(1);
+		paths = new ArrayList<Path>();
+		for( int k = 0; k < 100; ++k ) {
+			Path p = new Path( 1, 1, 2, "um" );
+			p.setName( "Path "+k );
+			double x = random.nextDouble() * 500;
+			double y = random.nextDouble() * 500;
+			double z = random.nextDouble() * 200;
+			int n = 1 + random.nextInt( 200 );
+			for( int i = 0; i < n; ++i ) {
+				x += random.nextGaussian() * 2;
+				y += random.nextGaussian() * 2;
+				z += random.nextGaussian() * 2;
+				p.addPointDouble( x, y, z );
+			}
+			paths.add( p );
+		}
+		index = new PathSegmentIndex();
+		index.sync( paths );
+	}
+
+	/* This is the method that PathAndFillManager used before
+	   there was an index: */
+	NearPoint nearestByExhaustiveSearch( double x, double y, double z, double distanceLimit ) {
+		PriorityQueue<NearPoint> pq = new PriorityQueue<NearPoint>();
+		for( Path p : paths )
+			for( int i = 0; i < p.size(); ++i )
+				pq.add( new NearPoint( x, y, z, p, i ) );
+		NearPoint np;
+		while( (np = pq.poll()) != null ) {
+			if( np.distanceToPathPointSquared() > distanceLimit * distanceLimit )
+				return null;
+			if( np.distanceToPathNearPoint() >= 0 )
+				return np;
+		}
+		return null;
+	}
+
+	void checkQueries( int queries ) {
+		for( int q = 0; q < queries; ++q ) {
+			double x = random.nextDouble() * 600 - 50;
+			double y = random.nextDouble() * 600 - 50;
+			double z = random.nextDouble() * 300 - 50;
+			double limit = (q % 2 == 0) ? 20 : 1000;
+			NearPoint expected = nearestByExhaustiveSearch( x, y, z, limit );
+			NearPoint found = index.nearestPointOnAnyPath( x, y, z, limit );
+			if( expected == null ) {
+				assertEquals( null, found );
+			} else {
+				assertNotNull( found );
+				assertSame( expected.getPath(), found.getPath() );
+				assertEquals( expected.getIndexInPath(), found.getIndexInPath() );
+			}
+		}
+	}
+
+	@Test
+	public void testNearestPointOnAnyPath() {
+		checkQueries( 200 );
+	}
+
+	@Test
+	public void testNearestPointOnPaths() {
+		Set<Path> restrictTo = new HashSet<Path>( paths.subList( 10, 20 ) );
+		for( int q = 0; q < 200; ++q ) {
+			double x = random.nextDouble() * 500;
+			double y = random.nextDouble() * 500;
+			double z = random.nextDouble() * 200;
+			double expected = Double.MAX_VALUE;
+			for( Path p : restrictTo ) {
+				NearPoint np = new NearPoint( x, y, z, p, p.indexNearestTo( x, y, z ) );
+				expected = Math.min( expected, np.distanceToPathPointSquared() );
+			}
+			NearPoint found = index.nearestPointOnPaths( x, y, z, restrictTo );
+			assertEquals( expected, found.distanceToPathPointSquared(), 1e-9 );
+		}
+	}
+
+	/* The manager's index should be kept up to date as paths are
+	   added, changed and deleted, without needing sync(): */
+	@Test
+	public void testManagerKeepsIndexCurrent() {
+		PathAndFillManager pafm = new PathAndFillManager( 600, 600, 150, 1, 1, 2, "um" );
+		for( Path p : paths )
+			pafm.addPath( p );
+		index = pafm.spatialIndex;
+		assertTrue( index.isCurrent( paths ) );
+		checkQueries( 100 );
+
+		pafm.deletePath( paths.get( 5 ) );
+		paths.remove( 5 );
+		assertTrue( index.isCurrent( paths ) );
+
+		Path p = paths.get( 0 );
+		p.downsample( 3 );
+		assertTrue( ! index.isCurrent( paths ) );
+		pafm.pathChanged( p );
+		assertTrue( index.isCurrent( paths ) );
+
+		pafm.downsampleAll( 2 );
+		assertTrue( index.isCurrent( paths ) );
+		checkQueries( 100 );
+
+		pafm.setCompactPathStorage( true );
+		assertTrue( index.isCurrent( paths ) );
+		checkQueries( 100 );
+	}
+
+	@Test
+	public void testSyncAfterChanges() {
+		for( int k = 0; k < 30; ++k )
+			paths.remove( 0 );
+		paths.get( 0 ).addPointDouble( 0, 0, 0 );
+		paths.get( 1 ).downsample( 3 );
+		index.sync( paths );
+		checkQueries( 200 );
+	}
+}
@@ -0,0 +1,255 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that SampledPathTransformer's interpolated points are within
+   a small distance of those from the transformation itself, that it
+   falls back to the transformation itself for points outside its
+   grid or near points that can't be transformed, and that
+   PathAndFillManager.transformPaths() only transforms the points
+   that it needs */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SampledPathTransformerTest {
+
+	/* With nodes 2 apart, the trilinear interpolation of the
+	   warp below is within this of the exact transformation: */
+	static final double TOLERANCE = 0.02;
+
+	/* A smooth warp, which can't transform points with x beyond
+	   noTransformBeyond, and which records the points it's asked
+	   to transform: */
+	static class Warp implements PathTransformer {
+		double noTransformBeyond = Double.MAX_VALUE;
+		ArrayList< double [] > calls = new ArrayList< double [] >();
+
+		public synchronized void transformPoint( double x, double y, double z, double [] transformed ) {
+			calls.add( new double[] { x, y, z } );
+			if( x > noTransformBeyond ) {
+				transformed[0] = transformed[1] = transformed[2] = Double.NaN;
+				return;
+			}
+			transformed[0] = x + 3 * Math.sin( x / 20 ) + 0.1 * y;
+			transformed[1] = y + 3 * Math.cos( y / 25 ) - 0.05 * z;
+			transformed[2] = z + 2 * Math.sin( z / 30 + x / 40 ) + 5;
+		}
+
+		public void transformPoint( double x, double y, double z, int [] transformed ) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void transformPoint( int x, int y, int z, int [] transformed ) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void transformPoint( int x, int y, int z, double [] transformed ) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	Random random;
+	Warp warp;
+
+	@Before public void setUp() {
+		random = new Random( 1 );
+		warp = new Warp();
+	}
+
+	double [] exactly( double x, double y, double z ) {
+		double [] result = new double[3];
+		Warp w = new Warp();
+		w.noTransformBeyond = warp.noTransformBeyond;
+		w.transformPoint( x, y, z, result );
+		return result;
+	}
+
+	SampledPathTransformer grid( int threads ) {
+		// Nodes from (10,10,10) to (110,110,50), 2 apart:
+		return new SampledPathTransformer( warp, true, threads,
+						   10, 10, 10,
+						   2, 2, 2,
+						   51, 51, 21 );
+	}
+
+	@Test public void testInterpolationIsClose() {
+		for( int threads = 1; threads <= 4; threads += 3 ) {
+			warp.calls.clear();
+			SampledPathTransformer sampled = grid( threads );
+			int n = 50000;
+			double [] xs = new double[n], ys = new double[n], zs = new double[n];
+			for( int p = 0; p < n; ++p ) {
+				xs[p] = 10 + random.nextDouble() * 100;
+				ys[p] = 10 + random.nextDouble() * 100;
+				zs[p] = 10 + random.nextDouble() * 40;
+			}
+			double [] txs = new double[n], tys = new double[n], tzs = new double[n];
+			sampled.transformPoints( xs, ys, zs, txs, tys, tzs, n );
+			for( int p = 0; p < n; ++p ) {
+				double [] expected = exactly( xs[p], ys[p], zs[p] );
+				assertEquals( expected[0], txs[p], TOLERANCE );
+				assertEquals( expected[1], tys[p], TOLERANCE );
+				assertEquals( expected[2], tzs[p], TOLERANCE );
+			}
+			// Only the nodes were transformed:
+			assertTrue( warp.calls.size() <= 51 * 51 * 21 );
+			// ... and they're kept for the next batch:
+			int calls = warp.calls.size();
+			sampled.transformPoints( xs, ys, zs, txs, tys, tzs, n );
+			assertEquals( calls, warp.calls.size() );
+		}
+	}
+
+	@Test public void testOutsideTheGrid() {
+		SampledPathTransformer sampled = grid( 1 );
+		double [][] outside = {
+			{ 9.5, 50, 20 }, { 110.5, 50, 20 }, { 50, 9, 20 },
+			{ 50, 111, 20 }, { 50, 50, 9.99 }, { 50, 50, 50.01 },
+			{ Double.NaN, 50, 20 }
+		};
+		for( double [] point : outside ) {
+			double [] expected = exactly( point[0], point[1], point[2] );
+			double [] found = new double[3];
+			sampled.transformPoint( point[0], point[1], point[2], found );
+			for( int i = 0; i < 3; ++i )
+				assertEquals( expected[i], found[i], 0 );
+		}
+		// The edges of the grid are still interpolated:
+		double [] found = new double[3];
+		sampled.transformPoint( 110.0, 110.0, 50.0, found );
+		double [] expected = exactly( 110, 110, 50 );
+		for( int i = 0; i < 3; ++i )
+			assertEquals( expected[i], found[i], TOLERANCE );
+	}
+
+	@Test public void testUntransformablePoints() {
+		// The cells with x from 60 to 62 have untransformable corners:
+		warp.noTransformBeyond = 61;
+		SampledPathTransformer sampled = grid( 1 );
+		int n = 20000;
+		double [] xs = new double[n], ys = new double[n], zs = new double[n];
+		for( int p = 0; p < n; ++p ) {
+			xs[p] = 10 + random.nextDouble() * 100;
+			ys[p] = 10 + random.nextDouble() * 100;
+			zs[p] = 10 + random.nextDouble() * 40;
+		}
+		double [] txs = new double[n], tys = new double[n], tzs = new double[n];
+		sampled.transformPoints( xs, ys, zs, txs, tys, tzs, n );
+		for( int p = 0; p < n; ++p ) {
+			double [] expected = exactly( xs[p], ys[p], zs[p] );
+			if( xs[p] > 61 ) {
+				assertTrue( Double.isNaN( txs[p] ) && Double.isNaN( tys[p] ) && Double.isNaN( tzs[p] ) );
+			} else if( xs[p] > 60 ) {
+				assertEquals( expected[0], txs[p], 0 );
+				assertEquals( expected[1], tys[p], 0 );
+				assertEquals( expected[2], tzs[p], 0 );
+			} else {
+				assertEquals( expected[0], txs[p], TOLERANCE );
+				assertEquals( expected[1], tys[p], TOLERANCE );
+				assertEquals( expected[2], tzs[p], TOLERANCE );
+			}
+		}
+	}
+
+	@Test public void testCovering() {
+		double [] xs = { 5, 25, 15, Double.NaN }, ys = { 0, 3, 7, 1 }, zs = { 2, 2, 2, 2 };
+		PathTransformer covering = SampledPathTransformer.covering( warp, false, 1, xs, ys, zs, 4, 2, 2, 2 );
+		assertTrue( covering instanceof SampledPathTransformer );
+		SampledPathTransformer sampled = (SampledPathTransformer)covering;
+		assertEquals( 5, sampled.originX, 0 );
+		assertEquals( 0, sampled.originY, 0 );
+		assertEquals( 2, sampled.originZ, 0 );
+		assertEquals( 11, sampled.nodesX );
+		assertEquals( 5, sampled.nodesY );
+		assertEquals( 2, sampled.nodesZ );
+		// No points, or an unusable step, leave the transformer alone:
+		assertSame( warp, SampledPathTransformer.covering( warp, false, 1, xs, ys, zs, 0, 2, 2, 2 ) );
+		assertSame( warp, SampledPathTransformer.covering( warp, false, 1, xs, ys, zs, 4, 0, 2, 2 ) );
+		assertSame( warp, SampledPathTransformer.covering( warp, false, 1, xs, ys, zs, 4, 1e-9, 1e-9, 1e-9 ) );
+	}
+
+	PathAndFillManager makePaths() {
+		PathAndFillManager pafm = new PathAndFillManager( 120, 120, 60, 1, 1, 1, "um" );
+		Path previous = null;
+		for( int i = 0; i < 20; ++i ) {
+			Path p = new Path( 1, 1, 1, "um" );
+			double x = 10 + random.nextDouble() * 50, y = 10 + random.nextDouble() * 50, z = 10 + random.nextDouble() * 20;
+			if( previous != null && i % 2 == 0 ) {
+				double [] joinPoint = new double[3];
+				previous.getPointDouble( previous.size() / 2, joinPoint );
+				x = joinPoint[0];
+				y = joinPoint[1];
+				z = joinPoint[2];
+				p.addPointDouble( x, y, z );
+				p.setStartJoin( previous, new PointInImage( x, y, z ) );
+			}
+			for( int k = 0; k < 200; ++k ) {
+				x += random.nextDouble() - 0.3;
+				y += random.nextDouble() - 0.3;
+				z += random.nextDouble() * 0.5 - 0.2;
+				p.addPointDouble( x, y, z );
+			}
+			pafm.addPath( p );
+			previous = p;
+		}
+		return pafm;
+	}
+
+	ImagePlus template() {
+		ImageStack stack = new ImageStack( 10, 10 );
+		for( int z = 0; z < 4; ++z )
+			stack.addSlice( null, new ByteProcessor( 10, 10 ) );
+		return new ImagePlus( "template", stack );
+	}
+
+	@Test public void testTransformPaths() {
+		PathAndFillManager pafm = makePaths();
+		int points = 0, joins = 0;
+		for( Path p : pafm.allPaths ) {
+			points += p.size();
+			if( p.getStartJoins() != null )
+				++ joins;
+		}
+
+		PathAndFillManager exact = pafm.transformPaths( warp, template(), 0 );
+		// Only the points and the joins that exist are transformed:
+		assertEquals( points + joins, warp.calls.size() );
+		for( double [] call : warp.calls )
+			assertFalse( call[0] == 0 && call[1] == 0 && call[2] == 0 );
+
+		warp.calls.clear();
+		PathAndFillManager sampled = pafm.transformPaths( warp, template(), 2 );
+		assertTrue( warp.calls.size() < points );
+		assertEquals( exact.size(), sampled.size() );
+		double [] e = new double[3], f = new double[3];
+		for( int i = 0; i < exact.size(); ++i ) {
+			Path ep = exact.getPath( i ), sp = sampled.getPath( i );
+			assertEquals( ep.size(), sp.size() );
+			for( int k = 0; k < ep.size(); ++k ) {
+				ep.getPointDouble( k, e );
+				sp.getPointDouble( k, f );
+				for( int c = 0; c < 3; ++c )
+					assertEquals( e[c], f[c], TOLERANCE );
+			}
+			assertEquals( ep.getStartJoins() == null, sp.getStartJoins() == null );
+			if( ep.getStartJoins() != null ) {
+				assertEquals( ep.getStartJoinsPoint().x, sp.getStartJoinsPoint().x, TOLERANCE );
+				assertEquals( ep.getStartJoinsPoint().y, sp.getStartJoinsPoint().y, TOLERANCE );
+				assertEquals( ep.getStartJoinsPoint().z, sp.getStartJoinsPoint().z, TOLERANCE );
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that Sholl analysis from ShollEvents gives exactly the same
+   results as sorting a list of ShollPoint objects */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ShollEventsTest {
+
+	/* Integer coordinates, so that there are lots of points at
+	   exactly the same distance from the centre: */
+	List<Path> makePaths( Random random, int numberOfPaths, int maxPoints ) {
+		List<Path> paths = new ArrayList<Path>();
+		for( int k = 0; k < numberOfPaths; ++k ) {
+			Path p = new Path( 1, 1, 1, "um" );
+			int x = random.nextInt( 50 );
+			int y = random.nextInt( 50 );
+			int z = random.nextInt( 10 );
+			int n = 1 + random.nextInt( maxPoints );
+			for( int i = 0; i < n; ++i ) {
+				x += random.nextInt( 3 ) - 1;
+				y += random.nextInt( 3 ) - 1;
+				z += random.nextInt( 3 ) - 1;
+				p.addPointDouble( x, y, z );
+			}
+			paths.add( p );
+		}
+		return paths;
+	}
+
+	void checkSameAsShollPoints( List<Path> paths, double x, double y, double z ) {
+		ArrayList<ShollAnalysisDialog.ShollPoint> shollPoints = new ArrayList<ShollAnalysisDialog.ShollPoint>();
+		ShollEvents events = new ShollEvents();
+		for( Path p : paths ) {
+			ShollAnalysisDialog.addPathPointsToShollList( p, x, y, z, shollPoints );
+			events.addPath( p, x, y, z );
+		}
+		assertEquals( shollPoints.size(), events.size() );
+
+		/* This is how ShollResults used to find the crossings: */
+		Collections.sort( shollPoints );
+		int n = shollPoints.size();
+		double [] squaredRangeStarts = new double[n];
+		int [] crossingsPastEach = new int[n];
+		int currentCrossings = 0;
+		for( int i = 0; i < n; ++i ) {
+			ShollAnalysisDialog.ShollPoint p = shollPoints.get(i);
+			currentCrossings += p.nearer ? 1 : -1;
+			squaredRangeStarts[i] = p.distanceSquared;
+			crossingsPastEach[i] = currentCrossings;
+		}
+
+		ShollAnalysisDialog.ShollResults results = new ShollAnalysisDialog.ShollResults(
+			events, null, true, paths.size(), x, y, z, "test",
+			ShollAnalysisDialog.AXES_NORMAL, ShollAnalysisDialog.NOT_NORMALIZED, 0, false );
+
+		assertArrayEquals( squaredRangeStarts, results.squaredRangeStarts, 0 );
+		assertArrayEquals( crossingsPastEach, results.crossingsPastEach );
+	}
+
+	@Test
+	public void testSmallTracings() {
+		Random random = new Random( 1 );
+		for( int i = 0; i < 50; ++i )
+			checkSameAsShollPoints( makePaths( random, 1 + random.nextInt( 20 ), 100 ), 25, 25, 5 );
+	}
+
+	@Test
+	public void testLargeTracing() {
+		Random random = new Random( 2 );
+		List<Path> paths = makePaths( random, 600, 400 );
+		checkSameAsShollPoints( paths, 25, 25, 5 );
+	}
+
+	@Test
+	public void testSortIsStable() {
+		ShollEvents events = new ShollEvents();
+		events.add( 4, true );
+		events.add( 1, false );
+		events.add( 4, false );
+		events.add( 1, true );
+		events.add( 0, true );
+		events.sort();
+		assertTrue( events.isSorted() );
+		double [] expectedDistances = { 0, 1, 1, 4, 4 };
+		boolean [] expectedNearer = { true, false, true, true, false };
+		for( int i = 0; i < events.size(); ++i ) {
+			assertEquals( expectedDistances[i], events.getDistanceSquared(i), 0 );
+			assertEquals( expectedNearer[i], events.getNearer(i) );
+		}
+	}
+}